@@ -0,0 +1,105 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.amazon.speech.slu.Intent;
+import com.amazon.speech.slu.Slot;
+import com.amazon.speech.speechlet.IntentRequest;
+import com.amazon.speech.speechlet.Session;
+import com.amazon.speech.speechlet.SpeechletException;
+import com.amazon.speech.speechlet.SpeechletResponse;
+import com.amazon.speech.speechlet.User;
+import com.hungn.alexa.pbt.MainSpeechlet;
+import com.hungn.alexa.pbt.StreamHandler;
+import com.hungn.alexa.pbt.tools.AlexaRequests;
+import com.hungn.alexa.pbt.tools.UpstreamStub;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TrackIntent served end to end against an in-process {@link UpstreamStub} standing in for
+ * PennRides and Google Maps: straight through {@link MainSpeechlet#onIntent}, and through
+ * {@link StreamHandler} including the envelope JSON. A vehicle TTL of 0 fetches the vehicles
+ * from the stub on every request; each TTL runs in its own fork.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-local.properties")
+public class EndToEndBenchmark {
+  @Param({"0", "7000"})
+  public String vehicleTtlMs;
+
+  private UpstreamStub stub;
+  private MainSpeechlet speechlet;
+  private StreamHandler handler;
+  private IntentRequest request;
+  private Session session;
+  private byte[] envelope;
+
+  @Setup
+  public void setup() throws IOException {
+    stub = new UpstreamStub(0);
+    stub.start();
+    // Must be set before the skill classes initialize, as their upstream clients are static
+    System.setProperty("PBT_PENNRIDES_URL", stub.getBaseUrl());
+    System.setProperty("PBT_GOOGLE_MAPS_URL", stub.getBaseUrl());
+    System.setProperty("PBT_VEHICLE_TTL_MS", vehicleTtlMs);
+    System.setProperty("PBT_WARMUP", "false");
+
+    speechlet = new MainSpeechlet();
+    handler = new StreamHandler();
+
+    Slot slot = Slot.builder().withName("vehicle").withValue("shuttle west b").build();
+    request = IntentRequest.builder()
+        .withRequestId("benchmark")
+        .withTimestamp(new Date())
+        .withIntent(Intent.builder()
+            .withName("TrackIntent")
+            .withSlots(Collections.singletonMap(slot.getName(), slot))
+            .build())
+        .build();
+    session = Session.builder()
+        .withSessionId("benchmark")
+        .withUser(User.builder().withUserId("benchmark").build())
+        .build();
+    envelope = AlexaRequests.intentRequest(StreamHandler.getSupportedApplicationIds().iterator().next(),
+        "TrackIntent", "vehicle", "shuttle west b");
+  }
+
+  @TearDown
+  public void tearDown() {
+    stub.stop();
+  }
+
+  @Benchmark
+  public SpeechletResponse onIntent() throws SpeechletException {
+    return speechlet.onIntent(request, session);
+  }
+
+  @Benchmark
+  public byte[] handleRequest() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+    handler.handleRequest(new ByteArrayInputStream(envelope), out, null);
+    return out.toByteArray();
+  }
+}
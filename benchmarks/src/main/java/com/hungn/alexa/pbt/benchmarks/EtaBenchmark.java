@@ -0,0 +1,81 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.VehicleStatusDecoder;
+import com.hungn.alexa.pbt.api.WaypointsDecoder;
+import com.hungn.alexa.pbt.eta.EtaEngine;
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.geo.RouteGeometryStore;
+import com.hungn.alexa.pbt.types.Arrival;
+import com.hungn.alexa.pbt.types.Stop;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arrival predictions over the sample route: the soonest vehicle at one stop, for fleets scaled
+ * up from sample_vehicles.txt and moved onto the route
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-local.properties")
+public class EtaBenchmark {
+  private static final PennRides.Route ROUTE = PennRides.Route.SHUTTLE_EAST;
+
+  @Param({"3", "50"})
+  public int fleetSize;
+
+  private EtaEngine engine;
+  private List<VehicleStatus> vehicles;
+  private Stop stop;
+  private long now;
+
+  @Setup
+  public void setup() throws IOException {
+    RouteGeometry geometry = WaypointsDecoder.decode(
+        new ByteArrayInputStream(Fixtures.load("sample_waypoints.txt")));
+    RouteGeometryStore geometries = new RouteGeometryStore(null, null);
+    geometries.put(ROUTE, geometry);
+    List<Stop> routeStops = PennRides.parseStops(
+        new ByteArrayInputStream(Fixtures.load("sample_stops.txt")));
+    stop = routeStops.get(routeStops.size() / 2);
+    engine = new EtaEngine(geometries, null, 5, 100);
+
+    // Spread the vehicles along the route, reporting just now
+    ZonedDateTime time = ZonedDateTime.now(PennRides.ZONE);
+    now = time.toEpochSecond();
+    vehicles = VehicleStatusDecoder.decode(new ByteArrayInputStream(Fixtures.fleet(fleetSize)), time);
+    int i = 0;
+    for (VehicleStatus vehicle : vehicles) {
+      int point = (i++ * 7) % geometry.size();
+      vehicle.setLatitude(geometry.getLatitude(point));
+      vehicle.setLongitude(geometry.getLongitude(point));
+      vehicle.setUpdated(now);
+    }
+  }
+
+  @Benchmark
+  public Arrival nextAtStop() {
+    return engine.next(ROUTE, stop, vehicles, now);
+  }
+}
@@ -0,0 +1,121 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.VehicleStatusDecoder;
+import com.hungn.alexa.pbt.feed.VehiclePositions;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Vehicle positions feed against JSON: encoding the fleet as a full feed, as a delta with a third
+ * of the vehicles moved, and as JSON with Jackson, and decoding the full feed. Sizes of the
+ * PennRides response and of the feeds, raw and gzipped, are printed once per fleet size.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-local.properties")
+public class FeedBenchmark {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Param({"0", "50", "500"})
+  public int fleetSize;
+
+  private List<VehicleStatus> vehicles;
+  private Map<Integer, VehicleStatus> previous;
+  private Map<Integer, VehicleStatus> current;
+  private byte[] feed;
+  private long now;
+
+  @Setup
+  public void setup() throws IOException {
+    byte[] body = fleetSize == 0 ? Fixtures.load("sample_vehicles.txt") : Fixtures.fleet(fleetSize);
+    vehicles = VehicleStatusDecoder.decode(new ByteArrayInputStream(body),
+        ZonedDateTime.now(PennRides.ZONE));
+    now = System.currentTimeMillis() / 1000;
+
+    previous = new LinkedHashMap<>();
+    current = new LinkedHashMap<>();
+    int i = 0;
+    for (VehicleStatus status : vehicles) {
+      previous.put(status.getId(), status);
+      current.put(status.getId(), i++ % 3 == 0 ? moved(status) : status);
+    }
+
+    feed = VehiclePositions.encodeFull(vehicles, now);
+    byte[] delta = VehiclePositions.encodeDelta(previous, current, now);
+    System.out.println();
+    System.out.println("Fleet of " + vehicles.size() + " vehicles, bytes (gzipped):"
+        + " PennRides JSON " + body.length + " (" + gzip(body).length + "),"
+        + " full feed " + feed.length + " (" + gzip(feed).length + "),"
+        + " delta feed " + delta.length + " (" + gzip(delta).length + ")");
+  }
+
+  private static VehicleStatus moved(VehicleStatus status) {
+    VehicleStatus copy = new VehicleStatus();
+    copy.setId(status.getId());
+    copy.setRouteId(status.getRouteId());
+    copy.setPatternId(status.getPatternId());
+    copy.setName(status.getName());
+    copy.setLatitude(status.getLatitude() + 0.0001);
+    copy.setLongitude(status.getLongitude());
+    copy.setSpeed(status.getSpeed());
+    copy.setHeading(status.getHeading());
+    copy.setUpdated(status.getUpdated() + 5);
+    copy.setLastUpdated(status.getLastUpdated());
+    return copy;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+      zip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] encodeFull() {
+    return VehiclePositions.encodeFull(vehicles, now);
+  }
+
+  @Benchmark
+  public byte[] encodeDelta() {
+    return VehiclePositions.encodeDelta(previous, current, now);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() throws IOException {
+    return mapper.writeValueAsBytes(vehicles);
+  }
+
+  @Benchmark
+  public VehiclePositions.Feed decodeFull() {
+    return VehiclePositions.decode(feed);
+  }
+}
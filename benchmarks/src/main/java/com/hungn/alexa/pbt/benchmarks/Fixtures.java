@@ -0,0 +1,40 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.hungn.alexa.pbt.tools.UpstreamStub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixture loading shared by the benchmarks
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+final class Fixtures {
+  private Fixtures() {
+  }
+
+  /**
+   * @param name resource name such as sample_vehicles.txt
+   * @return content of a sample_*.txt fixture bundled with the skill
+   */
+  static byte[] load(String name) throws IOException {
+    try (InputStream in = Fixtures.class.getResourceAsStream("/" + name)) {
+      if (in == null) throw new IOException("Missing fixture " + name);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * @param size number of vehicles
+   * @return vehicles response body of a synthetic fleet, as served by {@link UpstreamStub}
+   */
+  static byte[] fleet(int size) throws IOException {
+    return UpstreamStub.fleet(size);
+  }
+}
@@ -0,0 +1,92 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.geo.PointIndex;
+import com.hungn.alexa.pbt.types.Stop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stop and waypoint loading from sample_stops.txt and sample_waypoints.txt, and the nearest
+ * stop lookup built on top of them
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-local.properties")
+public class GeometryBenchmark {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private byte[] stopsBody;
+  private byte[] waypointsBody;
+  private double[] latitudes;
+  private double[] longitudes;
+  private PointIndex index;
+  private int query;
+
+  @Setup
+  public void setup() throws IOException {
+    stopsBody = Fixtures.load("sample_stops.txt");
+    waypointsBody = Fixtures.load("sample_waypoints.txt");
+    List<Stop> stops = PennRides.parseStops(new ByteArrayInputStream(stopsBody));
+    latitudes = new double[stops.size()];
+    longitudes = new double[stops.size()];
+    for (int i = 0; i < stops.size(); i++) {
+      latitudes[i] = stops.get(i).getLatitude();
+      longitudes[i] = stops.get(i).getLongitude();
+    }
+    index = new PointIndex(latitudes, longitudes);
+  }
+
+  @Benchmark
+  public List<Stop> loadStops() throws IOException {
+    return PennRides.parseStops(new ByteArrayInputStream(stopsBody));
+  }
+
+  @Benchmark
+  public double[] loadWaypoints() throws IOException {
+    JsonNode root = mapper.readTree(new ByteArrayInputStream(waypointsBody));
+    int size = 0;
+    for (JsonNode segment : root) size += segment.size();
+    double[] points = new double[size * 2];
+    int i = 0;
+    for (JsonNode segment : root) {
+      for (JsonNode point : segment) {
+        points[i++] = point.path("Latitude").asDouble();
+        points[i++] = point.path("Longitude").asDouble();
+      }
+    }
+    return points;
+  }
+
+  @Benchmark
+  public PointIndex buildStopIndex() {
+    return new PointIndex(latitudes, longitudes);
+  }
+
+  @Benchmark
+  public int nearestStop() {
+    // Query slightly off each stop in turn
+    int i = query++ % latitudes.length;
+    return index.nearest(latitudes[i] + 1e-4, longitudes[i] - 1e-4, 60);
+  }
+}
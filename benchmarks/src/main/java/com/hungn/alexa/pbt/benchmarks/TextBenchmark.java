@@ -0,0 +1,61 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.hungn.alexa.pbt.api.ClockTime;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.RouteNameResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small per-request text work: elapsed time phrases, clock time parsing and route name
+ * resolution
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-local.properties")
+public class TextBenchmark {
+  private static final long[] ELAPSED = {0, 1, 59, 61, 3599, 3661, 90061};
+  private static final String[] CLOCK_TIMES = {"8:44:06P", "12:00:00AM", "11:59:59A", "1:02:03P"};
+  private static final String[] ROUTE_NAMES = {"Shuttle East", "shuttle  west A.", "Bus West",
+      "  shuttle west b ", "bus east!", "penn shuttle", "shuttle west hey", "pennovation"};
+  private static final RouteNameResolver RESOLVER = new RouteNameResolver();
+
+  private int i;
+  private final StringBuilder buffer = new StringBuilder(64);
+
+  @Benchmark
+  public String getElapsedTime() {
+    long elapsed = ELAPSED[i++ % ELAPSED.length];
+    return PennRides.getElapsedTime(1000, 1000 + elapsed);
+  }
+
+  @Benchmark
+  public int appendElapsedTime() {
+    buffer.setLength(0);
+    return PennRides.appendElapsedTime(buffer, ELAPSED[i++ % ELAPSED.length]).length();
+  }
+
+  @Benchmark
+  public int parseClockTime() {
+    return ClockTime.parseSecondOfDay(CLOCK_TIMES[i++ % CLOCK_TIMES.length]);
+  }
+
+  @Benchmark
+  public RouteNameResolver.Match resolveRouteName() {
+    return RESOLVER.resolve(ROUTE_NAMES[i++ % ROUTE_NAMES.length]);
+  }
+}
@@ -0,0 +1,62 @@
+package com.hungn.alexa.pbt.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.VehicleStatusDecoder;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vehicle JSON decoding: the streaming decoder used by the skill against a Jackson tree parse,
+ * over sample_vehicles.txt (fleet size 0) and synthetic fleets scaled up from it
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-local.properties")
+public class VehicleDecodeBenchmark {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  @Param({"0", "50", "500"})
+  public int fleetSize;
+
+  private byte[] body;
+  private ZonedDateTime now;
+
+  @Setup
+  public void setup() throws IOException {
+    body = fleetSize == 0 ? Fixtures.load("sample_vehicles.txt") : Fixtures.fleet(fleetSize);
+    now = ZonedDateTime.now(PennRides.ZONE);
+  }
+
+  @Benchmark
+  public List<VehicleStatus> streaming() throws IOException {
+    return VehicleStatusDecoder.decode(new ByteArrayInputStream(body), now);
+  }
+
+  @Benchmark
+  public JsonNode tree() throws IOException {
+    return mapper.readTree(new ByteArrayInputStream(body));
+  }
+}
@@ -6,14 +6,53 @@ import com.amazon.speech.ui.PlainTextOutputSpeech;
 import com.amazon.speech.ui.Reprompt;
 import com.hungn.alexa.pbt.api.GoogleMapsGeoencoding;
 import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.RouteNameResolver;
+import com.hungn.alexa.pbt.cache.SessionSnapshot;
+import com.hungn.alexa.pbt.cache.VehiclePlaceMemory;
+import com.hungn.alexa.pbt.cache.VehicleSnapshotCache;
+import com.hungn.alexa.pbt.eta.EtaEngine;
+import com.hungn.alexa.pbt.fleet.FleetPoller;
+import com.hungn.alexa.pbt.fleet.FleetState;
+import com.hungn.alexa.pbt.fleet.TrajectoryStore;
+import com.hungn.alexa.pbt.geo.GeoUtils;
+import com.hungn.alexa.pbt.geo.PointIndex;
+import com.hungn.alexa.pbt.geo.RouteGeometryStore;
+import com.hungn.alexa.pbt.geo.StopCatalog;
+import com.hungn.alexa.pbt.metrics.Metrics;
+import com.hungn.alexa.pbt.types.Arrival;
+import com.hungn.alexa.pbt.types.Stop;
 import com.hungn.alexa.pbt.types.IntentName;
 import com.hungn.alexa.pbt.types.VehicleStatus;
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.Futures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedList;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Speechlet answering the skill's intents. Intents are handled as a non-blocking pipeline:
+ * PennRides and Google Maps calls go out through non-blocking clients and the answer is
+ * composed as they complete, so a few threads carry many requests in flight.
+ * <p>
+ * Vehicles told to the user are kept in the session ({@link SessionSnapshot}), and the session
+ * is left open for follow-up questions about them, which are answered from the session while
+ * it is fresh.
+ *
  * @author Hung Nguyen (hungng@seas.upenn.edu)
  */
 public class MainSpeechlet implements Speechlet {
@@ -21,6 +60,88 @@ public class MainSpeechlet implements Speechlet {
 
   private static final PennRides pr = new PennRides();
   private static final GoogleMapsGeoencoding maps = new GoogleMapsGeoencoding();
+  private static final TrajectoryStore trajectories = new TrajectoryStore(
+      Config.getInt("PBT_TRAJECTORY_SIZE", 64), Config.getLong("PBT_TRAJECTORY_EXPIRE_S", 900));
+  private static final VehicleSnapshotCache snapshots = new VehicleSnapshotCache(
+      MainSpeechlet::fetchVehicles, MainSpeechlet::fetchVehiclesAsync,
+      Config.getLong("PBT_VEHICLE_TTL_MS", 7000),
+      Config.getLong("PBT_VEHICLE_STALE_MS", 0), TimeUnit.MILLISECONDS);
+  private static final FleetState fleet = new FleetState();
+  private static final long FLEET_MAX_AGE_MS = Config.getLong("PBT_FLEET_MAX_AGE_MS", 30000);
+  private static final StopCatalog stops = new StopCatalog(pr,
+      Config.getDouble("PBT_STOP_RADIUS_M", 60));
+  private static final RouteGeometryStore geometries = new RouteGeometryStore(pr,
+      Config.getString("PBT_ROUTE_GEOMETRY_FILE", null) == null
+          ? null : Paths.get(Config.getString("PBT_ROUTE_GEOMETRY_FILE", null)));
+  private static final EtaEngine eta = new EtaEngine(geometries, trajectories,
+      Config.getDouble("PBT_ETA_SPEED_MPS", 5), Config.getDouble("PBT_ETA_MAX_OFFSET_M", 100));
+
+  /**
+   * Time to answer a request in, shared by all its upstream calls; Alexa waits up to 8 seconds
+   */
+  private static final long REQUEST_BUDGET_MS = Config.getLong("PBT_REQUEST_BUDGET_MS", 6000);
+  private static final LongAdder timeouts = new LongAdder();
+
+  private static final RouteNameResolver routeNames = new RouteNameResolver(
+      Config.getString("PBT_ROUTE_ALIASES", null));
+  /**
+   * Route name matches below this confidence are taken as no route at all, and matches below
+   * the accept confidence are confirmed with the user first
+   */
+  private static final double ROUTE_MIN_CONFIDENCE = Config.getDouble("PBT_ROUTE_MIN_CONFIDENCE", 0.5);
+  private static final double ROUTE_ACCEPT_CONFIDENCE =
+      Config.getDouble("PBT_ROUTE_ACCEPT_CONFIDENCE", 0.8);
+
+  private static final VehiclePlaceMemory places = new VehiclePlaceMemory(
+      Config.getDouble("PBT_REGEOCODE_DISTANCE_M", 25),
+      Config.getDouble("PBT_REGEOCODE_TURN_DEG", 90),
+      Config.getLong("PBT_REGEOCODE_EXPIRE_S", 900), TimeUnit.SECONDS);
+  private static final long GEOCODE_DEADLINE_MS = Config.getLong("PBT_GEOCODE_DEADLINE_MS", 3000);
+
+  private static final int NEARBY_COUNT = Config.getInt("PBT_NEARBY_COUNT", 3);
+  private static final double NEARBY_RADIUS_M = Config.getDouble("PBT_NEARBY_RADIUS_M", 2000);
+  private static final long FLEET_DEADLINE_MS = Config.getLong("PBT_FLEET_DEADLINE_MS", 4000);
+
+  /**
+   * Keep the session open after telling vehicles, for follow-up questions about them
+   */
+  private static final boolean SESSION_FOLLOW_UPS = Config.getBoolean("PBT_SESSION_FOLLOW_UPS", true);
+  /**
+   * Vehicles kept in the session are used as they are for this long after they were fetched
+   */
+  private static final long SESSION_SNAPSHOT_MAX_AGE_S =
+      Config.getLong("PBT_SESSION_SNAPSHOT_MAX_AGE_S", 20);
+  private static final LongAdder sessionHits = new LongAdder();
+
+  private static final Set<String> KNOWN_INTENTS = new HashSet<>(Arrays.asList(
+      IntentName.TRACK_INTENT, IntentName.NEXT_INTENT, IntentName.NEARBY_INTENT,
+      IntentName.VEHICLE_INTENT, IntentName.NEXT_VEHICLE_INTENT,
+      IntentName.AMZ_HELP_INTENT, IntentName.AMZ_CANCEL_INTENT, IntentName.AMZ_STOP_INTENT));
+
+  static {
+    Metrics.registerCounter("GeocodeCacheHits", GoogleMapsGeoencoding.getCache()::getHits);
+    Metrics.registerCounter("GeocodeCacheMisses", GoogleMapsGeoencoding.getCache()::getMisses);
+    Metrics.registerCounter("AddressGridHits", GoogleMapsGeoencoding.getGrid()::getHits);
+    Metrics.registerCounter("VehiclePlaceRecalls", places::getRecalls);
+    Metrics.registerCounter("VehicleCacheHits", snapshots::getHits);
+    Metrics.registerCounter("VehicleCacheStaleHits", snapshots::getStaleHits);
+    Metrics.registerCounter("VehicleFetches", snapshots::getFetches);
+    Metrics.registerCounter("IntentTimeouts", timeouts::sum);
+    Metrics.registerCounter("SessionSnapshotHits", sessionHits::sum);
+    if (Config.getBoolean("PBT_FLEET_POLLER", false)) {
+      new FleetPoller(MainSpeechlet::fetchVehicles, fleet).start();
+      // Long-running as well, so load the stops and geometry of every route before any request
+      loadRoutes(Arrays.asList(PennRides.Route.values()), true,
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLEET_DEADLINE_MS));
+    }
+  }
+
+  /**
+   * @return fleet state kept by the background poller (PBT_FLEET_POLLER)
+   */
+  public static FleetState getFleet() {
+    return fleet;
+  }
 
   @Override
   public void onSessionStarted(final SessionStartedRequest request, final Session session)
@@ -42,12 +163,74 @@ public class MainSpeechlet implements Speechlet {
     return getHelpResponse();
   }
 
+  /**
+   * Handle an intent, waiting for {@link #onIntentAsync}
+   */
   @Override
   public SpeechletResponse onIntent(final IntentRequest request, final Session session)
       throws SpeechletException {
+    try {
+      return onIntentAsync(request, session).join();
+    } catch (CompletionException ex) {
+      Throwable cause = Futures.unwrap(ex);
+      if (cause instanceof SpeechletException) throw (SpeechletException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw ex;
+    }
+  }
+
+  /**
+   * Handle an intent without blocking. The whole request, upstream calls included, is bounded
+   * by PBT_REQUEST_BUDGET_MS; past it the user is asked to try again, and calls still running
+   * only go on to fill the caches.
+   *
+   * @param request intent request
+   * @param session session of the request
+   * @return future of the response; failed with a {@link SpeechletException} if the intent is
+   * invalid
+   */
+  public CompletableFuture<SpeechletResponse> onIntentAsync(final IntentRequest request,
+                                                            final Session session) {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(REQUEST_BUDGET_MS);
     Intent intent = request.getIntent();
     String intentName = (intent != null) ? intent.getName() : null;
+    CompletableFuture<SpeechletResponse> response;
+    try {
+      response = handleIntent(request, session, intent, intentName, deadline);
+    } catch (SpeechletException | RuntimeException ex) {
+      response = new CompletableFuture<>();
+      response.completeExceptionally(ex);
+    }
+    return Futures.within(response, deadline).handle((value, ex) -> {
+      if (ex == null) return value;
+      Throwable cause = Futures.unwrap(ex);
+      if (!(cause instanceof TimeoutException)) throw new CompletionException(cause);
+      timeouts.increment();
+      if (log.isInfoEnabled()) {
+        log.info("Intent {} missed the request deadline - requestId={}", intentName,
+            request.getRequestId());
+      }
+      return getTellResponse("Sorry, Penn Ride is taking too long to answer. "
+          + "Please try again later!");
+    }).whenComplete((value, ex) -> {
+      // Only intents of the interaction model become dimensions, so the metric count stays bounded
+      Metrics.histogram("IntentTime", Metrics.MICROSECONDS, "intent",
+          KNOWN_INTENTS.contains(intentName) ? intentName : "Unknown").recordSince(start);
+      Metrics.flushIfDue();
+    });
+  }
 
+  /**
+   * @param deadline time by which every upstream call of this request must be done, in
+   *                 {@link System#nanoTime()} units
+   */
+  private CompletableFuture<SpeechletResponse> handleIntent(final IntentRequest request,
+                                                            final Session session,
+                                                            final Intent intent,
+                                                            final String intentName,
+                                                            final long deadline)
+      throws SpeechletException {
     if (intentName == null) {
       if (log.isInfoEnabled()) {
         log.info("Empty intent - requestId={}, sessionId={}", request.getRequestId(),
@@ -55,10 +238,10 @@ public class MainSpeechlet implements Speechlet {
       }
       throw new SpeechletException("Invalid Intent");
     } else if (IntentName.AMZ_HELP_INTENT.equals(intentName)) {
-      return getHelpResponse();
+      return CompletableFuture.completedFuture(getHelpResponse());
     } else if (IntentName.AMZ_CANCEL_INTENT.equals(intentName) ||
         IntentName.AMZ_STOP_INTENT.equals(intentName)) {
-      return getTellResponse("Goodbye!");
+      return CompletableFuture.completedFuture(getTellResponse("Goodbye!"));
     } else if (IntentName.TRACK_INTENT.equals(intentName)) {
       String vehicle = intent.getSlot("vehicle").getValue();
       if (log.isDebugEnabled()) {
@@ -67,66 +250,134 @@ public class MainSpeechlet implements Speechlet {
       }
 
       if (vehicle == null || vehicle.isEmpty()) {
-        return getResponse("Sorry, I can't recognize the route you mentioned. Please try again!",
-            "You can ask question such as Where is Shuttle East");
+        return CompletableFuture.completedFuture(getResponse(
+            "Sorry, I can't recognize the route you mentioned. Please try again!",
+            "You can ask question such as Where is Shuttle East"));
       } else {
-        PennRides.Route route = null;
-        vehicle = vehicle.trim().replaceAll("\\s{2,}", " ")
-            .replaceAll("[^A-Za-z ]", "").toLowerCase();
-        switch (vehicle) {
-          case "shuttle east":
-            route = PennRides.Route.SHUTTLE_EAST;
-            break;
-          case "shuttle west a":
-            route = PennRides.Route.SHUTTLE_WEST_A;
-            break;
-          case "shuttle west b":
-            route = PennRides.Route.SHUTTLE_WEST_B;
-            break;
-          case "bus east":
-            route = PennRides.Route.BUS_EAST;
-            break;
-          case "bus west":
-            route = PennRides.Route.BUS_WEST;
-            break;
-          default:
-            // ignore
-        }
-
-        if (route != null) {
-          // Only proceed with valid route
-          LinkedList<VehicleStatus> vehicles = pr.getVehicleStatus(route);
-
-          if (vehicles == null) {
-            return getTellResponse("Cannot connect to Penn Ride. Please try again later!");
-          } else if (vehicles.size() == 0) {
-            return getTellResponse("There is no vehicle operating on "
-                + vehicle + " route currently. " +
-                "Please check Penn Transit website for up to date schedule.");
-          } else {
-            String message = "There are " + vehicles.size() + " vehicles operating on "
-                + vehicle + " route currently. ";
-            for (VehicleStatus status : vehicles) {
-              String location = maps.getStreetAddress(status.getLongitude(), status.getLatitude());
-              if (location != null && !location.isEmpty()) {
-                message += status.getName() + " was at " + location + " and heading " + status.getHeading() +
-                    " " + status.getLastUpdated() + ". ";
-              }
-            }
-            return getTellResponse(message);
-          }
+        RouteNameResolver.Match match = routeNames.resolve(vehicle);
+        SpeechletResponse clarification = getRouteClarification(vehicle, match,
+            "You can ask question such as Where is Shuttle East");
+        if (clarification != null) {
+          return CompletableFuture.completedFuture(clarification);
         } else {
-          return getResponse("There is no route named " + vehicle.toLowerCase() + "!",
-              "You can ask question such as Where is Shuttle East");
+          // Only proceed with a confidently matched route
+          PennRides.Route route = match.getRoute();
+          String routeName = match.getName();
+          return getVehicles(route, deadline).thenCompose(vehicles -> {
+            if (vehicles == null) {
+              return CompletableFuture.completedFuture(
+                  getTellResponse("Cannot connect to Penn Ride. Please try again later!"));
+            } else if (vehicles.size() == 0) {
+              return CompletableFuture.completedFuture(getTellResponse(
+                  "There is no vehicle operating on " + routeName + " route currently. " +
+                      "Please check Penn Transit website for up to date schedule."));
+            }
+            return getLocations(route, vehicles, deadline)
+                .thenApply(locations -> getTrackResponse(route, routeName, vehicles, locations,
+                    session));
+          });
         }
       }
+    } else if (IntentName.NEXT_INTENT.equals(intentName)) {
+      String vehicle = intent.getSlot("vehicle") == null ? null : intent.getSlot("vehicle").getValue();
+      String stop = intent.getSlot("stop") == null ? null : intent.getSlot("stop").getValue();
+      if (log.isDebugEnabled()) {
+        log.debug("onIntent requestId={}, sessionId={} -- next vehicle: {} at stop: {}",
+            request.getRequestId(), session.getSessionId(), vehicle, stop);
+      }
+
+      if (vehicle == null || vehicle.isEmpty() || stop == null || stop.isEmpty()) {
+        return CompletableFuture.completedFuture(getResponse(
+            "Sorry, I need both a route and a stop. Please try again!",
+            "You can ask question such as When is the next Shuttle West A at the Bookstore"));
+      }
+      RouteNameResolver.Match match = routeNames.resolve(vehicle);
+      SpeechletResponse clarification = getRouteClarification(vehicle, match,
+          "You can ask question such as When is the next Shuttle West A at the Bookstore");
+      if (clarification != null) return CompletableFuture.completedFuture(clarification);
+      return getNextArrivalResponse(match.getRoute(), match.getName(), stop, session, deadline);
+    } else if (IntentName.NEARBY_INTENT.equals(intentName)) {
+      String location = intent.getSlot("location") == null
+          ? null : intent.getSlot("location").getValue();
+      if (log.isDebugEnabled()) {
+        log.debug("onIntent requestId={}, sessionId={} -- vehicles near: {}", request.getRequestId(),
+            session.getSessionId(), location);
+      }
+
+      if (location == null || location.isEmpty()) {
+        return CompletableFuture.completedFuture(getResponse(
+            "Sorry, I can't recognize the place you mentioned. Please try again!",
+            "You can ask question such as Which buses are near the Bookstore"));
+      }
+      return getNearbyResponse(location, session, deadline);
+    } else if (IntentName.VEHICLE_INTENT.equals(intentName)) {
+      String name = intent.getSlot("name") == null ? null : intent.getSlot("name").getValue();
+      if (log.isDebugEnabled()) {
+        log.debug("onIntent requestId={}, sessionId={} -- follow-up on vehicle: {}",
+            request.getRequestId(), session.getSessionId(), name);
+      }
+      return getVehicleResponse(name, session, deadline);
+    } else if (IntentName.NEXT_VEHICLE_INTENT.equals(intentName)) {
+      if (log.isDebugEnabled()) {
+        log.debug("onIntent requestId={}, sessionId={} -- follow-up on next vehicle",
+            request.getRequestId(), session.getSessionId());
+      }
+      return getNextVehicleResponse(session, deadline);
     }
 
     if (log.isDebugEnabled()) {
       log.debug("UnknownIntent requestId={}, sessionId={} -- intent: {}", request.getRequestId(),
           session.getSessionId(), intentName);
     }
-    return getTellResponse("Sorry, I don't understand your question. Please try again!");
+    return CompletableFuture.completedFuture(
+        getTellResponse("Sorry, I don't understand your question. Please try again!"));
+  }
+
+  /**
+   * Tell where each vehicle of a route is, keeping them in the session for follow-ups
+   *
+   * @param route     the specific route
+   * @param routeName route name, as said back to the user
+   * @param vehicles  vehicles operating on the route
+   * @param locations location phrase of each vehicle, in the same order; null entries are left
+   *                  out
+   * @param session   session of the request
+   * @return speechlet response
+   */
+  private SpeechletResponse getTrackResponse(PennRides.Route route, String routeName,
+                                             List<VehicleStatus> vehicles, String[] locations,
+                                             Session session) {
+    StringBuilder message = new StringBuilder(64 + 96 * vehicles.size())
+        .append("There are ").append(vehicles.size()).append(" vehicles operating on ")
+        .append(routeName).append(" route currently. ");
+    long now = System.currentTimeMillis() / 1000;
+    SessionSnapshot snapshot = new SessionSnapshot(now);
+    int i = 0;
+    for (VehicleStatus status : vehicles) {
+      String location = locations[i++];
+      appendVehicle(message, status, location, now).append(' ');
+      snapshot.add(route, status, location);
+    }
+    return getFollowUpResponse(message.toString(), "You can ask where one of the vehicles is now,"
+        + " such as Where is " + vehicles.get(0).getName() + " now", session, snapshot);
+  }
+
+  /**
+   * Append where a vehicle was, such as "E09 was at 3401 Walnut St and heading N 2 minutes ago."
+   *
+   * @param location location phrase of the vehicle; or null to only tell its heading
+   * @param now      current time in epoch seconds
+   */
+  private static StringBuilder appendVehicle(StringBuilder message, VehicleStatus status,
+                                             String location, long now) {
+    message.append(status.getName()).append(" was ");
+    if (location != null) {
+      message.append(location).append(" and ");
+    }
+    // Without a location (lookup failed or too slow), still report heading and age
+    message.append("heading ").append(status.getHeading()).append(' ');
+    // Age is computed now rather than at fetch time, as the snapshot may be cached
+    return PennRides.appendElapsedTime(message, now - status.getUpdated()).append('.');
   }
 
   @Override
@@ -138,6 +389,563 @@ public class MainSpeechlet implements Speechlet {
     }
   }
 
+  /**
+   * Ask the user again when a spoken route name matches no route, or matches one too loosely
+   * to act on
+   *
+   * @param vehicle route name as heard by Alexa
+   * @param match   result of resolving it; or null
+   * @param example example question for the reprompt
+   * @return response asking the user again; or null if the match can be acted on
+   */
+  private SpeechletResponse getRouteClarification(String vehicle, RouteNameResolver.Match match,
+                                                  String example) {
+    if (match == null || match.getConfidence() < ROUTE_MIN_CONFIDENCE) {
+      return getResponse("There is no route named " + routeNames.normalize(vehicle) + "!", example);
+    }
+    if (match.isAmbiguous()) {
+      return getResponse("Did you mean " + match.getName() + " or "
+          + RouteNameResolver.getName(match.getAlternative())
+          + "? Please ask again with the route name.", example);
+    }
+    if (match.getConfidence() < ROUTE_ACCEPT_CONFIDENCE) {
+      return getResponse("Did you mean " + match.getName()
+          + "? Please ask again with the route name.", example);
+    }
+    return null;
+  }
+
+  /**
+   * Answer when the next vehicle of a route reaches a stop
+   *
+   * @param route     the specific route
+   * @param routeName route name, as said back to the user
+   * @param stopName  stop name as heard by Alexa
+   * @param session   session of the request
+   * @param deadline  time to give up on PennRides, in {@link System#nanoTime()} units
+   * @return future of the speechlet response
+   */
+  private CompletableFuture<SpeechletResponse> getNextArrivalResponse(PennRides.Route route,
+                                                                      String routeName,
+                                                                      String stopName,
+                                                                      Session session,
+                                                                      long deadline) {
+    return loadRoutes(Collections.singletonList(route), true, deadline)
+        .thenCompose(loaded -> getNextArrivalResponse(route, routeName, stops.find(route, stopName),
+            stopName, session, deadline));
+  }
+
+  /**
+   * @param stop     stop asked about; or null if the route has no stop by that name
+   * @param stopName stop name as heard by Alexa
+   */
+  private CompletableFuture<SpeechletResponse> getNextArrivalResponse(PennRides.Route route,
+                                                                      String routeName,
+                                                                      Stop stop,
+                                                                      String stopName,
+                                                                      Session session,
+                                                                      long deadline) {
+    if (stop == null) {
+      return CompletableFuture.completedFuture(getResponse("Sorry, I can't find a stop named "
+          + stopName + " on " + routeName + " route. Please try again!",
+          "You can say a stop name such as Bookstore"));
+    }
+    return getVehicles(route, deadline).thenApply(vehicles -> {
+      if (vehicles == null) {
+        return getTellResponse("Cannot connect to Penn Ride. Please try again later!");
+      } else if (vehicles.size() == 0) {
+        return getTellResponse("There is no vehicle operating on " + routeName
+            + " route currently. Please check Penn Transit website for up to date schedule.");
+      }
+
+      long now = System.currentTimeMillis() / 1000;
+      Arrival arrival = eta.next(route, stop, vehicles, now);
+      if (arrival == null) {
+        return getTellResponse("Sorry, I can't predict when the next " + routeName + " reaches "
+            + stop.getName() + " right now.");
+      }
+      StringBuilder message = new StringBuilder(128).append("The next ").append(routeName)
+          .append(", ").append(arrival.getVehicle().getName()).append(',');
+      SessionSnapshot snapshot = new SessionSnapshot(now);
+      for (VehicleStatus status : vehicles) snapshot.add(route, status, null);
+      snapshot.setNext(route, stop.getId());
+      snapshot.addTold(arrival.getVehicle().getId());
+      return getFollowUpResponse(appendArrival(message, arrival).toString(),
+          "You can ask what about the next one", session, snapshot);
+    });
+  }
+
+  /**
+   * Answer which vehicles, on any route, are closest to a stop or an address
+   *
+   * @param location        stop name or street address as heard by Alexa
+   * @param session         session of the request
+   * @param requestDeadline time by which the request must be answered, in
+   *                        {@link System#nanoTime()} units
+   * @return future of the speechlet response
+   */
+  private CompletableFuture<SpeechletResponse> getNearbyResponse(String location,
+                                                                 Session session,
+                                                                 long requestDeadline) {
+    long deadline = Math.min(requestDeadline,
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLEET_DEADLINE_MS));
+    CompletableFuture<Map<PennRides.Route, List<VehicleStatus>>> vehicles =
+        getFleetVehicles(deadline);
+    // A stop name resolves locally once the stops of every route are loaded, concurrently;
+    // anything else goes to the geocoder, in parallel with the vehicle fetches
+    CompletableFuture<Stop> resolved = loadRoutes(Arrays.asList(PennRides.Route.values()), false,
+        deadline).thenApply(loaded -> stops.find(location, Arrays.asList(PennRides.Route.values())));
+    CompletableFuture<double[]> coordinates = resolved.thenCompose(stop -> {
+      Metrics.histogram("GeocodesPerRequest", Metrics.COUNT).record(stop == null ? 1 : 0);
+      return stop != null
+          ? CompletableFuture.completedFuture(new double[]{stop.getLatitude(), stop.getLongitude()})
+          : Futures.within(maps.getCoordinatesAsync(location, deadline), deadline, null);
+    });
+
+    return coordinates.thenCombine(vehicles, (point, fleet) -> {
+      Stop stop = resolved.join();
+      if (point == null) {
+        return getResponse("Sorry, I can't find " + location + ". Please try again!",
+            "You can ask question such as Which buses are near the Bookstore");
+      }
+      if (fleet.isEmpty()) {
+        return getTellResponse("Cannot connect to Penn Ride. Please try again later!");
+      }
+      return getNearbyResponse(stop != null ? stop.getName() : location, point[0], point[1],
+          fleet, session);
+    });
+  }
+
+  /**
+   * Tell which vehicles are closest to a place
+   *
+   * @param place     place name, as said back to the user
+   * @param latitude  latitude of the place in degrees
+   * @param longitude longitude of the place in degrees
+   * @param fleet     vehicles by route
+   * @param session   session of the request; the vehicles told are kept in it
+   * @return speechlet response
+   */
+  private SpeechletResponse getNearbyResponse(String place, double latitude, double longitude,
+                                              Map<PennRides.Route, List<VehicleStatus>> fleet,
+                                              Session session) {
+    // Merge every route into one point set (a vehicle listed on two routes counts once), and
+    // rank by distance with the spatial index
+    List<VehicleStatus> vehicles = new ArrayList<>();
+    List<PennRides.Route> routes = new ArrayList<>();
+    Set<Integer> seen = new HashSet<>();
+    for (Map.Entry<PennRides.Route, List<VehicleStatus>> entry : fleet.entrySet()) {
+      for (VehicleStatus status : entry.getValue()) {
+        if (!seen.add(status.getId())) continue;
+        vehicles.add(status);
+        routes.add(entry.getKey());
+      }
+    }
+    double[] latitudes = new double[vehicles.size()];
+    double[] longitudes = new double[vehicles.size()];
+    for (int i = 0; i < latitudes.length; i++) {
+      latitudes[i] = vehicles.get(i).getLatitude();
+      longitudes[i] = vehicles.get(i).getLongitude();
+    }
+    int[] nearest = new PointIndex(latitudes, longitudes)
+        .kNearest(latitude, longitude, NEARBY_COUNT, NEARBY_RADIUS_M);
+    if (nearest.length == 0) {
+      return getTellResponse("There is no vehicle near " + place + " currently.");
+    }
+
+    StringBuilder message = new StringBuilder(64 + 96 * nearest.length)
+        .append(nearest.length == 1 ? "The closest vehicle to " : "The closest vehicles to ")
+        .append(place).append(nearest.length == 1 ? " is " : " are ");
+    SessionSnapshot snapshot = new SessionSnapshot(System.currentTimeMillis() / 1000);
+    for (int n = 0; n < nearest.length; n++) {
+      VehicleStatus status = vehicles.get(nearest[n]);
+      snapshot.add(routes.get(nearest[n]), status, null);
+      long meters = Math.round(GeoUtils.distance(latitude, longitude,
+          status.getLatitude(), status.getLongitude()) / 10) * 10;
+      if (n > 0) message.append(n == nearest.length - 1 ? ", and " : ", ");
+      message.append(status.getName()).append(" on ")
+          .append(RouteNameResolver.getName(routes.get(nearest[n])))
+          .append(", ").append(meters).append(" meters away heading ").append(status.getHeading());
+    }
+    return getFollowUpResponse(message.append('.').toString(), "You can ask where one of the"
+        + " vehicles is now, such as Where is " + vehicles.get(nearest[0]).getName() + " now",
+        session, snapshot);
+  }
+
+  /**
+   * Answer a follow-up question on where a vehicle told earlier in the session is now: from the
+   * session if it was fetched recently, otherwise by fetching its route and locating only it
+   *
+   * @param name     vehicle name as heard by Alexa
+   * @param session  session of the request
+   * @param deadline time to give up on the upstream calls, in {@link System#nanoTime()} units
+   * @return future of the speechlet response
+   */
+  private CompletableFuture<SpeechletResponse> getVehicleResponse(String name, Session session,
+                                                                  long deadline) {
+    SessionSnapshot snapshot = SessionSnapshot.read(session);
+    if (snapshot == null || snapshot.size() == 0) {
+      return CompletableFuture.completedFuture(getResponse(
+          "Please ask about a route first, such as Where is Shuttle East.",
+          "You can ask question such as Where is Shuttle East"));
+    }
+    int index = snapshot.find(name);
+    if (index < 0) {
+      return CompletableFuture.completedFuture(getFollowUpResponse(
+          (name == null || name.isEmpty() ? "Which vehicle?" : "I don't know a vehicle named "
+              + name + ".") + " You can ask about " + snapshot.getNames() + ".",
+          "You can ask question such as Where is " + snapshot.getVehicle(0).getName() + " now",
+          session, snapshot));
+    }
+
+    PennRides.Route route = snapshot.getRoute(index);
+    VehicleStatus told = snapshot.getVehicle(index);
+    long now = System.currentTimeMillis() / 1000;
+    if (now - snapshot.getFetchedAt(index) <= SESSION_SNAPSHOT_MAX_AGE_S) {
+      String location = snapshot.getLocation(index);
+      if (location != null) {
+        sessionHits.increment();
+        return CompletableFuture.completedFuture(getVehicleResponse(told, location, now, session,
+            snapshot));
+      }
+      // Still fresh, but told without a location (arrivals, vehicles nearby): only locate it
+      return getLocations(route, Collections.singletonList(told), deadline).thenApply(locations -> {
+        sessionHits.increment();
+        snapshot.update(index, told, locations[0], snapshot.getFetchedAt(index));
+        return getVehicleResponse(told, locations[0], now, session, snapshot);
+      });
+    }
+
+    // PennRides only serves whole routes; the shared cache keeps that to one fetch per route,
+    // and only the vehicle asked about is located again
+    return getVehicles(route, deadline).thenCompose(vehicles -> {
+      if (vehicles == null) {
+        return CompletableFuture.completedFuture(
+            getTellResponse("Cannot connect to Penn Ride. Please try again later!"));
+      }
+      VehicleStatus current = null;
+      for (VehicleStatus status : vehicles) {
+        if (status.getId() == told.getId()) current = status;
+      }
+      if (current == null) {
+        return CompletableFuture.completedFuture(getFollowUpResponse(told.getName()
+                + " is no longer operating on " + RouteNameResolver.getName(route) + " route.",
+            "You can ask about another vehicle, or say stop", session, snapshot));
+      }
+      VehicleStatus status = current;
+      return getLocations(route, Collections.singletonList(status), deadline)
+          .thenApply(locations -> {
+            long fetchedAt = System.currentTimeMillis() / 1000;
+            snapshot.update(index, status, locations[0], fetchedAt);
+            return getVehicleResponse(status, locations[0], fetchedAt, session, snapshot);
+          });
+    });
+  }
+
+  private SpeechletResponse getVehicleResponse(VehicleStatus status, String location, long now,
+                                               Session session, SessionSnapshot snapshot) {
+    return getFollowUpResponse(appendVehicle(new StringBuilder(96), status, location, now)
+        .toString(), "You can ask about another vehicle, or say stop", session, snapshot);
+  }
+
+  /**
+   * Answer a follow-up question on which vehicle reaches the stop of the last arrival question
+   * after the ones already told: from the vehicles in the session if they were fetched recently,
+   * otherwise from the route's current vehicles
+   *
+   * @param session  session of the request
+   * @param deadline time to give up on PennRides, in {@link System#nanoTime()} units
+   * @return future of the speechlet response
+   */
+  private CompletableFuture<SpeechletResponse> getNextVehicleResponse(Session session,
+                                                                      long deadline) {
+    SessionSnapshot snapshot = SessionSnapshot.read(session);
+    PennRides.Route route = snapshot == null ? null : snapshot.getNextRoute();
+    if (route == null) return CompletableFuture.completedFuture(getNoArrivalResponse());
+    return loadRoutes(Collections.singletonList(route), true, deadline).thenCompose(loaded -> {
+      Stop stop = null;
+      Stop[] routeStops = stops.getStops(route);
+      if (routeStops != null) {
+        for (Stop candidate : routeStops) {
+          if (candidate.getId() == snapshot.getNextStop()) stop = candidate;
+        }
+      }
+      if (stop == null) return CompletableFuture.completedFuture(getNoArrivalResponse());
+      return getNextVehicleResponse(session, snapshot, route, stop, deadline);
+    });
+  }
+
+  private SpeechletResponse getNoArrivalResponse() {
+    return getResponse("Please ask when the next vehicle reaches a stop first.",
+        "You can ask question such as When is the next Shuttle West A at the Bookstore");
+  }
+
+  /**
+   * Answer which vehicle reaches a stop after the ones already told
+   *
+   * @param session  session of the request
+   * @param snapshot vehicles kept in the session
+   * @param route    route of the last arrival question
+   * @param nextStop stop of the last arrival question
+   * @param deadline time to give up on PennRides, in {@link System#nanoTime()} units
+   * @return future of the speechlet response
+   */
+  private CompletableFuture<SpeechletResponse> getNextVehicleResponse(Session session,
+                                                                      SessionSnapshot snapshot,
+                                                                      PennRides.Route route,
+                                                                      Stop nextStop,
+                                                                      long deadline) {
+    String routeName = RouteNameResolver.getName(route);
+    long fetchedAt = snapshot.getFetchedAt(route);
+    boolean fresh = fetchedAt >= 0
+        && System.currentTimeMillis() / 1000 - fetchedAt <= SESSION_SNAPSHOT_MAX_AGE_S;
+    CompletableFuture<List<VehicleStatus>> vehicles = fresh
+        ? CompletableFuture.completedFuture(snapshot.getVehicles(route))
+        : getVehicles(route, deadline);
+    return vehicles.thenApply(current -> {
+      if (current == null) {
+        return getTellResponse("Cannot connect to Penn Ride. Please try again later!");
+      }
+      long now = System.currentTimeMillis() / 1000;
+      if (fresh) {
+        sessionHits.increment();
+      } else {
+        snapshot.replace(route, current, now);
+      }
+      List<Arrival> arrivals = eta.upcoming(route, nextStop, current, now);
+      Arrival after = null;
+      if (arrivals != null) {
+        for (Arrival arrival : arrivals) {
+          if (!snapshot.isTold(arrival.getVehicle().getId())) {
+            after = arrival;
+            break;
+          }
+        }
+      }
+      if (after == null) {
+        return getFollowUpResponse("There is no other " + routeName + " heading to "
+            + nextStop.getName() + " right now.", "You can ask about another stop, or say stop",
+            session, snapshot);
+      }
+      snapshot.addTold(after.getVehicle().getId());
+      StringBuilder message = new StringBuilder(128).append("After that, ")
+          .append(after.getVehicle().getName());
+      return getFollowUpResponse(appendArrival(message, after).toString(),
+          "You can ask what about the next one", session, snapshot);
+    });
+  }
+
+  /**
+   * Append when a vehicle reaches a stop, such as " should reach Bookstore in about 3 minutes."
+   */
+  private static StringBuilder appendArrival(StringBuilder message, Arrival arrival) {
+    long minutes = Math.round(arrival.getSeconds() / 60.0);
+    if (minutes < 1) {
+      return message.append(" is arriving at ").append(arrival.getStop().getName()).append(" now.");
+    }
+    return message.append(" should reach ").append(arrival.getStop().getName())
+        .append(" in about ").append(minutes).append(minutes == 1 ? " minute." : " minutes.");
+  }
+
+  /**
+   * Get the vehicles on every route, fetching the routes concurrently so the total wait is
+   * that of the slowest route
+   *
+   * @param deadline time to give up on the routes not fetched yet, in {@link System#nanoTime()}
+   *                 units
+   * @return future of the vehicles by route, leaving out routes that failed or missed the
+   * deadline
+   */
+  private CompletableFuture<Map<PennRides.Route, List<VehicleStatus>>> getFleetVehicles(
+      long deadline) {
+    Map<PennRides.Route, CompletableFuture<List<VehicleStatus>>> futures =
+        new EnumMap<>(PennRides.Route.class);
+    for (PennRides.Route route : PennRides.Route.values()) {
+      futures.put(route, getVehicles(route, deadline));
+    }
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+        .thenApply(done -> {
+          Map<PennRides.Route, List<VehicleStatus>> vehicles = new EnumMap<>(PennRides.Route.class);
+          for (Map.Entry<PennRides.Route, CompletableFuture<List<VehicleStatus>>> entry
+              : futures.entrySet()) {
+            List<VehicleStatus> routeVehicles = entry.getValue().join();
+            if (routeVehicles != null) {
+              vehicles.put(entry.getKey(), routeVehicles);
+            } else if (log.isInfoEnabled()) {
+              // A late fetch goes on and still fills the snapshot cache for the next request
+              log.info("Skipping route {} -- no vehicles by the deadline", entry.getKey());
+            }
+          }
+          return vehicles;
+        });
+  }
+
+  /**
+   * Load the stops (and optionally the geometry) of routes not loaded yet, concurrently, so the
+   * lookups that follow find them in memory instead of calling PennRides
+   *
+   * @param routes   routes to load
+   * @param geometry whether to load the route geometry as well
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future completed once every load is done or the deadline passed; never failed
+   */
+  private static CompletableFuture<Void> loadRoutes(Collection<PennRides.Route> routes,
+                                                    boolean geometry, long deadline) {
+    List<CompletableFuture<Void>> loads = new ArrayList<>(routes.size() * 2);
+    for (PennRides.Route route : routes) {
+      loads.add(stops.load(route, deadline));
+      if (geometry) loads.add(geometries.load(route, deadline));
+    }
+    // A load already in flight for a route may run past this request's deadline
+    return Futures.within(CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])),
+        deadline, null);
+  }
+
+  /**
+   * Fetch the vehicles on a route from PennRides within its default time budget, recording
+   * their positions in their trajectories
+   *
+   * @param route the specific route
+   * @return vehicles on the route; or null if error happens
+   */
+  private static List<VehicleStatus> fetchVehicles(PennRides.Route route) {
+    List<VehicleStatus> vehicles = pr.getVehicleStatus(route);
+    if (vehicles != null) trajectories.record(vehicles, System.currentTimeMillis() / 1000);
+    return vehicles;
+  }
+
+  /**
+   * Fetch the vehicles on a route from PennRides, recording their positions in their trajectories
+   *
+   * @param route    the specific route
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return vehicles on the route; or null if error happens
+   */
+  private static List<VehicleStatus> fetchVehicles(PennRides.Route route, long deadline) {
+    List<VehicleStatus> vehicles = pr.getVehicleStatus(route, deadline);
+    if (vehicles != null) trajectories.record(vehicles, System.currentTimeMillis() / 1000);
+    return vehicles;
+  }
+
+  /**
+   * Fetch the vehicles on a route from PennRides without blocking, recording their positions
+   * in their trajectories
+   *
+   * @param route    the specific route
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future of the vehicles on the route, or of null if error happens
+   */
+  private static CompletableFuture<List<VehicleStatus>> fetchVehiclesAsync(PennRides.Route route,
+                                                                           long deadline) {
+    return pr.getVehicleStatusAsync(route, deadline).thenApply(vehicles -> {
+      if (vehicles != null) trajectories.record(vehicles, System.currentTimeMillis() / 1000);
+      return vehicles;
+    });
+  }
+
+  /**
+   * Get the vehicles on a route: from the background poller's fleet state when it is fresh,
+   * otherwise from the snapshot cache (fetching from PennRides if needed). If PennRides fails
+   * or misses the deadline, the last vehicles it returned for the route are told instead, as
+   * long as they are recent; their report times tell how old they are. They are not cached or
+   * recorded again, so they never pass for a new fetch.
+   *
+   * @param route    the specific route
+   * @param deadline time to give up fetching, in {@link System#nanoTime()} units
+   * @return future of the vehicles on the route, or of null if they cannot be fetched by the
+   * deadline and there are no recent ones to fall back to
+   */
+  private CompletableFuture<List<VehicleStatus>> getVehicles(PennRides.Route route,
+                                                             long deadline) {
+    FleetState.Snapshot snapshot = fleet.getSnapshot();
+    if (System.currentTimeMillis() - snapshot.getLastUpdated(route) <= FLEET_MAX_AGE_MS) {
+      return CompletableFuture.completedFuture(snapshot.getVehicles(route));
+    }
+    // A fetch already in flight for the route may run past this request's deadline
+    return Futures.within(snapshots.getVehiclesAsync(route, deadline), deadline, null)
+        .thenApply(vehicles -> {
+          if (vehicles != null) return vehicles;
+          PennRides.LastGood good = PennRides.getLastGood(route);
+          return good == null ? null : good.getVehicles();
+        });
+  }
+
+  /**
+   * Describe where each vehicle is: near a stop of its route if one is close enough, otherwise
+   * at the street address from Google Maps. Lookups run concurrently, bounded by one overall
+   * deadline. A vehicle that has not moved or turned much since it was last located keeps its
+   * previous phrase.
+   *
+   * @param route           route the vehicles operate on
+   * @param vehicles        vehicles to be located
+   * @param requestDeadline time by which the request must be answered, in
+   *                        {@link System#nanoTime()} units
+   * @return future of the location phrases such as "near Bookstore, 3601 Walnut St" or
+   * "at 3401 Walnut St" in the same order as the vehicles; an entry is null if its lookup
+   * failed or did not finish before the deadline
+   */
+  private CompletableFuture<String[]> getLocations(PennRides.Route route,
+                                                   List<VehicleStatus> vehicles,
+                                                   long requestDeadline) {
+    long deadline = Math.min(requestDeadline,
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GEOCODE_DEADLINE_MS));
+    return loadRoutes(Collections.singletonList(route), false, deadline)
+        .thenCompose(loaded -> locate(route, vehicles, deadline));
+  }
+
+  /**
+   * @param deadline time to give up on the lookups, in {@link System#nanoTime()} units
+   * @see #getLocations(PennRides.Route, List, long)
+   */
+  private CompletableFuture<String[]> locate(PennRides.Route route, List<VehicleStatus> vehicles,
+                                             long deadline) {
+    String[] locations = new String[vehicles.size()];
+    boolean[] recalled = new boolean[vehicles.size()];
+    List<CompletableFuture<Void>> lookups = new ArrayList<>();
+    int i = 0;
+    for (VehicleStatus status : vehicles) {
+      int index = i++;
+      String remembered = places.recall(status);
+      if (remembered != null) {
+        // Has not moved or turned since it was last located
+        recalled[index] = true;
+        locations[index] = remembered;
+        continue;
+      }
+      Stop stop = stops.nearest(route, status.getLatitude(), status.getLongitude());
+      if (stop != null) {
+        locations[index] = "near " + stop.getName();
+        continue;
+      }
+      String known = maps.getKnownStreetAddress(status.getLongitude(), status.getLatitude());
+      if (known != null) {
+        // Prebuilt grid or cache -- no need for a lookup
+        locations[index] = "at " + known;
+        continue;
+      }
+      lookups.add(Futures.within(maps.resolveStreetAddressAsync(status.getLongitude(),
+          status.getLatitude(), deadline), deadline)
+          .exceptionally(ex -> {
+            if (log.isInfoEnabled()) {
+              log.info("Geocoding missed the deadline");
+            }
+            return null;
+          })
+          .thenAccept(address -> {
+            if (address != null && !address.isEmpty()) locations[index] = "at " + address;
+          }));
+    }
+    // Lookups past the stop catalog, the address grid and the geocode cache
+    Metrics.histogram("GeocodesPerRequest", Metrics.COUNT).record(lookups.size());
+
+    return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      for (int j = 0; j < locations.length; j++) {
+        if (!recalled[j]) places.remember(vehicles.get(j), locations[j]);
+      }
+      return locations;
+    });
+  }
+
   /**
    * Helper function to simplify response generation
    *
@@ -157,6 +965,23 @@ public class MainSpeechlet implements Speechlet {
     return SpeechletResponse.newAskResponse(speech, reprompt);
   }
 
+  /**
+   * Tell a message and, with PBT_SESSION_FOLLOW_UPS, keep the session open with the vehicles
+   * told, for follow-up questions about them
+   *
+   * @param msg         message to be told by Alexa
+   * @param repromptMsg message to be told by Alexa if user not respond
+   * @param session     session of the request
+   * @param snapshot    vehicles told
+   * @return Alexa response Speechlet object
+   */
+  private SpeechletResponse getFollowUpResponse(String msg, String repromptMsg, Session session,
+                                                SessionSnapshot snapshot) {
+    if (!SESSION_FOLLOW_UPS || session == null) return getTellResponse(msg);
+    snapshot.write(session);
+    return getResponse(msg, repromptMsg);
+  }
+
   /**
    * Helper function to simplify response generation
    *
@@ -182,7 +1007,8 @@ public class MainSpeechlet implements Speechlet {
     reprompt.setOutputSpeech(repromptSpeech);
 
     speech.setText("You can ask for Penn Bus location such as Shuttle East," +
-        " Shuttle West A, Shuttle West B, Bus East, and Bus West");
+        " Shuttle West A, Shuttle West B, Bus East, and Bus West, when the next one reaches" +
+        " a stop, or which buses are near a place");
     repromptSpeech.setText("You can ask question such as Where is Shuttle East");
 
     return SpeechletResponse.newAskResponse(speech, reprompt);
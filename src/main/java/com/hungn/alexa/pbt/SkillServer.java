@@ -0,0 +1,445 @@
+package com.hungn.alexa.pbt;
+
+import com.amazon.speech.Sdk;
+import com.amazon.speech.json.SpeechletRequestEnvelope;
+import com.amazon.speech.json.SpeechletResponseEnvelope;
+import com.amazon.speech.speechlet.IntentRequest;
+import com.amazon.speech.speechlet.Session;
+import com.amazon.speech.speechlet.SessionStartedRequest;
+import com.amazon.speech.speechlet.SpeechletException;
+import com.amazon.speech.speechlet.SpeechletRequestHandlerException;
+import com.amazon.speech.speechlet.SpeechletResponse;
+import com.amazon.speech.speechlet.authentication.SpeechletRequestSignatureVerifier;
+import com.amazon.speech.speechlet.verifier.ApplicationIdSpeechletRequestEnvelopeVerifier;
+import com.amazon.speech.speechlet.verifier.CardSpeechletResponseVerifier;
+import com.amazon.speech.speechlet.verifier.OutputSpeechSpeechletResponseVerifier;
+import com.amazon.speech.speechlet.verifier.ResponseSizeSpeechletResponseVerifier;
+import com.amazon.speech.speechlet.verifier.SpeechletRequestEnvelopeVerifier;
+import com.amazon.speech.speechlet.verifier.SpeechletResponseVerifier;
+import com.amazon.speech.speechlet.verifier.TimestampSpeechletRequestVerifier;
+import com.hungn.alexa.pbt.feed.VehicleFeedPublisher;
+import com.hungn.alexa.pbt.feed.VehiclePositions;
+import com.hungn.alexa.pbt.metrics.LatencyHistogram;
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+import com.hungn.alexa.pbt.util.Futures;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Self-hosted entry point serving the skill over HTTP, as an alternative to the Lambda
+ * {@link StreamHandler}. Alexa request JSON POSTed to / goes through the same handler, so the
+ * supported application ID check still applies. As the SDK servlet does, a request must also be
+ * signed by Alexa (Signature and SignatureCertChainUrl headers; PBT_SERVER_VERIFY_SIGNATURE=false
+ * turns this off for local testing) and its timestamp must be within
+ * PBT_SERVER_TIMESTAMP_TOLERANCE_S of now. GET /stats reports throughput and latency.
+ * GET /feed/vehicles serves the fleet kept by the background poller as a GTFS-Realtime vehicle
+ * positions feed; with ?since=&lt;version&gt; (the X-Fleet-Version of the last feed received) it
+ * serves only the changes.
+ * <p>
+ * Intent requests go to {@link MainSpeechlet#onIntentAsync} and are answered when their
+ * pipeline completes, so a worker thread is only held while a request is parsed and while its
+ * response is written, not while PennRides or Google Maps answer; other requests go through the
+ * blocking handler. Workers are a small bounded pool (PBT_SERVER_THREADS), or virtual threads
+ * when PBT_SERVER_VIRTUAL_THREADS=true and the JVM supports them. At most
+ * PBT_SERVER_MAX_INFLIGHT requests are served at once, and the workers queue a bounded number
+ * of requests; beyond either limit the server answers 503 immediately.
+ * <p>
+ * Usage: SkillServer [port]
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class SkillServer {
+  static {
+    // The default log4j.properties logs through the Lambda runtime, which is not available here
+    if (System.getProperty("log4j.configuration") == null) {
+      System.setProperty("log4j.configuration", "log4j-local.properties");
+    }
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(SkillServer.class);
+
+  private final StreamHandler handler = new StreamHandler();
+  private final MainSpeechlet speechlet = StreamHandler.getSpeechlet();
+  private final SpeechletRequestEnvelopeVerifier applicationIds =
+      new ApplicationIdSpeechletRequestEnvelopeVerifier(StreamHandler.getSupportedApplicationIds());
+  private final boolean verifySignature = Config.getBoolean("PBT_SERVER_VERIFY_SIGNATURE", true);
+  private final TimestampSpeechletRequestVerifier timestamps = new TimestampSpeechletRequestVerifier(
+      Config.getLong("PBT_SERVER_TIMESTAMP_TOLERANCE_S", 150), TimeUnit.SECONDS);
+  // The checks the SDK applies to the responses of the blocking handler
+  private final List<SpeechletResponseVerifier> responseVerifiers = Arrays.asList(
+      new ResponseSizeSpeechletResponseVerifier(), new OutputSpeechSpeechletResponseVerifier(),
+      new CardSpeechletResponseVerifier());
+  private final VehicleFeedPublisher feed = new VehicleFeedPublisher(MainSpeechlet.getFleet(),
+      Config.getInt("PBT_FEED_HISTORY", 32));
+  private final HttpServer server;
+  private final ExecutorService workers;
+  private final int maxInflight;
+  private final Semaphore inflight;
+  private final long started = System.nanoTime();
+  // Set while an exchange the workers rejected runs on the dispatching thread
+  private final ThreadLocal<Boolean> overloaded = new ThreadLocal<>();
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LatencyHistogram interval = new LatencyHistogram();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  public SkillServer(int port) throws IOException {
+    int threads = Config.getInt("PBT_SERVER_THREADS", 8);
+    maxInflight = Config.getInt("PBT_SERVER_MAX_INFLIGHT", 1024);
+    inflight = new Semaphore(maxInflight);
+    ExecutorService virtual = Config.getBoolean("PBT_SERVER_VIRTUAL_THREADS", false)
+        ? virtualThreads() : null;
+    // Requests beyond the pool's queue are rejected rather than run by the caller, which would
+    // be the accepting thread or an upstream client's I/O thread
+    workers = virtual != null ? virtual : new ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 16),
+        new DaemonThreadFactory("skill-worker"), new ThreadPoolExecutor.AbortPolicy());
+
+    server = HttpServer.create(new InetSocketAddress(port), Config.getInt("PBT_SERVER_BACKLOG", 1024));
+    server.setExecutor(task -> {
+      try {
+        workers.execute(task);
+      } catch (RejectedExecutionException ex) {
+        // Only answered with a 503, which is cheap enough for the accepting thread
+        overloaded.set(Boolean.TRUE);
+        try {
+          task.run();
+        } finally {
+          overloaded.remove();
+        }
+      }
+    });
+    server.createContext("/", shed(this::handleSkill));
+    server.createContext("/stats", shed(this::handleStats));
+    server.createContext("/feed/vehicles", shed(this::handleFeed));
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : Config.getInt("PBT_SERVER_PORT", 8080);
+    SkillServer skillServer = new SkillServer(port);
+    skillServer.start();
+    log.info("Skill server listening on port {}", port);
+  }
+
+  public void start() {
+    server.start();
+    long period = Config.getLong("PBT_SERVER_STATS_INTERVAL_S", 60);
+    Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("skill-stats"))
+        .scheduleAtFixedRate(this::logStats, period, period, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    server.stop(0);
+    workers.shutdownNow();
+  }
+
+  /**
+   * @return handler answering 503 instead of the given one when the workers rejected the exchange
+   */
+  private HttpHandler shed(HttpHandler handler) {
+    return exchange -> {
+      if (overloaded.get() == null) {
+        handler.handle(exchange);
+        return;
+      }
+      readBody(exchange);
+      busy(exchange);
+    };
+  }
+
+  private void busy(HttpExchange exchange) throws IOException {
+    rejected.increment();
+    exchange.getResponseHeaders().set("Retry-After", "1");
+    respond(exchange, 503, "Server busy");
+  }
+
+  private void handleSkill(HttpExchange exchange) throws IOException {
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      respond(exchange, 405, "Method not allowed");
+      return;
+    }
+    byte[] body = readBody(exchange);
+    if (!inflight.tryAcquire()) {
+      busy(exchange);
+      return;
+    }
+
+    long start = System.nanoTime();
+    // Released here unless the intent pipeline took the request over
+    boolean handedOff = false;
+    try {
+      SpeechletRequestEnvelope<?> envelope = parseEnvelope(body);
+      if (!verify(exchange, body, envelope)) {
+        errors.increment();
+        respond(exchange, 400, "Invalid request");
+        return;
+      }
+      if (envelope != null && envelope.getRequest() instanceof IntentRequest
+          && envelope.getSession() != null) {
+        handedOff = handleIntent(exchange, envelope, start);
+        return;
+      }
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        handler.handleRequest(new ByteArrayInputStream(body), out, null);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        respond(exchange, 200, out.toByteArray());
+      } catch (RuntimeException ex) {
+        // The SDK wraps request validation failures (such as a foreign application ID)
+        errors.increment();
+        boolean invalid = ex.getCause() instanceof SpeechletRequestHandlerException;
+        if (!invalid) log.error("Failed to handle skill request", ex);
+        respond(exchange, invalid ? 400 : 500, invalid ? "Invalid request" : "Internal error");
+      }
+    } finally {
+      if (!handedOff) finish(start);
+    }
+  }
+
+  /**
+   * Answer an intent request once its pipeline completes, writing the response on a worker
+   *
+   * @return true if the pipeline took the request over, and finishes it; false if the request
+   * was answered here
+   */
+  private boolean handleIntent(HttpExchange exchange, SpeechletRequestEnvelope<?> envelope,
+                               long start) throws IOException {
+    if (!applicationIds.verify(envelope)) {
+      errors.increment();
+      respond(exchange, 400, "Invalid request");
+      return false;
+    }
+
+    IntentRequest request = (IntentRequest) envelope.getRequest();
+    Session session = envelope.getSession();
+    CompletableFuture<SpeechletResponse> response;
+    try {
+      if (session.isNew()) {
+        speechlet.onSessionStarted(SessionStartedRequest.builder()
+            .withRequestId(request.getRequestId())
+            .withLocale(request.getLocale())
+            .build(), session);
+      }
+      response = speechlet.onIntentAsync(request, session);
+    } catch (SpeechletException | RuntimeException ex) {
+      response = new CompletableFuture<>();
+      response.completeExceptionally(ex);
+    }
+    response.whenComplete((value, ex) -> {
+      try {
+        workers.execute(() -> {
+          try {
+            writeIntent(exchange, session, value, ex);
+          } finally {
+            finish(start);
+          }
+        });
+      } catch (RejectedExecutionException rejectedEx) {
+        // Possibly on an upstream client's I/O thread, where only a 503 is cheap enough
+        try {
+          busy(exchange);
+        } catch (IOException io) {
+          clientGone(io);
+        } finally {
+          finish(start);
+        }
+      }
+    });
+    return true;
+  }
+
+  private void writeIntent(HttpExchange exchange, Session session, SpeechletResponse value,
+                           Throwable ex) {
+    try {
+      if (ex != null) {
+        errors.increment();
+        log.error("Failed to handle skill request", Futures.unwrap(ex));
+        respond(exchange, 500, "Internal error");
+        return;
+      }
+      SpeechletResponseEnvelope out = new SpeechletResponseEnvelope();
+      out.setVersion("1.0");
+      out.setResponse(value);
+      if (!value.getShouldEndSession()) out.setSessionAttributes(session.getAttributes());
+      for (SpeechletResponseVerifier verifier : responseVerifiers) {
+        if (!verifier.verify(out, session)) {
+          errors.increment();
+          log.error("Skill response failed {}", verifier.getClass().getSimpleName());
+          respond(exchange, 500, "Internal error");
+          return;
+        }
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+      respond(exchange, 200, out.toJsonBytes());
+    } catch (IOException io) {
+      clientGone(io);
+    }
+  }
+
+  private static void clientGone(IOException io) {
+    // The client went away
+    if (log.isDebugEnabled()) {
+      log.debug("Failed to write skill response -- {}", io.toString());
+    }
+  }
+
+  /**
+   * Check that the request comes from Alexa and is recent, as the SDK servlet does
+   *
+   * @param envelope parsed request; or null if the body is not one, left to the blocking handler
+   * @return whether the request passed
+   */
+  private boolean verify(HttpExchange exchange, byte[] body, SpeechletRequestEnvelope<?> envelope) {
+    if (verifySignature) {
+      try {
+        SpeechletRequestSignatureVerifier.checkRequestSignature(body,
+            exchange.getRequestHeaders().getFirst(Sdk.SIGNATURE_REQUEST_HEADER),
+            exchange.getRequestHeaders().getFirst(Sdk.SIGNATURE_CERTIFICATE_CHAIN_URL_REQUEST_HEADER));
+      } catch (SecurityException ex) {
+        if (log.isDebugEnabled()) {
+          log.debug("Rejected skill request signature -- {}", ex.getMessage());
+        }
+        return false;
+      }
+    }
+    return envelope == null || timestamps.verify(envelope.getRequest(), envelope.getSession());
+  }
+
+  /**
+   * @return parsed request envelope; or null if the body is not one, to be rejected by the
+   * blocking handler
+   */
+  private static SpeechletRequestEnvelope<?> parseEnvelope(byte[] body) {
+    try {
+      return SpeechletRequestEnvelope.fromJson(body);
+    } catch (IOException | RuntimeException ex) {
+      return null;
+    }
+  }
+
+  private void finish(long start) {
+    inflight.release();
+    latency.recordSince(start);
+    interval.recordSince(start);
+  }
+
+  private void handleStats(HttpExchange exchange) throws IOException {
+    readBody(exchange);
+    exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+    respond(exchange, 200, stats(latency.snapshot(false), System.nanoTime() - started));
+  }
+
+  private void handleFeed(HttpExchange exchange) throws IOException {
+    readBody(exchange);
+    if (feed.getVersion() == 0) {
+      respond(exchange, 503, "No fleet state yet -- is PBT_FLEET_POLLER=true?");
+      return;
+    }
+    VehicleFeedPublisher.Frame frame = feed.get(getSince(exchange.getRequestURI().getRawQuery()));
+    exchange.getResponseHeaders().set("Content-Type", VehiclePositions.CONTENT_TYPE);
+    exchange.getResponseHeaders().set("X-Fleet-Version", Long.toString(frame.getVersion()));
+    exchange.getResponseHeaders().set("X-Feed-Incrementality",
+        frame.isDifferential() ? "DIFFERENTIAL" : "FULL_DATASET");
+    respond(exchange, 200, frame.getData());
+  }
+
+  /**
+   * @param query raw query string of a feed request
+   * @return fleet version of the since parameter; or -1 if absent or invalid
+   */
+  private static long getSince(String query) {
+    if (query == null) return -1;
+    for (String parameter : query.split("&")) {
+      if (!parameter.startsWith("since=")) continue;
+      try {
+        return Long.parseLong(parameter.substring("since=".length()));
+      } catch (NumberFormatException ex) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private void logStats() {
+    LatencyHistogram.Snapshot snapshot = interval.snapshot(true);
+    if (snapshot.getCount() > 0 && log.isInfoEnabled()) {
+      log.info("Skill server stats {}", stats(snapshot,
+          TimeUnit.SECONDS.toNanos(Config.getLong("PBT_SERVER_STATS_INTERVAL_S", 60))));
+    }
+  }
+
+  private String stats(LatencyHistogram.Snapshot snapshot, long elapsedNanos) {
+    double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+    return "{\"requests\":" + snapshot.getCount()
+        + ",\"throughput_rps\":" + Math.round(snapshot.getCount() / seconds * 100) / 100.0
+        + ",\"errors\":" + errors.sum()
+        + ",\"rejected\":" + rejected.sum()
+        + ",\"inflight\":" + (maxInflight - inflight.availablePermits())
+        + ",\"latency_us\":{\"mean\":" + Math.round(snapshot.getMean())
+        + ",\"p50\":" + snapshot.getPercentile(0.50)
+        + ",\"p90\":" + snapshot.getPercentile(0.90)
+        + ",\"p99\":" + snapshot.getPercentile(0.99)
+        + ",\"max\":" + snapshot.getMax() + "}}";
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+      byte[] buffer = new byte[2048];
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    respond(exchange, code, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+    // A fixed length keeps the HTTP/1.1 connection alive for the next request
+    exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * Executor starting one virtual thread per request (Java 21+), looked up reflectively so the
+   * skill still builds for and runs on Java 8
+   *
+   * @return virtual-thread executor; or null if the JVM does not support virtual threads
+   */
+  private static ExecutorService virtualThreads() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      log.warn("Virtual threads are not supported by this JVM -- using a worker pool");
+      return null;
+    }
+  }
+}
@@ -10,12 +10,29 @@ import java.util.Set;
  */
 public class StreamHandler extends SpeechletRequestStreamHandler {
   private static final Set<String> supportedApplicationIds = new HashSet<String>();
+  private static final MainSpeechlet speechlet = new MainSpeechlet();
 
   static {
     supportedApplicationIds.add("amzn1.ask.skill.cbae9e95-311e-4cf8-af56-c815f5a83b37");
+    // Runs in the Lambda init phase, before the first invocation
+    Warmup.run(speechlet, supportedApplicationIds);
   }
 
   public StreamHandler() {
-    super(new MainSpeechlet(), supportedApplicationIds);
+    super(speechlet, supportedApplicationIds);
   }
-}
\ No newline at end of file
+
+  /**
+   * @return speechlet the handler dispatches to
+   */
+  public static MainSpeechlet getSpeechlet() {
+    return speechlet;
+  }
+
+  /**
+   * @return application IDs accepted by this skill
+   */
+  public static Set<String> getSupportedApplicationIds() {
+    return supportedApplicationIds;
+  }
+}
@@ -0,0 +1,82 @@
+package com.hungn.alexa.pbt;
+
+import com.amazon.speech.speechlet.Speechlet;
+import com.amazon.speech.speechlet.SpeechletToSpeechletV2Adapter;
+import com.amazon.speech.speechlet.lambda.LambdaSpeechletRequestHandler;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.VehicleStatusDecoder;
+import com.hungn.alexa.pbt.util.Config;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup warmup run from the Lambda static initializer. Lambda runs the init phase before the
+ * first invocation (and with a full CPU), so loading and linking the Jackson, Alexa SDK, HTTP
+ * and TLS classes there takes that cost off the first user request.
+ * <p>
+ * Disable with PBT_WARMUP=false. PBT_WARMUP_PRECONNECT=true also opens a connection to
+ * PennRides, so the first request skips the TCP and TLS handshakes as well.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+final class Warmup {
+  private static final Logger log = LoggerFactory.getLogger(Warmup.class);
+
+  private static final int PRECONNECT_TIMEOUT_MS = 1000;
+
+  private Warmup() {
+  }
+
+  /**
+   * Exercise the request path without touching the network (unless preconnect is enabled)
+   *
+   * @param speechlet      speechlet the handler dispatches to
+   * @param applicationIds application IDs accepted by the handler
+   */
+  static void run(Speechlet speechlet, Set<String> applicationIds) {
+    if (!Config.getBoolean("PBT_WARMUP", true) || applicationIds.isEmpty()) return;
+    long start = System.nanoTime();
+
+    try {
+      // Jackson streaming parser and the vehicle decoder
+      try (InputStream in = Warmup.class.getResourceAsStream("/sample_vehicles.txt")) {
+        if (in != null) VehicleStatusDecoder.decode(in, ZonedDateTime.now(PennRides.ZONE));
+      }
+
+      // Alexa SDK envelope parsing (Jackson databind), dispatch and response serialization
+      String applicationId = applicationIds.iterator().next();
+      // (wrapped as the stream handler wraps it; the Speechlet overload is deprecated)
+      new LambdaSpeechletRequestHandler(applicationIds).handleSpeechletCall(
+          new SpeechletToSpeechletV2Adapter(speechlet), launchRequest(applicationId));
+
+      // TLS socket factory and the default SSL context
+      SSLConnectionSocketFactory.getSocketFactory();
+
+      if (Config.getBoolean("PBT_WARMUP_PRECONNECT", false)) {
+        new PennRides().preconnect(PRECONNECT_TIMEOUT_MS);
+      }
+    } catch (Exception ex) {
+      // Warmup is best effort and must never fail the container initialization
+      log.warn("Warmup failed", ex);
+    }
+
+    if (log.isInfoEnabled()) {
+      log.info("Warmup done in {}ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+  }
+
+  private static byte[] launchRequest(String applicationId) {
+    String json = "{\"version\":\"1.0\",\"session\":{\"new\":true,\"sessionId\":\"warmup\","
+        + "\"application\":{\"applicationId\":\"" + applicationId + "\"},\"attributes\":{},"
+        + "\"user\":{\"userId\":\"warmup\"}},\"request\":{\"type\":\"LaunchRequest\","
+        + "\"requestId\":\"warmup\",\"timestamp\":\"2017-06-01T00:00:00Z\",\"locale\":\"en-US\"}}";
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,76 @@
+package com.hungn.alexa.pbt.api;
+
+/**
+ * Decoder for the wall-clock times PennRides reports, such as 8:44:06P for 8:44:06 PM
+ * Eastern time (format h:mm:ssX, where X is A or P). The time carries no date, so it is
+ * resolved against the current time of day; a time slightly ahead of now is treated as
+ * clock skew and anything further ahead as yesterday.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class ClockTime {
+  public static final int SECONDS_PER_DAY = 86400;
+  // Vehicle clocks running this far ahead of ours are not taken as yesterday's reports
+  private static final int MAX_SKEW_SECONDS = 300;
+
+  private ClockTime() {
+  }
+
+  /**
+   * Parse a PennRides clock time into seconds since midnight
+   *
+   * @param value clock time such as 8:44:06P or 12:05:00A; a trailing M (8:44:06PM) is accepted
+   * @return seconds since midnight; or -1 if the value is not a valid clock time
+   */
+  public static int parseSecondOfDay(CharSequence value) {
+    if (value == null) return -1;
+    int length = value.length();
+    if (length > 0 && (value.charAt(length - 1) == 'M' || value.charAt(length - 1) == 'm')) {
+      length--;
+    }
+    // h:mm:ssX or hh:mm:ssX
+    if (length != 8 && length != 9) return -1;
+
+    int pos = 0;
+    int hour = digit(value.charAt(pos++));
+    if (length == 9) hour = hour * 10 + digit(value.charAt(pos++));
+    if (value.charAt(pos++) != ':') return -1;
+    int minute = digit(value.charAt(pos)) * 10 + digit(value.charAt(pos + 1));
+    pos += 2;
+    if (value.charAt(pos++) != ':') return -1;
+    int second = digit(value.charAt(pos)) * 10 + digit(value.charAt(pos + 1));
+    pos += 2;
+    char meridiem = value.charAt(pos);
+
+    if (hour < 1 || hour > 12 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return -1;
+    }
+    if (meridiem == 'A' || meridiem == 'a') {
+      if (hour == 12) hour = 0;
+    } else if (meridiem == 'P' || meridiem == 'p') {
+      if (hour != 12) hour += 12;
+    } else {
+      return -1;
+    }
+    return hour * 3600 + minute * 60 + second;
+  }
+
+  /**
+   * Seconds elapsed from a reported clock time to now, rolling over midnight
+   *
+   * @param reported reported time in seconds since midnight
+   * @param now      current time in seconds since midnight, in the same time zone
+   * @return elapsed seconds, between 0 and one day
+   */
+  public static int elapsedSeconds(int reported, int now) {
+    int diff = now - reported;
+    if (diff >= 0) return diff;
+    // Reported time is ahead of now: either clock skew or a report from before midnight
+    return diff >= -MAX_SKEW_SECONDS ? 0 : diff + SECONDS_PER_DAY;
+  }
+
+  private static int digit(char c) {
+    // Out-of-range digits make the parsed field fail its range check
+    return (c >= '0' && c <= '9') ? c - '0' : -100;
+  }
+}
@@ -0,0 +1,66 @@
+package com.hungn.alexa.pbt.api;
+
+import com.hungn.alexa.pbt.util.Config;
+
+import java.net.URI;
+
+/**
+ * Scheme, host and port of an upstream service. Each upstream can be redirected with a base URL
+ * setting (e.g. PBT_PENNRIDES_URL=http://127.0.0.1:8080) so it can point at a local stub.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class Endpoint {
+  private final String scheme;
+  private final String host;
+  private final int port;
+
+  public Endpoint(String scheme, String host, int port) {
+    this.scheme = scheme;
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * Read an endpoint override from the configuration
+   *
+   * @param name          setting holding a base URL such as http://127.0.0.1:8080
+   * @param defaultScheme scheme used if the setting is absent
+   * @param defaultHost   host used if the setting is absent
+   * @return configured endpoint; or the default one if the setting is absent or invalid
+   */
+  public static Endpoint fromConfig(String name, String defaultScheme, String defaultHost) {
+    String url = Config.getString(name, null);
+    if (url != null) {
+      try {
+        URI uri = URI.create(url);
+        if (uri.getScheme() != null && uri.getHost() != null) {
+          return new Endpoint(uri.getScheme(), uri.getHost(), uri.getPort());
+        }
+      } catch (IllegalArgumentException ex) {
+        // fall through to the default endpoint
+      }
+    }
+    return new Endpoint(defaultScheme, defaultHost, -1);
+  }
+
+  public String getScheme() {
+    return scheme;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return port number; or -1 for the scheme's default port
+   */
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public String toString() {
+    return port < 0 ? scheme + "://" + host : scheme + "://" + host + ":" + port;
+  }
+}
@@ -1,20 +1,37 @@
 package com.hungn.alexa.pbt.api;
 
+import com.hungn.alexa.pbt.cache.GeocodeCache;
+import com.hungn.alexa.pbt.geo.AddressGrid;
+import com.hungn.alexa.pbt.metrics.Metrics;
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.Futures;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Helper class to query Google Maps Geocoding API to reverse geocoding to an address
+ * Helper class to query Google Maps Geocoding API to reverse geocoding to an address, and to
+ * geocode a spoken address to a coordinate
  *
  * @author Hung Nguyen (hungng@seas.upenn.edu)
  */
@@ -23,72 +40,435 @@ public class GoogleMapsGeoencoding {
   public static final String BASE_HOST = "maps.googleapis.com";
   public static final String BASE_URL = "maps/api/geocode/json";
   private static final String API_KEY = System.getenv("GoogleMaps_API_key");
+  /**
+   * Viewport around University City that address lookups are biased to
+   */
+  private static final String CAMPUS_BOUNDS = "39.940,-75.215|39.962,-75.180";
 
   private static final Log log = LogFactory.getLog(GoogleMapsGeoencoding.class);
 
   private static final String AGENT = "PennBusTracker-AlexaSkill";
-  private static ObjectMapper mapper;
+  private static final GeocodeCache cache = new GeocodeCache(
+      Config.getInt("PBT_GEOCODE_CACHE_PRECISION", 8),
+      Config.getInt("PBT_GEOCODE_CACHE_SIZE", 4096),
+      Config.getLong("PBT_GEOCODE_CACHE_TTL_MS", TimeUnit.HOURS.toMillis(6)), TimeUnit.MILLISECONDS);
+  private static final AddressGrid grid = AddressGrid.load(
+      Config.getString("PBT_ADDRESS_GRID_FILE", null));
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final Endpoint endpoint =
+      Endpoint.fromConfig("PBT_GOOGLE_MAPS_URL", BASE_SCHEME, BASE_HOST);
+  private static final int CONNECT_TIMEOUT_MS = Config.getInt("PBT_GOOGLEMAPS_CONNECT_TIMEOUT_MS", 2000);
+  private static final int SOCKET_TIMEOUT_MS = Config.getInt("PBT_GOOGLEMAPS_SOCKET_TIMEOUT_MS", 5000);
+  private static final long BUDGET_MS = Config.getLong("PBT_GOOGLEMAPS_BUDGET_MS", 5000);
+  // Hedged lookups are billed twice, so only the slow tail is hedged
+  private static final UpstreamGuard guard = new UpstreamGuard("googlemaps", 1500, 5, 10000);
   private RequestConfig requestConfig;
+  private CloseableHttpClient client;
 
   public GoogleMapsGeoencoding() {
     requestConfig = RequestConfig.custom()
-        .setConnectionRequestTimeout(5000)
-        .setConnectTimeout(2000)
-        .setSocketTimeout(5000)
+        .setConnectionRequestTimeout(SOCKET_TIMEOUT_MS)
+        .setConnectTimeout(CONNECT_TIMEOUT_MS)
+        .setSocketTimeout(SOCKET_TIMEOUT_MS)
         .build();
+    client = HttpClientPool.forHost(endpoint.toString(), requestConfig);
   }
 
+  /**
+   * Reverse geocode a coordinate to its street address, answering from the prebuilt address
+   * grid, or from the shared cache when a nearby coordinate was already resolved
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @return street address (first component of the formatted address); or null if error happens
+   */
   public String getStreetAddress(double longitude, double latitude) {
-    if (mapper == null) mapper = new ObjectMapper();
-
-    // Query PennRides API
-    try (CloseableHttpClient client = HttpClients.createDefault()) {
-      URIBuilder uri = new URIBuilder();
-      uri.setScheme(BASE_SCHEME);
-      uri.setHost(BASE_HOST);
-      uri.setPath(BASE_URL);
-      uri.setParameter("latlng", Double.toString(latitude) + "," + Double.toString(longitude));
-      uri.setParameter("key", API_KEY);
-      HttpGet httpget = new HttpGet();
-      httpget.setURI(uri.build());
-      httpget.setConfig(requestConfig);
-      httpget.setHeader("User-Agent", AGENT);
-
-      HttpResponse response = client.execute(httpget);
-      ResponseHandler<String> handler = new BasicResponseHandler();
-      if (response.getStatusLine().getStatusCode() == 200) {
-        // Parse results
-        String content = handler.handleResponse(response);
-        JsonNode root = mapper.readTree(content);
-        if (root.path("status").isMissingNode() ||
-            !root.path("status").asText().equalsIgnoreCase("ok")) {
-          // -- first verify the status
-          if (log.isInfoEnabled()) {
-            log.info("Failed to query Google Maps API -- status: " +
-                (root.path("status").isMissingNode() ? "missing" : root.path("status").asText()));
-          }
-          return null;
-        } else {
-          // -- check if results are returned
-          if (root.path("results").isArray() && root.path("results").size() > 0) {
-            for (JsonNode node : root.path("results")) {
-              if (!node.path("formatted_address").isMissingNode()) {
-                return node.path("formatted_address").asText().split(",")[0];
-              }
-            }
-          }
+    return getStreetAddress(longitude, latitude, deadline());
+  }
+
+  /**
+   * Reverse geocode a coordinate to its street address, answering from the prebuilt address
+   * grid, or from the shared cache when a nearby coordinate was already resolved
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @param deadline  time to give up, in {@link System#nanoTime()} units
+   * @return street address (first component of the formatted address); or null if error happens
+   */
+  public String getStreetAddress(double longitude, double latitude, long deadline) {
+    String address = getKnownStreetAddress(longitude, latitude);
+    return address != null ? address : resolveStreetAddress(longitude, latitude, deadline);
+  }
+
+  /**
+   * Reverse geocode a coordinate with the API and cache the answer, once
+   * {@link #getKnownStreetAddress(double, double)} found nothing
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @param deadline  time to give up, in {@link System#nanoTime()} units
+   * @return street address (first component of the formatted address); or null if error happens
+   */
+  public String resolveStreetAddress(double longitude, double latitude, long deadline) {
+    String address = lookupStreetAddress(longitude, latitude, deadline);
+    cache.put(longitude, latitude, address);
+    if (log.isDebugEnabled()) {
+      log.debug("Geocoded (" + latitude + "," + longitude + ") -- " + cache);
+    }
+    return address;
+  }
+
+  /**
+   * Reverse geocode a coordinate to its street address without blocking: answered at once from
+   * the address grid or the cache, otherwise looked up with the non-blocking client and cached
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @param deadline  time to give up, in {@link System#nanoTime()} units
+   * @return future of the street address (first component of the formatted address), or of
+   * null if error happens; never failed
+   */
+  public CompletableFuture<String> getStreetAddressAsync(double longitude, double latitude,
+                                                         long deadline) {
+    String known = getKnownStreetAddress(longitude, latitude);
+    return known != null ? CompletableFuture.completedFuture(known)
+        : resolveStreetAddressAsync(longitude, latitude, deadline);
+  }
+
+  /**
+   * Reverse geocode a coordinate with the non-blocking client and cache the answer, once
+   * {@link #getKnownStreetAddress(double, double)} found nothing
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @param deadline  time to give up, in {@link System#nanoTime()} units
+   * @return future of the street address (first component of the formatted address), or of
+   * null if error happens; never failed
+   */
+  public CompletableFuture<String> resolveStreetAddressAsync(double longitude, double latitude,
+                                                             long deadline) {
+    return queryAsync("latlng", Double.toString(latitude) + "," + Double.toString(longitude),
+        null, null, deadline).thenApply(results -> {
+      String address = streetAddress(results);
+      cache.put(longitude, latitude, address);
+      if (log.isDebugEnabled()) {
+        log.debug("Geocoded (" + latitude + "," + longitude + ") -- " + cache);
+      }
+      return address;
+    });
+  }
+
+  /**
+   * Get the street address of a coordinate without calling the API
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @return street address from the address grid or the cache; or null if neither has one
+   */
+  public String getKnownStreetAddress(double longitude, double latitude) {
+    String address = grid.get(longitude, latitude);
+    return address != null ? address : cache.get(longitude, latitude);
+  }
+
+  /**
+   * Reverse geocode a coordinate with the API, bypassing the address grid and the cache, as
+   * when building the grid
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @param deadline  time to give up, in {@link System#nanoTime()} units
+   * @return street address (first component of the formatted address); or null if error happens
+   */
+  public String lookupStreetAddress(double longitude, double latitude, long deadline) {
+    return streetAddress(query("latlng",
+        Double.toString(latitude) + "," + Double.toString(longitude), null, null, deadline));
+  }
+
+  /**
+   * @param results results of a reverse geocoding lookup; or null
+   * @return first component of the first formatted address; or null if there is none
+   */
+  private static String streetAddress(JsonNode results) {
+    if (results == null) return null;
+    for (JsonNode node : results) {
+      if (!node.path("formatted_address").isMissingNode()) {
+        return node.path("formatted_address").asText().split(",")[0];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the prebuilt address grid
+   *
+   * @return grid including its hit and miss counters; empty if none was loaded
+   */
+  public static AddressGrid getGrid() {
+    return grid;
+  }
+
+  /**
+   * Get the shared reverse-geocoding cache
+   *
+   * @return cache including its hit, miss and eviction counters
+   */
+  public static GeocodeCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Geocode a spoken place or street address around campus to a coordinate
+   *
+   * @param address place name or street address, such as "3601 Walnut Street"
+   * @return latitude and longitude in degrees; or null if it cannot be found or error happens
+   */
+  public double[] getCoordinates(String address) {
+    return getCoordinates(address, deadline());
+  }
+
+  /**
+   * Geocode a spoken place or street address around campus to a coordinate
+   *
+   * @param address  place name or street address, such as "3601 Walnut Street"
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return latitude and longitude in degrees; or null if it cannot be found or error happens
+   */
+  public double[] getCoordinates(String address, long deadline) {
+    return coordinates(query("address", address, "bounds", CAMPUS_BOUNDS, deadline));
+  }
+
+  /**
+   * Geocode a spoken place or street address around campus to a coordinate without blocking
+   *
+   * @param address  place name or street address, such as "3601 Walnut Street"
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future of the latitude and longitude in degrees, or of null if it cannot be found
+   * or error happens; never failed
+   */
+  public CompletableFuture<double[]> getCoordinatesAsync(String address, long deadline) {
+    return queryAsync("address", address, "bounds", CAMPUS_BOUNDS, deadline)
+        .thenApply(GoogleMapsGeoencoding::coordinates);
+  }
+
+  /**
+   * @param results results of a geocoding lookup; or null
+   * @return latitude and longitude of the first result with a location; or null if there is
+   * none
+   */
+  private static double[] coordinates(JsonNode results) {
+    if (results == null) return null;
+    for (JsonNode node : results) {
+      JsonNode location = node.path("geometry").path("location");
+      if (location.path("lat").isNumber() && location.path("lng").isNumber()) {
+        return new double[]{location.path("lat").asDouble(), location.path("lng").asDouble()};
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Query the Geocoding API
+   *
+   * @param name       name of the lookup parameter (latlng or address)
+   * @param value      value of the lookup parameter
+   * @param extra      name of an extra parameter; or null
+   * @param extraValue value of the extra parameter
+   * @param deadline   time to give up, in {@link System#nanoTime()} units
+   * @return non-empty results array; or null if nothing is found or error happens
+   */
+  private JsonNode query(String name, String value, String extra, String extraValue,
+                         long deadline) {
+    try {
+      URI target = target(name, value, extra, extraValue);
+      // Only HTTP failures count against the circuit; ZERO_RESULTS is a valid answer
+      return results(guard.call(deadline, attempt -> send(target, attempt)));
+    } catch (Exception ex) {
+      logFailure(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Query the Geocoding API through the non-blocking client
+   *
+   * @return future of the non-empty results array, or of null if nothing is found or error
+   * happens; never failed
+   * @see #query(String, String, String, String, long)
+   */
+  private CompletableFuture<JsonNode> queryAsync(String name, String value, String extra,
+                                                 String extraValue, long deadline) {
+    URI target;
+    try {
+      target = target(name, value, extra, extraValue);
+    } catch (URISyntaxException ex) {
+      logFailure(ex);
+      return CompletableFuture.completedFuture(null);
+    }
+    return guard.callAsync(deadline, attempt -> sendAsync(target, attempt))
+        .handle((root, ex) -> {
+          if (ex == null) return results(root);
+          logFailure(Futures.unwrap(ex));
           return null;
-        }
-      } else {
+        });
+  }
+
+  private static URI target(String name, String value, String extra, String extraValue)
+      throws URISyntaxException {
+    URIBuilder uri = new URIBuilder();
+    uri.setScheme(endpoint.getScheme());
+    uri.setHost(endpoint.getHost());
+    uri.setPort(endpoint.getPort());
+    uri.setPath(BASE_URL);
+    uri.setParameter(name, value);
+    if (extra != null) uri.setParameter(extra, extraValue);
+    uri.setParameter("key", API_KEY);
+    return uri.build();
+  }
+
+  /**
+   * @param root parsed response; or null
+   * @return non-empty results array; or null if the status is not OK or nothing is found
+   */
+  private static JsonNode results(JsonNode root) {
+    if (root == null) return null;
+    if (root.path("status").isMissingNode() ||
+        !root.path("status").asText().equalsIgnoreCase("ok")) {
+      // -- first verify the status
+      if (log.isInfoEnabled()) {
+        log.info("Failed to query Google Maps API -- status: " +
+            (root.path("status").isMissingNode() ? "missing" : root.path("status").asText()));
+      }
+      return null;
+    }
+    // -- check if results are returned
+    JsonNode results = root.path("results");
+    return results.isArray() && results.size() > 0 ? results : null;
+  }
+
+  private static void logFailure(Throwable ex) {
+    if (ex instanceof UpstreamGuard.CircuitOpenException) {
+      if (log.isDebugEnabled()) {
+        log.debug("Skipping Google Maps API -- " + ex.getMessage());
+      }
+    } else {
+      log.error("Failed to query Google Maps API!", ex);
+    }
+  }
+
+  private HttpGet newRequest(URI target, UpstreamGuard.Attempt attempt) {
+    HttpGet httpget = new HttpGet();
+    httpget.setURI(target);
+    // Never wait past the deadline, whatever the configured timeouts
+    httpget.setConfig(RequestConfig.copy(requestConfig)
+        .setConnectionRequestTimeout(attempt.getTimeout(SOCKET_TIMEOUT_MS))
+        .setConnectTimeout(attempt.getTimeout(CONNECT_TIMEOUT_MS))
+        .setSocketTimeout(attempt.getTimeout(SOCKET_TIMEOUT_MS))
+        .build());
+    httpget.setHeader("User-Agent", AGENT);
+    return httpget;
+  }
+
+  /**
+   * Send one lookup
+   *
+   * @return parsed response; or null if the API does not answer with 200
+   */
+  private JsonNode send(URI target, UpstreamGuard.Attempt attempt) throws Exception {
+    HttpGet httpget = newRequest(target, attempt);
+    attempt.bind(httpget);
+
+    String content;
+    long start = System.nanoTime();
+    CloseableHttpResponse executed;
+    try {
+      executed = client.execute(httpget);
+    } catch (IOException ex) {
+      Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "googlemaps",
+          "status", "error").recordSince(start);
+      throw ex;
+    }
+    try (CloseableHttpResponse response = executed) {
+      Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "googlemaps",
+          "status", Integer.toString(response.getStatusLine().getStatusCode())).recordSince(start);
+      if (response.getStatusLine().getStatusCode() != 200) {
+        // Drain the body so the connection goes back to the pool
+        EntityUtils.consumeQuietly(response.getEntity());
         if (log.isInfoEnabled()) {
           log.info("Failed to query Google Maps API -- code "
               + response.getStatusLine().getStatusCode());
         }
         return null;
       }
-    } catch (Exception ex) {
-      log.error("Failed to query Google Maps API!", ex);
-      return null;
+      ResponseHandler<String> handler = new BasicResponseHandler();
+      content = handler.handleResponse(response);
     }
+    return parse(content);
+  }
+
+  /**
+   * Send one lookup through the non-blocking client; the response is parsed on the client's
+   * I/O thread
+   *
+   * @return future of the parsed response, or of null if the API does not answer with 200
+   */
+  private CompletableFuture<JsonNode> sendAsync(URI target, UpstreamGuard.Attempt attempt) {
+    HttpGet httpget = newRequest(target, attempt);
+    CompletableFuture<JsonNode> parsed = new CompletableFuture<>();
+    long start = System.nanoTime();
+    CloseableHttpAsyncClient asyncClient =
+        HttpClientPool.asyncForHost(endpoint.toString(), requestConfig);
+    attempt.bind(asyncClient.execute(httpget, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        int code = response.getStatusLine().getStatusCode();
+        Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "googlemaps",
+            "status", Integer.toString(code)).recordSince(start);
+        if (code != 200) {
+          if (log.isInfoEnabled()) {
+            log.info("Failed to query Google Maps API -- code " + code);
+          }
+          parsed.complete(null);
+          return;
+        }
+        try {
+          if (response.getEntity() == null) throw new HttpResponseException(code, "Empty body");
+          parsed.complete(parse(EntityUtils.toString(response.getEntity())));
+        } catch (IOException | RuntimeException ex) {
+          parsed.completeExceptionally(ex);
+        }
+      }
+
+      @Override
+      public void failed(Exception ex) {
+        Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "googlemaps",
+            "status", "error").recordSince(start);
+        parsed.completeExceptionally(ex);
+      }
+
+      @Override
+      public void cancelled() {
+        parsed.cancel(false);
+      }
+    }));
+    return parsed;
+  }
+
+  private static JsonNode parse(String content) throws IOException {
+    long decodeStart = System.nanoTime();
+    JsonNode root = mapper.readTree(content);
+    Metrics.histogram("DecodeTime", Metrics.MICROSECONDS, "endpoint", "geocode")
+        .recordSince(decodeStart);
+    return root;
+  }
+
+  private static long deadline() {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BUDGET_MS);
+  }
+
+  /**
+   * @return guard of the calls to the Geocoding API, with its circuit state and counters
+   */
+  public static UpstreamGuard getGuard() {
+    return guard;
   }
 }
@@ -0,0 +1,157 @@
+package com.hungn.alexa.pbt.api;
+
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holder for long-lived pooled HTTP clients, one per upstream host. The clients are thread-safe
+ * and live as long as the JVM, so a warm Lambda container reuses open TCP/TLS connections across
+ * invocations instead of handshaking for every request.
+ * <p>
+ * Each host may also have a non-blocking client, whose few I/O threads (PBT_HTTP_IO_THREADS)
+ * carry every request in flight to that host; it is only started once something asks for it.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class HttpClientPool {
+  private static final Logger log = LoggerFactory.getLogger(HttpClientPool.class);
+
+  private static final int MAX_PER_HOST = Config.getInt("PBT_HTTP_MAX_PER_HOST", 16);
+  private static final long KEEP_ALIVE_MS = Config.getLong("PBT_HTTP_KEEP_ALIVE_MS", 30000);
+  private static final long IDLE_EVICT_MS = Config.getLong("PBT_HTTP_IDLE_EVICT_MS", 30000);
+  // A frozen Lambda container may resume with connections the server already closed
+  private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+  private static final int IO_THREADS = Config.getInt("PBT_HTTP_IO_THREADS", 2);
+
+  private static final ConcurrentMap<String, CloseableHttpClient> clients = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, CloseableHttpAsyncClient> asyncClients =
+      new ConcurrentHashMap<>();
+  // The non-blocking clients have no evictor of their own; one thread serves them all
+  private static final ScheduledExecutorService evictor =
+      Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("http-evictor"));
+
+  private HttpClientPool() {
+  }
+
+  /**
+   * Get the shared client for a specific upstream host, creating it on first use
+   *
+   * @param host          upstream base URL such as https://pennrides.com
+   * @param requestConfig default timeouts for requests sent through this client
+   * @return pooled client shared by all callers of this host
+   */
+  public static CloseableHttpClient forHost(String host, RequestConfig requestConfig) {
+    CloseableHttpClient client = clients.get(host);
+    if (client == null) {
+      client = clients.computeIfAbsent(host, h -> create(h, requestConfig));
+    }
+    return client;
+  }
+
+  private static CloseableHttpClient create(String host, RequestConfig requestConfig) {
+    PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(
+        KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+    // Each client only talks to one host, so the per-route limit is the pool limit
+    manager.setMaxTotal(MAX_PER_HOST);
+    manager.setDefaultMaxPerRoute(MAX_PER_HOST);
+    manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+    if (log.isDebugEnabled()) {
+      log.debug("Creating pooled HTTP client for {} -- max connections: {}", host, MAX_PER_HOST);
+    }
+
+    return HttpClients.custom()
+        .setConnectionManager(manager)
+        .setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy(keepAliveStrategy())
+        .evictExpiredConnections()
+        .evictIdleConnections(IDLE_EVICT_MS, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Get the shared non-blocking client for a specific upstream host, creating and starting it
+   * on first use
+   *
+   * @param host          upstream base URL such as https://pennrides.com
+   * @param requestConfig default timeouts for requests sent through this client
+   * @return started client shared by all callers of this host
+   */
+  public static CloseableHttpAsyncClient asyncForHost(String host, RequestConfig requestConfig) {
+    CloseableHttpAsyncClient client = asyncClients.get(host);
+    if (client == null) {
+      client = asyncClients.computeIfAbsent(host, h -> createAsync(h, requestConfig));
+    }
+    return client;
+  }
+
+  private static CloseableHttpAsyncClient createAsync(String host, RequestConfig requestConfig) {
+    PoolingNHttpClientConnectionManager manager;
+    try {
+      manager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(
+          IOReactorConfig.custom()
+              .setIoThreadCount(IO_THREADS)
+              .setTcpNoDelay(true)
+              .setSoKeepAlive(true)
+              .build(),
+          new DaemonThreadFactory("http-io")));
+    } catch (IOReactorException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    manager.setMaxTotal(MAX_PER_HOST);
+    manager.setDefaultMaxPerRoute(MAX_PER_HOST);
+    // Close connections past their keep-alive or idle for long, as the blocking clients do, so
+    // requests do not pick up connections the server is about to close
+    PoolingNHttpClientConnectionManager evicted = manager;
+    evictor.scheduleWithFixedDelay(() -> {
+      evicted.closeExpiredConnections();
+      evicted.closeIdleConnections(IDLE_EVICT_MS, TimeUnit.MILLISECONDS);
+    }, IDLE_EVICT_MS, IDLE_EVICT_MS, TimeUnit.MILLISECONDS);
+
+    if (log.isDebugEnabled()) {
+      log.debug("Creating non-blocking HTTP client for {} -- max connections: {}, I/O threads: {}",
+          host, MAX_PER_HOST, IO_THREADS);
+    }
+
+    CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+        .setConnectionManager(manager)
+        .setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy(keepAliveStrategy())
+        .setThreadFactory(new DaemonThreadFactory("http-reactor"))
+        .build();
+    client.start();
+    return client;
+  }
+
+  /**
+   * Honor the server's Keep-Alive header but cap it, and assume a bounded lifetime when the
+   * server does not send one
+   */
+  private static ConnectionKeepAliveStrategy keepAliveStrategy() {
+    return (response, context) -> {
+      long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return (duration <= 0 || duration > KEEP_ALIVE_MS) ? KEEP_ALIVE_MS : duration;
+    };
+  }
+}
@@ -1,26 +1,43 @@
 package com.hungn.alexa.pbt.api;
 
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.metrics.Metrics;
+import com.hungn.alexa.pbt.types.Stop;
 import com.hungn.alexa.pbt.types.VehicleStatus;
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.Futures;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ResponseHandler;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.time.ZonedDateTime;
 import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Holder for PennRides information such as base URLs, route, way points.
@@ -38,12 +55,31 @@ public class PennRides {
 
   private static final Logger log = LoggerFactory.getLogger(PennRides.class);
 
-  private static final DateTimeFormatter dtGenerator =
-      DateTimeFormatter.ofPattern("z dd-MM-yyyy ").withZone(ZoneId.of("America/New_York"));
-  private static final DateTimeFormatter dtParser = DateTimeFormatter.ofPattern("z dd-MM-yyyy h:mm:ssa");
+  public static final ZoneId ZONE = ZoneId.of("America/New_York");
   private static final String AGENT = "PennBusTracker-AlexaSkill";
-  private static ObjectMapper mapper;
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final Endpoint endpoint =
+      Endpoint.fromConfig("PBT_PENNRIDES_URL", BASE_SCHEME, BASE_HOST);
+  private static final int CONNECT_TIMEOUT_MS = Config.getInt("PBT_PENNRIDES_CONNECT_TIMEOUT_MS", 2000);
+  private static final int SOCKET_TIMEOUT_MS = Config.getInt("PBT_PENNRIDES_SOCKET_TIMEOUT_MS", 5000);
+  /**
+   * Time allowed for a call made without a deadline of its own, e.g. by the background poller
+   */
+  private static final long BUDGET_MS = Config.getLong("PBT_PENNRIDES_BUDGET_MS", 5000);
+  /**
+   * How long the last good vehicles of a route may be served while PennRides is failing
+   */
+  private static final long LAST_GOOD_MAX_AGE_MS = Config.getLong("PBT_PENNRIDES_LAST_GOOD_MS", 300000);
+  private static final UpstreamGuard guard = new UpstreamGuard("pennrides", 1000, 5, 10000);
+  private static final ConcurrentMap<Route, LastGood> lastGood = new ConcurrentHashMap<>();
+  private static final LongAdder lastGoodServed = new LongAdder();
+
+  static {
+    Metrics.registerCounter("UpstreamLastGoodServed", lastGoodServed::sum, "service", "pennrides");
+  }
+
   private RequestConfig requestConfig;
+  private CloseableHttpClient client;
 
   /**
    * Enumerate class to hold different bus routes (which are used to encoded
@@ -63,87 +99,455 @@ public class PennRides {
     public int getRoute() {
       return route;
     }
+
+    /**
+     * @param route route ID used by PennRides
+     * @return the route with this ID; or null if there is none
+     */
+    public static Route forRoute(int route) {
+      for (Route value : values()) {
+        if (value.route == route) return value;
+      }
+      return null;
+    }
   }
 
   public PennRides() {
     requestConfig = RequestConfig.custom()
-        .setConnectionRequestTimeout(5000)
-        .setConnectTimeout(2000)
-        .setSocketTimeout(5000)
+        .setConnectionRequestTimeout(SOCKET_TIMEOUT_MS)
+        .setConnectTimeout(CONNECT_TIMEOUT_MS)
+        .setSocketTimeout(SOCKET_TIMEOUT_MS)
         .build();
+    client = HttpClientPool.forHost(endpoint.toString(), requestConfig);
   }
 
   /**
-   * Query the latest vehicles' status on a specific route
+   * Query the latest vehicles' status on a specific route, within the default time budget
    *
    * @param route the specific route to be queried
    * @return list of vehicles' status; or an empty list if no bus is operating on this route;
    * or null if error happens
+   * @see #getVehicleStatus(Route, long)
    */
   public LinkedList<VehicleStatus> getVehicleStatus(Route route) {
-    if (mapper == null) mapper = new ObjectMapper();
-    LinkedList<VehicleStatus> vehicles = new LinkedList<>();
-    ZonedDateTime now = ZonedDateTime.now();
+    return getVehicleStatus(route, deadline());
+  }
 
-    // Query PennRides API
-    try (CloseableHttpClient client = HttpClients.createDefault()) {
-      URIBuilder uri = new URIBuilder();
-      uri.setScheme(BASE_SCHEME);
-      uri.setHost(BASE_HOST);
-      uri.setPath(BASE_URL + Integer.toString(route.getRoute()) + PATH_VEHICLES);
-      HttpGet httpget = new HttpGet();
-      httpget.setURI(uri.build());
-      httpget.setConfig(requestConfig);
-      httpget.setHeader("User-Agent", AGENT);
-
-      HttpResponse response = client.execute(httpget);
-      ResponseHandler<String> handler = new BasicResponseHandler();
-      if (response.getStatusLine().getStatusCode() == 200) {
-        // Parse results
-        String content = handler.handleResponse(response);
-        JsonNode root = mapper.readTree(content);
-        if (root.isArray() && root.size() > 0) {
-          // There are track-able vehicles
-          for (JsonNode node : root) {
-            if (!node.path("ID").isMissingNode() &&
-                !node.path("RouteId").isMissingNode() &&
-                !node.path("PatternId").isMissingNode() &&
-                !node.path("Name").isMissingNode() &&
-                !node.path("Longitude").isMissingNode() &&
-                !node.path("Latitude").isMissingNode() &&
-                !node.path("Heading").isMissingNode() &&
-                !node.path("Updated").isMissingNode()) {
-              VehicleStatus status = new VehicleStatus();
-              status.setId(node.path("ID").asInt());
-              status.setRouteId(node.path("RouteId").asInt());
-              status.setPatternId(node.path("PatternId").asInt());
-              status.setName(node.path("Name").asText());
-              status.setLongitude(node.path("Longitude").asDouble());
-              status.setLatitude(node.path("Latitude").asDouble());
-              status.setHeading(getHeading(node.path("Heading").asText()));
-
-              ZonedDateTime updatedTime = ZonedDateTime.parse(now.format(dtGenerator)
-                  + node.path("Updated").asText() + "M", dtParser);
-              if (updatedTime.isAfter(now)) updatedTime.minusDays(1);
-              status.setLastUpdated(getElapsedTime(updatedTime.toEpochSecond(), now.toEpochSecond()));
-
-              vehicles.add(status);
-            }
+  /**
+   * Query the latest vehicles' status on a specific route. The vehicles returned are kept as
+   * the route's last good snapshot, see {@link #getLastGood(Route)}.
+   *
+   * @param route    the specific route to be queried
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return list of vehicles' status; or an empty list if no bus is operating on this route;
+   * or null if error happens, PennRides misses the deadline or is failing fast
+   */
+  public LinkedList<VehicleStatus> getVehicleStatus(Route route, long deadline) {
+    ZonedDateTime now = ZonedDateTime.now(ZONE);
+
+    // Query PennRides API and decode straight off the response stream
+    try {
+      LinkedList<VehicleStatus> vehicles =
+          query(route, PATH_VEHICLES, in -> VehicleStatusDecoder.decode(in, now), deadline);
+      if (vehicles != null) lastGood.put(route, new LastGood(vehicles, System.currentTimeMillis()));
+      return vehicles;
+    } catch (Exception ex) {
+      logFailure(route, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Query the latest vehicles' status on a specific route without blocking, through the
+   * non-blocking client; otherwise the same as {@link #getVehicleStatus(Route, long)}
+   *
+   * @param route    the specific route to be queried
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future of the list of vehicles' status, of an empty list if no bus is operating on
+   * this route, or of null if error happens; never failed
+   */
+  public CompletableFuture<LinkedList<VehicleStatus>> getVehicleStatusAsync(Route route,
+                                                                            long deadline) {
+    ZonedDateTime now = ZonedDateTime.now(ZONE);
+    return queryAsync(route, PATH_VEHICLES, in -> VehicleStatusDecoder.decode(in, now), deadline)
+        .handle((vehicles, ex) -> {
+          if (ex != null) {
+            logFailure(route, Futures.unwrap(ex));
+            return null;
+          }
+          if (vehicles != null) {
+            lastGood.put(route, new LastGood(vehicles, System.currentTimeMillis()));
           }
+          return vehicles;
+        });
+  }
+
+  private static void logFailure(Route route, Throwable ex) {
+    if (ex instanceof UpstreamGuard.CircuitOpenException) {
+      if (log.isDebugEnabled()) {
+        log.debug("Skipping PennRides for route {} -- {}", route, ex.getMessage());
+      }
+    } else {
+      log.error("Failed to query PennRides!", ex);
+    }
+  }
+
+  /**
+   * Get the last vehicles PennRides returned for a route, to answer a user with while PennRides
+   * is failing. Not meant for callers that store what they get as fresh, such as the poller.
+   *
+   * @param route the specific route
+   * @return the last good snapshot of the route; or null if there is none recent enough to
+   * serve (PBT_PENNRIDES_LAST_GOOD_MS)
+   */
+  public static LastGood getLastGood(Route route) {
+    LastGood good = lastGood.get(route);
+    if (good == null || System.currentTimeMillis() - good.fetchedAt > LAST_GOOD_MAX_AGE_MS) {
+      return null;
+    }
+    lastGoodServed.increment();
+    if (log.isInfoEnabled()) {
+      log.info("Serving the last good vehicles of route {}, {}ms old", route,
+          System.currentTimeMillis() - good.fetchedAt);
+    }
+    return good;
+  }
+
+  /**
+   * Query the stops served by a specific route, within the default time budget
+   *
+   * @param route the specific route to be queried
+   * @return list of stops; or null if error happens
+   */
+  public LinkedList<Stop> getStops(Route route) {
+    return getStops(route, deadline());
+  }
+
+  /**
+   * Query the stops served by a specific route
+   *
+   * @param route    the specific route to be queried
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return list of stops; or null if error happens
+   */
+  public LinkedList<Stop> getStops(Route route, long deadline) {
+    try {
+      return query(route, PATH_STOPS, PennRides::parseStops, deadline);
+    } catch (Exception ex) {
+      log.error("Failed to query PennRides stops!", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Query the stops served by a specific route without blocking
+   *
+   * @param route    the specific route to be queried
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future of the list of stops, or of null if error happens; never failed
+   */
+  public CompletableFuture<LinkedList<Stop>> getStopsAsync(Route route, long deadline) {
+    return queryAsync(route, PATH_STOPS, PennRides::parseStops, deadline).handle((stops, ex) -> {
+      if (ex == null) return stops;
+      log.error("Failed to query PennRides stops!", Futures.unwrap(ex));
+      return null;
+    });
+  }
+
+  /**
+   * Query the waypoints of a specific route, within the default time budget
+   *
+   * @param route the specific route to be queried
+   * @return polyline of the route; or null if error happens
+   */
+  public RouteGeometry getWaypoints(Route route) {
+    return getWaypoints(route, deadline());
+  }
+
+  /**
+   * Query the waypoints of a specific route
+   *
+   * @param route    the specific route to be queried
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return polyline of the route; or null if error happens
+   */
+  public RouteGeometry getWaypoints(Route route, long deadline) {
+    try {
+      return query(route, PATH_WAYPOINTS, WaypointsDecoder::decode, deadline);
+    } catch (Exception ex) {
+      log.error("Failed to query PennRides waypoints!", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Query the waypoints of a specific route without blocking
+   *
+   * @param route    the specific route to be queried
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future of the polyline of the route, or of null if error happens; never failed
+   */
+  public CompletableFuture<RouteGeometry> getWaypointsAsync(Route route, long deadline) {
+    return queryAsync(route, PATH_WAYPOINTS, WaypointsDecoder::decode, deadline)
+        .handle((geometry, ex) -> {
+          if (ex == null) return geometry;
+          log.error("Failed to query PennRides waypoints!", Futures.unwrap(ex));
+          return null;
+        });
+  }
+
+  /**
+   * Parse a stops response
+   *
+   * @param in response body of the stops endpoint
+   * @return stops; or an empty list if the body is not an array of stops
+   * @throws IOException if the body is not valid JSON
+   */
+  public static LinkedList<Stop> parseStops(InputStream in) throws IOException {
+    LinkedList<Stop> stops = new LinkedList<>();
+    JsonNode root = mapper.readTree(in);
+    if (root.isArray()) {
+      for (JsonNode node : root) {
+        if (!node.path("ID").isMissingNode() &&
+            !node.path("Name").isMissingNode() &&
+            !node.path("Longitude").isMissingNode() &&
+            !node.path("Latitude").isMissingNode()) {
+          Stop stop = new Stop();
+          stop.setId(node.path("ID").asInt());
+          stop.setName(node.path("Name").asText().trim());
+          stop.setLongitude(node.path("Longitude").asDouble());
+          stop.setLatitude(node.path("Latitude").asDouble());
+          stops.add(stop);
         }
-      } else {
+      }
+    }
+    return stops;
+  }
+
+  /**
+   * Open a pooled connection to PennRides ahead of the first query, so the TCP and TLS
+   * handshakes happen during initialization. Failures are ignored.
+   *
+   * @param timeout maximum time to spend in milliseconds
+   */
+  public void preconnect(int timeout) {
+    try {
+      URIBuilder uri = new URIBuilder();
+      uri.setScheme(endpoint.getScheme());
+      uri.setHost(endpoint.getHost());
+      uri.setPort(endpoint.getPort());
+      uri.setPath("/");
+      HttpHead httphead = new HttpHead(uri.build());
+      httphead.setConfig(RequestConfig.copy(requestConfig)
+          .setConnectionRequestTimeout(timeout)
+          .setConnectTimeout(timeout)
+          .setSocketTimeout(timeout)
+          .build());
+      httphead.setHeader("User-Agent", AGENT);
+      try (CloseableHttpResponse response = client.execute(httphead)) {
+        EntityUtils.consumeQuietly(response.getEntity());
+      }
+    } catch (Exception ex) {
+      if (log.isInfoEnabled()) {
+        log.info("Failed to preconnect to PennRides -- " + ex);
+      }
+    }
+  }
+
+  /**
+   * Fetch and parse the body of a route endpoint
+   *
+   * @param route    the specific route to be queried
+   * @param path     endpoint under the route such as {@link #PATH_VEHICLES}
+   * @param parser   parser reading the response body
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return parsed response; or null if PennRides does not answer with 200
+   */
+  private <T> T query(Route route, String path, BodyParser<T> parser, long deadline)
+      throws Exception {
+    URI target = target(route, path);
+    return guard.call(deadline, attempt -> send(route, path, target, parser, attempt));
+  }
+
+  /**
+   * Fetch and parse the body of a route endpoint through the non-blocking client
+   *
+   * @return future of the parsed response, or of null if PennRides does not answer with 200;
+   * failed if the call fails
+   * @see #query(Route, String, BodyParser, long)
+   */
+  private <T> CompletableFuture<T> queryAsync(Route route, String path, BodyParser<T> parser,
+                                              long deadline) {
+    URI target;
+    try {
+      target = target(route, path);
+    } catch (URISyntaxException ex) {
+      CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(ex);
+      return failed;
+    }
+    return guard.callAsync(deadline, attempt -> sendAsync(route, path, target, parser, attempt));
+  }
+
+  private static URI target(Route route, String path) throws URISyntaxException {
+    URIBuilder uri = new URIBuilder();
+    uri.setScheme(endpoint.getScheme());
+    uri.setHost(endpoint.getHost());
+    uri.setPort(endpoint.getPort());
+    uri.setPath(BASE_URL + Integer.toString(route.getRoute()) + path);
+    return uri.build();
+  }
+
+  private HttpGet newRequest(URI target, UpstreamGuard.Attempt attempt) {
+    HttpGet httpget = new HttpGet();
+    httpget.setURI(target);
+    // Never wait past the deadline, whatever the configured timeouts
+    httpget.setConfig(RequestConfig.copy(requestConfig)
+        .setConnectionRequestTimeout(attempt.getTimeout(SOCKET_TIMEOUT_MS))
+        .setConnectTimeout(attempt.getTimeout(CONNECT_TIMEOUT_MS))
+        .setSocketTimeout(attempt.getTimeout(SOCKET_TIMEOUT_MS))
+        .build());
+    httpget.setHeader("User-Agent", AGENT);
+    return httpget;
+  }
+
+  private <T> T send(Route route, String path, URI target, BodyParser<T> parser,
+                     UpstreamGuard.Attempt attempt) throws Exception {
+    HttpGet httpget = newRequest(target, attempt);
+    attempt.bind(httpget);
+
+    String endpointName = path.replace("/", "");
+    long start = System.nanoTime();
+    CloseableHttpResponse executed;
+    try {
+      executed = client.execute(httpget);
+    } catch (IOException ex) {
+      Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "pennrides",
+          "endpoint", endpointName, "route", route.name(), "status", "error").recordSince(start);
+      throw ex;
+    }
+    try (CloseableHttpResponse response = executed) {
+      Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "pennrides",
+          "endpoint", endpointName, "route", route.name(),
+          "status", Integer.toString(response.getStatusLine().getStatusCode())).recordSince(start);
+      if (response.getStatusLine().getStatusCode() != 200) {
+        // Drain the body so the connection goes back to the pool
+        EntityUtils.consumeQuietly(response.getEntity());
         if (log.isInfoEnabled()) {
-          log.info("Failed to query PennRides -- code "
+          log.info("Failed to query PennRides " + path + " -- code "
               + response.getStatusLine().getStatusCode());
         }
         return null;
       }
-    } catch (Exception ex) {
-      log.error("Failed to query PennRides!", ex);
-      return null;
+      return parse(response.getEntity(), endpointName, parser);
     }
+  }
 
-    return vehicles;
+  /**
+   * Send one request through the non-blocking client. The body arrives buffered, and is parsed
+   * on the client's I/O thread.
+   */
+  private <T> CompletableFuture<T> sendAsync(Route route, String path, URI target,
+                                             BodyParser<T> parser, UpstreamGuard.Attempt attempt) {
+    HttpGet httpget = newRequest(target, attempt);
+    String endpointName = path.replace("/", "");
+    CompletableFuture<T> parsed = new CompletableFuture<>();
+    long start = System.nanoTime();
+    CloseableHttpAsyncClient asyncClient =
+        HttpClientPool.asyncForHost(endpoint.toString(), requestConfig);
+    attempt.bind(asyncClient.execute(httpget, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        int code = response.getStatusLine().getStatusCode();
+        Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "pennrides",
+            "endpoint", endpointName, "route", route.name(),
+            "status", Integer.toString(code)).recordSince(start);
+        if (code != 200) {
+          if (log.isInfoEnabled()) {
+            log.info("Failed to query PennRides " + path + " -- code " + code);
+          }
+          parsed.complete(null);
+          return;
+        }
+        try {
+          parsed.complete(parse(response.getEntity(), endpointName, parser));
+        } catch (IOException | RuntimeException ex) {
+          parsed.completeExceptionally(ex);
+        }
+      }
+
+      @Override
+      public void failed(Exception ex) {
+        Metrics.histogram("UpstreamLatency", Metrics.MICROSECONDS, "service", "pennrides",
+            "endpoint", endpointName, "route", route.name(), "status", "error").recordSince(start);
+        parsed.completeExceptionally(ex);
+      }
+
+      @Override
+      public void cancelled() {
+        parsed.cancel(false);
+      }
+    }));
+    return parsed;
+  }
+
+  private static <T> T parse(HttpEntity entity, String endpointName, BodyParser<T> parser)
+      throws IOException {
+    if (entity == null) return null;
+    try (InputStream in = entity.getContent()) {
+      // Includes reading the body off the socket, as decoding streams it
+      long decodeStart = System.nanoTime();
+      T parsed = parser.parse(in);
+      Metrics.histogram("DecodeTime", Metrics.MICROSECONDS, "endpoint", endpointName)
+          .recordSince(decodeStart);
+      return parsed;
+    }
+  }
+
+  private static long deadline() {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BUDGET_MS);
+  }
+
+  /**
+   * @return guard of the calls to PennRides, with its circuit state and counters
+   */
+  public static UpstreamGuard getGuard() {
+    return guard;
+  }
+
+  /**
+   * Parser of a response body
+   */
+  private interface BodyParser<T> {
+    T parse(InputStream in) throws IOException;
+  }
+
+  /**
+   * Vehicles of a route as last returned by PennRides, with the time they were fetched
+   */
+  public static final class LastGood {
+    private final List<VehicleStatus> vehicles;
+    private final long fetchedAt;
+
+    private LastGood(List<VehicleStatus> vehicles, long fetchedAt) {
+      // Copied, since callers may change the list they got
+      this.vehicles = new ArrayList<>(vehicles);
+      this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * @return copy of the vehicles
+     */
+    public LinkedList<VehicleStatus> getVehicles() {
+      return new LinkedList<>(vehicles);
+    }
+
+    /**
+     * @return time the vehicles were fetched, in epoch milliseconds
+     */
+    public long getFetchedAt() {
+      return fetchedAt;
+    }
   }
 
   /**
@@ -152,7 +556,7 @@ public class PennRides {
    * @param encoded encoded direction such as NE, E, W, NW
    * @return decoded direction
    */
-  private String getHeading(String encoded) {
+  static String getHeading(String encoded) {
     switch (encoded) {
       case "E":
         return "East";
@@ -175,40 +579,80 @@ public class PennRides {
     }
   }
 
+  /**
+   * Get the compass bearing of a decoded heading
+   *
+   * @param heading decoded direction such as North East, as set on a vehicle status
+   * @return bearing in degrees clockwise from north; or NaN if the heading is unknown
+   */
+  public static double getBearing(String heading) {
+    if (heading == null) return Double.NaN;
+    switch (heading) {
+      case "North":
+        return 0;
+      case "North East":
+        return 45;
+      case "East":
+        return 90;
+      case "South East":
+        return 135;
+      case "South":
+        return 180;
+      case "South West":
+        return 225;
+      case "West":
+        return 270;
+      case "North West":
+        return 315;
+      default:
+        return Double.NaN;
+    }
+  }
+
   /**
    * Helper function to prettify elapsed time (alexa readable string)
    *
-   * @param start start time
-   * @param end end time
+   * @param start start time in epoch seconds
+   * @param end   end time in epoch seconds
    * @return readable elapsed time as a string
    */
   public static String getElapsedTime(long start, long end) {
-    String ret = "";
-    long diff = end - start;
+    return appendElapsedTime(new StringBuilder(32), end - start).toString();
+  }
 
-    if(diff < 0) return "unknown";
+  /**
+   * Append a readable elapsed time such as "2 minutes 5 seconds ago" to a message
+   *
+   * @param message message being built
+   * @param elapsed elapsed time in seconds
+   * @return the same message builder
+   */
+  public static StringBuilder appendElapsedTime(StringBuilder message, long elapsed) {
+    if (elapsed < 0) return message.append("unknown");
 
-    long days = TimeUnit.SECONDS.toDays(diff);
-    diff -= TimeUnit.DAYS.toMillis(days);
-    long hours = TimeUnit.SECONDS.toHours(diff);
-    diff -= TimeUnit.HOURS.toMillis(hours);
-    long minutes = TimeUnit.SECONDS.toMinutes(diff);
-    diff -= TimeUnit.MINUTES.toMillis(minutes);
-    long seconds = TimeUnit.SECONDS.toSeconds(diff);
+    long days = elapsed / 86400;
+    long hours = elapsed % 86400 / 3600;
+    long minutes = elapsed % 3600 / 60;
+    long seconds = elapsed % 60;
 
     if (days > 0) {
-      ret += days + " days ";
-      ret += hours + " hours";
+      appendUnit(message, days, "day").append(' ');
+      appendUnit(message, hours, "hour");
     } else if (hours > 0) {
-      ret += hours + " hours ";
-      ret += minutes + " minutes";
+      appendUnit(message, hours, "hour").append(' ');
+      appendUnit(message, minutes, "minute");
     } else if (minutes > 0) {
-      ret += minutes + " minutes ";
-      ret += seconds + " seconds";
+      appendUnit(message, minutes, "minute").append(' ');
+      appendUnit(message, seconds, "second");
     } else {
-      ret += seconds + " seconds";
+      appendUnit(message, seconds, "second");
     }
 
-    return ret + " ago";
+    return message.append(" ago");
+  }
+
+  private static StringBuilder appendUnit(StringBuilder message, long value, String unit) {
+    message.append(value).append(' ').append(unit);
+    return value == 1 ? message : message.append('s');
   }
 }
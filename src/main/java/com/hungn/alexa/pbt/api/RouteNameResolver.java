@@ -0,0 +1,402 @@
+package com.hungn.alexa.pbt.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves a route name as heard by Alexa to its {@link PennRides.Route}. The names come from
+ * the route enumeration ("shuttle west a" for SHUTTLE_WEST_A) plus a few alternate names, and
+ * are compiled once into a character trie.
+ * <p>
+ * The spoken text is normalized in a single pass into a per-thread buffer: letters are lower
+ * cased, anything else separates words, and each word goes through an alias table as it ends,
+ * so a misheard "shuttle west hey" reads "shuttle west a" and filler words such as "the" are
+ * dropped. An exact trie match resolves without allocating. A name cut short after a whole
+ * word, such as "shuttle west", resolves to the routes that continue it. Anything else is
+ * compared with every name by edit distance, and the closest route is returned with a
+ * confidence score; callers should confirm low-confidence or ambiguous matches with the user.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class RouteNameResolver {
+  /**
+   * Aliases applied to every spoken word: words Alexa commonly hears instead of the intended
+   * one, and filler words mapped to nothing
+   */
+  public static final String DEFAULT_ALIASES = "hey=a,eh=a,ay=a,hay=a,bee=b,be=b,bea=b,"
+      + "buss=bus,innovation=pennovation,the=,route=,line=";
+
+  private static final int MAX_LENGTH = 64;
+  private static final int SYMBOLS = 27;
+  private static final int SPACE = 26;
+
+  private static final ThreadLocal<char[]> buffers =
+      ThreadLocal.withInitial(() -> new char[MAX_LENGTH]);
+  private static final ThreadLocal<int[][]> rows =
+      ThreadLocal.withInitial(() -> new int[2][MAX_LENGTH + 1]);
+
+  private final char[][] aliasKeys;
+  private final char[][] aliasValues;
+  private final int maxAliasLength;
+  private final char[][] names;
+  private final PennRides.Route[] nameRoutes;
+  private final Map<PennRides.Route, Match> exact = new EnumMap<>(PennRides.Route.class);
+  // Trie over a-z and space; node 0 is the root, -1 in next means no child
+  private int[] next;
+  private PennRides.Route[] terminal;
+  private int nodes;
+
+  /**
+   * Resolver with the default aliases only
+   */
+  public RouteNameResolver() {
+    this(null);
+  }
+
+  /**
+   * @param aliases extra word aliases such as "wes=west,est=east", added to (and overriding)
+   *                {@link #DEFAULT_ALIASES}; or null
+   */
+  public RouteNameResolver(String aliases) {
+    Map<String, String> table = new LinkedHashMap<>();
+    parseAliases(DEFAULT_ALIASES, table);
+    if (aliases != null) parseAliases(aliases, table);
+    aliasKeys = new char[table.size()][];
+    aliasValues = new char[table.size()][];
+    int a = 0;
+    int longest = 0;
+    for (Map.Entry<String, String> alias : table.entrySet()) {
+      aliasKeys[a] = alias.getKey().toCharArray();
+      aliasValues[a++] = alias.getValue().toCharArray();
+      longest = Math.max(longest, alias.getValue().length());
+    }
+    maxAliasLength = longest;
+
+    List<String> allNames = new ArrayList<>();
+    List<PennRides.Route> allRoutes = new ArrayList<>();
+    for (PennRides.Route route : PennRides.Route.values()) {
+      allNames.add(getName(route));
+      allRoutes.add(route);
+      exact.put(route, new Match(route, 1, null));
+    }
+    // Alternate names heard for routes
+    allNames.add("penn ovation");
+    allRoutes.add(PennRides.Route.PENNOVATION);
+
+    names = new char[allNames.size()][];
+    nameRoutes = allRoutes.toArray(new PennRides.Route[0]);
+    next = new int[64 * SYMBOLS];
+    terminal = new PennRides.Route[64];
+    Arrays.fill(next, -1);
+    nodes = 1;
+    for (int i = 0; i < names.length; i++) {
+      // Names go through the same normalization as spoken text
+      char[] buffer = new char[MAX_LENGTH];
+      int length = normalize(allNames.get(i), buffer);
+      names[i] = Arrays.copyOf(buffer, length);
+      insert(names[i], nameRoutes[i]);
+    }
+  }
+
+  /**
+   * @param route the specific route
+   * @return name of the route as said to and by users, such as "shuttle west a"
+   */
+  public static String getName(PennRides.Route route) {
+    return route.name().replace('_', ' ').toLowerCase();
+  }
+
+  /**
+   * Resolve a spoken route name
+   *
+   * @param spoken route name as heard by Alexa, such as "Shuttle West A."
+   * @return closest route with its confidence; or null if nothing is left after normalization
+   */
+  public Match resolve(CharSequence spoken) {
+    if (spoken == null) return null;
+    char[] buffer = buffers.get();
+    int length = normalize(spoken, buffer);
+    if (length <= 0) return null;
+
+    PennRides.Route route = lookup(buffer, length);
+    if (route != null) return exact.get(route);
+    Match prefix = prefix(buffer, length);
+    return prefix != null ? prefix : closest(buffer, length);
+  }
+
+  /**
+   * Normalize spoken text for display or logging, as {@link #resolve(CharSequence)} sees it
+   *
+   * @param spoken route name as heard by Alexa
+   * @return normalized text such as "shuttle west a", cut to the length resolved; or an empty
+   * string if no words are left
+   */
+  public String normalize(CharSequence spoken) {
+    // A word grows at most to its longest alias
+    char[] buffer = new char[spoken.length() * Math.max(1, maxAliasLength) + 1];
+    int length = normalize(spoken, buffer);
+    if (length > MAX_LENGTH) {
+      // Cut after the last whole word that fits, or within a first word too long by itself
+      int cut = MAX_LENGTH;
+      while (cut > 0 && buffer[cut] != ' ') cut--;
+      length = cut > 0 ? cut : MAX_LENGTH;
+    }
+    return length <= 0 ? "" : new String(buffer, 0, length);
+  }
+
+  /**
+   * Single pass over the spoken text: keep lower-cased letters, turn runs of anything else into
+   * one space (apostrophes are dropped), and replace each word by its alias as it ends
+   *
+   * @return normalized length; or -1 if it does not fit the buffer
+   */
+  private int normalize(CharSequence spoken, char[] buffer) {
+    int length = 0;
+    int wordStart = -1;
+    for (int i = 0, n = spoken.length(); i <= n; i++) {
+      char c = i < n ? spoken.charAt(i) : ' ';
+      if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+      if (c >= 'a' && c <= 'z') {
+        if (wordStart < 0) {
+          if (length > 0) {
+            if (length == buffer.length) return -1;
+            buffer[length++] = ' ';
+          }
+          wordStart = length;
+        }
+        if (length == buffer.length) return -1;
+        buffer[length++] = c;
+      } else if (c != '\'' && wordStart >= 0) {
+        length = applyAlias(buffer, wordStart, length);
+        if (length < 0) return -1;
+        wordStart = -1;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Replace the word ending the buffer by its alias, if it has one
+   *
+   * @return new length of the buffer; or -1 if the alias does not fit
+   */
+  private int applyAlias(char[] buffer, int start, int end) {
+    for (int a = 0; a < aliasKeys.length; a++) {
+      char[] key = aliasKeys[a];
+      if (key.length != end - start) continue;
+      int k = 0;
+      while (k < key.length && key[k] == buffer[start + k]) k++;
+      if (k < key.length) continue;
+
+      char[] value = aliasValues[a];
+      if (value.length == 0) {
+        // Drop the word along with the space before it
+        return start > 0 ? start - 1 : 0;
+      }
+      if (start + value.length > buffer.length) return -1;
+      System.arraycopy(value, 0, buffer, start, value.length);
+      return start + value.length;
+    }
+    return end;
+  }
+
+  private PennRides.Route lookup(char[] text, int length) {
+    int node = 0;
+    for (int i = 0; i < length && node >= 0; i++) {
+      node = next[node * SYMBOLS + symbol(text[i])];
+    }
+    return node >= 0 ? terminal[node] : null;
+  }
+
+  /**
+   * Routes whose names continue the text with more words, such as Shuttle West A and B for
+   * "shuttle west": the name was cut short, and is ambiguous when more than one route continues
+   * it. Confidence is the share of the closest name the text covers.
+   *
+   * @return the closest route, and the next closest as the alternative; or null if no name
+   * continues the text
+   */
+  private Match prefix(char[] text, int length) {
+    int node = 0;
+    for (int i = 0; i < length && node >= 0; i++) {
+      node = next[node * SYMBOLS + symbol(text[i])];
+    }
+    if (node < 0 || next[node * SYMBOLS + SPACE] < 0) return null;
+    PennRides.Route[] found = new PennRides.Route[2];
+    int[] rest = {Integer.MAX_VALUE, Integer.MAX_VALUE};
+    collect(next[node * SYMBOLS + SPACE], 1, found, rest);
+    if (found[0] == null) return null;
+    return new Match(found[0], (double) length / (length + rest[0]), found[1]);
+  }
+
+  /**
+   * Find the two routes with the shortest names below a trie node
+   *
+   * @param depth characters from the text to the node
+   * @param found closest two routes so far, closest first
+   * @param rest  characters their names add to the text
+   */
+  private void collect(int node, int depth, PennRides.Route[] found, int[] rest) {
+    PennRides.Route route = terminal[node];
+    if (route == null) {
+      // Not the end of a name
+    } else if (route == found[0]) {
+      rest[0] = Math.min(rest[0], depth);
+    } else if (depth < rest[0]) {
+      found[1] = found[0];
+      rest[1] = rest[0];
+      found[0] = route;
+      rest[0] = depth;
+    } else if (depth < rest[1]) {
+      found[1] = route;
+      rest[1] = depth;
+    }
+    for (int s = 0; s < SYMBOLS; s++) {
+      int child = next[node * SYMBOLS + s];
+      if (child >= 0) collect(child, depth + 1, found, rest);
+    }
+  }
+
+  /**
+   * Compare the text with every name by edit distance. Confidence is the share of characters
+   * that need no edit; the match is ambiguous when another route is just as close, as the text
+   * cannot tell them apart.
+   */
+  private Match closest(char[] text, int length) {
+    PennRides.Route best = null;
+    PennRides.Route runnerUp = null;
+    double bestScore = -1;
+    double runnerUpScore = -1;
+    for (int i = 0; i < names.length; i++) {
+      double score = 1 - (double) distance(text, length, names[i]) / Math.max(length, names[i].length);
+      PennRides.Route route = nameRoutes[i];
+      if (route == best) {
+        bestScore = Math.max(bestScore, score);
+      } else if (score > bestScore) {
+        runnerUp = best;
+        runnerUpScore = bestScore;
+        best = route;
+        bestScore = score;
+      } else if (score > runnerUpScore && route != runnerUp) {
+        runnerUp = route;
+        runnerUpScore = score;
+      } else if (route == runnerUp) {
+        runnerUpScore = Math.max(runnerUpScore, score);
+      }
+    }
+    if (best == null) return null;
+    boolean tied = runnerUp != null && runnerUpScore >= bestScore;
+    return new Match(best, Math.max(0, bestScore), tied ? runnerUp : null);
+  }
+
+  /**
+   * Levenshtein distance over two reused rows
+   */
+  private static int distance(char[] text, int length, char[] name) {
+    int[][] work = rows.get();
+    int[] previous = work[0];
+    int[] current = work[1];
+    for (int j = 0; j <= name.length; j++) previous[j] = j;
+    for (int i = 1; i <= length; i++) {
+      current[0] = i;
+      char c = text[i - 1];
+      for (int j = 1; j <= name.length; j++) {
+        int substitute = previous[j - 1] + (c == name[j - 1] ? 0 : 1);
+        current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[name.length];
+  }
+
+  private void insert(char[] name, PennRides.Route route) {
+    int node = 0;
+    for (char c : name) {
+      int slot = node * SYMBOLS + symbol(c);
+      if (next[slot] < 0) {
+        if (nodes * SYMBOLS >= next.length) {
+          int size = next.length;
+          next = Arrays.copyOf(next, size * 2);
+          Arrays.fill(next, size, next.length, -1);
+          terminal = Arrays.copyOf(terminal, terminal.length * 2);
+        }
+        next[slot] = nodes++;
+      }
+      node = next[slot];
+    }
+    terminal[node] = route;
+  }
+
+  private static int symbol(char c) {
+    return c == ' ' ? SPACE : c - 'a';
+  }
+
+  private static void parseAliases(String aliases, Map<String, String> table) {
+    for (String alias : aliases.split(",")) {
+      int eq = alias.indexOf('=');
+      if (eq <= 0) continue;
+      String key = alias.substring(0, eq).trim().toLowerCase();
+      String value = alias.substring(eq + 1).trim().toLowerCase();
+      if (key.matches("[a-z]+") && value.matches("[a-z ]*")) table.put(key, value);
+    }
+  }
+
+  /**
+   * Route a spoken name resolved to
+   */
+  public static final class Match {
+    private final PennRides.Route route;
+    private final double confidence;
+    private final PennRides.Route alternative;
+
+    private Match(PennRides.Route route, double confidence, PennRides.Route alternative) {
+      this.route = route;
+      this.confidence = confidence;
+      this.alternative = alternative;
+    }
+
+    public PennRides.Route getRoute() {
+      return route;
+    }
+
+    /**
+     * @return name of the route as said to users, such as "shuttle west a"
+     */
+    public String getName() {
+      return RouteNameResolver.getName(route);
+    }
+
+    /**
+     * @return 1 for an exact match (after aliases); otherwise between 0 and 1
+     */
+    public double getConfidence() {
+      return confidence;
+    }
+
+    /**
+     * @return whether another route matched just as well
+     */
+    public boolean isAmbiguous() {
+      return alternative != null;
+    }
+
+    /**
+     * @return the route that matched just as well; or null if the match is not ambiguous
+     */
+    public PennRides.Route getAlternative() {
+      return alternative;
+    }
+
+    @Override
+    public String toString() {
+      return "Match{" + route + ", confidence=" + confidence
+          + (alternative == null ? "" : ", alternative=" + alternative) + "}";
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package com.hungn.alexa.pbt.api;
+
+import com.hungn.alexa.pbt.metrics.Metrics;
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+import com.hungn.alexa.pbt.util.Futures;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Guard around the calls to one upstream service:
+ * <ul>
+ * <li>every call has a deadline; requests still running when it passes are aborted;</li>
+ * <li>a call not answered within the hedge delay is sent a second time, and whichever answer
+ * comes first is used (only for idempotent reads);</li>
+ * <li>after several failed calls in a row the circuit opens and calls fail fast, without
+ * touching the network, until a single probe call succeeds after the open period.</li>
+ * </ul>
+ * Settings are read per service, e.g. PBT_PENNRIDES_HEDGE_MS, PBT_PENNRIDES_BREAKER_FAILURES and
+ * PBT_PENNRIDES_BREAKER_OPEN_MS for the "pennrides" guard.
+ * <p>
+ * Both kinds of calls time the hedge and the deadline on the shared {@link Futures} timer.
+ * {@link #call} sends the first attempt on the calling thread, which the deadline unblocks by
+ * aborting it, and hedges on a pool of PBT_&lt;SERVICE&gt;_HEDGE_THREADS threads, so a blocking
+ * call holds at most one thread of its own; hedges wait in line when they are all busy.
+ * {@link #callAsync} takes requests sent with a non-blocking client, so no thread waits for the
+ * answer.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class UpstreamGuard {
+  private static final Logger log = LoggerFactory.getLogger(UpstreamGuard.class);
+
+  private final String name;
+  private final long hedgeNanos;
+  private final int failureThreshold;
+  private final long openNanos;
+  private final ThreadPoolExecutor hedgeExecutor;
+
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicBoolean probing = new AtomicBoolean();
+  // 0 while closed; otherwise end of the open period in System.nanoTime() units
+  private volatile long openUntil;
+
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder opened = new LongAdder();
+  private final LongAdder deadlines = new LongAdder();
+
+  /**
+   * @param name     service name, such as "pennrides"; also the prefix of its settings
+   * @param hedgeMs  default delay before a slow call is sent again; 0 disables hedging
+   * @param failures default number of failed calls in a row that opens the circuit
+   * @param openMs   default time the circuit stays open before a probe call is let through
+   */
+  public UpstreamGuard(String name, long hedgeMs, int failures, long openMs) {
+    String prefix = "PBT_" + name.toUpperCase() + "_";
+    this.name = name;
+    this.hedgeNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong(prefix + "HEDGE_MS", hedgeMs));
+    this.failureThreshold = Config.getInt(prefix + "BREAKER_FAILURES", failures);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(Config.getLong(prefix + "BREAKER_OPEN_MS", openMs));
+    int hedgeThreads = Config.getInt(prefix + "HEDGE_THREADS", 4);
+    this.hedgeExecutor = new ThreadPoolExecutor(hedgeThreads, hedgeThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new DaemonThreadFactory(name + "-hedge"));
+    hedgeExecutor.allowCoreThreadTimeOut(true);
+
+    Metrics.registerCounter("UpstreamHedges", hedges::sum, "service", name);
+    Metrics.registerCounter("UpstreamRejected", rejected::sum, "service", name);
+    Metrics.registerCounter("UpstreamBreakerOpened", opened::sum, "service", name);
+    Metrics.registerCounter("UpstreamDeadlineExceeded", deadlines::sum, "service", name);
+  }
+
+  /**
+   * Send a request through the guard. A null answer counts as a failure, like an exception.
+   *
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @param request  request to send, possibly twice at once
+   * @return the first non-null answer; or null if every attempt answered null
+   * @throws CircuitOpenException if the circuit is open
+   * @throws SocketTimeoutException if no attempt answered before the deadline
+   * @throws Exception the failure of the last attempt
+   */
+  public <T> T call(long deadline, Request<T> request) throws Exception {
+    if (!allow()) {
+      rejected.increment();
+      throw new CircuitOpenException(name);
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(1);
+    Attempt first = new Attempt(deadline);
+    AtomicReference<Attempt> second = new AtomicReference<>();
+    // Stop the attempt that lost the race, or every attempt past the deadline
+    result.whenComplete((value, ex) -> {
+      first.abort();
+      Attempt other = second.get();
+      if (other != null) other.abort();
+    });
+    long remaining = deadline - System.nanoTime();
+    ScheduledFuture<?> hedge = null;
+    if (hedgeNanos > 0 && hedgeNanos < remaining) {
+      hedge = Futures.schedule(() -> {
+        if (result.isDone()) return;
+        hedges.increment();
+        pending.incrementAndGet();
+        Attempt attempt = new Attempt(deadline);
+        second.set(attempt);
+        // Lost a race with the first answer
+        if (result.isDone()) attempt.abort();
+        hedgeExecutor.execute(() -> send(request, attempt, result, pending));
+      }, hedgeNanos);
+    }
+    SocketTimeoutException missed = new SocketTimeoutException(name + " missed the deadline");
+    ScheduledFuture<?> timeout = Futures.schedule(() -> result.completeExceptionally(missed),
+        remaining);
+
+    boolean success = false;
+    try {
+      send(request, first, result, pending);
+      T value = result.get();
+      success = value != null;
+      return value;
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause == missed) deadlines.increment();
+      throw cause instanceof Exception ? (Exception) cause : new IOException(cause);
+    } finally {
+      if (hedge != null) hedge.cancel(false);
+      timeout.cancel(false);
+      if (success) onSuccess();
+      else onFailure();
+    }
+  }
+
+  /**
+   * Send one attempt and complete the result with its answer, or with the failure of the last
+   * attempt to finish; skipped if the result is already known
+   */
+  private static <T> void send(Request<T> request, Attempt attempt, CompletableFuture<T> result,
+                               AtomicInteger pending) {
+    if (result.isDone()) return;
+    try {
+      T value = request.send(attempt);
+      if (value != null) {
+        result.complete(value);
+      } else if (pending.decrementAndGet() == 0) {
+        result.complete(null);
+      }
+    } catch (Exception ex) {
+      if (pending.decrementAndGet() == 0) result.completeExceptionally(ex);
+    }
+  }
+
+  /**
+   * Send a non-blocking request through the guard, with the same hedging, deadline and circuit
+   * as {@link #call}. A null answer counts as a failure, like an exception.
+   *
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @param request  request to send, possibly twice at once
+   * @return future of the first non-null answer, or of null if every attempt answered null;
+   * failed with {@link CircuitOpenException} if the circuit is open,
+   * {@link SocketTimeoutException} if no attempt answered before the deadline, or else the
+   * failure of the last attempt
+   */
+  public <T> CompletableFuture<T> callAsync(long deadline, AsyncRequest<T> request) {
+    if (!allow()) {
+      rejected.increment();
+      CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new CircuitOpenException(name));
+      return failed;
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(1);
+    Attempt first = startAsync(request, deadline, result, pending);
+    AtomicReference<Attempt> second = new AtomicReference<>();
+    long remaining = deadline - System.nanoTime();
+    ScheduledFuture<?> hedge = null;
+    if (hedgeNanos > 0 && hedgeNanos < remaining) {
+      hedge = Futures.schedule(() -> {
+        if (result.isDone()) return;
+        hedges.increment();
+        pending.incrementAndGet();
+        second.set(startAsync(request, deadline, result, pending));
+        // Lost a race with the first answer
+        if (result.isDone()) second.get().abort();
+      }, hedgeNanos);
+    }
+    SocketTimeoutException missed = new SocketTimeoutException(name + " missed the deadline");
+    ScheduledFuture<?> timeout = Futures.schedule(() -> result.completeExceptionally(missed),
+        remaining);
+
+    ScheduledFuture<?> hedgeTask = hedge;
+    return result.whenComplete((value, ex) -> {
+      if (hedgeTask != null) hedgeTask.cancel(false);
+      timeout.cancel(false);
+      // Stop the attempt that lost the race, or every attempt past the deadline
+      first.abort();
+      Attempt other = second.get();
+      if (other != null) other.abort();
+      // Counted here rather than by the timer, so it is done before any caller sees the failure
+      if (ex == missed) deadlines.increment();
+      if (ex == null && value != null) onSuccess();
+      else onFailure();
+    });
+  }
+
+  private <T> Attempt startAsync(AsyncRequest<T> request, long deadline,
+                                 CompletableFuture<T> result, AtomicInteger pending) {
+    Attempt attempt = new Attempt(deadline);
+    CompletableFuture<T> answer;
+    try {
+      answer = request.send(attempt);
+    } catch (Exception ex) {
+      answer = new CompletableFuture<>();
+      answer.completeExceptionally(ex);
+    }
+    answer.whenComplete((value, ex) -> {
+      if (ex == null && value != null) {
+        result.complete(value);
+      } else if (pending.decrementAndGet() == 0) {
+        if (ex != null) result.completeExceptionally(Futures.unwrap(ex));
+        else result.complete(null);
+      }
+    });
+    return attempt;
+  }
+
+  /**
+   * Whether a call may go through: always while closed; once the open period is over, only a
+   * single probe call at a time
+   */
+  private boolean allow() {
+    long until = openUntil;
+    if (until == 0) return true;
+    if (System.nanoTime() - until < 0) return false;
+    return probing.compareAndSet(false, true);
+  }
+
+  private void onSuccess() {
+    failures.set(0);
+    if (openUntil != 0) {
+      openUntil = 0;
+      probing.set(false);
+      if (log.isInfoEnabled()) {
+        log.info("Circuit to {} closed", name);
+      }
+    }
+  }
+
+  private void onFailure() {
+    if (openUntil != 0) {
+      // The probe failed; stay open for another period
+      openUntil = System.nanoTime() + openNanos;
+      probing.set(false);
+    } else if (failures.incrementAndGet() >= failureThreshold) {
+      openUntil = System.nanoTime() + openNanos;
+      opened.increment();
+      if (log.isInfoEnabled()) {
+        log.info("Circuit to {} opened after {} failures", name, failureThreshold);
+      }
+    }
+  }
+
+  /**
+   * @return whether calls are currently failing fast
+   */
+  public boolean isOpen() {
+    long until = openUntil;
+    return until != 0 && System.nanoTime() - until < 0;
+  }
+
+  public long getHedges() {
+    return hedges.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getOpened() {
+    return opened.sum();
+  }
+
+  public long getDeadlinesExceeded() {
+    return deadlines.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "UpstreamGuard{" + name + ", open=" + isOpen() + ", hedges=" + getHedges()
+        + ", rejected=" + getRejected() + ", opened=" + getOpened()
+        + ", deadlinesExceeded=" + getDeadlinesExceeded() + "}";
+  }
+
+  /**
+   * One upstream request, sent once per attempt
+   */
+  @FunctionalInterface
+  public interface Request<T> {
+    /**
+     * @param attempt attempt to bind the HTTP request to, and to take its timeouts from
+     * @return answer; or null if the upstream did not answer usefully
+     */
+    T send(Attempt attempt) throws Exception;
+  }
+
+  /**
+   * One upstream request sent with a non-blocking client, once per attempt
+   */
+  @FunctionalInterface
+  public interface AsyncRequest<T> {
+    /**
+     * @param attempt attempt to bind the HTTP exchange to, and to take its timeouts from
+     * @return future of the answer, or of null if the upstream did not answer usefully
+     */
+    CompletableFuture<T> send(Attempt attempt) throws Exception;
+  }
+
+  /**
+   * One attempt at a request, aborted when it is no longer needed
+   */
+  public static final class Attempt {
+    private final long deadline;
+    private volatile Runnable cancel;
+    private volatile boolean aborted;
+
+    private Attempt(long deadline) {
+      this.deadline = deadline;
+    }
+
+    /**
+     * @param limit maximum timeout in milliseconds, such as the configured socket timeout
+     * @return the smaller of the limit and the time left until the deadline, at least 1ms
+     */
+    public int getTimeout(int limit) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      return (int) Math.max(1, Math.min(limit, remaining));
+    }
+
+    /**
+     * Register the HTTP request of this attempt, so it can be aborted
+     *
+     * @param request request about to be executed
+     */
+    public void bind(HttpRequestBase request) {
+      cancelWith(request::abort);
+    }
+
+    /**
+     * Register the exchange of this attempt with a non-blocking client, so it can be cancelled
+     *
+     * @param exchange future returned by the client for the request
+     */
+    public void bind(Future<?> exchange) {
+      cancelWith(() -> exchange.cancel(true));
+    }
+
+    private void cancelWith(Runnable cancel) {
+      this.cancel = cancel;
+      if (aborted) cancel.run();
+    }
+
+    private void abort() {
+      aborted = true;
+      Runnable current = cancel;
+      if (current != null) current.run();
+    }
+  }
+
+  /**
+   * Thrown instead of calling an upstream whose circuit is open
+   */
+  public static final class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String name) {
+      super("Circuit to " + name + " is open");
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.hungn.alexa.pbt.api;
+
+import com.hungn.alexa.pbt.types.VehicleStatus;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZonedDateTime;
+import java.util.LinkedList;
+
+/**
+ * Streaming decoder for the PennRides vehicles endpoint. It pulls only the fields
+ * {@link VehicleStatus} needs straight off the response stream and skips everything else
+ * (Coordinate, IconPrefix, APC data...) without building a JSON tree.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class VehicleStatusDecoder {
+  private static final JsonFactory factory = new JsonFactory();
+
+  private VehicleStatusDecoder() {
+  }
+
+  /**
+   * Decode a vehicles response. Vehicles missing any of ID, RouteId, PatternId, Name,
+   * Longitude, Latitude, Heading or a valid Updated time are dropped; Speed is optional.
+   * A field set to JSON null counts as missing, so its vehicle is dropped. The tree-based
+   * parser this replaced read such a field as 0 or "null", and failed the whole response on a
+   * null Updated.
+   *
+   * @param in  response body; not closed by this method
+   * @param now time the response was received, used to resolve the Updated clock time
+   * @return decoded vehicles; or an empty list if the body is not an array of vehicles
+   * @throws IOException if the body is not valid JSON
+   */
+  public static LinkedList<VehicleStatus> decode(InputStream in, ZonedDateTime now)
+      throws IOException {
+    LinkedList<VehicleStatus> vehicles = new LinkedList<>();
+    long nowEpoch = now.toEpochSecond();
+    int nowSecondOfDay = now.withZoneSameInstant(PennRides.ZONE).toLocalTime().toSecondOfDay();
+    try (JsonParser parser = factory.createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) return vehicles;
+
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+        if (token == JsonToken.START_OBJECT) {
+          VehicleStatus status = decodeVehicle(parser, nowEpoch, nowSecondOfDay);
+          if (status != null) vehicles.add(status);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return vehicles;
+  }
+
+  /**
+   * Decode one vehicle object; the parser is positioned on its START_OBJECT and is left on
+   * its END_OBJECT
+   */
+  private static VehicleStatus decodeVehicle(JsonParser parser, long nowEpoch, int nowSecondOfDay)
+      throws IOException {
+    VehicleStatus status = new VehicleStatus();
+    String heading = null;
+    String updated = null;
+    int found = 0;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      // Field names are interned by the parser, so the switch does not allocate
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (value == JsonToken.VALUE_NULL) continue;
+      switch (field) {
+        case "ID":
+          status.setId(parser.getValueAsInt());
+          found |= 1;
+          break;
+        case "RouteId":
+          status.setRouteId(parser.getValueAsInt());
+          found |= 1 << 1;
+          break;
+        case "PatternId":
+          status.setPatternId(parser.getValueAsInt());
+          found |= 1 << 2;
+          break;
+        case "Name":
+          status.setName(parser.getValueAsString());
+          found |= 1 << 3;
+          break;
+        case "Longitude":
+          status.setLongitude(parser.getValueAsDouble());
+          found |= 1 << 4;
+          break;
+        case "Latitude":
+          status.setLatitude(parser.getValueAsDouble());
+          found |= 1 << 5;
+          break;
+        case "Heading":
+          heading = parser.getValueAsString();
+          found |= 1 << 6;
+          break;
+        case "Updated":
+          updated = parser.getValueAsString();
+          found |= 1 << 7;
+          break;
+        case "Speed":
+          status.setSpeed(parser.getValueAsDouble());
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+
+    if (found != 0xFF) return null;
+    int updatedSecondOfDay = ClockTime.parseSecondOfDay(updated);
+    if (updatedSecondOfDay < 0) return null;
+
+    long elapsed = ClockTime.elapsedSeconds(updatedSecondOfDay, nowSecondOfDay);
+    status.setUpdated(nowEpoch - elapsed);
+    status.setLastUpdated(PennRides.getElapsedTime(nowEpoch - elapsed, nowEpoch));
+    status.setHeading(PennRides.getHeading(heading));
+    return status;
+  }
+}
@@ -0,0 +1,84 @@
+package com.hungn.alexa.pbt.api;
+
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for the PennRides waypoints endpoint, an array of segments each being an
+ * array of {Latitude, Longitude} points. Points go straight into a {@link RouteGeometry}
+ * builder without building a JSON tree.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class WaypointsDecoder {
+  private static final JsonFactory factory = new JsonFactory();
+
+  private WaypointsDecoder() {
+  }
+
+  /**
+   * Decode a waypoints response. Points missing either coordinate are dropped.
+   *
+   * @param in response body; not closed by this method
+   * @return polyline of the route; empty if the body is not an array of segments
+   * @throws IOException if the body is not valid JSON
+   */
+  public static RouteGeometry decode(InputStream in) throws IOException {
+    RouteGeometry.Builder builder = new RouteGeometry.Builder();
+    try (JsonParser parser = factory.createParser(in)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) return builder.build();
+
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+        if (token != JsonToken.START_ARRAY) {
+          parser.skipChildren();
+          continue;
+        }
+        builder.startSegment();
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+          if (token == JsonToken.START_OBJECT) {
+            decodePoint(parser, builder);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Decode one point object; the parser is positioned on its START_OBJECT and is left on its
+   * END_OBJECT
+   */
+  private static void decodePoint(JsonParser parser, RouteGeometry.Builder builder)
+      throws IOException {
+    double latitude = 0;
+    double longitude = 0;
+    int found = 0;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (value == JsonToken.VALUE_NULL) continue;
+      switch (field) {
+        case "Latitude":
+          latitude = parser.getValueAsDouble();
+          found |= 1;
+          break;
+        case "Longitude":
+          longitude = parser.getValueAsDouble();
+          found |= 2;
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (found == 3) builder.addPoint(latitude, longitude);
+  }
+}
@@ -0,0 +1,133 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.hungn.alexa.pbt.geo.GeoHash;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded reverse-geocoding cache keyed on a geohash grid cell. Shuttles keep passing through
+ * the same blocks, so coordinates falling in the same cell share one street address.
+ * Entries are evicted least-recently-used once the cache is full, and expire after a fixed TTL.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class GeocodeCache {
+  private final int precision;
+  private final int capacity;
+  private final long ttlNanos;
+  private final LinkedHashMap<Long, Entry> entries;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  /**
+   * @param precision geohash precision of a cell (e.g. 8 is roughly 38m x 19m)
+   * @param capacity  maximum number of cells to keep
+   * @param ttl       time to live of an entry
+   * @param unit      unit of the TTL
+   */
+  public GeocodeCache(int precision, int capacity, long ttl, TimeUnit unit) {
+    if (precision < 1 || precision > GeoHash.MAX_PRECISION) {
+      throw new IllegalArgumentException("Invalid geohash precision: " + precision);
+    }
+    if (capacity < 1) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    this.precision = precision;
+    this.capacity = capacity;
+    this.ttlNanos = unit.toNanos(ttl);
+    // Access order makes iteration order least- to most-recently used
+    this.entries = new LinkedHashMap<Long, Entry>(capacity * 4 / 3 + 1, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+        if (size() > GeocodeCache.this.capacity) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Look up the address cached for the cell containing a coordinate
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @return cached address; or null if the cell is not cached or its entry expired
+   */
+  public String get(double longitude, double latitude) {
+    long key = GeoHash.encode(latitude, longitude, precision);
+    long now = System.nanoTime();
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (now - entry.expiresAt < 0) {
+          hits.increment();
+          return entry.address;
+        }
+        entries.remove(key);
+        expirations.increment();
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Cache the address of the cell containing a coordinate
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @param address   resolved street address; null or empty addresses are not cached
+   */
+  public void put(double longitude, double latitude, String address) {
+    if (address == null || address.isEmpty()) return;
+    long key = GeoHash.encode(latitude, longitude, precision);
+    Entry entry = new Entry(address, System.nanoTime() + ttlNanos);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getExpirations() {
+    return expirations.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "GeocodeCache{size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+        + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() + "}";
+  }
+
+  private static final class Entry {
+    private final String address;
+    private final long expiresAt;
+
+    private Entry(String address, long expiresAt) {
+      this.address = address;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.amazon.speech.speechlet.Session;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Vehicles a user was just told about, kept in the Alexa session so follow-up questions in the
+ * same conversation ("where is E09 now?", "what about the next one?") are answered without
+ * fetching and locating the whole fleet again. Each vehicle keeps its route, position, heading,
+ * speed, report time, resolved location phrase and the time it was fetched; for arrival
+ * questions, the route and stop asked about and the vehicles already named for it are kept too.
+ * <p>
+ * The snapshot is stored as one string attribute, with positions in microdegrees and times in
+ * seconds, e.g. {@code 1|1792271702||3898,170,E09,39954773,-75201845,West,130,1792271690,0,at
+ * 3601 Walnut St} (see {@link #encode()}). A session attribute map with a key per field would be
+ * several times larger and cost a JSON object per vehicle on every turn.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class SessionSnapshot {
+  private static final Logger log = LoggerFactory.getLogger(SessionSnapshot.class);
+
+  /**
+   * Name of the session attribute holding the snapshot
+   */
+  public static final String ATTRIBUTE = "snapshot";
+  private static final String VERSION = "1";
+  private static final Pattern LEADING_ZEROS = Pattern.compile("(?<![0-9])0+(?=[0-9])");
+
+  private final long fetchedAt;
+  private final List<Entry> entries = new ArrayList<>();
+  private PennRides.Route nextRoute;
+  private int nextStop = -1;
+  private final Set<Integer> told = new LinkedHashSet<>();
+
+  /**
+   * @param fetchedAt time the vehicles were fetched, in epoch seconds
+   */
+  public SessionSnapshot(long fetchedAt) {
+    this.fetchedAt = fetchedAt;
+  }
+
+  /**
+   * Add a vehicle as fetched with the snapshot
+   *
+   * @param route    route the vehicle operates on
+   * @param status   status of the vehicle
+   * @param location location phrase such as "at 3401 Walnut St"; or null if not resolved
+   */
+  public void add(PennRides.Route route, VehicleStatus status, String location) {
+    entries.add(new Entry(route, status, location, fetchedAt));
+  }
+
+  /**
+   * Replace a vehicle with a newer status, fetched on its own
+   *
+   * @param index     index of the vehicle
+   * @param status    current status of the vehicle
+   * @param location  location phrase; or null if not resolved
+   * @param fetchedAt time the status was fetched, in epoch seconds
+   */
+  public void update(int index, VehicleStatus status, String location, long fetchedAt) {
+    entries.set(index, new Entry(entries.get(index).route, status, location, fetchedAt));
+  }
+
+  /**
+   * Replace the vehicles of a route with newly fetched ones, whose locations are not resolved
+   *
+   * @param route     the specific route
+   * @param vehicles  current vehicles of the route
+   * @param fetchedAt time the vehicles were fetched, in epoch seconds
+   */
+  public void replace(PennRides.Route route, List<VehicleStatus> vehicles, long fetchedAt) {
+    entries.removeIf(entry -> entry.route == route);
+    for (VehicleStatus status : vehicles) {
+      entries.add(new Entry(route, status, null, fetchedAt));
+    }
+  }
+
+  /**
+   * Remember an arrival question, so the next vehicle to arrive can be asked for
+   *
+   * @param route route asked about
+   * @param stop  ID of the stop asked about
+   */
+  public void setNext(PennRides.Route route, int stop) {
+    this.nextRoute = route;
+    this.nextStop = stop;
+    this.told.clear();
+  }
+
+  /**
+   * Remember that a vehicle was named as arriving at the stop of the arrival question
+   */
+  public void addTold(int vehicleId) {
+    told.add(vehicleId);
+  }
+
+  /**
+   * @return whether a vehicle was already named as arriving at the stop of the arrival question
+   */
+  public boolean isTold(int vehicleId) {
+    return told.contains(vehicleId);
+  }
+
+  /**
+   * @return route of the last arrival question; or null if there was none
+   */
+  public PennRides.Route getNextRoute() {
+    return nextRoute;
+  }
+
+  /**
+   * @return stop ID of the last arrival question; or -1 if there was none
+   */
+  public int getNextStop() {
+    return nextStop;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public PennRides.Route getRoute(int index) {
+    return entries.get(index).route;
+  }
+
+  public VehicleStatus getVehicle(int index) {
+    return entries.get(index).status;
+  }
+
+  /**
+   * @return location phrase of a vehicle; or null if it was not resolved
+   */
+  public String getLocation(int index) {
+    return entries.get(index).location;
+  }
+
+  /**
+   * @return time the vehicle was fetched, in epoch seconds
+   */
+  public long getFetchedAt(int index) {
+    return entries.get(index).fetchedAt;
+  }
+
+  /**
+   * @param route the specific route
+   * @return vehicles of the route in the snapshot
+   */
+  public List<VehicleStatus> getVehicles(PennRides.Route route) {
+    List<VehicleStatus> vehicles = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.route == route) vehicles.add(entry.status);
+    }
+    return vehicles;
+  }
+
+  /**
+   * @param route the specific route
+   * @return oldest fetch time of the route's vehicles, in epoch seconds; or -1 if the snapshot
+   * has none of them
+   */
+  public long getFetchedAt(PennRides.Route route) {
+    long oldest = -1;
+    for (Entry entry : entries) {
+      if (entry.route == route && (oldest < 0 || entry.fetchedAt < oldest)) {
+        oldest = entry.fetchedAt;
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * Find a vehicle by its name as heard by Alexa, such as "E 09", "e nine" or "E. zero nine"
+   *
+   * @param spoken vehicle name as heard
+   * @return index of the vehicle; or -1 if no vehicle has this name
+   */
+  public int find(String spoken) {
+    String name = normalize(spoken);
+    if (name.isEmpty()) return -1;
+    for (int i = 0; i < entries.size(); i++) {
+      if (name.equals(normalize(entries.get(i).status.getName()))) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return vehicle names for a prompt, such as "E02, E09 and E08"
+   */
+  public String getNames() {
+    StringBuilder names = new StringBuilder();
+    for (int i = 0; i < entries.size(); i++) {
+      if (i > 0) names.append(i == entries.size() - 1 ? " and " : ", ");
+      names.append(entries.get(i).status.getName());
+    }
+    return names.toString();
+  }
+
+  /**
+   * Lower-case letters and digits only, with spelled digits as digits and no leading zeros in
+   * numbers, so "E 09", "e nine" and "E9" match
+   */
+  static String normalize(String name) {
+    if (name == null) return "";
+    StringBuilder out = new StringBuilder(name.length());
+    for (String word : name.toLowerCase(Locale.US).split("[^a-z0-9]+")) {
+      String digit = digit(word);
+      out.append(digit != null ? digit : word);
+    }
+    return LEADING_ZEROS.matcher(out).replaceAll("");
+  }
+
+  private static String digit(String word) {
+    switch (word) {
+      case "zero":
+      case "oh":
+        return "0";
+      case "one":
+        return "1";
+      case "two":
+        return "2";
+      case "three":
+        return "3";
+      case "four":
+        return "4";
+      case "five":
+        return "5";
+      case "six":
+        return "6";
+      case "seven":
+        return "7";
+      case "eight":
+        return "8";
+      case "nine":
+        return "9";
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Read the snapshot kept in a session
+   *
+   * @param session session of the request
+   * @return snapshot; or null if the session has none or it cannot be read
+   */
+  public static SessionSnapshot read(Session session) {
+    Object value = session == null ? null : session.getAttribute(ATTRIBUTE);
+    if (!(value instanceof String)) return null;
+    try {
+      return decode((String) value);
+    } catch (RuntimeException ex) {
+      if (log.isInfoEnabled()) {
+        log.info("Ignoring unreadable session snapshot -- {}", ex.toString());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Keep the snapshot in a session, replacing the one it had
+   *
+   * @param session session of the request
+   */
+  public void write(Session session) {
+    session.setAttribute(ATTRIBUTE, encode());
+  }
+
+  /**
+   * Encode as {@code version|fetchedAt|nextRoute:nextStop:told,...|vehicle|vehicle...}, where a
+   * vehicle is {@code route,id,name,latitudeE6,longitudeE6,heading,speed x10,updated,fetched
+   * offset,location}; text fields are escaped so they never contain a separator
+   */
+  public String encode() {
+    StringBuilder out = new StringBuilder(32 + 64 * entries.size());
+    out.append(VERSION).append('|').append(fetchedAt).append('|');
+    if (nextRoute != null) {
+      out.append(nextRoute.getRoute()).append(':').append(nextStop);
+      for (int id : told) out.append(':').append(id);
+    }
+    for (Entry entry : entries) {
+      VehicleStatus status = entry.status;
+      out.append('|').append(entry.route.getRoute())
+          .append(',').append(status.getId())
+          .append(',').append(escape(status.getName()))
+          .append(',').append(Math.round(status.getLatitude() * RouteGeometry.E6))
+          .append(',').append(Math.round(status.getLongitude() * RouteGeometry.E6))
+          .append(',').append(escape(status.getHeading()))
+          .append(',').append(Math.round(status.getSpeed() * 10))
+          .append(',').append(status.getUpdated())
+          .append(',').append(entry.fetchedAt - fetchedAt)
+          .append(',').append(escape(entry.location));
+    }
+    return out.toString();
+  }
+
+  /**
+   * @param encoded snapshot written by {@link #encode()}
+   * @return decoded snapshot
+   * @throws IllegalArgumentException if the snapshot is malformed or of another version
+   */
+  public static SessionSnapshot decode(String encoded) {
+    String[] parts = encoded.split("\\|", -1);
+    if (parts.length < 3 || !VERSION.equals(parts[0])) {
+      throw new IllegalArgumentException("Unsupported session snapshot");
+    }
+    SessionSnapshot snapshot = new SessionSnapshot(Long.parseLong(parts[1]));
+    if (!parts[2].isEmpty()) {
+      String[] next = parts[2].split(":");
+      snapshot.setNext(route(next[0]), Integer.parseInt(next[1]));
+      for (int i = 2; i < next.length; i++) snapshot.addTold(Integer.parseInt(next[i]));
+    }
+    for (int i = 3; i < parts.length; i++) {
+      String[] fields = parts[i].split(",", -1);
+      if (fields.length != 10) throw new IllegalArgumentException("Malformed vehicle " + parts[i]);
+      VehicleStatus status = new VehicleStatus();
+      status.setId(Integer.parseInt(fields[1]));
+      status.setName(unescape(fields[2]));
+      status.setLatitude(Long.parseLong(fields[3]) / RouteGeometry.E6);
+      status.setLongitude(Long.parseLong(fields[4]) / RouteGeometry.E6);
+      status.setHeading(unescape(fields[5]));
+      status.setSpeed(Long.parseLong(fields[6]) / 10.0);
+      status.setUpdated(Long.parseLong(fields[7]));
+      PennRides.Route route = route(fields[0]);
+      status.setRouteId(route.getRoute());
+      snapshot.entries.add(new Entry(route, status, unescape(fields[9]),
+          snapshot.fetchedAt + Long.parseLong(fields[8])));
+    }
+    return snapshot;
+  }
+
+  private static PennRides.Route route(String id) {
+    PennRides.Route route = PennRides.Route.forRoute(Integer.parseInt(id));
+    if (route == null) throw new IllegalArgumentException("Unknown route " + id);
+    return route;
+  }
+
+  /**
+   * Percent-encode the separators; null becomes the empty string and "%0" the empty string
+   */
+  private static String escape(String text) {
+    if (text == null) return "";
+    if (text.isEmpty()) return "%0";
+    StringBuilder out = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '%' || c == '|' || c == ',' || c == ':') {
+        out.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+      } else {
+        out.append(c);
+      }
+    }
+    return out.toString();
+  }
+
+  private static String unescape(String text) {
+    if (text.isEmpty()) return null;
+    if (text.equals("%0")) return "";
+    if (text.indexOf('%') < 0) return text;
+    StringBuilder out = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '%') {
+        out.append((char) Integer.parseInt(text.substring(i + 1, i + 3), 16));
+        i += 2;
+      } else {
+        out.append(c);
+      }
+    }
+    return out.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "SessionSnapshot{vehicles=" + size() + ", fetchedAt=" + fetchedAt
+        + ", next=" + nextRoute + ":" + nextStop + ", told=" + told + "}";
+  }
+
+  private static final class Entry {
+    private final PennRides.Route route;
+    private final VehicleStatus status;
+    private final String location;
+    private final long fetchedAt;
+
+    private Entry(PennRides.Route route, VehicleStatus status, String location, long fetchedAt) {
+      this.route = route;
+      this.status = status;
+      this.location = location;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
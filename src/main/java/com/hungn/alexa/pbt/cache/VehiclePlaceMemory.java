@@ -0,0 +1,140 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.geo.GeoUtils;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Location phrase last resolved for each vehicle, by vehicle ID, with the position and heading
+ * it was resolved at. A vehicle parked at a layover or crawling through traffic keeps its
+ * phrase, and is only located again once it has moved farther than a set distance from that
+ * position, or turned, so the lookups per request follow how much the fleet moved rather than
+ * its size. The position is not updated on a recall, so slow drift adds up.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehiclePlaceMemory {
+  private static final String[] COMPASS = {"N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE",
+      "S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW"};
+
+  private final double distance;
+  private final double turn;
+  private final long expireNanos;
+  private final ConcurrentMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+  private volatile long nextPurge;
+
+  private final LongAdder recalls = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param distance distance in meters a vehicle must move before it is located again
+   * @param turn     change of heading in degrees that has a vehicle located again
+   * @param expire   how long a phrase is kept for a vehicle that is not located again
+   * @param unit     unit of the expiry
+   */
+  public VehiclePlaceMemory(double distance, double turn, long expire, TimeUnit unit) {
+    this.distance = distance;
+    this.turn = turn;
+    this.expireNanos = unit.toNanos(expire);
+    this.nextPurge = System.nanoTime() + expireNanos;
+  }
+
+  /**
+   * Get the phrase of a vehicle that has not moved or turned enough since it was resolved
+   *
+   * @param status current status of the vehicle
+   * @return phrase such as "at 3401 Walnut St"; or null if the vehicle must be located again
+   */
+  public String recall(VehicleStatus status) {
+    Entry entry = entries.get(status.getId());
+    if (entry == null || System.nanoTime() - entry.resolvedAt > expireNanos
+        || GeoUtils.distance(entry.latitude, entry.longitude, status.getLatitude(),
+        status.getLongitude()) > distance
+        || turned(entry.heading, degrees(status.getHeading()))) {
+      misses.increment();
+      return null;
+    }
+    recalls.increment();
+    return entry.phrase;
+  }
+
+  /**
+   * Remember the phrase just resolved for a vehicle, at its current position and heading
+   *
+   * @param status current status of the vehicle
+   * @param phrase resolved location phrase; null phrases are not remembered
+   */
+  public void remember(VehicleStatus status, String phrase) {
+    if (phrase == null) return;
+    long now = System.nanoTime();
+    entries.put(status.getId(), new Entry(status.getLatitude(), status.getLongitude(),
+        degrees(status.getHeading()), phrase, now));
+    if (now - nextPurge > 0) {
+      nextPurge = now + expireNanos;
+      entries.values().removeIf(entry -> now - entry.resolvedAt > expireNanos);
+    }
+  }
+
+  private boolean turned(double from, double to) {
+    // An unknown heading never counts as a turn
+    if (Double.isNaN(from) || Double.isNaN(to)) return false;
+    double change = Math.abs(from - to) % 360;
+    return Math.min(change, 360 - change) >= turn;
+  }
+
+  /**
+   * @param heading heading as decoded from PennRides, such as "North East", or a compass point
+   *                such as "NE"
+   * @return heading in degrees; or NaN if unknown
+   */
+  static double degrees(String heading) {
+    double bearing = PennRides.getBearing(heading);
+    if (!Double.isNaN(bearing)) return bearing;
+    if (heading != null) {
+      for (int i = 0; i < COMPASS.length; i++) {
+        if (COMPASS[i].equalsIgnoreCase(heading)) return i * 22.5;
+      }
+    }
+    return Double.NaN;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getRecalls() {
+    return recalls.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "VehiclePlaceMemory{size=" + size() + ", recalls=" + getRecalls()
+        + ", misses=" + getMisses() + "}";
+  }
+
+  private static final class Entry {
+    private final double latitude;
+    private final double longitude;
+    private final double heading;
+    private final String phrase;
+    private final long resolvedAt;
+
+    private Entry(double latitude, double longitude, double heading, String phrase,
+                  long resolvedAt) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.heading = heading;
+      this.phrase = phrase;
+      this.resolvedAt = resolvedAt;
+    }
+  }
+}
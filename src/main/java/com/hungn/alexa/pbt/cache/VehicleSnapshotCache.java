@@ -0,0 +1,277 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short-lived cache of the vehicles on each route. Concurrent callers asking for the same route
+ * while it is being fetched wait for that one upstream call instead of issuing their own.
+ * Optionally, a snapshot past its TTL but within the stale window is served immediately while
+ * a single background refresh runs.
+ * <p>
+ * {@link #getVehiclesAsync} answers the same way without blocking, with an {@link AsyncLoader};
+ * blocking and non-blocking callers share the fetches in flight.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehicleSnapshotCache {
+  private static final Logger log = LoggerFactory.getLogger(VehicleSnapshotCache.class);
+
+  private final Loader loader;
+  private final AsyncLoader asyncLoader;
+  private final long ttlNanos;
+  private final long staleNanos;
+  private final ExecutorService refresher;
+
+  private final ConcurrentMap<PennRides.Route, Snapshot> snapshots = new ConcurrentHashMap<>();
+  private final ConcurrentMap<PennRides.Route, CompletableFuture<Snapshot>> inflight =
+      new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder fetches = new LongAdder();
+
+  /**
+   * @param loader upstream fetch of a route
+   * @param ttl    how long a snapshot is served without refetching
+   * @param stale  how much longer an expired snapshot may be served while it is refreshed in
+   *               the background; 0 disables stale-while-revalidate
+   * @param unit   unit of ttl and stale
+   */
+  public VehicleSnapshotCache(Loader loader, long ttl, long stale, TimeUnit unit) {
+    this(loader, (route, deadline) -> CompletableFuture.completedFuture(loader.load(route, deadline)),
+        ttl, stale, unit);
+  }
+
+  /**
+   * @param loader      upstream fetch of a route
+   * @param asyncLoader non-blocking upstream fetch of a route
+   * @param ttl         how long a snapshot is served without refetching
+   * @param stale       how much longer an expired snapshot may be served while it is refreshed
+   *                    in the background; 0 disables stale-while-revalidate
+   * @param unit        unit of ttl and stale
+   */
+  public VehicleSnapshotCache(Loader loader, AsyncLoader asyncLoader, long ttl, long stale,
+                              TimeUnit unit) {
+    this.loader = loader;
+    this.asyncLoader = asyncLoader;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.staleNanos = unit.toNanos(stale);
+    this.refresher = staleNanos > 0
+        ? Executors.newSingleThreadExecutor(new DaemonThreadFactory("vehicle-refresh")) : null;
+  }
+
+  /**
+   * Get the vehicles on a route, from the cache if the snapshot is fresh enough
+   *
+   * @param route    the specific route
+   * @param deadline time to give up fetching, in {@link System#nanoTime()} units
+   * @return read-only list of vehicles' status; or null if the upstream fetch failed or did
+   * not finish before the deadline
+   */
+  public List<VehicleStatus> getVehicles(PennRides.Route route, long deadline) {
+    long now = System.nanoTime();
+    Snapshot snapshot = snapshots.get(route);
+    if (snapshot != null) {
+      long age = now - snapshot.fetchedAt;
+      if (age < ttlNanos) {
+        hits.increment();
+        return snapshot.vehicles;
+      }
+      if (age < ttlNanos + staleNanos) {
+        staleHits.increment();
+        if (!inflight.containsKey(route)) refresher.execute(() -> refresh(route));
+        return snapshot.vehicles;
+      }
+    }
+
+    Snapshot fetched = fetch(route, deadline);
+    return fetched == null ? null : fetched.vehicles;
+  }
+
+  /**
+   * Get the vehicles on a route without blocking, from the cache if the snapshot is fresh
+   * enough
+   *
+   * @param route    the specific route
+   * @param deadline time to give up fetching, in {@link System#nanoTime()} units
+   * @return future of the read-only list of vehicles' status, or of null if the upstream fetch
+   * failed; the fetch itself is bounded by the deadline, but waiting for a fetch already in
+   * flight is not
+   */
+  public CompletableFuture<List<VehicleStatus>> getVehiclesAsync(PennRides.Route route,
+                                                                 long deadline) {
+    long now = System.nanoTime();
+    Snapshot snapshot = snapshots.get(route);
+    if (snapshot != null) {
+      long age = now - snapshot.fetchedAt;
+      if (age < ttlNanos) {
+        hits.increment();
+        return CompletableFuture.completedFuture(snapshot.vehicles);
+      }
+      if (age < ttlNanos + staleNanos) {
+        staleHits.increment();
+        if (!inflight.containsKey(route)) fetchAsync(route, now + staleNanos);
+        return CompletableFuture.completedFuture(snapshot.vehicles);
+      }
+    }
+
+    return fetchAsync(route, deadline)
+        .thenApply(fetched -> fetched == null ? null : fetched.vehicles);
+  }
+
+  /**
+   * Background refresh, skipped if another caller already refreshed the route
+   */
+  private void refresh(PennRides.Route route) {
+    Snapshot snapshot = snapshots.get(route);
+    long now = System.nanoTime();
+    if (snapshot == null || now - snapshot.fetchedAt >= ttlNanos) {
+      // A refresh finishing after the stale window is no better than a fetch on demand
+      fetch(route, now + staleNanos);
+    }
+  }
+
+  /**
+   * Fetch a route from upstream, or join the fetch already in flight for it, waiting no longer
+   * than the deadline
+   */
+  private Snapshot fetch(PennRides.Route route, long deadline) {
+    CompletableFuture<Snapshot> mine = new CompletableFuture<>();
+    CompletableFuture<Snapshot> existing = inflight.putIfAbsent(route, mine);
+    if (existing != null) {
+      coalesced.increment();
+      try {
+        return existing.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException | TimeoutException ex) {
+        return null;
+      }
+    }
+
+    Snapshot snapshot = null;
+    try {
+      fetches.increment();
+      List<VehicleStatus> vehicles = loader.load(route, deadline);
+      if (vehicles != null) {
+        snapshot = new Snapshot(Collections.unmodifiableList(vehicles), System.nanoTime());
+        snapshots.put(route, snapshot);
+      }
+    } catch (RuntimeException ex) {
+      log.error("Failed to refresh vehicles of route " + route, ex);
+    } finally {
+      inflight.remove(route, mine);
+      mine.complete(snapshot);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Fetch a route from upstream without blocking, or join the fetch already in flight for it
+   */
+  private CompletableFuture<Snapshot> fetchAsync(PennRides.Route route, long deadline) {
+    CompletableFuture<Snapshot> mine = new CompletableFuture<>();
+    CompletableFuture<Snapshot> existing = inflight.putIfAbsent(route, mine);
+    if (existing != null) {
+      coalesced.increment();
+      return existing;
+    }
+
+    fetches.increment();
+    CompletableFuture<List<VehicleStatus>> loaded;
+    try {
+      loaded = asyncLoader.load(route, deadline);
+    } catch (RuntimeException ex) {
+      loaded = new CompletableFuture<>();
+      loaded.completeExceptionally(ex);
+    }
+    loaded.whenComplete((vehicles, ex) -> {
+      Snapshot snapshot = null;
+      if (ex != null) {
+        log.error("Failed to refresh vehicles of route " + route, ex);
+      } else if (vehicles != null) {
+        snapshot = new Snapshot(Collections.unmodifiableList(vehicles), System.nanoTime());
+        snapshots.put(route, snapshot);
+      }
+      inflight.remove(route, mine);
+      mine.complete(snapshot);
+    });
+    return mine;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getStaleHits() {
+    return staleHits.sum();
+  }
+
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  public long getFetches() {
+    return fetches.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "VehicleSnapshotCache{hits=" + getHits() + ", staleHits=" + getStaleHits()
+        + ", coalesced=" + getCoalesced() + ", fetches=" + getFetches() + "}";
+  }
+
+  /**
+   * Upstream fetch of the vehicles on a route
+   */
+  @FunctionalInterface
+  public interface Loader {
+    /**
+     * @param route    the specific route
+     * @param deadline time to give up, in {@link System#nanoTime()} units
+     * @return vehicles on the route; or null on error
+     */
+    List<VehicleStatus> load(PennRides.Route route, long deadline);
+  }
+
+  /**
+   * Non-blocking upstream fetch of the vehicles on a route
+   */
+  @FunctionalInterface
+  public interface AsyncLoader {
+    /**
+     * @param route    the specific route
+     * @param deadline time to give up, in {@link System#nanoTime()} units
+     * @return future of the vehicles on the route, or of null on error
+     */
+    CompletableFuture<List<VehicleStatus>> load(PennRides.Route route, long deadline);
+  }
+
+  private static final class Snapshot {
+    private final List<VehicleStatus> vehicles;
+    private final long fetchedAt;
+
+    private Snapshot(List<VehicleStatus> vehicles, long fetchedAt) {
+      this.vehicles = vehicles;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
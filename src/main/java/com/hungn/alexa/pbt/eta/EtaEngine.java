@@ -0,0 +1,192 @@
+package com.hungn.alexa.pbt.eta;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.fleet.Trajectory;
+import com.hungn.alexa.pbt.fleet.TrajectoryStore;
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.geo.RouteGeometryStore;
+import com.hungn.alexa.pbt.types.Arrival;
+import com.hungn.alexa.pbt.types.Stop;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Arrival predictions from vehicle positions. Vehicles and stops are snapped onto the route
+ * polyline; the distance left to drive along the route divided by the vehicle's speed, less the
+ * age of its position report, gives the time to arrival. Vehicles that stopped reporting, or
+ * have stood still for several minutes (out of service), are left out. On a loop route a vehicle
+ * that has passed a stop reaches it again on its next lap; on other routes it is not counted.
+ * <p>
+ * Vehicles are snapped with their direction of travel, so one driving down a two-way street is
+ * not put on the leg of the route going the other way: the bearing derived from its trajectory,
+ * or else its PennRides heading. A stop on such a street is within reach of both legs, so it is
+ * snapped to every pass of the route near it, and each vehicle is timed to the first one ahead.
+ * A prediction projects the stop once and each vehicle once, each linear in the route's points.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class EtaEngine {
+  public static final double MPH_TO_MPS = 0.44704;
+
+  /**
+   * Reported speeds below this (in m/s) mean the vehicle is stopped or crawling, and say
+   * nothing about how fast it will move on
+   */
+  private static final double MOVING_MPS = 2;
+  /**
+   * A vehicle this close past a stop (in meters) is taken as still at the stop, which absorbs
+   * GPS noise around a vehicle waiting there
+   */
+  private static final double AT_STOP_M = 15;
+  /**
+   * Vehicles whose last position report is older than this (in seconds) are not predicted
+   * from, as their position is unknown
+   */
+  private static final long MAX_REPORT_AGE_S = 300;
+  /**
+   * Vehicles standing still for this long (in seconds) are taken as out of service; only
+   * detected once a trajectory spans this long, e.g. 64 positions polled every 5 seconds
+   */
+  private static final long STALLED_S = 300;
+  /**
+   * Minimum number of recorded positions before the smoothed speed is trusted over the
+   * reported one
+   */
+  private static final int MIN_TRAJECTORY = 3;
+
+  private final RouteGeometryStore geometries;
+  private final TrajectoryStore trajectories;
+  private final double cruiseSpeed;
+  private final double maxOffset;
+
+  /**
+   * @param geometries   polylines of the routes
+   * @param trajectories recent positions of the vehicles, for their smoothed speed; or null to
+   *                     use reported speeds only
+   * @param cruiseSpeed  average speed in m/s including stops and lights, used for vehicles that
+   *                     are not moving; other speeds are bounded to half to twice this
+   * @param maxOffset    maximum distance in meters from the route for a vehicle or stop to be
+   *                     snapped onto it
+   */
+  public EtaEngine(RouteGeometryStore geometries, TrajectoryStore trajectories,
+                   double cruiseSpeed, double maxOffset) {
+    this.geometries = geometries;
+    this.trajectories = trajectories;
+    this.cruiseSpeed = cruiseSpeed;
+    this.maxOffset = maxOffset;
+  }
+
+  /**
+   * Predict the soonest arrival at a stop
+   *
+   * @param route    route the vehicles operate on
+   * @param stop     stop of the route
+   * @param vehicles vehicles on the route
+   * @param now      current time in epoch seconds
+   * @return the soonest arrival; or null if the route geometry is not available, the stop is
+   * not on the route or no vehicle is heading to it
+   */
+  public Arrival next(PennRides.Route route, Stop stop, List<VehicleStatus> vehicles, long now) {
+    List<Arrival> arrivals = upcoming(route, stop, vehicles, now);
+    return arrivals == null || arrivals.isEmpty() ? null : arrivals.get(0);
+  }
+
+  /**
+   * Predict the arrival of every vehicle heading to a stop
+   *
+   * @param route    route the vehicles operate on
+   * @param stop     stop of the route
+   * @param vehicles vehicles on the route
+   * @param now      current time in epoch seconds
+   * @return arrivals, soonest first; or null if the route geometry is not available or the stop
+   * is not on the route
+   */
+  public List<Arrival> upcoming(PennRides.Route route, Stop stop, List<VehicleStatus> vehicles,
+                                long now) {
+    RouteGeometry geometry = geometries.get(route);
+    if (geometry == null) return null;
+    double[] stopAlong = geometry.projectAll(stop.getLatitude(), stop.getLongitude(), maxOffset);
+    if (stopAlong.length == 0) return null;
+
+    List<Arrival> arrivals = new ArrayList<>(vehicles.size());
+    for (VehicleStatus vehicle : vehicles) {
+      if (!isInService(vehicle, now)) continue;
+      double along = geometry.project(vehicle.getLatitude(), vehicle.getLongitude(), maxOffset,
+          bearing(vehicle));
+      if (along < 0) continue;
+      double distance = remaining(geometry, along, stopAlong);
+      if (distance < 0) continue;
+      Arrival arrival = new Arrival();
+      arrival.setVehicle(vehicle);
+      arrival.setStop(stop);
+      arrival.setDistance(distance);
+      arrival.setSeconds(seconds(vehicle, distance, now));
+      arrivals.add(arrival);
+    }
+    arrivals.sort(Comparator.comparingLong(Arrival::getSeconds));
+    return arrivals;
+  }
+
+  /**
+   * Distance from a vehicle to the first pass of the route by a stop ahead of it
+   *
+   * @param stopAlong positions of the stop along the route, one per pass
+   * @return distance in meters; or -1 if the vehicle has passed the stop on a route that is not
+   * a loop
+   */
+  private static double remaining(RouteGeometry geometry, double vehicleAlong, double[] stopAlong) {
+    double nearest = -1;
+    for (double along : stopAlong) {
+      double distance = remaining(geometry, vehicleAlong, along);
+      if (distance >= 0 && (nearest < 0 || distance < nearest)) nearest = distance;
+    }
+    return nearest;
+  }
+
+  private static double remaining(RouteGeometry geometry, double vehicleAlong, double stopAlong) {
+    double distance = geometry.distanceBetween(vehicleAlong, stopAlong);
+    if (geometry.isLoop() && distance > geometry.getLength() - AT_STOP_M) return 0;
+    if (distance < 0) return distance > -AT_STOP_M ? 0 : -1;
+    return distance;
+  }
+
+  private long seconds(VehicleStatus vehicle, double distance, long now) {
+    // The vehicle kept moving since its position was reported
+    long age = Math.max(0, now - vehicle.getUpdated());
+    return Math.max(0, Math.round(distance / speed(vehicle)) - age);
+  }
+
+  /**
+   * Direction of travel: the bearing over the vehicle's recent trajectory, or else its heading
+   * as reported by PennRides, which only has eight directions
+   *
+   * @return bearing in degrees clockwise from north; or NaN if unknown
+   */
+  private double bearing(VehicleStatus vehicle) {
+    Trajectory trajectory = trajectories == null ? null : trajectories.get(vehicle.getId());
+    double bearing = trajectory == null ? Double.NaN : trajectory.getBearing();
+    return Double.isNaN(bearing) ? PennRides.getBearing(vehicle.getHeading()) : bearing;
+  }
+
+  private boolean isInService(VehicleStatus vehicle, long now) {
+    if (now - vehicle.getUpdated() > MAX_REPORT_AGE_S) return false;
+    Trajectory trajectory = trajectories == null ? null : trajectories.get(vehicle.getId());
+    return trajectory == null || !trajectory.isStalled(STALLED_S);
+  }
+
+  /**
+   * Speed to predict with: the smoothed speed over the vehicle's recent trajectory, or else its
+   * reported speed, bounded around the cruise speed since a momentary speed overstates (or
+   * understates) the average between stops
+   */
+  private double speed(VehicleStatus vehicle) {
+    Trajectory trajectory = trajectories == null ? null : trajectories.get(vehicle.getId());
+    double speed = trajectory != null && trajectory.size() >= MIN_TRAJECTORY
+        ? trajectory.getSpeed() : vehicle.getSpeed() * MPH_TO_MPS;
+    if (Double.isNaN(speed) || speed < MOVING_MPS) return cruiseSpeed;
+    return Math.max(cruiseSpeed / 2, Math.min(cruiseSpeed * 2, speed));
+  }
+}
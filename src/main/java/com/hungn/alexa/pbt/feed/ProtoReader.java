@@ -0,0 +1,119 @@
+package com.hungn.alexa.pbt.feed;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal protocol buffers decoder over an array, the counterpart of {@link ProtoWriter}.
+ * Nested messages are read by narrowing the limit to the message's end; fields of unknown
+ * numbers or types are skipped, as protocol buffers require.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+final class ProtoReader {
+  private final byte[] data;
+  private int position;
+  private int limit;
+
+  ProtoReader(byte[] data) {
+    this.data = data;
+    this.limit = data.length;
+  }
+
+  /**
+   * @return next field tag (field number and wire type); or 0 at the end of the current
+   * message
+   */
+  int readTag() {
+    if (position >= limit) return 0;
+    int tag = (int) readVarint();
+    if (tag >>> 3 == 0) throw new IllegalArgumentException("Invalid field number at " + position);
+    return tag;
+  }
+
+  static int field(int tag) {
+    return tag >>> 3;
+  }
+
+  static int wireType(int tag) {
+    return tag & 7;
+  }
+
+  long readVarint() {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = next();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) return value;
+    }
+    throw new IllegalArgumentException("Malformed varint at " + position);
+  }
+
+  float readFloat() {
+    int bits = (next() & 0xFF) | (next() & 0xFF) << 8 | (next() & 0xFF) << 16
+        | (next() & 0xFF) << 24;
+    return Float.intBitsToFloat(bits);
+  }
+
+  String readString() {
+    int length = readLength();
+    String value = new String(data, position, length, StandardCharsets.UTF_8);
+    position += length;
+    return value;
+  }
+
+  /**
+   * Enter a nested message
+   *
+   * @return previous limit to pass to {@link #endMessage(int)} once the message is read
+   */
+  int beginMessage() {
+    int length = readLength();
+    int previous = limit;
+    limit = position + length;
+    return previous;
+  }
+
+  void endMessage(int previous) {
+    position = limit;
+    limit = previous;
+  }
+
+  void skip(int tag) {
+    switch (wireType(tag)) {
+      case ProtoWriter.VARINT:
+        readVarint();
+        break;
+      case 1:
+        advance(8);
+        break;
+      case ProtoWriter.LENGTH_DELIMITED:
+        advance(readLength());
+        break;
+      case ProtoWriter.FIXED32:
+        advance(4);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported wire type " + wireType(tag));
+    }
+  }
+
+  private int readLength() {
+    long length = readVarint();
+    if (length < 0 || length > limit - position) {
+      throw new IllegalArgumentException("Truncated field at " + position);
+    }
+    return (int) length;
+  }
+
+  private void advance(int bytes) {
+    if (bytes > limit - position) {
+      throw new IllegalArgumentException("Truncated field at " + position);
+    }
+    position += bytes;
+  }
+
+  private byte next() {
+    if (position >= limit) throw new IllegalArgumentException("Truncated message");
+    return data[position++];
+  }
+}
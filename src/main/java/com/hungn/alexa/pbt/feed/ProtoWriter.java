@@ -0,0 +1,109 @@
+package com.hungn.alexa.pbt.feed;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffers encoder writing into one growable array. A nested message reserves
+ * a single byte for its length and is shifted only if it turns out longer than 127 bytes, so
+ * the small messages of a vehicle feed are written in one pass with no copies.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+final class ProtoWriter {
+  static final int VARINT = 0;
+  static final int LENGTH_DELIMITED = 2;
+  static final int FIXED32 = 5;
+
+  private byte[] buffer;
+  private int size;
+
+  ProtoWriter(int capacity) {
+    buffer = new byte[Math.max(16, capacity)];
+  }
+
+  void writeVarint(int field, long value) {
+    writeTag(field, VARINT);
+    writeRawVarint(value);
+  }
+
+  void writeBool(int field, boolean value) {
+    writeVarint(field, value ? 1 : 0);
+  }
+
+  void writeFloat(int field, float value) {
+    writeTag(field, FIXED32);
+    ensure(4);
+    int bits = Float.floatToIntBits(value);
+    buffer[size++] = (byte) bits;
+    buffer[size++] = (byte) (bits >>> 8);
+    buffer[size++] = (byte) (bits >>> 16);
+    buffer[size++] = (byte) (bits >>> 24);
+  }
+
+  void writeString(int field, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeTag(field, LENGTH_DELIMITED);
+    writeRawVarint(bytes.length);
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  /**
+   * Start a nested message
+   *
+   * @return position to pass to {@link #endMessage(int)} once the message is written
+   */
+  int beginMessage(int field) {
+    writeTag(field, LENGTH_DELIMITED);
+    ensure(1);
+    return size++;
+  }
+
+  void endMessage(int start) {
+    int length = size - start - 1;
+    int extra = varintSize(length) - 1;
+    if (extra > 0) {
+      ensure(extra);
+      System.arraycopy(buffer, start + 1, buffer, start + 1 + extra, length);
+      size += extra;
+    }
+    int end = size;
+    size = start;
+    writeRawVarint(length);
+    size = end;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  private void writeTag(int field, int wireType) {
+    writeRawVarint((field << 3) | wireType);
+  }
+
+  private void writeRawVarint(long value) {
+    ensure(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[size++] = (byte) value;
+  }
+
+  private static int varintSize(long value) {
+    int bytes = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      bytes++;
+    }
+    return bytes;
+  }
+
+  private void ensure(int bytes) {
+    if (size + bytes > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.hungn.alexa.pbt.feed;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.fleet.FleetState;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the {@link FleetState} kept by the background poller as a vehicle positions feed, so
+ * every consumer reads the one shared poll instead of PennRides. A consumer first gets the full
+ * feed, then asks for the changes since the fleet version it last got. The fleet versions
+ * served recently are kept to compute those deltas; a consumer further behind gets the full
+ * feed again. The full feed of the current version is encoded once and shared.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehicleFeedPublisher {
+  private final FleetState state;
+  private final Map<Long, FleetState.Snapshot> history;
+  private volatile Frame full;
+
+  /**
+   * @param state   fleet state kept up to date by the poller
+   * @param history number of fleet versions served recently to keep for deltas
+   */
+  public VehicleFeedPublisher(FleetState state, int history) {
+    this.state = state;
+    this.history = new LinkedHashMap<Long, FleetState.Snapshot>(history * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, FleetState.Snapshot> eldest) {
+        return size() > history;
+      }
+    };
+  }
+
+  /**
+   * @return version of the current fleet; 0 if no route was polled yet
+   */
+  public long getVersion() {
+    return state.getSnapshot().getVersion();
+  }
+
+  /**
+   * Get the feed of the current fleet
+   *
+   * @param since fleet version the consumer already has; or -1 for the full feed
+   * @return delta since that version if it is still kept, otherwise the full feed
+   */
+  public Frame get(long since) {
+    FleetState.Snapshot current = state.getSnapshot();
+    FleetState.Snapshot previous;
+    synchronized (history) {
+      history.put(current.getVersion(), current);
+      previous = since >= 0 ? history.get(since) : null;
+    }
+    long timestamp = getTimestamp(current);
+    if (previous != null) {
+      return new Frame(current.getVersion(), true, VehiclePositions.encodeDelta(
+          previous.getVehicles(), current.getVehicles(), timestamp));
+    }
+
+    Frame frame = full;
+    if (frame == null || frame.version != current.getVersion()) {
+      frame = new Frame(current.getVersion(), false,
+          VehiclePositions.encodeFull(current.getVehicles().values(), timestamp));
+      full = frame;
+    }
+    return frame;
+  }
+
+  /**
+   * @return time of the latest poll in the fleet, in epoch seconds
+   */
+  private static long getTimestamp(FleetState.Snapshot snapshot) {
+    long latest = 0;
+    for (PennRides.Route route : PennRides.Route.values()) {
+      latest = Math.max(latest, snapshot.getLastUpdated(route));
+    }
+    return latest / 1000;
+  }
+
+  /**
+   * Encoded feed of one fleet version
+   */
+  public static final class Frame {
+    private final long version;
+    private final boolean differential;
+    private final byte[] data;
+
+    private Frame(long version, boolean differential, byte[] data) {
+      this.version = version;
+      this.differential = differential;
+      this.data = data;
+    }
+
+    /**
+     * @return fleet version of the feed, to ask for the next delta with
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    public boolean isDifferential() {
+      return differential;
+    }
+
+    /**
+     * @return encoded FeedMessage; must not be modified
+     */
+    public byte[] getData() {
+      return data;
+    }
+  }
+}
@@ -0,0 +1,354 @@
+package com.hungn.alexa.pbt.feed;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.eta.EtaEngine;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Vehicle positions feed in the GTFS-Realtime protocol buffers encoding, so displays and
+ * dashboards can read the fleet with any GTFS-Realtime library instead of scraping PennRides.
+ * A feed is a FeedMessage with one FeedEntity per vehicle: entity ID and vehicle ID are the
+ * PennRides vehicle ID, the label its name, the trip's route ID the PennRides route ID, the
+ * bearing its compass heading and the speed in meters per second.
+ * <p>
+ * A full feed (FULL_DATASET) lists the whole fleet. A delta (DIFFERENTIAL) lists only the
+ * vehicles added or changed since an earlier fleet, and an is_deleted entity for each vehicle
+ * gone. Pattern IDs have no GTFS-Realtime field and are not carried.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class VehiclePositions {
+  public static final String GTFS_REALTIME_VERSION = "2.0";
+  public static final String CONTENT_TYPE = "application/x-protobuf";
+
+  // Field numbers of gtfs-realtime.proto
+  private static final int MESSAGE_HEADER = 1;
+  private static final int MESSAGE_ENTITY = 2;
+  private static final int HEADER_VERSION = 1;
+  private static final int HEADER_INCREMENTALITY = 2;
+  private static final int HEADER_TIMESTAMP = 3;
+  private static final int ENTITY_ID = 1;
+  private static final int ENTITY_IS_DELETED = 2;
+  private static final int ENTITY_VEHICLE = 4;
+  private static final int VEHICLE_TRIP = 1;
+  private static final int VEHICLE_POSITION = 2;
+  private static final int VEHICLE_TIMESTAMP = 5;
+  private static final int VEHICLE_DESCRIPTOR = 8;
+  private static final int TRIP_ROUTE_ID = 5;
+  private static final int POSITION_LATITUDE = 1;
+  private static final int POSITION_LONGITUDE = 2;
+  private static final int POSITION_BEARING = 3;
+  private static final int POSITION_SPEED = 5;
+  private static final int DESCRIPTOR_ID = 1;
+  private static final int DESCRIPTOR_LABEL = 2;
+
+  private static final int FULL_DATASET = 0;
+  private static final int DIFFERENTIAL = 1;
+
+  /**
+   * Headings as decoded by PennRides, clockwise from north, 45 degrees apart
+   */
+  private static final String[] HEADINGS = {"North", "North East", "East", "South East", "South",
+      "South West", "West", "North West"};
+
+  private VehiclePositions() {
+  }
+
+  /**
+   * Encode the whole fleet
+   *
+   * @param vehicles  every vehicle of the fleet
+   * @param timestamp time the fleet was fetched, in epoch seconds
+   * @return FULL_DATASET feed
+   */
+  public static byte[] encodeFull(Collection<VehicleStatus> vehicles, long timestamp) {
+    ProtoWriter out = new ProtoWriter(32 + 64 * vehicles.size());
+    writeHeader(out, FULL_DATASET, timestamp);
+    for (VehicleStatus status : vehicles) writeVehicle(out, status);
+    return out.toByteArray();
+  }
+
+  /**
+   * Encode the changes between two versions of the fleet
+   *
+   * @param previous  vehicles by ID the consumer already has
+   * @param current   current vehicles by ID
+   * @param timestamp time the current fleet was fetched, in epoch seconds
+   * @return DIFFERENTIAL feed of the vehicles added or changed, and deletions of the vehicles
+   * gone
+   */
+  public static byte[] encodeDelta(Map<Integer, VehicleStatus> previous,
+                                   Map<Integer, VehicleStatus> current, long timestamp) {
+    ProtoWriter out = new ProtoWriter(64);
+    writeHeader(out, DIFFERENTIAL, timestamp);
+    for (VehicleStatus status : current.values()) {
+      if (changed(previous.get(status.getId()), status)) writeVehicle(out, status);
+    }
+    for (Integer id : previous.keySet()) {
+      if (current.containsKey(id)) continue;
+      int entity = out.beginMessage(MESSAGE_ENTITY);
+      out.writeString(ENTITY_ID, Integer.toString(id));
+      out.writeBool(ENTITY_IS_DELETED, true);
+      out.endMessage(entity);
+    }
+    return out.toByteArray();
+  }
+
+  private static boolean changed(VehicleStatus before, VehicleStatus after) {
+    // Statuses of a route that was not polled again are the same objects
+    if (before == after) return false;
+    return before == null || before.getUpdated() != after.getUpdated()
+        || before.getRouteId() != after.getRouteId()
+        || Double.compare(before.getLatitude(), after.getLatitude()) != 0
+        || Double.compare(before.getLongitude(), after.getLongitude()) != 0
+        || Double.compare(before.getSpeed(), after.getSpeed()) != 0
+        || !Objects.equals(before.getHeading(), after.getHeading())
+        || !Objects.equals(before.getName(), after.getName());
+  }
+
+  private static void writeHeader(ProtoWriter out, int incrementality, long timestamp) {
+    int header = out.beginMessage(MESSAGE_HEADER);
+    out.writeString(HEADER_VERSION, GTFS_REALTIME_VERSION);
+    out.writeVarint(HEADER_INCREMENTALITY, incrementality);
+    out.writeVarint(HEADER_TIMESTAMP, timestamp);
+    out.endMessage(header);
+  }
+
+  private static void writeVehicle(ProtoWriter out, VehicleStatus status) {
+    String id = Integer.toString(status.getId());
+    int entity = out.beginMessage(MESSAGE_ENTITY);
+    out.writeString(ENTITY_ID, id);
+    int vehicle = out.beginMessage(ENTITY_VEHICLE);
+
+    int trip = out.beginMessage(VEHICLE_TRIP);
+    out.writeString(TRIP_ROUTE_ID, Integer.toString(status.getRouteId()));
+    out.endMessage(trip);
+
+    int position = out.beginMessage(VEHICLE_POSITION);
+    out.writeFloat(POSITION_LATITUDE, (float) status.getLatitude());
+    out.writeFloat(POSITION_LONGITUDE, (float) status.getLongitude());
+    int heading = heading(status.getHeading());
+    if (heading >= 0) out.writeFloat(POSITION_BEARING, heading * 45f);
+    out.writeFloat(POSITION_SPEED, (float) (status.getSpeed() * EtaEngine.MPH_TO_MPS));
+    out.endMessage(position);
+
+    out.writeVarint(VEHICLE_TIMESTAMP, status.getUpdated());
+
+    int descriptor = out.beginMessage(VEHICLE_DESCRIPTOR);
+    out.writeString(DESCRIPTOR_ID, id);
+    if (status.getName() != null) out.writeString(DESCRIPTOR_LABEL, status.getName());
+    out.endMessage(descriptor);
+
+    out.endMessage(vehicle);
+    out.endMessage(entity);
+  }
+
+  /**
+   * @return index of the heading in {@link #HEADINGS}; or -1 if unknown
+   */
+  private static int heading(String heading) {
+    for (int i = 0; i < HEADINGS.length; i++) {
+      if (HEADINGS[i].equals(heading)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Decode a feed written by this class; fields it does not write, such as trip updates and
+   * alerts, are skipped
+   *
+   * @param data encoded FeedMessage
+   * @return decoded feed
+   * @throws IllegalArgumentException if the data is not a valid feed
+   */
+  public static Feed decode(byte[] data) {
+    ProtoReader in = new ProtoReader(data);
+    Feed feed = new Feed();
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      if (ProtoReader.field(tag) == MESSAGE_HEADER) {
+        int previous = in.beginMessage();
+        readHeader(in, feed);
+        in.endMessage(previous);
+      } else if (ProtoReader.field(tag) == MESSAGE_ENTITY) {
+        int previous = in.beginMessage();
+        readEntity(in, feed);
+        in.endMessage(previous);
+      } else {
+        in.skip(tag);
+      }
+    }
+    return feed;
+  }
+
+  private static void readHeader(ProtoReader in, Feed feed) {
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (ProtoReader.field(tag)) {
+        case HEADER_INCREMENTALITY:
+          feed.differential = in.readVarint() == DIFFERENTIAL;
+          break;
+        case HEADER_TIMESTAMP:
+          feed.timestamp = in.readVarint();
+          break;
+        default:
+          in.skip(tag);
+      }
+    }
+  }
+
+  private static void readEntity(ProtoReader in, Feed feed) {
+    String id = null;
+    boolean deleted = false;
+    VehicleStatus status = null;
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (ProtoReader.field(tag)) {
+        case ENTITY_ID:
+          id = in.readString();
+          break;
+        case ENTITY_IS_DELETED:
+          deleted = in.readVarint() != 0;
+          break;
+        case ENTITY_VEHICLE:
+          int previous = in.beginMessage();
+          status = readVehicle(in);
+          in.endMessage(previous);
+          break;
+        default:
+          in.skip(tag);
+      }
+    }
+    if (deleted && id != null) {
+      feed.deleted.add(Integer.parseInt(id));
+    } else if (status != null) {
+      if (status.getId() == 0 && id != null) status.setId(Integer.parseInt(id));
+      status.setLastUpdated(PennRides.getElapsedTime(status.getUpdated(), feed.timestamp));
+      feed.vehicles.add(status);
+    }
+  }
+
+  private static VehicleStatus readVehicle(ProtoReader in) {
+    VehicleStatus status = new VehicleStatus();
+    status.setHeading("");
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      int previous;
+      switch (ProtoReader.field(tag)) {
+        case VEHICLE_TRIP:
+          previous = in.beginMessage();
+          while ((tag = in.readTag()) != 0) {
+            if (ProtoReader.field(tag) == TRIP_ROUTE_ID) {
+              status.setRouteId(Integer.parseInt(in.readString()));
+            } else {
+              in.skip(tag);
+            }
+          }
+          in.endMessage(previous);
+          break;
+        case VEHICLE_POSITION:
+          previous = in.beginMessage();
+          readPosition(in, status);
+          in.endMessage(previous);
+          break;
+        case VEHICLE_TIMESTAMP:
+          status.setUpdated(in.readVarint());
+          break;
+        case VEHICLE_DESCRIPTOR:
+          previous = in.beginMessage();
+          while ((tag = in.readTag()) != 0) {
+            if (ProtoReader.field(tag) == DESCRIPTOR_ID) {
+              status.setId(Integer.parseInt(in.readString()));
+            } else if (ProtoReader.field(tag) == DESCRIPTOR_LABEL) {
+              status.setName(in.readString());
+            } else {
+              in.skip(tag);
+            }
+          }
+          in.endMessage(previous);
+          break;
+        default:
+          in.skip(tag);
+      }
+    }
+    return status;
+  }
+
+  private static void readPosition(ProtoReader in, VehicleStatus status) {
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      switch (ProtoReader.field(tag)) {
+        case POSITION_LATITUDE:
+          status.setLatitude(in.readFloat());
+          break;
+        case POSITION_LONGITUDE:
+          status.setLongitude(in.readFloat());
+          break;
+        case POSITION_BEARING:
+          float bearing = in.readFloat();
+          status.setHeading(HEADINGS[Math.floorMod(Math.round(bearing / 45), HEADINGS.length)]);
+          break;
+        case POSITION_SPEED:
+          status.setSpeed(in.readFloat() / EtaEngine.MPH_TO_MPS);
+          break;
+        default:
+          in.skip(tag);
+      }
+    }
+  }
+
+  /**
+   * Decoded vehicle positions feed
+   */
+  public static final class Feed {
+    private long timestamp;
+    private boolean differential;
+    private final List<VehicleStatus> vehicles = new ArrayList<>();
+    private final List<Integer> deleted = new ArrayList<>();
+
+    /**
+     * @return time the fleet was fetched, in epoch seconds
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return whether this is a delta rather than the whole fleet
+     */
+    public boolean isDifferential() {
+      return differential;
+    }
+
+    /**
+     * @return vehicles of the fleet; or, for a delta, vehicles added or changed
+     */
+    public List<VehicleStatus> getVehicles() {
+      return vehicles;
+    }
+
+    /**
+     * @return IDs of the vehicles gone; always empty for a full feed
+     */
+    public List<Integer> getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * Bring a consumer's fleet up to date with this feed
+     *
+     * @param fleet vehicles by ID; replaced by a full feed, updated by a delta
+     */
+    public void apply(Map<Integer, VehicleStatus> fleet) {
+      if (!differential) fleet.clear();
+      for (Integer id : deleted) fleet.remove(id);
+      for (VehicleStatus status : vehicles) fleet.put(status.getId(), status);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.hungn.alexa.pbt.fleet;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import com.hungn.alexa.pbt.util.Config;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Background poller keeping a {@link FleetState} up to date for every route, so requests can be
+ * answered from memory. Each route is polled on its own interval (PBT_POLL_INTERVAL_MS, or
+ * PBT_POLL_INTERVAL_MS_&lt;ROUTE&gt; for one route); failures back off exponentially with jitter,
+ * up to PBT_POLL_MAX_BACKOFF_MS.
+ * <p>
+ * Meant for long-running deployments: a Lambda container is frozen between invocations, so
+ * its poller only runs while a request is being served.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class FleetPoller {
+  private static final Logger log = LoggerFactory.getLogger(FleetPoller.class);
+
+  private final Function<PennRides.Route, ? extends List<VehicleStatus>> loader;
+  private final FleetState state;
+  private final Map<PennRides.Route, Long> intervals = new EnumMap<>(PennRides.Route.class);
+  private final long maxBackoff;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * @param loader upstream fetch of a route, returning null on error
+   * @param state  fleet state to keep up to date
+   */
+  public FleetPoller(Function<PennRides.Route, ? extends List<VehicleStatus>> loader,
+                     FleetState state) {
+    this.loader = loader;
+    this.state = state;
+    long interval = Config.getLong("PBT_POLL_INTERVAL_MS", 5000);
+    for (PennRides.Route route : PennRides.Route.values()) {
+      intervals.put(route, Config.getLong("PBT_POLL_INTERVAL_MS_" + route.name(), interval));
+    }
+    this.maxBackoff = Config.getLong("PBT_POLL_MAX_BACKOFF_MS", 60000);
+    this.scheduler = Executors.newScheduledThreadPool(
+        Math.min(PennRides.Route.values().length, 3), new DaemonThreadFactory("fleet-poller"));
+  }
+
+  /**
+   * Start polling every route, staggered so the routes are not fetched in lockstep
+   */
+  public void start() {
+    for (PennRides.Route route : PennRides.Route.values()) {
+      long interval = intervals.get(route);
+      scheduler.schedule(() -> poll(route, 0),
+          ThreadLocalRandom.current().nextLong(interval + 1), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  public FleetState getState() {
+    return state;
+  }
+
+  private void poll(PennRides.Route route, int failures) {
+    long delay;
+    try {
+      List<VehicleStatus> vehicles = loader.apply(route);
+      if (vehicles != null) {
+        long version = state.update(route, vehicles, System.currentTimeMillis());
+        if (log.isDebugEnabled()) {
+          log.debug("Polled {} -- {} vehicles, fleet version {}", route, vehicles.size(), version);
+        }
+        failures = 0;
+        delay = intervals.get(route);
+      } else {
+        failures++;
+        delay = backoff(intervals.get(route), failures);
+        if (log.isInfoEnabled()) {
+          log.info("Failed to poll {} ({} in a row) -- retrying in {}ms", route, failures, delay);
+        }
+      }
+    } catch (RuntimeException ex) {
+      log.error("Failed to poll " + route, ex);
+      failures++;
+      delay = backoff(intervals.get(route), failures);
+    }
+
+    int nextFailures = failures;
+    if (!scheduler.isShutdown()) {
+      scheduler.schedule(() -> poll(route, nextFailures), delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Exponential backoff with "equal jitter": half of the delay is fixed, the other half random,
+   * so retries from many routes (or many containers) do not synchronize
+   */
+  private long backoff(long interval, int failures) {
+    long delay = Math.min(maxBackoff, interval << Math.min(failures, 16));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+}
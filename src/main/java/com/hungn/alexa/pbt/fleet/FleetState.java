@@ -0,0 +1,117 @@
+package com.hungn.alexa.pbt.fleet;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Live, in-memory view of every vehicle in the fleet. The state is an immutable, versioned
+ * snapshot swapped atomically on every route update, so readers never lock and always see a
+ * consistent fleet.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class FleetState {
+  private final AtomicReference<Snapshot> current = new AtomicReference<>(
+      new Snapshot(0, new HashMap<>(), new EnumMap<>(PennRides.Route.class),
+          new EnumMap<>(PennRides.Route.class)));
+
+  /**
+   * Replace the vehicles of one route
+   *
+   * @param route    route that was polled
+   * @param vehicles vehicles currently operating on the route
+   * @param polledAt time of the poll in epoch milliseconds
+   * @return version of the new snapshot
+   */
+  public long update(PennRides.Route route, List<VehicleStatus> vehicles, long polledAt) {
+    List<VehicleStatus> routeVehicles = Collections.unmodifiableList(vehicles);
+    while (true) {
+      Snapshot previous = current.get();
+
+      Map<Integer, VehicleStatus> byId = new HashMap<>(previous.byId);
+      List<VehicleStatus> replaced = previous.byRoute.get(route);
+      if (replaced != null) {
+        for (VehicleStatus status : replaced) byId.remove(status.getId(), status);
+      }
+      for (VehicleStatus status : routeVehicles) byId.put(status.getId(), status);
+
+      EnumMap<PennRides.Route, List<VehicleStatus>> byRoute = new EnumMap<>(previous.byRoute);
+      byRoute.put(route, routeVehicles);
+      EnumMap<PennRides.Route, Long> updatedAt = new EnumMap<>(previous.updatedAt);
+      updatedAt.put(route, polledAt);
+
+      Snapshot next = new Snapshot(previous.version + 1, byId, byRoute, updatedAt);
+      if (current.compareAndSet(previous, next)) return next.version;
+    }
+  }
+
+  /**
+   * @return current consistent snapshot of the whole fleet
+   */
+  public Snapshot getSnapshot() {
+    return current.get();
+  }
+
+  /**
+   * Immutable view of the fleet at one version
+   */
+  public static final class Snapshot {
+    // Never modified once the snapshot is published
+    private final long version;
+    private final Map<Integer, VehicleStatus> byId;
+    private final EnumMap<PennRides.Route, List<VehicleStatus>> byRoute;
+    private final EnumMap<PennRides.Route, Long> updatedAt;
+
+    private Snapshot(long version, Map<Integer, VehicleStatus> byId,
+                     EnumMap<PennRides.Route, List<VehicleStatus>> byRoute,
+                     EnumMap<PennRides.Route, Long> updatedAt) {
+      this.version = version;
+      this.byId = byId;
+      this.byRoute = byRoute;
+      this.updatedAt = updatedAt;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * @param id vehicle ID
+     * @return latest status of the vehicle; or null if it is not operating
+     */
+    public VehicleStatus getVehicle(int id) {
+      return byId.get(id);
+    }
+
+    /**
+     * @return all vehicles keyed by vehicle ID
+     */
+    public Map<Integer, VehicleStatus> getVehicles() {
+      return Collections.unmodifiableMap(byId);
+    }
+
+    /**
+     * @param route the specific route
+     * @return vehicles on the route; or null if the route was never polled successfully
+     */
+    public List<VehicleStatus> getVehicles(PennRides.Route route) {
+      return byRoute.get(route);
+    }
+
+    /**
+     * @param route the specific route
+     * @return time of the last successful poll in epoch milliseconds; or 0 if never polled
+     */
+    public long getLastUpdated(PennRides.Route route) {
+      Long time = updatedAt.get(route);
+      return time == null ? 0 : time;
+    }
+  }
+}
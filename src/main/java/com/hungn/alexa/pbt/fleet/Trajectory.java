@@ -0,0 +1,151 @@
+package com.hungn.alexa.pbt.fleet;
+
+import com.hungn.alexa.pbt.geo.GeoUtils;
+
+/**
+ * Recent positions of one vehicle in fixed-size ring buffers of primitives: once full, each new
+ * report overwrites the oldest, so a trajectory never allocates after construction. Reports
+ * that are not newer than the last one (PennRides repeats a position until the vehicle reports
+ * again) are ignored.
+ * <p>
+ * Speed is smoothed with a time-weighted moving average as reports come in; bearing and the
+ * stalled signal are derived from the buffer on demand. All methods are synchronized, so one
+ * trajectory can be written and read from several threads.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class Trajectory {
+  /**
+   * Time constant in seconds of the speed average: a speed measured this long ago weighs about
+   * a third as much as a current one
+   */
+  private static final double SPEED_TAU_S = 30;
+  /**
+   * Minimum displacement in meters for a bearing; GPS noise dominates below it
+   */
+  private static final double BEARING_MIN_M = 10;
+  /**
+   * A vehicle staying within this many meters is not moving
+   */
+  private static final double STALL_RADIUS_M = 25;
+
+  private final long[] times;
+  private final int[] latitudesE6;
+  private final int[] longitudesE6;
+  private int head;
+  private int size;
+  private double speed = Double.NaN;
+
+  /**
+   * @param capacity number of positions kept
+   */
+  public Trajectory(int capacity) {
+    if (capacity < 2) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    times = new long[capacity];
+    latitudesE6 = new int[capacity];
+    longitudesE6 = new int[capacity];
+  }
+
+  /**
+   * Append a position report
+   *
+   * @param time      time of the report in epoch seconds
+   * @param latitude  latitude in degrees
+   * @param longitude longitude in degrees
+   * @return whether the report was newer than the last one and got recorded
+   */
+  public synchronized boolean add(long time, double latitude, double longitude) {
+    int latitudeE6 = (int) Math.round(latitude * 1e6);
+    int longitudeE6 = (int) Math.round(longitude * 1e6);
+    if (size > 0) {
+      int last = index(0);
+      long dt = time - times[last];
+      if (dt <= 0) return false;
+      double moved = GeoUtils.distance(latitudesE6[last] / 1e6, longitudesE6[last] / 1e6,
+          latitude, longitude);
+      // Weigh the new measurement by how much time it covers
+      double alpha = 1 - Math.exp(-dt / SPEED_TAU_S);
+      double measured = moved / dt;
+      speed = Double.isNaN(speed) ? measured : speed + alpha * (measured - speed);
+    }
+    head = (head + 1) % times.length;
+    times[head] = time;
+    latitudesE6[head] = latitudeE6;
+    longitudesE6[head] = longitudeE6;
+    if (size < times.length) size++;
+    return true;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return time of the latest report in epoch seconds; or 0 if there is none
+   */
+  public synchronized long getLastTime() {
+    return size == 0 ? 0 : times[head];
+  }
+
+  /**
+   * @return smoothed speed in meters per second; or NaN with fewer than two reports
+   */
+  public synchronized double getSpeed() {
+    return speed;
+  }
+
+  /**
+   * Direction of travel, from the most recent report at least a few meters behind the latest
+   * one to the latest one
+   *
+   * @return initial bearing in degrees clockwise from north, in [0, 360); or NaN if the
+   * vehicle has not moved enough
+   */
+  public synchronized double getBearing() {
+    if (size < 2) return Double.NaN;
+    int last = index(0);
+    double latitude = latitudesE6[last] / 1e6;
+    double longitude = longitudesE6[last] / 1e6;
+    for (int i = 1; i < size; i++) {
+      int k = index(i);
+      double fromLatitude = latitudesE6[k] / 1e6;
+      double fromLongitude = longitudesE6[k] / 1e6;
+      if (GeoUtils.distance(fromLatitude, fromLongitude, latitude, longitude) >= BEARING_MIN_M) {
+        return GeoUtils.bearing(fromLatitude, fromLongitude, latitude, longitude);
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Whether the vehicle has been standing still: every report over at least the given period
+   * up to the latest one lies within a small radius of the latest position
+   *
+   * @param seconds minimum time standing still
+   * @return true if stalled; false if it moved or the buffer does not span the period yet
+   */
+  public synchronized boolean isStalled(long seconds) {
+    if (size < 2) return false;
+    int last = index(0);
+    double latitude = latitudesE6[last] / 1e6;
+    double longitude = longitudesE6[last] / 1e6;
+    for (int i = 1; i < size; i++) {
+      int k = index(i);
+      if (GeoUtils.distance(latitudesE6[k] / 1e6, longitudesE6[k] / 1e6, latitude, longitude)
+          > STALL_RADIUS_M) {
+        return false;
+      }
+      if (times[last] - times[k] >= seconds) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param age 0 for the latest report, 1 for the one before...
+   * @return position of that report in the ring buffers
+   */
+  private int index(int age) {
+    int i = head - age;
+    return i < 0 ? i + times.length : i;
+  }
+}
@@ -0,0 +1,58 @@
+package com.hungn.alexa.pbt.fleet;
+
+import com.hungn.alexa.pbt.types.VehicleStatus;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link Trajectory} of every vehicle seen recently, by vehicle ID. Each trajectory has the
+ * same fixed capacity, and vehicles that stopped reporting are dropped, so memory stays
+ * proportional to the active fleet.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class TrajectoryStore {
+  private final int capacity;
+  private final long expireSeconds;
+  private final ConcurrentMap<Integer, Trajectory> trajectories = new ConcurrentHashMap<>();
+
+  /**
+   * @param capacity      number of positions kept per vehicle
+   * @param expireSeconds how long after its last report a vehicle is forgotten
+   */
+  public TrajectoryStore(int capacity, long expireSeconds) {
+    if (capacity < 2) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    this.capacity = capacity;
+    this.expireSeconds = expireSeconds;
+  }
+
+  /**
+   * Record the positions of freshly fetched vehicles, and forget vehicles that have not
+   * reported for a while
+   *
+   * @param vehicles vehicles as decoded from PennRides
+   * @param now      current time in epoch seconds
+   */
+  public void record(List<VehicleStatus> vehicles, long now) {
+    for (VehicleStatus status : vehicles) {
+      if (now - status.getUpdated() > expireSeconds) continue;
+      trajectories.computeIfAbsent(status.getId(), id -> new Trajectory(capacity))
+          .add(status.getUpdated(), status.getLatitude(), status.getLongitude());
+    }
+    trajectories.values().removeIf(trajectory -> now - trajectory.getLastTime() > expireSeconds);
+  }
+
+  /**
+   * @param id vehicle ID
+   * @return trajectory of the vehicle; or null if it has not reported recently
+   */
+  public Trajectory get(int id) {
+    return trajectories.get(id);
+  }
+
+  public int size() {
+    return trajectories.size();
+  }
+}
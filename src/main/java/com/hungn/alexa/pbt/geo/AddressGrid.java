@@ -0,0 +1,296 @@
+package com.hungn.alexa.pbt.geo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Street addresses of a regular latitude/longitude grid over the area the routes cover,
+ * resolved ahead of time (see {@code tools.AddressGridCompiler}), so most reverse geocoding
+ * needs no network call. A lookup is a bounds check and one array read; cells outside the grid,
+ * or that could not be resolved, answer null and are left to the Geocoding API.
+ * <p>
+ * The file is memory-mapped and street names are decoded on first use. Layout (big-endian):
+ * <pre>
+ *   int magic 'PBTA', int version, int minimum latitude E6, int minimum longitude E6,
+ *   int cell height E6, int cell width E6, int rows, int columns,
+ *   char[rows * columns] string index of each cell, row-major from the south-west corner
+ *   (0xFFFF = unresolved), int string count s, int[s + 1] string offsets, byte[] UTF-8 strings
+ * </pre>
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class AddressGrid {
+  private static final Logger log = LoggerFactory.getLogger(AddressGrid.class);
+
+  /**
+   * Name of the grid resource bundled into the jar
+   */
+  public static final String RESOURCE = "address_grid.bin";
+  /**
+   * Grid without any cell; every lookup misses
+   */
+  public static final AddressGrid EMPTY = new AddressGrid(null, 0, 0, 1, 1, 0, 0, 0);
+
+  private static final int MAGIC = 0x50425441;
+  private static final int VERSION = 1;
+  private static final int HEADER = 32;
+  private static final int UNRESOLVED = 0xFFFF;
+
+  private final ByteBuffer buffer;
+  private final int minLatitudeE6;
+  private final int minLongitudeE6;
+  private final int cellLatitudeE6;
+  private final int cellLongitudeE6;
+  private final int rows;
+  private final int columns;
+  private final int offsetsStart;
+  private final int bytesStart;
+  // Decoded street names; racing decodes of the same name are harmless
+  private final String[] strings;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private AddressGrid(ByteBuffer buffer, int minLatitudeE6, int minLongitudeE6,
+                      int cellLatitudeE6, int cellLongitudeE6, int rows, int columns,
+                      int stringCount) {
+    this.buffer = buffer;
+    this.minLatitudeE6 = minLatitudeE6;
+    this.minLongitudeE6 = minLongitudeE6;
+    this.cellLatitudeE6 = cellLatitudeE6;
+    this.cellLongitudeE6 = cellLongitudeE6;
+    this.rows = rows;
+    this.columns = columns;
+    this.offsetsStart = HEADER + 2 * rows * columns + 4;
+    this.bytesStart = offsetsStart + 4 * (stringCount + 1);
+    this.strings = new String[stringCount];
+  }
+
+  /**
+   * Load the grid from a file, or else from the resource bundled into the jar
+   *
+   * @param file grid file; or null to use the bundled resource
+   * @return loaded grid; or {@link #EMPTY} if there is none or it cannot be read
+   */
+  public static AddressGrid load(String file) {
+    try {
+      AddressGrid grid;
+      if (file != null) {
+        grid = read(Paths.get(file));
+      } else {
+        URL resource = AddressGrid.class.getResource("/" + RESOURCE);
+        if (resource == null) return EMPTY;
+        grid = "file".equals(resource.getProtocol())
+            ? read(Paths.get(resource.toURI())) : read(resource);
+      }
+      if (log.isInfoEnabled()) {
+        log.info("Loaded address grid of {}x{} cells, {} street names", grid.rows, grid.columns,
+            grid.strings.length);
+      }
+      return grid;
+    } catch (IOException | URISyntaxException ex) {
+      log.error("Failed to read address grid " + (file != null ? file : RESOURCE), ex);
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Look up the street address of the cell containing a coordinate
+   *
+   * @param longitude longitude in degrees
+   * @param latitude  latitude in degrees
+   * @return street address; or null if the coordinate is outside the grid or its cell is
+   * unresolved
+   */
+  public String get(double longitude, double latitude) {
+    int row = Math.floorDiv((int) Math.floor(latitude * RouteGeometry.E6) - minLatitudeE6,
+        cellLatitudeE6);
+    int column = Math.floorDiv((int) Math.floor(longitude * RouteGeometry.E6) - minLongitudeE6,
+        cellLongitudeE6);
+    if (row < 0 || row >= rows || column < 0 || column >= columns) {
+      misses.increment();
+      return null;
+    }
+    int index = buffer.getChar(HEADER + 2 * (row * columns + column));
+    if (index == UNRESOLVED) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    String street = strings[index];
+    if (street == null) {
+      int start = buffer.getInt(offsetsStart + 4 * index);
+      int end = buffer.getInt(offsetsStart + 4 * index + 4);
+      byte[] bytes = new byte[end - start];
+      ByteBuffer view = buffer.duplicate();
+      view.position(bytesStart + start);
+      view.get(bytes);
+      street = new String(bytes, StandardCharsets.UTF_8);
+      strings[index] = street;
+    }
+    return street;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public int getColumns() {
+    return columns;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "AddressGrid{" + rows + "x" + columns + ", streets=" + strings.length
+        + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+  }
+
+  /**
+   * Write a grid to a file in the layout read by {@link #read(Path)}. Street names repeated
+   * across cells are stored once.
+   *
+   * @param file            output file, replaced if it exists
+   * @param minLatitudeE6   latitude of the south edge of the grid, in microdegrees
+   * @param minLongitudeE6  longitude of the west edge of the grid, in microdegrees
+   * @param cellLatitudeE6  height of a cell, in microdegrees
+   * @param cellLongitudeE6 width of a cell, in microdegrees
+   * @param rows            number of rows
+   * @param columns         number of columns
+   * @param streets         street address of each cell, row-major from the south-west corner;
+   *                        null for unresolved cells
+   * @return number of distinct street names
+   */
+  public static int write(Path file, int minLatitudeE6, int minLongitudeE6, int cellLatitudeE6,
+                          int cellLongitudeE6, int rows, int columns, String[] streets)
+      throws IOException {
+    if (cellLatitudeE6 <= 0 || cellLongitudeE6 <= 0 || streets.length != rows * columns) {
+      throw new IllegalArgumentException("Invalid grid dimensions");
+    }
+    Map<String, Integer> indexes = new HashMap<>();
+    List<byte[]> table = new ArrayList<>();
+    char[] cells = new char[streets.length];
+    for (int i = 0; i < streets.length; i++) {
+      String street = streets[i];
+      if (street == null || street.isEmpty()) {
+        cells[i] = UNRESOLVED;
+        continue;
+      }
+      Integer index = indexes.get(street);
+      if (index == null) {
+        if (table.size() == UNRESOLVED) throw new IOException("Too many street names");
+        index = table.size();
+        indexes.put(street, index);
+        table.add(street.getBytes(StandardCharsets.UTF_8));
+      }
+      cells[i] = (char) index.intValue();
+    }
+
+    try (OutputStream stream = Files.newOutputStream(file);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(minLatitudeE6);
+      out.writeInt(minLongitudeE6);
+      out.writeInt(cellLatitudeE6);
+      out.writeInt(cellLongitudeE6);
+      out.writeInt(rows);
+      out.writeInt(columns);
+      for (char cell : cells) out.writeChar(cell);
+      out.writeInt(table.size());
+      int offset = 0;
+      out.writeInt(offset);
+      for (byte[] street : table) {
+        offset += street.length;
+        out.writeInt(offset);
+      }
+      for (byte[] street : table) out.write(street);
+    }
+    return table.size();
+  }
+
+  /**
+   * Memory-map a grid file written by {@link #write}
+   *
+   * @param file grid file
+   * @return grid
+   * @throws IOException if the file cannot be read or is not a grid file
+   */
+  public static AddressGrid read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // The mapping stays valid after the channel is closed
+      return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Read a grid bundled inside a jar, where it cannot be mapped
+   */
+  private static AddressGrid read(URL resource) throws IOException {
+    try (InputStream in = resource.openStream()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      int n;
+      while ((n = in.read(chunk)) > 0) out.write(chunk, 0, n);
+      return parse(ByteBuffer.wrap(out.toByteArray()));
+    }
+  }
+
+  private static AddressGrid parse(ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.remaining() < HEADER || buffer.getInt(0) != MAGIC) {
+        throw new IOException("Not an address grid file");
+      }
+      int version = buffer.getInt(4);
+      if (version != VERSION) throw new IOException("Unsupported address grid version " + version);
+      int rows = buffer.getInt(24);
+      int columns = buffer.getInt(28);
+      long cellsEnd = HEADER + 2L * rows * columns;
+      if (buffer.getInt(16) <= 0 || buffer.getInt(20) <= 0) {
+        throw new IOException("Invalid address grid cell size");
+      }
+      if (rows < 0 || columns < 0 || cellsEnd + 4 > buffer.limit()) {
+        throw new IOException("Truncated address grid file");
+      }
+      int count = buffer.getInt((int) cellsEnd);
+      long bytesStart = cellsEnd + 4 + 4L * (count + 1);
+      if (count < 0 || bytesStart > buffer.limit()
+          || bytesStart + buffer.getInt((int) cellsEnd + 4 + 4 * count) > buffer.limit()) {
+        throw new IOException("Truncated address grid file");
+      }
+      return new AddressGrid(buffer, buffer.getInt(8), buffer.getInt(12), buffer.getInt(16),
+          buffer.getInt(20), rows, columns, count);
+    } catch (RuntimeException ex) {
+      // Index errors and the like from a corrupt file
+      throw new IOException("Invalid address grid file", ex);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.hungn.alexa.pbt.geo;
+
+/**
+ * Geohash encoder that quantizes a coordinate into a grid cell. Cells are returned as a packed
+ * long (interleaved bits, left aligned) instead of a base32 string, so they can be used as map
+ * keys without allocating.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class GeoHash {
+  public static final int MAX_PRECISION = 12;
+  private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+  private GeoHash() {
+  }
+
+  /**
+   * Encode a coordinate to the geohash cell containing it
+   *
+   * @param latitude  latitude in degrees
+   * @param longitude longitude in degrees
+   * @param precision number of base32 characters (1..12); each adds 5 bits of resolution
+   * @return packed cell; the low 4 bits hold the precision so different precisions never collide
+   */
+  public static long encode(double latitude, double longitude, int precision) {
+    if (precision < 1 || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("Invalid geohash precision: " + precision);
+    }
+    double minLat = -90, maxLat = 90;
+    double minLon = -180, maxLon = 180;
+    int bits = precision * 5;
+    long hash = 0;
+    for (int i = 0; i < bits; i++) {
+      hash <<= 1;
+      if ((i & 1) == 0) {
+        // Even bits refine longitude
+        double mid = (minLon + maxLon) / 2;
+        if (longitude >= mid) {
+          hash |= 1;
+          minLon = mid;
+        } else {
+          maxLon = mid;
+        }
+      } else {
+        double mid = (minLat + maxLat) / 2;
+        if (latitude >= mid) {
+          hash |= 1;
+          minLat = mid;
+        } else {
+          maxLat = mid;
+        }
+      }
+    }
+    return (hash << (64 - bits)) | precision;
+  }
+
+  /**
+   * Convert a packed cell back to its conventional base32 representation
+   *
+   * @param cell packed cell returned by {@link #encode(double, double, int)}
+   * @return base32 geohash string
+   */
+  public static String toBase32(long cell) {
+    int precision = (int) (cell & 0xF);
+    char[] chars = new char[precision];
+    for (int i = 0; i < precision; i++) {
+      chars[i] = BASE32[(int) ((cell >>> (59 - 5 * i)) & 0x1F)];
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,55 @@
+package com.hungn.alexa.pbt.geo;
+
+/**
+ * Helper functions for distances on the Earth's surface
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class GeoUtils {
+  public static final double EARTH_RADIUS_M = 6371008.8;
+
+  private GeoUtils() {
+  }
+
+  /**
+   * Great-circle distance between two coordinates (haversine formula)
+   *
+   * @return distance in meters
+   */
+  public static double distance(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+        * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  /**
+   * Initial bearing of the great circle from one coordinate to another
+   *
+   * @return bearing in degrees clockwise from north, in [0, 360)
+   */
+  public static double bearing(double lat1, double lon1, double lat2, double lon2) {
+    double phi1 = Math.toRadians(lat1);
+    double phi2 = Math.toRadians(lat2);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double y = Math.sin(dLon) * Math.cos(phi2);
+    double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLon);
+    double bearing = Math.toDegrees(Math.atan2(y, x));
+    return bearing < 0 ? bearing + 360 : bearing;
+  }
+
+  /**
+   * Meters per degree of longitude at a given latitude. Over an area the size of a campus,
+   * scaling longitude by this and latitude by {@link #metersPerDegreeLatitude()} gives a flat
+   * projection that is accurate to well under a meter.
+   */
+  public static double metersPerDegreeLongitude(double latitude) {
+    return metersPerDegreeLatitude() * Math.cos(Math.toRadians(latitude));
+  }
+
+  public static double metersPerDegreeLatitude() {
+    return Math.PI * EARTH_RADIUS_M / 180;
+  }
+}
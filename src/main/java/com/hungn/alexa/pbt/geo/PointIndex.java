@@ -0,0 +1,253 @@
+package com.hungn.alexa.pbt.geo;
+
+/**
+ * Immutable 2-d tree over a set of coordinates, stored as an implicit balanced tree in
+ * primitive arrays (the median of each range is its root). Coordinates are projected to
+ * meters around the mean latitude, which is accurate enough over a campus-sized area.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class PointIndex {
+  private final double kx;
+  private final double ky;
+  private final double[] xs;
+  private final double[] ys;
+  private final int[] ids;
+
+  /**
+   * @param latitudes  latitudes of the points in degrees
+   * @param longitudes longitudes of the points in degrees; same length as latitudes
+   */
+  public PointIndex(double[] latitudes, double[] longitudes) {
+    if (latitudes.length != longitudes.length) {
+      throw new IllegalArgumentException("Mismatched coordinate arrays");
+    }
+    int n = latitudes.length;
+    double meanLat = 0;
+    for (double latitude : latitudes) meanLat += latitude;
+    meanLat = n == 0 ? 0 : meanLat / n;
+
+    kx = GeoUtils.metersPerDegreeLongitude(meanLat);
+    ky = GeoUtils.metersPerDegreeLatitude();
+    xs = new double[n];
+    ys = new double[n];
+    ids = new int[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = longitudes[i] * kx;
+      ys[i] = latitudes[i] * ky;
+      ids[i] = i;
+    }
+    build(0, n, 0);
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * Find the point closest to a coordinate
+   *
+   * @param latitude    query latitude in degrees
+   * @param longitude   query longitude in degrees
+   * @param maxDistance search radius in meters
+   * @return index of the closest point in the arrays given at construction; or -1 if no point
+   * lies within the radius
+   */
+  public int nearest(double latitude, double longitude, double maxDistance) {
+    Search search = new Search(longitude * kx, latitude * ky, maxDistance * maxDistance);
+    nearest(search, 0, ids.length, 0);
+    return search.best;
+  }
+
+  /**
+   * Find the k points closest to a coordinate
+   *
+   * @param latitude    query latitude in degrees
+   * @param longitude   query longitude in degrees
+   * @param k           maximum number of points to return
+   * @param maxDistance search radius in meters
+   * @return indexes of the closest points in the arrays given at construction, closest first;
+   * fewer than k if fewer points lie within the radius
+   */
+  public int[] kNearest(double latitude, double longitude, int k, double maxDistance) {
+    KSearch search = new KSearch(longitude * kx, latitude * ky, maxDistance * maxDistance,
+        Math.max(0, Math.min(k, ids.length)));
+    if (search.capacity > 0) kNearest(search, 0, ids.length, 0);
+
+    // Pop the max-heap from the back, so the result ends up closest first
+    int[] result = new int[search.size];
+    for (int i = search.size - 1; i >= 0; i--) {
+      result[i] = search.ids[0];
+      search.pop();
+    }
+    return result;
+  }
+
+  private void kNearest(KSearch search, int lo, int hi, int axis) {
+    if (lo >= hi) return;
+    int mid = (lo + hi) >>> 1;
+    double dx = xs[mid] - search.x;
+    double dy = ys[mid] - search.y;
+    search.offer(ids[mid], dx * dx + dy * dy);
+
+    double split = axis == 0 ? -dx : -dy;
+    if (split < 0) {
+      kNearest(search, lo, mid, axis ^ 1);
+      if (split * split <= search.bound()) kNearest(search, mid + 1, hi, axis ^ 1);
+    } else {
+      kNearest(search, mid + 1, hi, axis ^ 1);
+      if (split * split <= search.bound()) kNearest(search, lo, mid, axis ^ 1);
+    }
+  }
+
+  private void nearest(Search search, int lo, int hi, int axis) {
+    if (lo >= hi) return;
+    int mid = (lo + hi) >>> 1;
+    double dx = xs[mid] - search.x;
+    double dy = ys[mid] - search.y;
+    double d2 = dx * dx + dy * dy;
+    if (d2 <= search.bestDist2) {
+      search.bestDist2 = d2;
+      search.best = ids[mid];
+    }
+
+    double split = axis == 0 ? -dx : -dy;
+    // Descend into the side containing the query first, then the other side if it may be closer
+    if (split < 0) {
+      nearest(search, lo, mid, axis ^ 1);
+      if (split * split <= search.bestDist2) nearest(search, mid + 1, hi, axis ^ 1);
+    } else {
+      nearest(search, mid + 1, hi, axis ^ 1);
+      if (split * split <= search.bestDist2) nearest(search, lo, mid, axis ^ 1);
+    }
+  }
+
+  private void build(int lo, int hi, int axis) {
+    if (hi - lo <= 1) return;
+    int mid = (lo + hi) >>> 1;
+    select(lo, hi - 1, mid, axis == 0 ? xs : ys);
+    build(lo, mid, axis ^ 1);
+    build(mid + 1, hi, axis ^ 1);
+  }
+
+  /**
+   * Quickselect: partially order [lo, hi] so the k-th element along an axis is in place,
+   * with smaller-or-equal elements before it and greater-or-equal elements after it
+   */
+  private void select(int lo, int hi, int k, double[] keys) {
+    while (hi > lo) {
+      double pivot = keys[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (keys[i] < pivot) i++;
+        while (keys[j] > pivot) j--;
+        if (i <= j) swap(i++, j--);
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    double x = xs[i];
+    xs[i] = xs[j];
+    xs[j] = x;
+    double y = ys[i];
+    ys[i] = ys[j];
+    ys[j] = y;
+    int id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+  }
+
+  private static final class Search {
+    private final double x;
+    private final double y;
+    private double bestDist2;
+    private int best = -1;
+
+    private Search(double x, double y, double bestDist2) {
+      this.x = x;
+      this.y = y;
+      this.bestDist2 = bestDist2;
+    }
+  }
+
+  /**
+   * State of a k-nearest search: a bounded max-heap on squared distance in primitive arrays,
+   * whose top is the farthest point kept so far
+   */
+  private static final class KSearch {
+    private final double x;
+    private final double y;
+    private final double maxDist2;
+    private final int capacity;
+    private final int[] ids;
+    private final double[] dist2;
+    private int size;
+
+    private KSearch(double x, double y, double maxDist2, int capacity) {
+      this.x = x;
+      this.y = y;
+      this.maxDist2 = maxDist2;
+      this.capacity = capacity;
+      this.ids = new int[capacity];
+      this.dist2 = new double[capacity];
+    }
+
+    /**
+     * @return squared distance a point must be within to enter the heap
+     */
+    private double bound() {
+      return size < capacity ? maxDist2 : dist2[0];
+    }
+
+    private void offer(int id, double d2) {
+      if (d2 > bound() || capacity == 0) return;
+      if (size < capacity) {
+        // Sift up from the new leaf
+        int i = size++;
+        while (i > 0) {
+          int parent = (i - 1) >>> 1;
+          if (dist2[parent] >= d2) break;
+          ids[i] = ids[parent];
+          dist2[i] = dist2[parent];
+          i = parent;
+        }
+        ids[i] = id;
+        dist2[i] = d2;
+      } else {
+        siftDown(id, d2);
+      }
+    }
+
+    private void pop() {
+      size--;
+      if (size > 0) siftDown(ids[size], dist2[size]);
+    }
+
+    /**
+     * Replace the top of the heap and restore the heap order
+     */
+    private void siftDown(int id, double d2) {
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) break;
+        if (child + 1 < size && dist2[child + 1] > dist2[child]) child++;
+        if (dist2[child] <= d2) break;
+        ids[i] = ids[child];
+        dist2[i] = dist2[child];
+        i = child;
+      }
+      ids[i] = id;
+      dist2[i] = d2;
+    }
+  }
+}
@@ -0,0 +1,372 @@
+package com.hungn.alexa.pbt.geo;
+
+import java.util.Arrays;
+
+/**
+ * Immutable polyline of a route. Points are stored as fixed-point microdegrees in primitive
+ * arrays (about 0.1m resolution) together with the cumulative distance along the route at each
+ * point as a float, 12 bytes per point in all, so distance-along-route lookups need no
+ * trigonometry.
+ * <p>
+ * PennRides splits a route into segments; their points are concatenated in order, and the
+ * gap between the end of a segment and the start of the next counts as driven distance.
+ * A route whose last point comes back near its first is a loop: its length includes the
+ * closing edge back to the first point. PennRides polylines of loop routes often stop a block
+ * short of where they started, so the gap may be a fraction of the route length.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class RouteGeometry {
+  public static final double E6 = 1e6;
+  /**
+   * A route is a loop if the gap between its last and first point is at most this many meters,
+   * or at most {@link #LOOP_GAP_RATIO} of its length
+   */
+  public static final double LOOP_TOLERANCE_M = 50;
+  public static final double LOOP_GAP_RATIO = 0.2;
+  /**
+   * Cosine of the largest angle between an edge and a vehicle's heading for the vehicle to be
+   * driving along it: 112.5 degrees, a right angle plus the 22.5 degrees PennRides headings
+   * (eight directions) may be off by
+   */
+  private static final double HEADING_COSINE = Math.cos(Math.toRadians(112.5));
+
+  private final int[] latitudesE6;
+  private final int[] longitudesE6;
+  private final float[] distances;
+  private final int[] segmentStarts;
+  private final double length;
+  private final boolean loop;
+
+  /**
+   * Wrap already computed arrays, e.g. read back from a geometry file; the arrays are not
+   * copied
+   *
+   * @param latitudesE6   latitudes in microdegrees
+   * @param longitudesE6  longitudes in microdegrees; same length as latitudesE6
+   * @param distances     cumulative distance in meters at each point; same length
+   * @param segmentStarts index of the first point of each segment, ascending
+   * @param length        total length in meters, including the closing edge of a loop
+   * @param loop          whether the route is a loop
+   */
+  public RouteGeometry(int[] latitudesE6, int[] longitudesE6, float[] distances,
+                       int[] segmentStarts, double length, boolean loop) {
+    if (latitudesE6.length != longitudesE6.length || latitudesE6.length != distances.length) {
+      throw new IllegalArgumentException("Mismatched point arrays");
+    }
+    this.latitudesE6 = latitudesE6;
+    this.longitudesE6 = longitudesE6;
+    this.distances = distances;
+    this.segmentStarts = segmentStarts;
+    this.length = length;
+    this.loop = loop;
+  }
+
+  public int size() {
+    return latitudesE6.length;
+  }
+
+  public double getLatitude(int i) {
+    return latitudesE6[i] / E6;
+  }
+
+  public double getLongitude(int i) {
+    return longitudesE6[i] / E6;
+  }
+
+  public int getLatitudeE6(int i) {
+    return latitudesE6[i];
+  }
+
+  public int getLongitudeE6(int i) {
+    return longitudesE6[i];
+  }
+
+  /**
+   * @return distance in meters from the first point to point i, along the route
+   */
+  public double getDistance(int i) {
+    return distances[i];
+  }
+
+  /**
+   * @return total length of the route in meters
+   */
+  public double getLength() {
+    return length;
+  }
+
+  public boolean isLoop() {
+    return loop;
+  }
+
+  public int getSegmentCount() {
+    return segmentStarts.length;
+  }
+
+  public int getSegmentStart(int segment) {
+    return segmentStarts[segment];
+  }
+
+  /**
+   * Snap a coordinate to the closest edge of the route and measure how far along the route it
+   * lies. Coordinates are projected to meters around the query point, which is accurate enough
+   * over a campus-sized route; every edge is checked, so this is linear in the point count.
+   *
+   * @param latitude  latitude in degrees
+   * @param longitude longitude in degrees
+   * @param maxOffset maximum distance in meters between the coordinate and the route
+   * @return distance in meters from the first point to the snapped position; or -1 if the
+   * route has no points or the coordinate is farther than maxOffset from it
+   */
+  public double project(double latitude, double longitude, double maxOffset) {
+    return project(latitude, longitude, maxOffset, Double.NaN);
+  }
+
+  /**
+   * Snap a moving vehicle to the route. Where the route drives both ways along a street, the
+   * two legs are a few meters apart and GPS noise decides which is closer; the edge closest to
+   * the coordinate among those pointing the way the vehicle heads is taken instead. If no such
+   * edge is within maxOffset (e.g. the heading is stale after a turn), the closest edge is.
+   *
+   * @param latitude  latitude in degrees
+   * @param longitude longitude in degrees
+   * @param maxOffset maximum distance in meters between the coordinate and the route
+   * @param bearing   heading of the vehicle in degrees clockwise from north; or NaN if unknown
+   * @return distance in meters from the first point to the snapped position; or -1 if the
+   * route has no points or the coordinate is farther than maxOffset from it
+   */
+  public double project(double latitude, double longitude, double maxOffset, double bearing) {
+    int n = latitudesE6.length;
+    if (n == 0) return -1;
+    double kx = GeoUtils.metersPerDegreeLongitude(latitude) / E6;
+    double ky = GeoUtils.metersPerDegreeLatitude() / E6;
+    double qx = longitude * E6;
+    double qy = latitude * E6;
+    // Unit vector of the heading, east and north
+    boolean heading = !Double.isNaN(bearing);
+    double hx = heading ? Math.sin(Math.toRadians(bearing)) : 0;
+    double hy = heading ? Math.cos(Math.toRadians(bearing)) : 0;
+
+    double bestOffset = Double.MAX_VALUE;
+    double bestAlong = -1;
+    double alignedOffset = Double.MAX_VALUE;
+    double alignedAlong = -1;
+    if (n == 1) {
+      double dx = (longitudesE6[0] - qx) * kx;
+      double dy = (latitudesE6[0] - qy) * ky;
+      bestOffset = dx * dx + dy * dy;
+      bestAlong = 0;
+    }
+    int edges = loop ? n : n - 1;
+    for (int i = 0; i < edges; i++) {
+      int j = i + 1 < n ? i + 1 : 0;
+      // Edge from a to b, relative to the query point
+      double ax = (longitudesE6[i] - qx) * kx;
+      double ay = (latitudesE6[i] - qy) * ky;
+      double ex = (longitudesE6[j] - qx) * kx - ax;
+      double ey = (latitudesE6[j] - qy) * ky - ay;
+      double squared = ex * ex + ey * ey;
+      double t = squared == 0 ? 0 : Math.max(0, Math.min(1, -(ax * ex + ay * ey) / squared));
+      double px = ax + t * ex;
+      double py = ay + t * ey;
+      double offset = px * px + py * py;
+      double edgeLength = (j == 0 ? length : distances[j]) - distances[i];
+      if (offset < bestOffset) {
+        bestOffset = offset;
+        bestAlong = distances[i] + t * edgeLength;
+      }
+      if (heading && offset < alignedOffset && squared > 0
+          && (ex * hx + ey * hy) / Math.sqrt(squared) >= HEADING_COSINE) {
+        alignedOffset = offset;
+        alignedAlong = distances[i] + t * edgeLength;
+      }
+    }
+    double max = maxOffset * maxOffset;
+    if (alignedOffset <= max) return alignedAlong;
+    return bestOffset <= max ? bestAlong : -1;
+  }
+
+  /**
+   * Snap a fixed place, such as a stop, to every pass of the route near it. Where the route
+   * drives both ways along a street, a stop on that street is within reach of both legs, and
+   * which one a vehicle will serve depends on the way it comes; each consecutive run of edges
+   * within maxOffset gives the position closest to the coordinate.
+   *
+   * @param latitude  latitude in degrees
+   * @param longitude longitude in degrees
+   * @param maxOffset maximum distance in meters between the coordinate and the route
+   * @return distances in meters from the first point, ascending, one per pass of the route;
+   * empty if the coordinate is farther than maxOffset from the route
+   */
+  public double[] projectAll(double latitude, double longitude, double maxOffset) {
+    int n = latitudesE6.length;
+    if (n == 0) return new double[0];
+    double kx = GeoUtils.metersPerDegreeLongitude(latitude) / E6;
+    double ky = GeoUtils.metersPerDegreeLatitude() / E6;
+    double qx = longitude * E6;
+    double qy = latitude * E6;
+    double max = maxOffset * maxOffset;
+    if (n == 1) {
+      double dx = (longitudesE6[0] - qx) * kx;
+      double dy = (latitudesE6[0] - qy) * ky;
+      return dx * dx + dy * dy <= max ? new double[]{0} : new double[0];
+    }
+
+    double[] found = new double[4];
+    double[] offsets = new double[4];
+    int count = 0;
+    boolean inRun = false;
+    boolean firstInRun = false;
+    int edges = loop ? n : n - 1;
+    for (int i = 0; i < edges; i++) {
+      int j = i + 1 < n ? i + 1 : 0;
+      double ax = (longitudesE6[i] - qx) * kx;
+      double ay = (latitudesE6[i] - qy) * ky;
+      double ex = (longitudesE6[j] - qx) * kx - ax;
+      double ey = (latitudesE6[j] - qy) * ky - ay;
+      double squared = ex * ex + ey * ey;
+      double t = squared == 0 ? 0 : Math.max(0, Math.min(1, -(ax * ex + ay * ey) / squared));
+      double px = ax + t * ex;
+      double py = ay + t * ey;
+      double offset = px * px + py * py;
+      if (offset > max) {
+        inRun = false;
+        continue;
+      }
+      double along = distances[i] + t * ((j == 0 ? length : distances[j]) - distances[i]);
+      if (!inRun) {
+        if (count == found.length) {
+          found = Arrays.copyOf(found, count * 2);
+          offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        found[count] = along;
+        offsets[count++] = offset;
+        inRun = true;
+        if (i == 0) firstInRun = true;
+      } else if (offset < offsets[count - 1]) {
+        found[count - 1] = along;
+        offsets[count - 1] = offset;
+      }
+    }
+    // On a loop, a run through the closing edge goes on with the first edge
+    if (loop && inRun && firstInRun && count > 1) {
+      if (offsets[count - 1] < offsets[0]) found[0] = found[count - 1];
+      count--;
+    }
+    double[] along = Arrays.copyOf(found, count);
+    Arrays.sort(along);
+    return along;
+  }
+
+  /**
+   * Distance to drive from one position along the route to another
+   *
+   * @param from distance along the route of the start position
+   * @param to   distance along the route of the end position
+   * @return distance in meters; on a loop, wraps around past the end; otherwise negative if
+   * the end position lies behind the start position
+   */
+  public double distanceBetween(double from, double to) {
+    double gap = to - from;
+    if (loop && gap < 0) gap += length;
+    return gap;
+  }
+
+  /**
+   * Approximate heap size of this geometry
+   *
+   * @return size in bytes
+   */
+  public long getFootprint() {
+    // Object headers and fields, then the arrays (16-byte headers)
+    return 48 + 3 * (16 + 4L * latitudesE6.length) + 16 + 4L * segmentStarts.length;
+  }
+
+  int[] latitudesE6() {
+    return latitudesE6;
+  }
+
+  int[] longitudesE6() {
+    return longitudesE6;
+  }
+
+  float[] distances() {
+    return distances;
+  }
+
+  int[] segmentStarts() {
+    return segmentStarts;
+  }
+
+  /**
+   * Builder accumulating the points of a route segment by segment
+   */
+  public static final class Builder {
+    private int[] latitudes = new int[256];
+    private int[] longitudes = new int[256];
+    private int[] segments = new int[4];
+    private int size;
+    private int segmentCount;
+
+    /**
+     * Start a new segment; points added next belong to it
+     */
+    public Builder startSegment() {
+      if (segmentCount == segments.length) segments = Arrays.copyOf(segments, segmentCount * 2);
+      segments[segmentCount++] = size;
+      return this;
+    }
+
+    /**
+     * Add a point to the current segment. A point identical to the previous one is dropped.
+     */
+    public Builder addPoint(double latitude, double longitude) {
+      if (segmentCount == 0) startSegment();
+      int latitudeE6 = (int) Math.round(latitude * E6);
+      int longitudeE6 = (int) Math.round(longitude * E6);
+      if (size > 0 && latitudes[size - 1] == latitudeE6 && longitudes[size - 1] == longitudeE6) {
+        return this;
+      }
+      if (size == latitudes.length) {
+        latitudes = Arrays.copyOf(latitudes, size * 2);
+        longitudes = Arrays.copyOf(longitudes, size * 2);
+      }
+      latitudes[size] = latitudeE6;
+      longitudes[size] = longitudeE6;
+      size++;
+      return this;
+    }
+
+    public RouteGeometry build() {
+      int[] lats = Arrays.copyOf(latitudes, size);
+      int[] lons = Arrays.copyOf(longitudes, size);
+      float[] distances = new float[size];
+      double total = 0;
+      for (int i = 1; i < size; i++) {
+        total += GeoUtils.distance(lats[i - 1] / E6, lons[i - 1] / E6, lats[i] / E6, lons[i] / E6);
+        distances[i] = (float) total;
+      }
+
+      // Drop segments that ended up without points of their own
+      int[] starts = new int[segmentCount];
+      int count = 0;
+      for (int s = 0; s < segmentCount; s++) {
+        if (segments[s] < size && (count == 0 || segments[s] > starts[count - 1])) {
+          starts[count++] = segments[s];
+        }
+      }
+
+      boolean loop = false;
+      if (size > 2) {
+        double closing = GeoUtils.distance(lats[size - 1] / E6, lons[size - 1] / E6,
+            lats[0] / E6, lons[0] / E6);
+        if (closing <= Math.max(LOOP_TOLERANCE_M, LOOP_GAP_RATIO * total)) {
+          loop = true;
+          total += closing;
+        }
+      }
+      return new RouteGeometry(lats, lons, distances, Arrays.copyOf(starts, count), total, loop);
+    }
+  }
+}
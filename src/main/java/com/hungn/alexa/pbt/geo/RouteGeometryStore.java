@@ -0,0 +1,267 @@
+package com.hungn.alexa.pbt.geo;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route polylines by route. Geometry is read at startup from a compiled geometry file when one
+ * is given (see {@code tools.RouteGeometryCompiler}), and otherwise fetched from the PennRides
+ * waypoints endpoint the first time a route is used. Like the stops, it is refreshed rarely, and
+ * callers that must not block {@link #load} a route before getting it, so the get never blocks.
+ * <p>
+ * The file is memory-mapped and copied into the primitive arrays in bulk, so loading it costs
+ * no JSON parsing and no per-point objects. Layout (big-endian):
+ * <pre>
+ *   int magic 'PBTG', int version, int route count, then for each route:
+ *   int route ID, int flags (1 = loop), int point count n, int segment count s,
+ *   double length, int[s] segment starts, int[n] latitudes E6, int[n] longitudes E6,
+ *   float[n] cumulative distances
+ * </pre>
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class RouteGeometryStore {
+  private static final Logger log = LoggerFactory.getLogger(RouteGeometryStore.class);
+
+  private static final int MAGIC = 0x50425447;
+  private static final int VERSION = 1;
+  private static final int FLAG_LOOP = 1;
+
+  private static final long REFRESH_NANOS = TimeUnit.HOURS.toNanos(24);
+  private static final long RETRY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final PennRides pr;
+  private final ConcurrentMap<PennRides.Route, Entry> routes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<PennRides.Route, CompletableFuture<Void>> loads =
+      new ConcurrentHashMap<>();
+
+  /**
+   * @param pr   client used to fetch the waypoints of routes missing from the file; or null to
+   *             serve the file only
+   * @param file compiled geometry file; or null to fetch every route from PennRides
+   */
+  public RouteGeometryStore(PennRides pr, Path file) {
+    this.pr = pr;
+    if (file != null) {
+      try {
+        read(file).forEach(this::put);
+        if (log.isInfoEnabled()) {
+          log.info("Loaded geometry of {} routes from {}", routes.size(), file);
+        }
+      } catch (IOException ex) {
+        log.error("Failed to read route geometry file " + file, ex);
+      }
+    }
+  }
+
+  /**
+   * Get the polyline of a route, loading it with a blocking call if it is missing or due for a
+   * refresh and no {@link #load} of it is in flight
+   *
+   * @param route the specific route
+   * @return geometry of the route; or null if it cannot be loaded
+   */
+  public RouteGeometry get(PennRides.Route route) {
+    long now = System.nanoTime();
+    Entry current = routes.get(route);
+    if (!isDue(current, now)) return current.geometry;
+    if (pr == null) return null;
+    if (loads.containsKey(route)) {
+      // Never block behind a load in flight: it may be one a non-blocking caller gave up on
+      return current != null ? current.geometry : null;
+    }
+    return store(route, pr.getWaypoints(route), now);
+  }
+
+  /**
+   * Load the polyline of a route without blocking, if it is missing or due for a refresh, so
+   * the {@link #get} that follows finds it in memory. Callers loading the same route share one
+   * PennRides call.
+   *
+   * @param route    the specific route
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future completed once the geometry is loaded or failed to load; never failed
+   */
+  public CompletableFuture<Void> load(PennRides.Route route, long deadline) {
+    if (pr == null || !isDue(routes.get(route), System.nanoTime())) {
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> mine = new CompletableFuture<>();
+    CompletableFuture<Void> existing = loads.putIfAbsent(route, mine);
+    if (existing != null) return existing;
+
+    long start = System.nanoTime();
+    pr.getWaypointsAsync(route, deadline).whenComplete((loaded, ex) -> {
+      store(route, loaded, start);
+      loads.remove(route, mine);
+      mine.complete(null);
+    });
+    return mine;
+  }
+
+  /**
+   * @return whether the geometry of a route should be loaded: never loaded, due for a refresh,
+   * or a failed load due for a retry; geometry from the file does not expire
+   */
+  private static boolean isDue(Entry current, long now) {
+    if (current == null) return true;
+    if (current.fromFile) return false;
+    long age = now - current.loadedAt;
+    return current.geometry != null ? age >= REFRESH_NANOS : age >= RETRY_NANOS;
+  }
+
+  /**
+   * Keep the outcome of a load
+   *
+   * @param loaded geometry loaded; or null if the load failed
+   * @param now    time the load started, in {@link System#nanoTime()} units
+   * @return geometry of the route to serve; or null if there is none
+   */
+  private RouteGeometry store(PennRides.Route route, RouteGeometry loaded, long now) {
+    Entry current = routes.get(route);
+    if (loaded == null || loaded.size() < 2) {
+      if (current != null && current.geometry != null) {
+        // Keep serving the stale copy; try refreshing again later
+        routes.put(route, new Entry(current.geometry, now - REFRESH_NANOS + RETRY_NANOS, false));
+        return current.geometry;
+      }
+      routes.put(route, new Entry(null, now, false));
+      return null;
+    }
+
+    if (log.isDebugEnabled()) {
+      log.debug("Loaded {} waypoints ({}m{}) for route {}", loaded.size(),
+          Math.round(loaded.getLength()), loaded.isLoop() ? ", loop" : "", route);
+    }
+    routes.put(route, new Entry(loaded, now, false));
+    return loaded;
+  }
+
+  /**
+   * Replace the geometry of a route; it is kept until replaced again
+   *
+   * @param route    the specific route
+   * @param geometry polyline of the route
+   */
+  public void put(PennRides.Route route, RouteGeometry geometry) {
+    routes.put(route, new Entry(geometry, System.nanoTime(), true));
+  }
+
+  /**
+   * Write route geometries to a file in the layout read by {@link #read(Path)}
+   *
+   * @param file       output file, replaced if it exists
+   * @param geometries geometry by route
+   */
+  public static void write(Path file, Map<PennRides.Route, RouteGeometry> geometries)
+      throws IOException {
+    try (OutputStream stream = Files.newOutputStream(file);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(geometries.size());
+      for (Map.Entry<PennRides.Route, RouteGeometry> entry : geometries.entrySet()) {
+        RouteGeometry geometry = entry.getValue();
+        out.writeInt(entry.getKey().getRoute());
+        out.writeInt(geometry.isLoop() ? FLAG_LOOP : 0);
+        out.writeInt(geometry.size());
+        out.writeInt(geometry.getSegmentCount());
+        out.writeDouble(geometry.getLength());
+        for (int start : geometry.segmentStarts()) out.writeInt(start);
+        for (int latitude : geometry.latitudesE6()) out.writeInt(latitude);
+        for (int longitude : geometry.longitudesE6()) out.writeInt(longitude);
+        for (float distance : geometry.distances()) out.writeFloat(distance);
+      }
+    }
+  }
+
+  /**
+   * Read a geometry file written by {@link #write(Path, Map)}. Routes unknown to this build
+   * are skipped.
+   *
+   * @param file geometry file
+   * @return geometry by route
+   * @throws IOException if the file cannot be read or is not a geometry file
+   */
+  public static Map<PennRides.Route, RouteGeometry> read(Path file) throws IOException {
+    Map<PennRides.Route, RouteGeometry> geometries = new EnumMap<>(PennRides.Route.class);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+        throw new IOException("Not a route geometry file");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) throw new IOException("Unsupported geometry file version " + version);
+
+      int count = buffer.getInt();
+      for (int r = 0; r < count; r++) {
+        int routeId = buffer.getInt();
+        int flags = buffer.getInt();
+        int n = buffer.getInt();
+        int s = buffer.getInt();
+        double length = buffer.getDouble();
+        if (n < 0 || s < 0 || buffer.remaining() < 4L * s + 12L * n) {
+          throw new IOException("Truncated geometry file");
+        }
+        int[] segmentStarts = readInts(buffer, s);
+        int[] latitudes = readInts(buffer, n);
+        int[] longitudes = readInts(buffer, n);
+        float[] distances = new float[n];
+        buffer.asFloatBuffer().get(distances);
+        buffer.position(buffer.position() + 4 * n);
+
+        PennRides.Route route = PennRides.Route.forRoute(routeId);
+        if (route != null) {
+          geometries.put(route, new RouteGeometry(latitudes, longitudes, distances,
+              segmentStarts, length, (flags & FLAG_LOOP) != 0));
+        }
+      }
+    } catch (RuntimeException ex) {
+      // Buffer underflows and the like from a corrupt file
+      throw new IOException("Invalid geometry file " + file, ex);
+    }
+    return geometries;
+  }
+
+  private static int[] readInts(ByteBuffer buffer, int n) {
+    int[] values = new int[n];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + 4 * n);
+    return values;
+  }
+
+  private static final class Entry {
+    private final RouteGeometry geometry;
+    private final long loadedAt;
+    private final boolean fromFile;
+
+    /**
+     * @param geometry loaded geometry; or null to remember a failed load
+     * @param loadedAt time of the load attempt, in {@link System#nanoTime()} units
+     * @param fromFile whether the geometry was given explicitly and never expires
+     */
+    private Entry(RouteGeometry geometry, long loadedAt, boolean fromFile) {
+      this.geometry = geometry;
+      this.loadedAt = loadedAt;
+      this.fromFile = fromFile;
+    }
+  }
+}
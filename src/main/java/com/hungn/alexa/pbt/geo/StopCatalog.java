@@ -0,0 +1,250 @@
+package com.hungn.alexa.pbt.geo;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.Stop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory catalog of the stops served by each route, with a spatial index per route so
+ * the stop closest to a vehicle is found without a network call. Stops are fetched from
+ * PennRides the first time a route is used and refreshed rarely, since they almost never change.
+ * <p>
+ * Lookups load missing stops with a blocking call, except while a {@link #load} of the route is
+ * in flight: they then answer from what is in memory. Callers that must not block, or that have
+ * a deadline of their own, load the route first; the lookups that follow never block.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class StopCatalog {
+  private static final Logger log = LoggerFactory.getLogger(StopCatalog.class);
+
+  private static final long REFRESH_NANOS = TimeUnit.HOURS.toNanos(24);
+  private static final long RETRY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final PennRides pr;
+  private final double radius;
+  private final ConcurrentMap<PennRides.Route, RouteStops> routes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<PennRides.Route, CompletableFuture<Void>> loads =
+      new ConcurrentHashMap<>();
+
+  /**
+   * @param pr     client used to fetch the stops; or null to serve only stops given with
+   *               {@link #put(PennRides.Route, List)}
+   * @param radius maximum distance in meters for a vehicle to be considered near a stop
+   */
+  public StopCatalog(PennRides pr, double radius) {
+    this.pr = pr;
+    this.radius = radius;
+  }
+
+  /**
+   * Find the stop of a route closest to a coordinate
+   *
+   * @param route     route the vehicle operates on
+   * @param latitude  latitude of the vehicle
+   * @param longitude longitude of the vehicle
+   * @return closest stop within the configured radius; or null if there is none or the stops
+   * of this route are not available
+   */
+  public Stop nearest(PennRides.Route route, double latitude, double longitude) {
+    RouteStops stops = get(route);
+    if (stops == null) return null;
+    int i = stops.index.nearest(latitude, longitude, radius);
+    return i < 0 ? null : stops.stops[i];
+  }
+
+  /**
+   * Get all stops of a route
+   *
+   * @param route the specific route
+   * @return stops of the route; or null if they cannot be loaded
+   */
+  public Stop[] getStops(PennRides.Route route) {
+    RouteStops stops = get(route);
+    return stops == null ? null : stops.stops;
+  }
+
+  /**
+   * Find a stop of a route by a spoken name. Each spoken word counts as matched if a word of the
+   * stop name equals it or, for words of three letters or more, starts with it; the stop
+   * matching the largest share of spoken words wins, ties going to the shorter name.
+   *
+   * @param route the specific route
+   * @param name  stop name as heard by Alexa, such as "bookstore" or "food court"
+   * @return the best matching stop if at least half of the spoken words match; or null
+   */
+  public Stop find(PennRides.Route route, String name) {
+    return find(name, Collections.singletonList(route));
+  }
+
+  /**
+   * Find a stop of any of several routes by a spoken name, matching as
+   * {@link #find(PennRides.Route, String)} does. Stop names are split into words once per load,
+   * so only the spoken name is normalized here.
+   *
+   * @param name   stop name as heard by Alexa
+   * @param routes routes whose stops are searched; routes whose stops cannot be loaded are skipped
+   * @return the best matching stop if at least half of the spoken words match; or null
+   */
+  public Stop find(String name, Iterable<PennRides.Route> routes) {
+    if (name == null) return null;
+    String[] spoken = words(name);
+    if (spoken.length == 0) return null;
+
+    Stop best = null;
+    int bestMatched = 0;
+    int bestLength = Integer.MAX_VALUE;
+    for (PennRides.Route route : routes) {
+      RouteStops stops = get(route);
+      if (stops == null) continue;
+      for (int i = 0; i < stops.stops.length; i++) {
+        String[] words = stops.words[i];
+        int matched = 0;
+        for (String word : spoken) {
+          for (String candidate : words) {
+            if (candidate.equals(word) || (word.length() >= 3 && candidate.startsWith(word))) {
+              matched++;
+              break;
+            }
+          }
+        }
+        if (matched > bestMatched
+            || (matched == bestMatched && matched > 0 && words.length < bestLength)) {
+          best = stops.stops[i];
+          bestMatched = matched;
+          bestLength = words.length;
+        }
+      }
+    }
+    return bestMatched * 2 >= spoken.length ? best : null;
+  }
+
+  private static String[] words(String name) {
+    String normalized = name.toLowerCase().replaceAll("[^a-z0-9]+", " ").trim();
+    return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+  }
+
+  /**
+   * Replace the stops of a route, e.g. with stops loaded from a bundled snapshot
+   *
+   * @param route the specific route
+   * @param stops stops served by the route
+   */
+  public void put(PennRides.Route route, List<Stop> stops) {
+    routes.put(route, new RouteStops(stops.toArray(new Stop[0]), System.nanoTime()));
+  }
+
+  /**
+   * Load the stops of a route without blocking, if they are missing or due for a refresh, so
+   * the lookups that follow find them in memory. Callers loading the same route share one
+   * PennRides call.
+   *
+   * @param route    the specific route
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future completed once the stops are loaded or failed to load; never failed
+   */
+  public CompletableFuture<Void> load(PennRides.Route route, long deadline) {
+    if (pr == null || !isDue(routes.get(route), System.nanoTime())) {
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> mine = new CompletableFuture<>();
+    CompletableFuture<Void> existing = loads.putIfAbsent(route, mine);
+    if (existing != null) return existing;
+
+    long start = System.nanoTime();
+    pr.getStopsAsync(route, deadline).whenComplete((loaded, ex) -> {
+      store(route, loaded, start);
+      loads.remove(route, mine);
+      mine.complete(null);
+    });
+    return mine;
+  }
+
+  private RouteStops get(PennRides.Route route) {
+    long now = System.nanoTime();
+    RouteStops current = routes.get(route);
+    if (!isDue(current, now)) return current.index != null ? current : null;
+    if (pr == null) return null;
+    if (loads.containsKey(route)) {
+      // Never block behind a load in flight: it may be one a non-blocking caller gave up on
+      return current != null && current.index != null ? current : null;
+    }
+    return store(route, pr.getStops(route), now);
+  }
+
+  /**
+   * @return whether the stops of a route should be loaded: never loaded, due for a refresh, or
+   * a failed load due for a retry
+   */
+  private static boolean isDue(RouteStops current, long now) {
+    if (current == null) return true;
+    long age = now - current.loadedAt;
+    return current.index != null ? age >= REFRESH_NANOS : age >= RETRY_NANOS;
+  }
+
+  /**
+   * Keep the outcome of a load
+   *
+   * @param loaded stops loaded; or null if the load failed
+   * @param now    time the load started, in {@link System#nanoTime()} units
+   * @return stops of the route to serve; or null if there are none
+   */
+  private RouteStops store(PennRides.Route route, List<Stop> loaded, long now) {
+    RouteStops current = routes.get(route);
+    if (loaded == null) {
+      if (current != null && current.index != null) {
+        // Keep serving the stale copy; try refreshing again later
+        routes.put(route, new RouteStops(current.stops, now - REFRESH_NANOS + RETRY_NANOS));
+        return current;
+      }
+      routes.put(route, new RouteStops(null, now));
+      return null;
+    }
+
+    if (log.isDebugEnabled()) {
+      log.debug("Loaded {} stops for route {}", loaded.size(), route);
+    }
+    RouteStops stops = new RouteStops(loaded.toArray(new Stop[0]), now);
+    routes.put(route, stops);
+    return stops;
+  }
+
+  private static final class RouteStops {
+    private final Stop[] stops;
+    private final PointIndex index;
+    // Words of each stop name, in the order of stops
+    private final String[][] words;
+    private final long loadedAt;
+
+    /**
+     * @param stops    loaded stops; or null to remember a failed load
+     * @param loadedAt time of the load attempt, in {@link System#nanoTime()} units
+     */
+    private RouteStops(Stop[] stops, long loadedAt) {
+      this.stops = stops;
+      this.loadedAt = loadedAt;
+      if (stops == null) {
+        this.index = null;
+        this.words = null;
+      } else {
+        double[] latitudes = new double[stops.length];
+        double[] longitudes = new double[stops.length];
+        this.words = new String[stops.length][];
+        for (int i = 0; i < stops.length; i++) {
+          latitudes[i] = stops[i].getLatitude();
+          longitudes[i] = stops[i].getLongitude();
+          words[i] = words(stops[i].getName());
+        }
+        this.index = new PointIndex(latitudes, longitudes);
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package com.hungn.alexa.pbt.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed log-linear buckets: 16 buckets per power of two of
+ * microseconds, so any recorded value is reported within about 6% from 1us up to about a minute.
+ * Recording is a couple of atomic increments and never allocates. Plain values, such as counts,
+ * are recorded with {@link #record(long)} into the same buckets.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKETS = 16;
+  private static final int SUB_BITS = 4;
+  // 2^26us is about 67s; slower samples land in the last bucket
+  private static final int BUCKETS = (26 - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Record one latency sample
+   *
+   * @param duration duration of the operation
+   * @param unit     unit of the duration
+   */
+  public void record(long duration, TimeUnit unit) {
+    recordMicros(unit.toMicros(duration));
+  }
+
+  /**
+   * Record one latency sample measured with {@link System#nanoTime()}
+   *
+   * @param startNanos value of {@link System#nanoTime()} when the operation started
+   */
+  public void recordSince(long startNanos) {
+    recordMicros((System.nanoTime() - startNanos) / 1000);
+  }
+
+  /**
+   * Record one latency sample
+   *
+   * @param micros duration of the operation in microseconds
+   */
+  public void recordMicros(long micros) {
+    record(micros);
+  }
+
+  /**
+   * Record one sample of a plain value, such as a count per request, for a histogram whose unit
+   * is not a duration. Snapshots then report values in that unit rather than in microseconds.
+   *
+   * @param value value of the sample; negative values count as 0
+   */
+  public void record(long value) {
+    if (value < 0) value = 0;
+    counts.incrementAndGet(bucket(value));
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Take a copy of the current counts
+   *
+   * @param reset whether to start a new interval; samples recorded concurrently with the
+   *              reset go to either the old or the new interval, never both
+   * @return immutable snapshot
+   */
+  public Snapshot snapshot(boolean reset) {
+    long[] copy = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+      count += copy[i];
+    }
+    long total = reset ? sum.sumThenReset() : sum.sum();
+    long highest = reset ? max.getThenReset() : max.get();
+    return new Snapshot(copy, count, total, highest);
+  }
+
+  static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) return (int) micros;
+    int msb = 63 - Long.numberOfLeadingZeros(micros);
+    int shift = msb - SUB_BITS;
+    int index = (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    return Math.min(index, BUCKETS - 1);
+  }
+
+  /**
+   * @return largest value falling in a bucket
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Point-in-time copy of a histogram
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return mean latency in microseconds; or 0 if empty
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return largest recorded latency in microseconds
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param quantile quantile between 0 and 1, such as 0.99
+     * @return latency in microseconds at or below which the given fraction of samples fall
+     * (bucket upper bound, capped at the recorded maximum); or 0 if empty
+     */
+    public long getPercentile(double quantile) {
+      if (count == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) return Math.min(upperBound(i), max);
+      }
+      return max;
+    }
+
+    /**
+     * @return bucket counts, indexed like the histogram buckets
+     */
+    long[] getCounts() {
+      return counts;
+    }
+  }
+}
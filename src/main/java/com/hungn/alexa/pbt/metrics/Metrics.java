@@ -0,0 +1,214 @@
+package com.hungn.alexa.pbt.metrics;
+
+import com.hungn.alexa.pbt.util.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics: {@link LatencyHistogram}s and counters identified by a name and
+ * dimensions (such as route and status code), flushed periodically as one log line each in
+ * the CloudWatch embedded metric format. Histograms are written as value/count pairs, so
+ * CloudWatch can compute percentiles across containers; the local p50/p90/p99 are included
+ * for reading the logs directly.
+ * <p>
+ * Flushing happens on the request path ({@link #flushIfDue()}) rather than on a timer, since
+ * a Lambda container is frozen between invocations. PBT_METRICS=false disables recording.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class Metrics {
+  private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+  public static final String MICROSECONDS = "Microseconds";
+  public static final String COUNT = "Count";
+
+  private static final boolean ENABLED = Config.getBoolean("PBT_METRICS", true);
+  private static final String NAMESPACE = Config.getString("PBT_METRICS_NAMESPACE", "PennBusTracker");
+  private static final long INTERVAL_MS = Config.getLong("PBT_METRICS_INTERVAL_S", 60) * 1000;
+  /**
+   * Stands in for every histogram when metrics are disabled; never flushed
+   */
+  private static final LatencyHistogram DISABLED = new LatencyHistogram();
+  /**
+   * Most values the embedded metric format takes for one metric in one line
+   */
+  private static final int MAX_VALUES = 100;
+
+  private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+  private static final AtomicLong nextFlush = new AtomicLong(System.currentTimeMillis() + INTERVAL_MS);
+
+  private Metrics() {
+  }
+
+  /**
+   * Get (or create) a histogram
+   *
+   * @param name       metric name, such as UpstreamLatency
+   * @param unit       unit of the recorded values, {@link #MICROSECONDS} or {@link #COUNT}
+   * @param dimensions dimension names and values, alternating
+   * @return histogram to record into
+   */
+  public static LatencyHistogram histogram(String name, String unit, String... dimensions) {
+    if (!ENABLED) return DISABLED;
+    String key = key(name, dimensions);
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histogram = histograms.computeIfAbsent(key, k -> new Histogram(name, unit, dimensions));
+    }
+    return histogram.values;
+  }
+
+  /**
+   * Register a counter maintained elsewhere, such as a cache hit count; each flush reports
+   * how much it grew since the previous flush
+   *
+   * @param name       metric name, such as GeocodeCacheHits
+   * @param cumulative current value of the counter
+   * @param dimensions dimension names and values, alternating
+   */
+  public static void registerCounter(String name, LongSupplier cumulative, String... dimensions) {
+    if (!ENABLED) return;
+    counters.put(key(name, dimensions), new Counter(name, cumulative, dimensions));
+  }
+
+  /**
+   * Flush all metrics if the flush interval has elapsed; only one caller flushes
+   */
+  public static void flushIfDue() {
+    long due = nextFlush.get();
+    long now = System.currentTimeMillis();
+    if (!ENABLED || now < due || !nextFlush.compareAndSet(due, now + INTERVAL_MS)) return;
+    flush(now);
+  }
+
+  /**
+   * Write one log line per metric with samples since the previous flush, and start a new
+   * interval
+   *
+   * @param timestamp time of the flush in epoch milliseconds
+   */
+  public static void flush(long timestamp) {
+    if (!log.isInfoEnabled()) return;
+    for (Histogram histogram : histograms.values()) {
+      LatencyHistogram.Snapshot snapshot = histogram.values.snapshot(true);
+      if (snapshot.getCount() == 0) continue;
+      for (int from = 0; from >= 0; ) {
+        StringBuilder line = new StringBuilder(512);
+        from = format(histogram, snapshot, timestamp, from, line);
+        log.info(line.toString());
+      }
+    }
+    for (Counter counter : counters.values()) {
+      long value = counter.cumulative.getAsLong();
+      long delta = value - counter.last;
+      counter.last = value;
+      if (delta > 0) {
+        StringBuilder json = header(counter.name, COUNT, counter.dimensions, timestamp);
+        log.info(json.append(",\"").append(counter.name).append("\":").append(delta).append('}')
+            .toString());
+      }
+    }
+  }
+
+  /**
+   * Format the buckets of a histogram snapshot into one line. The format allows at most
+   * {@link #MAX_VALUES} values per metric, so a histogram spreading over more buckets takes
+   * several lines; the summary statistics go on the first one.
+   *
+   * @param from first bucket to write
+   * @param json line to append to
+   * @return first bucket left for the next line; or -1 if done
+   */
+  static int format(Histogram histogram, LatencyHistogram.Snapshot snapshot, long timestamp,
+                    int from, StringBuilder json) {
+    json.append(header(histogram.name, histogram.unit, histogram.dimensions, timestamp));
+    json.append(",\"").append(histogram.name).append("\":{\"Values\":[");
+    long[] counts = snapshot.getCounts();
+    StringBuilder frequencies = new StringBuilder();
+    int written = 0;
+    int i = from;
+    for (; i < counts.length && written < MAX_VALUES; i++) {
+      if (counts[i] == 0) continue;
+      if (written++ > 0) {
+        json.append(',');
+        frequencies.append(',');
+      }
+      json.append(Math.min(LatencyHistogram.upperBound(i), snapshot.getMax()));
+      frequencies.append(counts[i]);
+    }
+    json.append("],\"Counts\":[").append(frequencies).append("]}");
+    if (from == 0) {
+      json.append(",\"count\":").append(snapshot.getCount())
+          .append(",\"mean\":").append(Math.round(snapshot.getMean()))
+          .append(",\"p50\":").append(snapshot.getPercentile(0.50))
+          .append(",\"p90\":").append(snapshot.getPercentile(0.90))
+          .append(",\"p99\":").append(snapshot.getPercentile(0.99))
+          .append(",\"max\":").append(snapshot.getMax());
+    }
+    json.append('}');
+    while (i < counts.length && counts[i] == 0) i++;
+    return i < counts.length ? i : -1;
+  }
+
+  /**
+   * Start an embedded metric format line: the _aws metadata for one metric, then the
+   * dimension values
+   */
+  private static StringBuilder header(String name, String unit, String[] dimensions,
+                                      long timestamp) {
+    StringBuilder json = new StringBuilder(256)
+        .append("{\"_aws\":{\"Timestamp\":").append(timestamp)
+        .append(",\"CloudWatchMetrics\":[{\"Namespace\":\"").append(NAMESPACE)
+        .append("\",\"Dimensions\":[[");
+    for (int i = 0; i + 1 < dimensions.length; i += 2) {
+      if (i > 0) json.append(',');
+      json.append('"').append(dimensions[i]).append('"');
+    }
+    json.append("]],\"Metrics\":[{\"Name\":\"").append(name).append("\",\"Unit\":\"")
+        .append(unit).append("\"}]}]}");
+    for (int i = 0; i + 1 < dimensions.length; i += 2) {
+      json.append(",\"").append(dimensions[i]).append("\":\"").append(dimensions[i + 1]).append('"');
+    }
+    return json;
+  }
+
+  private static String key(String name, String[] dimensions) {
+    if (dimensions.length == 0) return name;
+    StringBuilder key = new StringBuilder(name.length() + 16 * dimensions.length).append(name);
+    for (String dimension : dimensions) key.append('|').append(dimension);
+    return key.toString();
+  }
+
+  static final class Histogram {
+    private final String name;
+    private final String unit;
+    private final String[] dimensions;
+    private final LatencyHistogram values = new LatencyHistogram();
+
+    private Histogram(String name, String unit, String[] dimensions) {
+      this.name = name;
+      this.unit = unit;
+      this.dimensions = dimensions.clone();
+    }
+  }
+
+  private static final class Counter {
+    private final String name;
+    private final LongSupplier cumulative;
+    private final String[] dimensions;
+    // Only touched by the flushing thread
+    private long last;
+
+    private Counter(String name, LongSupplier cumulative, String[] dimensions) {
+      this.name = name;
+      this.cumulative = cumulative;
+      this.dimensions = dimensions.clone();
+    }
+  }
+}
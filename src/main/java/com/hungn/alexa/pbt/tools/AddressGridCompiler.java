@@ -0,0 +1,216 @@
+package com.hungn.alexa.pbt.tools;
+
+import com.hungn.alexa.pbt.api.GoogleMapsGeoencoding;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.geo.AddressGrid;
+import com.hungn.alexa.pbt.geo.GeoUtils;
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.geo.RouteGeometryStore;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile the street addresses around the routes into the grid file read by
+ * {@link AddressGrid}. The grid spans the waypoints of every route, and only cells whose center
+ * lies within the corridor radius of a route are resolved; the others are left to the
+ * Geocoding API at runtime.
+ * <p>
+ * Each cell center is resolved once: by default with the Geocoding API (or whatever
+ * PBT_GOOGLE_MAPS_URL points at, such as an {@link UpstreamStub} replaying recorded responses),
+ * or with --points, from a local CSV file of "latitude,longitude,street address" lines, taking
+ * the closest point within --match-m. Route waypoints come from PennRides (or
+ * PBT_PENNRIDES_URL), or from a file compiled by {@link RouteGeometryCompiler}.
+ * <p>
+ * Usage: AddressGridCompiler output [--cell-m 25] [--radius-m 100] [--geometry routes.bin]
+ * [--points addresses.csv] [--match-m 60] [--threads 4]
+ * <br>
+ * To bundle the grid into the jar, write it to src/main/resources/address_grid.bin before
+ * packaging.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class AddressGridCompiler {
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: AddressGridCompiler output [--cell-m 25] [--radius-m 100] "
+          + "[--geometry routes.bin] [--points addresses.csv] [--match-m 60] [--threads 4]");
+      System.exit(1);
+    }
+    Path output = Paths.get(args[0]);
+    double cellM = 25;
+    double radiusM = 100;
+    double matchM = 60;
+    int threads = 4;
+    Path geometryFile = null;
+    Path pointsFile = null;
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + arg);
+      if ("--cell-m".equals(arg)) {
+        cellM = Double.parseDouble(args[++i]);
+      } else if ("--radius-m".equals(arg)) {
+        radiusM = Double.parseDouble(args[++i]);
+      } else if ("--geometry".equals(arg)) {
+        geometryFile = Paths.get(args[++i]);
+      } else if ("--points".equals(arg)) {
+        pointsFile = Paths.get(args[++i]);
+      } else if ("--match-m".equals(arg)) {
+        matchM = Double.parseDouble(args[++i]);
+      } else if ("--threads".equals(arg)) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    Collection<RouteGeometry> routes = geometryFile != null
+        ? RouteGeometryStore.read(geometryFile).values() : fetchRoutes();
+    if (routes.isEmpty()) throw new IOException("No route geometry to cover");
+
+    // Bounding box of every waypoint, grown by the corridor radius
+    double minLatitude = Double.MAX_VALUE;
+    double maxLatitude = -Double.MAX_VALUE;
+    double minLongitude = Double.MAX_VALUE;
+    double maxLongitude = -Double.MAX_VALUE;
+    for (RouteGeometry route : routes) {
+      for (int i = 0; i < route.size(); i++) {
+        minLatitude = Math.min(minLatitude, route.getLatitude(i));
+        maxLatitude = Math.max(maxLatitude, route.getLatitude(i));
+        minLongitude = Math.min(minLongitude, route.getLongitude(i));
+        maxLongitude = Math.max(maxLongitude, route.getLongitude(i));
+      }
+    }
+    double middle = (minLatitude + maxLatitude) / 2;
+    double marginLatitude = radiusM / GeoUtils.metersPerDegreeLatitude();
+    double marginLongitude = radiusM / GeoUtils.metersPerDegreeLongitude(middle);
+    int minLatitudeE6 = (int) Math.floor((minLatitude - marginLatitude) * RouteGeometry.E6);
+    int minLongitudeE6 = (int) Math.floor((minLongitude - marginLongitude) * RouteGeometry.E6);
+    int cellLatitudeE6 = Math.max(1,
+        (int) Math.round(cellM / GeoUtils.metersPerDegreeLatitude() * RouteGeometry.E6));
+    int cellLongitudeE6 = Math.max(1,
+        (int) Math.round(cellM / GeoUtils.metersPerDegreeLongitude(middle) * RouteGeometry.E6));
+    int rows = (int) Math.ceil(((maxLatitude + marginLatitude) * RouteGeometry.E6 - minLatitudeE6)
+        / cellLatitudeE6);
+    int columns = (int) Math.ceil(
+        ((maxLongitude + marginLongitude) * RouteGeometry.E6 - minLongitudeE6) / cellLongitudeE6);
+
+    Points points = pointsFile != null ? Points.read(pointsFile) : null;
+    GoogleMapsGeoencoding maps = pointsFile == null ? new GoogleMapsGeoencoding() : null;
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new DaemonThreadFactory("grid-geocode"));
+    String[] streets = new String[rows * columns];
+    List<Future<?>> pending = new ArrayList<>();
+    int corridor = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        double latitude = (minLatitudeE6 + (row + 0.5) * cellLatitudeE6) / RouteGeometry.E6;
+        double longitude = (minLongitudeE6 + (column + 0.5) * cellLongitudeE6) / RouteGeometry.E6;
+        if (!nearRoute(routes, latitude, longitude, radiusM)) continue;
+        corridor++;
+        int cell = row * columns + column;
+        if (points != null) {
+          streets[cell] = points.closest(latitude, longitude, matchM);
+        } else {
+          pending.add(executor.submit(() -> {
+            streets[cell] = maps.lookupStreetAddress(longitude, latitude,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+          }));
+        }
+      }
+    }
+    for (Future<?> future : pending) future.get();
+    executor.shutdown();
+
+    int resolved = 0;
+    for (String street : streets) {
+      if (street != null && !street.isEmpty()) resolved++;
+    }
+    int distinct = AddressGrid.write(output, minLatitudeE6, minLongitudeE6, cellLatitudeE6,
+        cellLongitudeE6, rows, columns, streets);
+    System.out.println("Grid of " + rows + "x" + columns + " cells of " + cellM + "m, "
+        + corridor + " within " + radiusM + "m of a route, " + resolved + " resolved to "
+        + distinct + " street names");
+    System.out.println("Wrote " + output + " (" + Files.size(output) + " bytes)");
+  }
+
+  private static Collection<RouteGeometry> fetchRoutes() {
+    List<RouteGeometry> routes = new ArrayList<>();
+    PennRides pr = new PennRides();
+    for (PennRides.Route route : PennRides.Route.values()) {
+      RouteGeometry geometry = pr.getWaypoints(route);
+      if (geometry == null || geometry.size() < 2) {
+        System.err.println("Skipping " + route + " -- no waypoints");
+      } else {
+        routes.add(geometry);
+      }
+    }
+    return routes;
+  }
+
+  private static boolean nearRoute(Collection<RouteGeometry> routes, double latitude,
+                                   double longitude, double radius) {
+    for (RouteGeometry route : routes) {
+      if (route.project(latitude, longitude, radius) >= 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Street address points read from a CSV file of "latitude,longitude,street address" lines,
+   * skipping blank lines and # comments; the address may itself contain commas
+   */
+  private static final class Points {
+    private final List<double[]> coordinates = new ArrayList<>();
+    private final List<String> streets = new ArrayList<>();
+
+    static Points read(Path file) throws IOException {
+      Points points = new Points();
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) continue;
+          String[] fields = line.split(",", 3);
+          if (fields.length < 3) {
+            throw new IOException("Expected latitude,longitude,address: " + line);
+          }
+          points.coordinates.add(new double[]{Double.parseDouble(fields[0].trim()),
+              Double.parseDouble(fields[1].trim())});
+          points.streets.add(fields[2].trim());
+        }
+      }
+      return points;
+    }
+
+    /**
+     * @return street of the point closest to a coordinate; or null if none is within reach
+     */
+    String closest(double latitude, double longitude, double maxDistance) {
+      String best = null;
+      double bestDistance = maxDistance;
+      for (int i = 0; i < coordinates.size(); i++) {
+        double[] point = coordinates.get(i);
+        double distance = GeoUtils.distance(latitude, longitude, point[0], point[1]);
+        if (distance <= bestDistance) {
+          bestDistance = distance;
+          best = streets.get(i);
+        }
+      }
+      return best;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.hungn.alexa.pbt.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * Builder of synthetic Alexa request envelopes for the local tools
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class AlexaRequests {
+  private AlexaRequests() {
+  }
+
+  /**
+   * Build an IntentRequest with one slot
+   *
+   * @param applicationId skill application ID
+   * @param intent        intent name such as TrackIntent
+   * @param slot          slot name; or null for an intent without slots
+   * @param value         slot value
+   * @return request envelope as UTF-8 JSON
+   */
+  public static byte[] intentRequest(String applicationId, String intent, String slot, String value) {
+    return intentRequest(applicationId, intent,
+        slot == null ? Collections.emptyMap() : Collections.singletonMap(slot, value));
+  }
+
+  /**
+   * Build an IntentRequest
+   *
+   * @param applicationId skill application ID
+   * @param intent        intent name such as NextIntent
+   * @param slots         slot values by slot name
+   * @return request envelope as UTF-8 JSON
+   */
+  public static byte[] intentRequest(String applicationId, String intent, Map<String, String> slots) {
+    StringBuilder json = new StringBuilder("{");
+    for (Map.Entry<String, String> slot : slots.entrySet()) {
+      if (json.length() > 1) json.append(',');
+      json.append("\"").append(slot.getKey()).append("\":{\"name\":\"").append(slot.getKey())
+          .append("\",\"value\":\"").append(slot.getValue()).append("\"}");
+    }
+    json.append('}');
+    String request = "{\"type\":\"IntentRequest\",\"requestId\":\"" + id("EdwRequestId") + "\","
+        + "\"timestamp\":\"" + timestamp() + "\",\"locale\":\"en-US\","
+        + "\"intent\":{\"name\":\"" + intent + "\",\"slots\":" + json + "}}";
+    return envelope(applicationId, request);
+  }
+
+  private static byte[] envelope(String applicationId, String request) {
+    String json = "{\"version\":\"1.0\",\"session\":{\"new\":true,"
+        + "\"sessionId\":\"" + id("SessionId") + "\","
+        + "\"application\":{\"applicationId\":\"" + applicationId + "\"},\"attributes\":{},"
+        + "\"user\":{\"userId\":\"amzn1.ask.account.loadtest\"}},\"request\":" + request + "}";
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String id(String prefix) {
+    return "amzn1.echo-api." + prefix + "." + UUID.randomUUID();
+  }
+
+  private static String timestamp() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date());
+  }
+}
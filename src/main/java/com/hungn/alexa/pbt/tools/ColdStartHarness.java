@@ -0,0 +1,110 @@
+package com.hungn.alexa.pbt.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Repeatable cold-start benchmark. Each iteration launches a fresh JVM running
+ * {@link ColdStartProbe} against a local {@link UpstreamStub}, and measures the time from
+ * process launch to the first TrackIntent response, with and without the startup warmup.
+ * <p>
+ * Usage: ColdStartHarness [iterations] [classpath]
+ * <br>
+ * e.g. after mvn assembly:assembly:
+ * java -cp target/penn-bus-tracker-1.0-jar-with-dependencies.jar
+ * com.hungn.alexa.pbt.tools.ColdStartHarness 20
+ * <br>
+ * To measure the minimized jar from mvn -P lambda package, pass
+ * target/penn-bus-tracker-1.0-lambda.jar:target/classes as the classpath (the tools are not
+ * shaded into it).
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class ColdStartHarness {
+  private static final String[] METRICS = {"jvm_ms", "init_ms", "first_ms", "second_ms", "total_ms"};
+  private static final Pattern NUMBER = Pattern.compile("\"(\\w+)\":([0-9.]+)");
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    String classpath = args.length > 1 ? args[1] : System.getProperty("java.class.path");
+
+    UpstreamStub stub = new UpstreamStub(0);
+    stub.start();
+    try {
+      for (boolean warmup : new boolean[]{false, true}) {
+        Map<String, double[]> results = new LinkedHashMap<>();
+        for (String metric : METRICS) results.put(metric, new double[iterations]);
+
+        for (int i = 0; i < iterations; i++) {
+          Map<String, Double> run = launch(classpath, stub.getBaseUrl(), warmup);
+          for (String metric : METRICS) {
+            Double value = run.get(metric);
+            results.get(metric)[i] = value == null ? Double.NaN : value;
+          }
+        }
+        report(warmup ? "warmup" : "no-warmup", results);
+      }
+    } finally {
+      stub.stop();
+    }
+  }
+
+  private static Map<String, Double> launch(String classpath, String baseUrl, boolean warmup)
+      throws IOException, InterruptedException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    List<String> command = new ArrayList<>(Arrays.asList(java,
+        "-cp", classpath,
+        "-Dlog4j.configuration=log4j-local.properties",
+        "-DPBT_PENNRIDES_URL=" + baseUrl,
+        "-DPBT_GOOGLE_MAPS_URL=" + baseUrl,
+        "-DPBT_WARMUP=" + warmup,
+        ColdStartProbe.class.getName(),
+        Long.toString(System.currentTimeMillis())));
+    Process process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+
+    String last = null;
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) last = line;
+    }
+    if (process.waitFor() != 0 || last == null) {
+      throw new IOException("Cold start probe failed with exit code " + process.exitValue());
+    }
+
+    Map<String, Double> values = new LinkedHashMap<>();
+    Matcher matcher = NUMBER.matcher(last);
+    while (matcher.find()) values.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+    return values;
+  }
+
+  private static void report(String mode, Map<String, double[]> results) {
+    StringBuilder json = new StringBuilder("{\"mode\":\"").append(mode).append('"');
+    for (Map.Entry<String, double[]> entry : results.entrySet()) {
+      double[] values = entry.getValue().clone();
+      Arrays.sort(values);
+      json.append(",\"").append(entry.getKey()).append("\":{")
+          .append("\"p50\":").append(percentile(values, 0.50))
+          .append(",\"p90\":").append(percentile(values, 0.90))
+          .append(",\"max\":").append(values[values.length - 1]).append('}');
+    }
+    System.out.println(json.append('}'));
+  }
+
+  private static double percentile(double[] sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+}
@@ -0,0 +1,51 @@
+package com.hungn.alexa.pbt.tools;
+
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Set;
+
+/**
+ * Child process of {@link ColdStartHarness}: loads the Lambda handler the way the Lambda runtime
+ * does, sends it one TrackIntent and prints the timings as a single line of JSON.
+ * <p>
+ * Usage: ColdStartProbe launchEpochMillis
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class ColdStartProbe {
+  private static final String HANDLER = "com.hungn.alexa.pbt.StreamHandler";
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws Exception {
+    long launched = Long.parseLong(args[0]);
+    long mainStart = System.currentTimeMillis();
+
+    // Static initialization (including warmup) and construction, as in the Lambda init phase
+    long start = System.nanoTime();
+    Class<?> type = Class.forName(HANDLER);
+    RequestStreamHandler handler = (RequestStreamHandler) type.getDeclaredConstructor().newInstance();
+    long init = System.nanoTime() - start;
+
+    Set<String> applicationIds = (Set<String>) type.getMethod("getSupportedApplicationIds").invoke(null);
+    byte[] request = AlexaRequests.intentRequest(applicationIds.iterator().next(),
+        "TrackIntent", "vehicle", "shuttle west b");
+
+    start = System.nanoTime();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    handler.handleRequest(new ByteArrayInputStream(request), out, null);
+    long first = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    handler.handleRequest(new ByteArrayInputStream(request), new ByteArrayOutputStream(), null);
+    long second = System.nanoTime() - start;
+
+    System.out.println("{\"jvm_ms\":" + (mainStart - launched)
+        + ",\"init_ms\":" + init / 1000000.0
+        + ",\"first_ms\":" + first / 1000000.0
+        + ",\"second_ms\":" + second / 1000000.0
+        + ",\"total_ms\":" + (System.currentTimeMillis() - launched)
+        + ",\"response_bytes\":" + out.size() + "}");
+  }
+}
@@ -0,0 +1,215 @@
+package com.hungn.alexa.pbt.tools;
+
+import com.hungn.alexa.pbt.StreamHandler;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.RouteNameResolver;
+import com.hungn.alexa.pbt.metrics.LatencyHistogram;
+import com.hungn.alexa.pbt.util.DaemonThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test of the skill. Sends synthetic TrackIntent, NextIntent and NearbyIntent
+ * requests through {@link StreamHandler}, in process, at a fixed target rate, with the upstream
+ * calls going to an {@link UpstreamStub} started alongside (or to the given upstream URL).
+ * <p>
+ * Requests are scheduled open loop: each has an intended start time on a fixed schedule, and its
+ * response time is measured from then, so a stall shows up in the percentiles of every request
+ * queued behind it instead of slowing the generator down. The service time (from the moment a
+ * thread picks the request up) is reported too. Samples from the warmup period are left out.
+ * <p>
+ * Usage: LoadGenerator [rate] [seconds] [threads] [--warmup seconds] [--upstream url]
+ * [--latency spec] [--error-rate rate] [--fleet size] [--replay dir]
+ * <br>
+ * where the last four options configure the local stub, as for {@link UpstreamStub}.
+ * e.g. after mvn assembly:assembly:
+ * java -cp target/penn-bus-tracker-1.0-jar-with-dependencies.jar
+ * com.hungn.alexa.pbt.tools.LoadGenerator 100 60 32 --latency lognormal:40,400
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class LoadGenerator {
+  private static final String[] INTENTS = {"TrackIntent", "NextIntent", "NearbyIntent"};
+  // Share of each intent in the mix, in the order of INTENTS
+  private static final double[] MIX = {0.6, 0.3, 0.1};
+  private static final String[] PLACES = {"bookstore", "food court", "pottruck center"};
+
+  private final Map<String, LatencyHistogram> intentTimes = new LinkedHashMap<>();
+  private final LatencyHistogram responseTime = new LatencyHistogram();
+  private final LatencyHistogram serviceTime = new LatencyHistogram();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong lastCompletion = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    double rate = 50;
+    int seconds = 30;
+    int threads = 32;
+    int warmup = 5;
+    String upstream = null;
+    String latency = null;
+    double errorRate = 0;
+    int fleetSize = 0;
+    String replay = null;
+    int positional = 0;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) {
+        if (positional == 0) rate = Double.parseDouble(arg);
+        else if (positional == 1) seconds = Integer.parseInt(arg);
+        else threads = Integer.parseInt(arg);
+        positional++;
+      } else if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      } else if ("--warmup".equals(arg)) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if ("--upstream".equals(arg)) {
+        upstream = args[++i];
+      } else if ("--latency".equals(arg)) {
+        latency = args[++i];
+      } else if ("--error-rate".equals(arg)) {
+        errorRate = Double.parseDouble(args[++i]);
+      } else if ("--fleet".equals(arg)) {
+        fleetSize = Integer.parseInt(args[++i]);
+      } else if ("--replay".equals(arg)) {
+        replay = args[++i];
+      } else {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    if (System.getProperty("log4j.configuration") == null) {
+      System.setProperty("log4j.configuration", "log4j-local.properties");
+    }
+
+    UpstreamStub stub = null;
+    if (upstream == null) {
+      stub = new UpstreamStub(0);
+      if (latency != null) stub.setLatency(latency);
+      stub.setErrorRate(errorRate);
+      stub.setFleetSize(fleetSize);
+      if (replay != null) stub.setReplayDirectory(Paths.get(replay));
+      stub.start();
+      upstream = stub.getBaseUrl();
+    }
+    // Must be set before the skill classes read their settings
+    System.setProperty("PBT_PENNRIDES_URL", upstream);
+    System.setProperty("PBT_GOOGLE_MAPS_URL", upstream);
+
+    try {
+      new LoadGenerator().run(rate, seconds, warmup, threads);
+    } finally {
+      if (stub != null) stub.stop();
+    }
+  }
+
+  private void run(double rate, int seconds, int warmup, int threads) throws Exception {
+    StreamHandler handler = new StreamHandler();
+    String applicationId = StreamHandler.getSupportedApplicationIds().iterator().next();
+    for (String intent : INTENTS) intentTimes.put(intent, new LatencyHistogram());
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new DaemonThreadFactory("load"));
+    executor.prestartAllCoreThreads();
+
+    long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+    long sent = 0;
+    for (long intended = start; intended < end; intended = start + ++sent * period) {
+      long wait = intended - System.nanoTime();
+      if (wait > 0) LockSupport.parkNanos(wait);
+      String intent = pickIntent();
+      byte[] request = request(applicationId, intent);
+      long scheduled = intended;
+      executor.execute(() -> send(handler, intent, request, scheduled, scheduled >= measureFrom));
+    }
+    int backlog = executor.getQueue().size();
+    executor.shutdown();
+    if (!executor.awaitTermination(2 * seconds + 60, TimeUnit.SECONDS)) {
+      System.out.println("Gave up waiting for " + executor.getQueue().size() + " queued requests");
+      executor.shutdownNow();
+    }
+
+    report(rate, seconds, warmup, threads, measureFrom, backlog);
+  }
+
+  private void send(StreamHandler handler, String intent, byte[] request, long intended,
+                    boolean measured) {
+    long start = System.nanoTime();
+    try {
+      handler.handleRequest(new ByteArrayInputStream(request), new ByteArrayOutputStream(), null);
+    } catch (Exception ex) {
+      if (measured) errors.incrementAndGet();
+    }
+    if (!measured) return;
+    long now = System.nanoTime();
+    serviceTime.recordMicros((now - start) / 1000);
+    responseTime.recordMicros((now - intended) / 1000);
+    intentTimes.get(intent).recordMicros((now - intended) / 1000);
+    lastCompletion.accumulateAndGet(now, Math::max);
+  }
+
+  private static String pickIntent() {
+    double draw = ThreadLocalRandom.current().nextDouble();
+    for (int i = 0; i < MIX.length - 1; i++) {
+      if ((draw -= MIX[i]) < 0) return INTENTS[i];
+    }
+    return INTENTS[MIX.length - 1];
+  }
+
+  private static byte[] request(String applicationId, String intent) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    PennRides.Route[] routes = PennRides.Route.values();
+    String route = RouteNameResolver.getName(routes[random.nextInt(routes.length)]);
+    String place = PLACES[random.nextInt(PLACES.length)];
+    switch (intent) {
+      case "TrackIntent":
+        return AlexaRequests.intentRequest(applicationId, intent, "vehicle", route);
+      case "NextIntent":
+        Map<String, String> slots = new LinkedHashMap<>();
+        slots.put("vehicle", route);
+        slots.put("stop", place);
+        return AlexaRequests.intentRequest(applicationId, intent, slots);
+      default:
+        return AlexaRequests.intentRequest(applicationId, intent,
+            Collections.singletonMap("location", place));
+    }
+  }
+
+  private void report(double rate, int seconds, int warmup, int threads, long measureFrom,
+                      int backlog) {
+    LatencyHistogram.Snapshot service = serviceTime.snapshot(false);
+    long completed = service.getCount();
+    double elapsed = Math.max(1, lastCompletion.get() - measureFrom) / 1e9;
+    System.out.printf("Target %.1f req/s for %ds after %ds warmup, %d threads%n",
+        rate, seconds, warmup, threads);
+    System.out.printf("Completed %d requests at %.1f req/s, %d errors, %d queued when sending "
+        + "stopped%n", completed, completed / elapsed, errors.get(), backlog);
+    System.out.printf("%-16s %8s %9s %9s %9s %9s %9s  (ms)%n",
+        "", "count", "p50", "p90", "p99", "p99.9", "max");
+
+    row("response time", responseTime.snapshot(false));
+    row("service time", service);
+    for (Map.Entry<String, LatencyHistogram> intent : intentTimes.entrySet()) {
+      row(intent.getKey(), intent.getValue().snapshot(false));
+    }
+  }
+
+  private static void row(String name, LatencyHistogram.Snapshot snapshot) {
+    System.out.printf("%-16s %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n", name, snapshot.getCount(),
+        snapshot.getPercentile(0.50) / 1000.0, snapshot.getPercentile(0.90) / 1000.0,
+        snapshot.getPercentile(0.99) / 1000.0, snapshot.getPercentile(0.999) / 1000.0,
+        snapshot.getMax() / 1000.0);
+  }
+}
@@ -0,0 +1,68 @@
+package com.hungn.alexa.pbt.tools;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.WaypointsDecoder;
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.geo.RouteGeometryStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Compile route waypoints into the binary geometry file read by {@link RouteGeometryStore}.
+ * Without route arguments, the waypoints of every route are fetched from PennRides (or from
+ * PBT_PENNRIDES_URL); otherwise each ROUTE=file argument compiles a saved waypoints response,
+ * e.g. SHUTTLE_EAST=src/main/resources/sample_waypoints.txt.
+ * <p>
+ * Usage: RouteGeometryCompiler output [ROUTE=waypoints.json ...]
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class RouteGeometryCompiler {
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: RouteGeometryCompiler output [ROUTE=waypoints.json ...]");
+      System.exit(1);
+    }
+    Path output = Paths.get(args[0]);
+
+    Map<PennRides.Route, RouteGeometry> geometries = new EnumMap<>(PennRides.Route.class);
+    if (args.length == 1) {
+      PennRides pr = new PennRides();
+      for (PennRides.Route route : PennRides.Route.values()) {
+        RouteGeometry geometry = pr.getWaypoints(route);
+        if (geometry == null || geometry.size() < 2) {
+          System.err.println("Skipping " + route + " -- no waypoints");
+        } else {
+          geometries.put(route, geometry);
+        }
+      }
+    } else {
+      for (int i = 1; i < args.length; i++) {
+        int split = args[i].indexOf('=');
+        if (split < 0) throw new IllegalArgumentException("Expected ROUTE=file, got " + args[i]);
+        PennRides.Route route = PennRides.Route.valueOf(args[i].substring(0, split));
+        try (InputStream in = Files.newInputStream(Paths.get(args[i].substring(split + 1)))) {
+          geometries.put(route, WaypointsDecoder.decode(in));
+        }
+      }
+    }
+
+    RouteGeometryStore.write(output, geometries);
+    long footprint = 0;
+    for (Map.Entry<PennRides.Route, RouteGeometry> entry : geometries.entrySet()) {
+      RouteGeometry geometry = entry.getValue();
+      footprint += geometry.getFootprint();
+      System.out.println(entry.getKey() + ": " + geometry.size() + " points, "
+          + geometry.getSegmentCount() + " segments, " + Math.round(geometry.getLength()) + "m"
+          + (geometry.isLoop() ? ", loop" : ""));
+    }
+    System.out.println("Wrote " + geometries.size() + " routes to " + output + " ("
+        + Files.size(output) + " bytes on disk, about " + footprint + " bytes on heap)");
+  }
+}
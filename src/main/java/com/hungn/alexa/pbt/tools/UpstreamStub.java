@@ -0,0 +1,471 @@
+package com.hungn.alexa.pbt.tools;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.hungn.alexa.pbt.api.GoogleMapsGeoencoding;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Local stand-in for pennrides.com and the Google Maps Geocoding API, serving the bundled
+ * sample_*.txt fixtures. Point the skill at it with PBT_PENNRIDES_URL and PBT_GOOGLE_MAPS_URL.
+ * <p>
+ * Faults can be injected into the upstream endpoints, to exercise deadlines, hedging and circuit
+ * breaking: a fixed delay, a latency distribution, a share of slow responses and a share of 503
+ * errors. Set them with the setters, or over HTTP while the stub runs, e.g.
+ * {@code curl 'http://127.0.0.1:8089/_faults?latency=lognormal:40,400&errorRate=0.02'};
+ * {@code GET /_faults} without parameters resets them. The vehicles endpoint can also answer
+ * with a synthetic fleet of any size instead of the sample vehicles.
+ * <p>
+ * With a recording directory, every upstream request is forwarded to the real services and the
+ * successful responses are saved there, one file per path and query (without the API key).
+ * With a replay directory, saved responses are served where they exist, and the fixtures
+ * otherwise.
+ * <p>
+ * Usage: UpstreamStub [port] [--latency spec] [--error-rate rate] [--fleet size]
+ * [--record dir | --replay dir]
+ * <br>
+ * where spec is fixed:ms, uniform:min,max or lognormal:median,p99
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class UpstreamStub {
+  private static final String GEOCODE_RESPONSE = "{\"status\":\"OK\",\"results\":"
+      + "[{\"formatted_address\":\"3601 Walnut St, Philadelphia, PA 19104, USA\","
+      + "\"geometry\":{\"location\":{\"lat\":39.953218,\"lng\":-75.195111}}}]}";
+  private static final String GEOCODE_PATH = "/maps/api/geocode/json";
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final byte[] vehicles;
+  private final byte[] stops;
+  private final byte[] waypoints;
+  private final byte[] directions;
+
+  private volatile long delayMs;
+  private volatile Latency latency = Latency.NONE;
+  private volatile double slowRate;
+  private volatile long slowMs;
+  private volatile double errorRate;
+  private volatile byte[] fleet;
+  private volatile int fleetSize;
+  private volatile Path replayDir;
+  private volatile Path recordDir;
+
+  public UpstreamStub(int port) throws IOException {
+    vehicles = fixture("sample_vehicles.txt");
+    stops = fixture("sample_stops.txt");
+    waypoints = fixture("sample_waypoints.txt");
+    directions = fixture("sample_directions.txt");
+
+    // Without TCP_NODELAY, small responses on a kept-alive connection can wait on delayed ACKs
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.createContext("/Route/", this::handleRoute);
+    server.createContext(GEOCODE_PATH, this::handleGeocode);
+    server.createContext("/_faults", this::handleFaults);
+    server.createContext("/", exchange -> respond(exchange, 200, new byte[0]));
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 8089;
+    String latency = null;
+    double errorRate = 0;
+    int fleetSize = 0;
+    Path record = null;
+    Path replay = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) {
+        port = Integer.parseInt(arg);
+      } else if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      } else if ("--latency".equals(arg)) {
+        latency = args[++i];
+      } else if ("--error-rate".equals(arg)) {
+        errorRate = Double.parseDouble(args[++i]);
+      } else if ("--fleet".equals(arg)) {
+        fleetSize = Integer.parseInt(args[++i]);
+      } else if ("--record".equals(arg)) {
+        record = Paths.get(args[++i]);
+      } else if ("--replay".equals(arg)) {
+        replay = Paths.get(args[++i]);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    UpstreamStub stub = new UpstreamStub(port);
+    if (latency != null) stub.setLatency(latency);
+    stub.setErrorRate(errorRate);
+    stub.setFleetSize(fleetSize);
+    if (record != null) stub.setRecordDirectory(record);
+    if (replay != null) stub.setReplayDirectory(replay);
+    stub.start();
+    System.out.println("Upstream stub listening on " + stub.getBaseUrl()
+        + (record != null ? ", recording to " + record : "")
+        + (replay != null ? ", replaying from " + replay : ""));
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return base URL to use for PBT_PENNRIDES_URL and PBT_GOOGLE_MAPS_URL
+   */
+  public String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * @param delayMs delay added to every upstream response
+   */
+  public void setDelay(long delayMs) {
+    this.delayMs = delayMs;
+  }
+
+  /**
+   * @param spec distribution of the delay added to every upstream response, on top of the fixed
+   *             delay: fixed:ms, uniform:min,max, lognormal:median,p99 (in milliseconds) or none
+   * @throws IllegalArgumentException if the spec cannot be parsed
+   */
+  public void setLatency(String spec) {
+    this.latency = Latency.parse(spec);
+  }
+
+  /**
+   * @param rate    share of upstream responses to slow down, between 0 and 1
+   * @param delayMs extra delay of those responses
+   */
+  public void setSlow(double rate, long delayMs) {
+    this.slowRate = rate;
+    this.slowMs = delayMs;
+  }
+
+  /**
+   * @param rate share of upstream requests answered with 503, between 0 and 1
+   */
+  public void setErrorRate(double rate) {
+    this.errorRate = rate;
+  }
+
+  /**
+   * @param size number of vehicles every route reports; 0 for the sample vehicles
+   */
+  public void setFleetSize(int size) throws IOException {
+    this.fleet = size > 0 ? fleet(size) : null;
+    this.fleetSize = Math.max(0, size);
+  }
+
+  /**
+   * @param dir directory to serve recorded responses from, where one exists; or null
+   */
+  public void setReplayDirectory(Path dir) {
+    this.replayDir = dir;
+  }
+
+  /**
+   * @param dir directory to save the responses of the real services into, forwarding every
+   *            upstream request to them; or null to stop recording
+   */
+  public void setRecordDirectory(Path dir) throws IOException {
+    if (dir != null) Files.createDirectories(dir);
+    this.recordDir = dir;
+  }
+
+  /**
+   * Delay the response as configured, and answer with an error if this request draws one
+   *
+   * @return whether an error was sent
+   */
+  private boolean injectFault(HttpExchange exchange) throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long delay = delayMs + latency.sample(random) + (random.nextDouble() < slowRate ? slowMs : 0);
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (random.nextDouble() < errorRate) {
+      respond(exchange, 503, new byte[0]);
+      return true;
+    }
+    return false;
+  }
+
+  private void handleFaults(HttpExchange exchange) throws IOException {
+    Map<String, String> params = new HashMap<>();
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq > 0) params.put(pair.substring(0, eq), pair.substring(eq + 1));
+      }
+    }
+    try {
+      setDelay(Long.parseLong(params.getOrDefault("delayMs", "0")));
+      setLatency(params.getOrDefault("latency", "none"));
+      setSlow(Double.parseDouble(params.getOrDefault("slowRate", "0")),
+          Long.parseLong(params.getOrDefault("slowMs", "0")));
+      setErrorRate(Double.parseDouble(params.getOrDefault("errorRate", "0")));
+      setFleetSize(Integer.parseInt(params.getOrDefault("fleet", "0")));
+    } catch (IllegalArgumentException ex) {
+      respond(exchange, 400, String.valueOf(ex.getMessage()).getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+    respond(exchange, 200, ("{\"delayMs\":" + delayMs + ",\"latency\":\"" + latency
+        + "\",\"slowRate\":" + slowRate + ",\"slowMs\":" + slowMs + ",\"errorRate\":" + errorRate
+        + ",\"fleet\":" + fleetSize + "}")
+        .getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void handleRoute(HttpExchange exchange) throws IOException {
+    if (injectFault(exchange) || proxy(exchange, PennRides.BASE_SCHEME, PennRides.BASE_HOST)
+        || replay(exchange)) {
+      return;
+    }
+    // Paths look like /Route/3900/vehicles/
+    String path = exchange.getRequestURI().getPath();
+    if (path.endsWith("/vehicles/")) {
+      byte[] current = fleet;
+      respond(exchange, 200, current != null ? current : vehicles);
+    } else if (path.endsWith("/stops/")) {
+      respond(exchange, 200, stops);
+    } else if (path.endsWith("/waypoints/")) {
+      respond(exchange, 200, waypoints);
+    } else if (path.endsWith("/directions/")) {
+      respond(exchange, 200, directions);
+    } else {
+      respond(exchange, 404, new byte[0]);
+    }
+  }
+
+  private void handleGeocode(HttpExchange exchange) throws IOException {
+    if (injectFault(exchange)
+        || proxy(exchange, GoogleMapsGeoencoding.BASE_SCHEME, GoogleMapsGeoencoding.BASE_HOST)
+        || replay(exchange)) {
+      return;
+    }
+    respond(exchange, 200, GEOCODE_RESPONSE.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * While recording, forward the request to the real service, and save a successful response
+   *
+   * @return whether the request was forwarded and answered
+   */
+  private boolean proxy(HttpExchange exchange, String scheme, String host) throws IOException {
+    Path dir = recordDir;
+    if (dir == null) return false;
+
+    URI uri = exchange.getRequestURI();
+    URL url = new URL(scheme + "://" + host + uri.getRawPath()
+        + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(10000);
+    int code;
+    byte[] body;
+    try {
+      code = connection.getResponseCode();
+      InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+      body = in == null ? new byte[0] : read(in);
+    } catch (IOException ex) {
+      respond(exchange, 502, String.valueOf(ex.getMessage()).getBytes(StandardCharsets.UTF_8));
+      return true;
+    } finally {
+      connection.disconnect();
+    }
+    if (code == 200) Files.write(dir.resolve(recordingName(uri)), body);
+    respond(exchange, code, body);
+    return true;
+  }
+
+  /**
+   * Serve the recorded response to the request, if there is one
+   *
+   * @return whether a recording was served
+   */
+  private boolean replay(HttpExchange exchange) throws IOException {
+    Path dir = replayDir;
+    if (dir == null) return false;
+    Path file = dir.resolve(recordingName(exchange.getRequestURI()));
+    if (!Files.isRegularFile(file)) return false;
+    respond(exchange, 200, Files.readAllBytes(file));
+    return true;
+  }
+
+  /**
+   * File name of the recording of a request: its path and query, without the API key, with
+   * anything but letters, digits, dots and dashes replaced
+   */
+  static String recordingName(URI uri) {
+    StringBuilder name = new StringBuilder(uri.getPath());
+    String query = uri.getQuery();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        if (!pair.startsWith("key=")) name.append('_').append(pair);
+      }
+    }
+    String safe = name.toString().replaceAll("[^A-Za-z0-9.\\-]+", "_").replaceAll("^_+|_+$", "");
+    if (safe.length() > 160) {
+      safe = safe.substring(0, 150) + "_" + Integer.toHexString(safe.hashCode());
+    }
+    return safe + ".json";
+  }
+
+  /**
+   * Scale sample_vehicles.txt up to a synthetic fleet, cycling through the sample vehicles
+   * with new IDs and names and slightly shifted positions
+   *
+   * @param size number of vehicles
+   * @return vehicles response body
+   */
+  public static byte[] fleet(int size) throws IOException {
+    JsonNode sample = mapper.readTree(fixture("sample_vehicles.txt"));
+    ArrayNode fleet = mapper.createArrayNode();
+    for (int i = 0; i < size; i++) {
+      ObjectNode vehicle = ((ObjectNode) sample.get(i % sample.size())).deepCopy();
+      double shift = (i / sample.size()) * 1e-4;
+      vehicle.put("ID", 1000 + i);
+      vehicle.put("Name", "V" + i);
+      vehicle.put("Latitude", vehicle.path("Latitude").asDouble() + shift);
+      vehicle.put("Longitude", vehicle.path("Longitude").asDouble() - shift);
+      fleet.add(vehicle);
+    }
+    return mapper.writeValueAsBytes(fleet);
+  }
+
+  private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+    // Drain the request so the connection can be kept alive
+    try (InputStream in = exchange.getRequestBody()) {
+      while (in.read() >= 0) {
+        // discard
+      }
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(code, -1);
+      exchange.close();
+      return;
+    }
+    exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  static byte[] fixture(String name) throws IOException {
+    try (InputStream in = UpstreamStub.class.getResourceAsStream("/" + name)) {
+      if (in == null) throw new IOException("Missing fixture " + name);
+      return read(in);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+    return out.toByteArray();
+  }
+
+  /**
+   * Distribution of the delay added to upstream responses
+   */
+  static final class Latency {
+    static final Latency NONE = new Latency("none", 'n', 0, 0);
+    // z-score of the 99th percentile of the standard normal distribution
+    private static final double Z99 = 2.326;
+
+    private final String spec;
+    private final char kind;
+    private final double a;
+    private final double b;
+
+    private Latency(String spec, char kind, double a, double b) {
+      this.spec = spec;
+      this.kind = kind;
+      this.a = a;
+      this.b = b;
+    }
+
+    /**
+     * @param spec fixed:ms, uniform:min,max, lognormal:median,p99 or none
+     */
+    static Latency parse(String spec) {
+      if (spec == null || spec.isEmpty() || "none".equals(spec)) return NONE;
+      int colon = spec.indexOf(':');
+      String type = colon < 0 ? spec : spec.substring(0, colon);
+      String[] values = colon < 0 ? new String[0] : spec.substring(colon + 1).split(",");
+      if ("fixed".equals(type) && values.length == 1) {
+        return new Latency(spec, 'f', Double.parseDouble(values[0]), 0);
+      } else if ("uniform".equals(type) && values.length == 2) {
+        return new Latency(spec, 'u', Double.parseDouble(values[0]), Double.parseDouble(values[1]));
+      } else if ("lognormal".equals(type) && values.length == 2) {
+        double median = Double.parseDouble(values[0]);
+        double p99 = Double.parseDouble(values[1]);
+        if (median <= 0 || p99 < median) {
+          throw new IllegalArgumentException("Expected 0 < median <= p99 in " + spec);
+        }
+        return new Latency(spec, 'l', Math.log(median), Math.log(p99 / median) / Z99);
+      }
+      throw new IllegalArgumentException("Unknown latency distribution " + spec);
+    }
+
+    /**
+     * @return delay in milliseconds
+     */
+    long sample(ThreadLocalRandom random) {
+      switch (kind) {
+        case 'f':
+          return Math.round(a);
+        case 'u':
+          return Math.round(a + random.nextDouble() * (b - a));
+        case 'l':
+          return Math.round(Math.exp(a + b * random.nextGaussian()));
+        default:
+          return 0;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return spec;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.hungn.alexa.pbt.types;
+
+/**
+ * Predicted arrival of a vehicle at a stop
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class Arrival {
+  private VehicleStatus vehicle;
+  private Stop stop;
+  private double distance;
+  private long seconds;
+
+  public VehicleStatus getVehicle() {
+    return vehicle;
+  }
+
+  public void setVehicle(VehicleStatus vehicle) {
+    this.vehicle = vehicle;
+  }
+
+  public Stop getStop() {
+    return stop;
+  }
+
+  public void setStop(Stop stop) {
+    this.stop = stop;
+  }
+
+  /**
+   * @return distance in meters left to drive along the route
+   */
+  public double getDistance() {
+    return distance;
+  }
+
+  public void setDistance(double distance) {
+    this.distance = distance;
+  }
+
+  /**
+   * @return predicted time to arrival in seconds, from now
+   */
+  public long getSeconds() {
+    return seconds;
+  }
+
+  public void setSeconds(long seconds) {
+    this.seconds = seconds;
+  }
+}
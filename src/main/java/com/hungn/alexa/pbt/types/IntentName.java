@@ -5,6 +5,10 @@ package com.hungn.alexa.pbt.types;
  */
 public class IntentName {
   public static final String TRACK_INTENT = "TrackIntent";
+  public static final String NEXT_INTENT = "NextIntent";
+  public static final String NEARBY_INTENT = "NearbyIntent";
+  public static final String VEHICLE_INTENT = "VehicleIntent";
+  public static final String NEXT_VEHICLE_INTENT = "NextVehicleIntent";
 
   public static final String AMZ_HELP_INTENT = "AMAZON.HelpIntent";
   public static final String AMZ_CANCEL_INTENT = "AMAZON.CancelIntent";
@@ -0,0 +1,43 @@
+package com.hungn.alexa.pbt.types;
+
+/**
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class Stop {
+  private int id;
+  private String name;
+  private double longitude;
+  private double latitude;
+
+  public int getId() {
+    return id;
+  }
+
+  public void setId(int id) {
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public double getLongitude() {
+    return longitude;
+  }
+
+  public void setLongitude(double longitude) {
+    this.longitude = longitude;
+  }
+
+  public double getLatitude() {
+    return latitude;
+  }
+
+  public void setLatitude(double latitude) {
+    this.latitude = latitude;
+  }
+}
@@ -13,6 +13,7 @@ public class VehicleStatus {
   private double speed;
   private String heading;
   private String lastUpdated;
+  private long updated;
 
   public int getId() {
     return id;
@@ -62,6 +63,9 @@ public class VehicleStatus {
     this.latitude = latitude;
   }
 
+  /**
+   * @return reported speed in miles per hour
+   */
   public double getSpeed() {
     return speed;
   }
@@ -85,4 +89,15 @@ public class VehicleStatus {
   public void setLastUpdated(String lastUpdated) {
     this.lastUpdated = lastUpdated;
   }
+
+  /**
+   * @return time of the last position report in epoch seconds
+   */
+  public long getUpdated() {
+    return updated;
+  }
+
+  public void setUpdated(long updated) {
+    this.updated = updated;
+  }
 }
@@ -0,0 +1,54 @@
+package com.hungn.alexa.pbt.util;
+
+/**
+ * Helper class to read tunable settings. A JVM system property takes precedence over the
+ * Lambda environment variable of the same name, and the default is used if neither is set
+ * or the value cannot be parsed.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class Config {
+  private Config() {
+  }
+
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null || value.isEmpty()) value = System.getenv(name);
+    return (value == null || value.isEmpty()) ? defaultValue : value.trim();
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException ex) {
+      return defaultValue;
+    }
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    if (value == null) return defaultValue;
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      return defaultValue;
+    }
+  }
+
+  public static double getDouble(String name, double defaultValue) {
+    String value = getString(name, null);
+    if (value == null) return defaultValue;
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException ex) {
+      return defaultValue;
+    }
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
@@ -0,0 +1,88 @@
+package com.hungn.alexa.pbt.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deadlines and delays for {@link CompletableFuture} pipelines, on one shared timer thread, so
+ * waiting for a deadline never holds a thread of its own. Tasks run on the timer thread and
+ * must be short; so must the stages of a future completed by a timeout.
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public final class Futures {
+  private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+  private Futures() {
+  }
+
+  private static ScheduledThreadPoolExecutor createTimer() {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("deadline-timer"));
+    // Most deadlines are met, so their timeouts are cancelled; do not keep them queued
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Run a short task on the timer thread after a delay
+   *
+   * @param task       task to run
+   * @param delayNanos delay in nanoseconds; run as soon as possible if not positive
+   * @return handle to cancel the task
+   */
+  public static ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+    return timer.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Bound a future by a deadline
+   *
+   * @param future   future to wait for; left running when the deadline passes
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @return future completed as the given one, or failed with a {@link TimeoutException} if
+   * the given one is not done by the deadline
+   */
+  public static <T> CompletableFuture<T> within(CompletableFuture<T> future, long deadline) {
+    if (future.isDone()) return future;
+    CompletableFuture<T> bounded = new CompletableFuture<>();
+    ScheduledFuture<?> timeout = schedule(
+        () -> bounded.completeExceptionally(new TimeoutException()), deadline - System.nanoTime());
+    future.whenComplete((value, ex) -> {
+      timeout.cancel(false);
+      if (ex != null) bounded.completeExceptionally(unwrap(ex));
+      else bounded.complete(value);
+    });
+    return bounded;
+  }
+
+  /**
+   * Bound a future by a deadline, falling back to a value when it is late or fails
+   *
+   * @param future   future to wait for; left running when the deadline passes
+   * @param deadline time to give up, in {@link System#nanoTime()} units
+   * @param fallback value used if the future fails or is not done by the deadline
+   * @return future of the given one's value, or of the fallback
+   */
+  public static <T> CompletableFuture<T> within(CompletableFuture<T> future, long deadline,
+                                                T fallback) {
+    return within(future, deadline).exceptionally(ex -> fallback);
+  }
+
+  /**
+   * @param failure failure as seen by a dependent stage
+   * @return the original failure, without the wrappers added by {@link CompletableFuture}
+   */
+  public static Throwable unwrap(Throwable failure) {
+    while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+        && failure.getCause() != null) {
+      failure = failure.getCause();
+    }
+    return failure;
+  }
+}
@@ -0,0 +1,75 @@
+package com.hungn.alexa.pbt.api;
+
+import org.junit.Test;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class ClockTimeTest {
+  // How the Updated field was parsed before ClockTime, less the date prefix
+  private static final DateTimeFormatter dtParser =
+      DateTimeFormatter.ofPattern("h:mm:ssa", Locale.US);
+
+  @Test
+  public void parsesEveryTimeOfDayAsDateTimeFormatter() {
+    for (int second = 0; second < ClockTime.SECONDS_PER_DAY; second += 7) {
+      LocalTime time = LocalTime.ofSecondOfDay(second);
+      int hour = time.getHour() % 12 == 0 ? 12 : time.getHour() % 12;
+      String value = String.format("%d:%02d:%02d%c", hour, time.getMinute(), time.getSecond(),
+          time.getHour() < 12 ? 'A' : 'P');
+      int expected = LocalTime.parse(value + "M", dtParser).toSecondOfDay();
+      assertEquals(value, expected, ClockTime.parseSecondOfDay(value));
+      assertEquals(value, expected, ClockTime.parseSecondOfDay(value + "M"));
+    }
+  }
+
+  @Test
+  public void parsesTwelveOClock() {
+    assertEquals(0, ClockTime.parseSecondOfDay("12:00:00A"));
+    assertEquals(5 * 60 + 7, ClockTime.parseSecondOfDay("12:05:07A"));
+    assertEquals(12 * 3600, ClockTime.parseSecondOfDay("12:00:00P"));
+    assertEquals(12 * 3600 + 59 * 60 + 59, ClockTime.parseSecondOfDay("12:59:59P"));
+    assertEquals(11 * 3600, ClockTime.parseSecondOfDay("11:00:00A"));
+    assertEquals(20 * 3600 + 44 * 60 + 6, ClockTime.parseSecondOfDay("8:44:06p"));
+  }
+
+  @Test
+  public void rejectsInvalidTimes() {
+    assertEquals(-1, ClockTime.parseSecondOfDay(null));
+    assertEquals(-1, ClockTime.parseSecondOfDay(""));
+    assertEquals(-1, ClockTime.parseSecondOfDay("13:00:00P"));
+    assertEquals(-1, ClockTime.parseSecondOfDay("0:00:00A"));
+    assertEquals(-1, ClockTime.parseSecondOfDay("8:60:00P"));
+    assertEquals(-1, ClockTime.parseSecondOfDay("8:44:6P"));
+    assertEquals(-1, ClockTime.parseSecondOfDay("8:44:06X"));
+    assertEquals(-1, ClockTime.parseSecondOfDay("8-44-06P"));
+    assertEquals(-1, ClockTime.parseSecondOfDay("a:44:06P"));
+  }
+
+  @Test
+  public void elapsedWithinTheDay() {
+    assertEquals(0, ClockTime.elapsedSeconds(1000, 1000));
+    assertEquals(65, ClockTime.elapsedSeconds(1000, 1065));
+  }
+
+  @Test
+  public void elapsedRollsOverMidnight() {
+    int beforeMidnight = ClockTime.parseSecondOfDay("11:59:50P");
+    int afterMidnight = ClockTime.parseSecondOfDay("12:00:10A");
+    assertEquals(20, ClockTime.elapsedSeconds(beforeMidnight, afterMidnight));
+  }
+
+  @Test
+  public void clampsSmallFutureSkew() {
+    assertEquals(0, ClockTime.elapsedSeconds(1001, 1000));
+    assertEquals(0, ClockTime.elapsedSeconds(1300, 1000));
+    // Further ahead than the skew allowance: a report from yesterday
+    assertEquals(ClockTime.SECONDS_PER_DAY - 301, ClockTime.elapsedSeconds(1301, 1000));
+  }
+}
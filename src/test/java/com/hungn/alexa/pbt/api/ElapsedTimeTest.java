@@ -0,0 +1,95 @@
+package com.hungn.alexa.pbt.api;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * {@link PennRides#appendElapsedTime} against the getElapsedTime it replaced
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class ElapsedTimeTest {
+  @Test
+  public void matchesOldOutputUnderAMinute() {
+    assertEquals(oldElapsedTime(0), elapsed(0));
+    for (long seconds = 2; seconds < 60; seconds++) {
+      assertEquals(oldElapsedTime(seconds), elapsed(seconds));
+    }
+    assertEquals(oldElapsedTime(-5), elapsed(-5));
+    assertEquals("unknown", elapsed(-5));
+  }
+
+  @Test
+  public void usesSingularUnits() {
+    assertEquals("1 second ago", elapsed(1));
+    assertEquals("1 minute 1 second ago", elapsed(61));
+    assertEquals("1 hour 1 minute ago", elapsed(3661));
+    assertEquals("1 day 1 hour ago", elapsed(90061));
+    // The old output here was "1 seconds ago"
+    assertNotEquals(oldElapsedTime(1), elapsed(1));
+  }
+
+  @Test
+  public void usesPluralUnits() {
+    assertEquals("0 seconds ago", elapsed(0));
+    assertEquals("2 minutes 5 seconds ago", elapsed(125));
+    assertEquals("2 minutes 0 seconds ago", elapsed(120));
+    assertEquals("3 hours 0 minutes ago", elapsed(3 * 3600 + 59));
+    assertEquals("2 days 2 hours ago", elapsed(2 * 86400 + 2 * 3600 + 120));
+  }
+
+  @Test
+  public void fixesMinutesAndAbove() {
+    // The old version subtracted milliseconds from seconds, so seconds went negative
+    assertEquals("2 minutes -119875 seconds ago", oldElapsedTime(125));
+    assertEquals("2 minutes 5 seconds ago", elapsed(125));
+  }
+
+  @Test
+  public void appendsToMessage() {
+    StringBuilder message = new StringBuilder("E09 was heading West ");
+    PennRides.appendElapsedTime(message, 30).append('.');
+    assertEquals("E09 was heading West 30 seconds ago.", message.toString());
+    assertEquals("30 seconds ago", PennRides.getElapsedTime(1000, 1030));
+  }
+
+  private static String elapsed(long seconds) {
+    return PennRides.appendElapsedTime(new StringBuilder(), seconds).toString();
+  }
+
+  /**
+   * getElapsedTime as it was before appendElapsedTime, on a difference in seconds
+   */
+  private static String oldElapsedTime(long diff) {
+    String ret = "";
+
+    if (diff < 0) return "unknown";
+
+    long days = TimeUnit.SECONDS.toDays(diff);
+    diff -= TimeUnit.DAYS.toMillis(days);
+    long hours = TimeUnit.SECONDS.toHours(diff);
+    diff -= TimeUnit.HOURS.toMillis(hours);
+    long minutes = TimeUnit.SECONDS.toMinutes(diff);
+    diff -= TimeUnit.MINUTES.toMillis(minutes);
+    long seconds = TimeUnit.SECONDS.toSeconds(diff);
+
+    if (days > 0) {
+      ret += days + " days ";
+      ret += hours + " hours";
+    } else if (hours > 0) {
+      ret += hours + " hours ";
+      ret += minutes + " minutes";
+    } else if (minutes > 0) {
+      ret += minutes + " minutes ";
+      ret += seconds + " seconds";
+    } else {
+      ret += seconds + " seconds";
+    }
+
+    return ret + " ago";
+  }
+}
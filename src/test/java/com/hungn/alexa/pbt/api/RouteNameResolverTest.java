@@ -0,0 +1,97 @@
+package com.hungn.alexa.pbt.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resolution of spoken route names, exact and approximate
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class RouteNameResolverTest {
+  private static final RouteNameResolver resolver = new RouteNameResolver();
+
+  private static void assertExact(PennRides.Route route, String spoken) {
+    RouteNameResolver.Match match = resolver.resolve(spoken);
+    assertEquals(spoken, route, match.getRoute());
+    assertEquals(spoken, 1, match.getConfidence(), 0);
+    assertFalse(spoken, match.isAmbiguous());
+  }
+
+  @Test
+  public void resolvesNamesOfTheFormerSwitch() {
+    // Every name the skill understood before, as normalized then
+    assertExact(PennRides.Route.SHUTTLE_EAST, "shuttle east");
+    assertExact(PennRides.Route.SHUTTLE_WEST_A, "shuttle west a");
+    assertExact(PennRides.Route.SHUTTLE_WEST_B, "shuttle west b");
+    assertExact(PennRides.Route.BUS_EAST, "bus east");
+    assertExact(PennRides.Route.BUS_WEST, "bus west");
+    // and as heard by Alexa
+    assertExact(PennRides.Route.SHUTTLE_WEST_A, "  Shuttle   West A. ");
+    assertExact(PennRides.Route.BUS_WEST, "Bus-West");
+  }
+
+  @Test
+  public void resolvesAliases() {
+    assertExact(PennRides.Route.SHUTTLE_WEST_B, "shuttle west be");
+    assertExact(PennRides.Route.SHUTTLE_WEST_A, "shuttle west hey");
+    assertExact(PennRides.Route.PENNOVATION, "penn ovation");
+    assertExact(PennRides.Route.PENNOVATION, "PENNOVATION");
+    assertExact(PennRides.Route.PENNOVATION, "Innovation");
+    assertExact(PennRides.Route.SHUTTLE_EAST, "the shuttle east route");
+    assertEquals("shuttle east", resolver.normalize("The Shuttle East route"));
+    assertNull(resolver.resolve("the route"));
+
+    RouteNameResolver custom = new RouteNameResolver("wes=west,est=east");
+    assertEquals(PennRides.Route.BUS_EAST, custom.resolve("bus est").getRoute());
+    assertEquals(1, custom.resolve("shuttle wes b").getConfidence(), 0);
+  }
+
+  @Test
+  public void asksBetweenRoutesOfANameCutShort() {
+    RouteNameResolver.Match match = resolver.resolve("shuttle west");
+    assertTrue(match.isAmbiguous());
+    assertEquals(PennRides.Route.SHUTTLE_WEST_A, match.getRoute());
+    assertEquals(PennRides.Route.SHUTTLE_WEST_B, match.getAlternative());
+    // Close enough to ask about both rather than tell there is no such route
+    assertTrue(match.getConfidence() > 0.8);
+    assertTrue(match.getConfidence() < 1);
+
+    match = resolver.resolve("the shuttle");
+    assertEquals(PennRides.Route.SHUTTLE_EAST, match.getRoute());
+    assertEquals(PennRides.Route.SHUTTLE_WEST_A, match.getAlternative());
+  }
+
+  @Test
+  public void scoresNearMissesBelowExactMatches() {
+    RouteNameResolver.Match match = resolver.resolve("shutl est");
+    assertEquals(PennRides.Route.SHUTTLE_EAST, match.getRoute());
+    assertFalse(match.isAmbiguous());
+    assertTrue(match.getConfidence() < 0.8);
+    assertTrue(match.getConfidence() > 0.5);
+
+    // Nothing like a route name
+    assertTrue(resolver.resolve("ferry").getConfidence() < 0.5);
+  }
+
+  @Test
+  public void rejectsTooLongNamesButStillNamesThem() {
+    StringBuilder spoken = new StringBuilder();
+    while (spoken.length() <= 80) spoken.append("Shuttle East ");
+    assertNull(resolver.resolve(spoken));
+    // Said back to the user as "There is no route named ..."
+    String named = resolver.normalize(spoken);
+    assertTrue(named.startsWith("shuttle east shuttle east"));
+    assertTrue(named.length() <= 64);
+    assertTrue(named.endsWith("east"));
+
+    StringBuilder word = new StringBuilder();
+    while (word.length() <= 64) word.append("shuttle");
+    assertNull(resolver.resolve(word));
+    assertEquals(64, resolver.normalize(word).length());
+  }
+}
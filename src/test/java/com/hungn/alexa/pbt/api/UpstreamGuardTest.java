@@ -0,0 +1,247 @@
+package com.hungn.alexa.pbt.api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Circuit breaking, hedging and deadlines of the upstream guard, blocking and non-blocking
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class UpstreamGuardTest {
+  private static final AtomicInteger guards = new AtomicInteger();
+
+  /**
+   * @return guard with a name of its own, so no PBT_ setting applies to it
+   */
+  private static UpstreamGuard guard(long hedgeMs, int failures, long openMs) {
+    return new UpstreamGuard("test" + guards.incrementAndGet(), hedgeMs, failures, openMs);
+  }
+
+  private static long in(long ms) {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  private static void fails(UpstreamGuard guard) {
+    try {
+      guard.call(in(1000), attempt -> {
+        throw new IOException("down");
+      });
+      fail("Expected the call to fail");
+    } catch (Exception ex) {
+      assertEquals("down", ex.getMessage());
+    }
+  }
+
+  @Test
+  public void opensAfterFailuresInARow() throws Exception {
+    UpstreamGuard guard = guard(0, 3, 60000);
+    fails(guard);
+    fails(guard);
+    assertFalse(guard.isOpen());
+    fails(guard);
+    assertTrue(guard.isOpen());
+    assertEquals(1, guard.getOpened());
+
+    AtomicInteger sent = new AtomicInteger();
+    try {
+      guard.call(in(1000), attempt -> sent.incrementAndGet());
+      fail("Expected the circuit to be open");
+    } catch (UpstreamGuard.CircuitOpenException ex) {
+      assertEquals(0, sent.get());
+    }
+    try {
+      guard.callAsync(in(1000), attempt -> CompletableFuture.completedFuture(sent.incrementAndGet()))
+          .join();
+      fail("Expected the circuit to be open");
+    } catch (CompletionException ex) {
+      assertTrue(ex.getCause() instanceof UpstreamGuard.CircuitOpenException);
+      assertEquals(0, sent.get());
+    }
+    assertEquals(2, guard.getRejected());
+  }
+
+  @Test
+  public void successResetsFailures() throws Exception {
+    UpstreamGuard guard = guard(0, 3, 60000);
+    fails(guard);
+    fails(guard);
+    assertEquals("up", guard.call(in(1000), attempt -> "up"));
+    fails(guard);
+    fails(guard);
+    assertFalse(guard.isOpen());
+  }
+
+  @Test
+  public void nullAnswerCountsAsFailure() throws Exception {
+    UpstreamGuard guard = guard(0, 2, 60000);
+    assertNull(guard.call(in(1000), attempt -> null));
+    assertNull(guard.callAsync(in(1000), attempt -> CompletableFuture.completedFuture(null)).join());
+    assertTrue(guard.isOpen());
+  }
+
+  @Test
+  public void letsOneProbeThroughAfterOpenPeriod() throws Exception {
+    UpstreamGuard guard = guard(0, 1, 50);
+    fails(guard);
+    assertTrue(guard.isOpen());
+    Thread.sleep(100);
+    assertFalse(guard.isOpen());
+
+    CompletableFuture<String> probe = new CompletableFuture<>();
+    CompletableFuture<String> probed = guard.callAsync(in(5000), attempt -> probe);
+    try {
+      guard.call(in(1000), attempt -> "second");
+      fail("Expected only the probe to go through");
+    } catch (UpstreamGuard.CircuitOpenException expected) {
+      // The probe is still running
+    }
+    probe.complete("up");
+    assertEquals("up", probed.join());
+    assertFalse(guard.isOpen());
+    assertEquals("again", guard.call(in(1000), attempt -> "again"));
+  }
+
+  @Test
+  public void failedProbeKeepsCircuitOpen() throws Exception {
+    UpstreamGuard guard = guard(0, 1, 50);
+    fails(guard);
+    Thread.sleep(100);
+    fails(guard);
+    assertTrue(guard.isOpen());
+    assertEquals(1, guard.getOpened());
+  }
+
+  @Test
+  public void hedgesSlowCallAndTakesFirstAnswer() throws Exception {
+    UpstreamGuard guard = guard(50, 5, 60000);
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<String> slow = new CompletableFuture<>();
+    String answer = guard.call(in(5000), attempt -> {
+      if (attempts.incrementAndGet() == 1) {
+        // Stuck until the guard aborts it
+        attempt.bind(slow);
+        return slow.get();
+      }
+      return "hedged";
+    });
+    assertEquals("hedged", answer);
+    assertEquals(2, attempts.get());
+    assertEquals(1, guard.getHedges());
+    assertTrue(slow.isCancelled());
+  }
+
+  @Test
+  public void sendsFirstAttemptOnCallingThread() throws Exception {
+    UpstreamGuard guard = guard(50, 5, 60000);
+    Thread caller = Thread.currentThread();
+    CompletableFuture<String> slow = new CompletableFuture<>();
+    String answer = guard.call(in(5000), attempt -> {
+      if (Thread.currentThread() == caller) {
+        attempt.bind(slow);
+        return slow.get();
+      }
+      return Thread.currentThread().getName();
+    });
+    assertTrue(answer, answer.contains("-hedge-"));
+    assertTrue(slow.isCancelled());
+  }
+
+  @Test
+  public void doesNotHedgeFastCall() throws Exception {
+    UpstreamGuard guard = guard(200, 5, 60000);
+    AtomicInteger attempts = new AtomicInteger();
+    assertEquals("fast", guard.call(in(5000), attempt -> {
+      attempts.incrementAndGet();
+      return "fast";
+    }));
+    Thread.sleep(300);
+    assertEquals(1, attempts.get());
+    assertEquals(0, guard.getHedges());
+  }
+
+  @Test
+  public void hedgesSlowAsyncCallAndTakesFirstAnswer() {
+    UpstreamGuard guard = guard(50, 5, 60000);
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<String> slow = new CompletableFuture<>();
+    String answer = guard.callAsync(in(5000), attempt -> {
+      if (attempts.incrementAndGet() == 1) {
+        attempt.bind(slow);
+        return slow;
+      }
+      return CompletableFuture.completedFuture("hedged");
+    }).join();
+    assertEquals("hedged", answer);
+    assertEquals(1, guard.getHedges());
+    assertTrue(slow.isCancelled());
+  }
+
+  @Test
+  public void usesSecondAttemptWhenFirstFails() throws Exception {
+    UpstreamGuard guard = guard(50, 5, 60000);
+    AtomicInteger attempts = new AtomicInteger();
+    String answer = guard.call(in(5000), attempt -> {
+      if (attempts.incrementAndGet() == 1) {
+        Thread.sleep(100);
+        throw new IOException("first failed");
+      }
+      Thread.sleep(200);
+      return "second";
+    });
+    assertEquals("second", answer);
+  }
+
+  @Test
+  public void abortsCallPastDeadline() throws Exception {
+    UpstreamGuard guard = guard(0, 5, 60000);
+    CompletableFuture<String> stuck = new CompletableFuture<>();
+    try {
+      guard.call(in(100), attempt -> {
+        attempt.bind(stuck);
+        return stuck.get();
+      });
+      fail("Expected the deadline to pass");
+    } catch (SocketTimeoutException expected) {
+      assertTrue(stuck.isCancelled());
+    }
+    assertEquals(1, guard.getDeadlinesExceeded());
+  }
+
+  @Test
+  public void abortsAsyncCallPastDeadline() {
+    UpstreamGuard guard = guard(0, 5, 60000);
+    CompletableFuture<String> stuck = new CompletableFuture<>();
+    try {
+      guard.callAsync(in(100), attempt -> {
+        attempt.bind(stuck);
+        return stuck;
+      }).join();
+      fail("Expected the deadline to pass");
+    } catch (CompletionException ex) {
+      assertTrue(ex.getCause() instanceof SocketTimeoutException);
+      assertTrue(stuck.isCancelled());
+    }
+    assertEquals(1, guard.getDeadlinesExceeded());
+  }
+
+  @Test
+  public void capsAttemptTimeoutsAtDeadline() throws Exception {
+    UpstreamGuard guard = guard(0, 5, 60000);
+    int timeout = guard.call(in(300), attempt -> attempt.getTimeout(5000));
+    assertTrue(timeout > 0 && timeout <= 300);
+    assertEquals(100, (int) guard.call(in(5000), attempt -> attempt.getTimeout(100)));
+  }
+}
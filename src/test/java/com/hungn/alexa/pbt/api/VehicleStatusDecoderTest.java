@@ -0,0 +1,155 @@
+package com.hungn.alexa.pbt.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hungn.alexa.pbt.tools.UpstreamStub;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The streaming decoder against the tree-based parsing it replaced
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehicleStatusDecoderTest {
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final DateTimeFormatter dtGenerator =
+      DateTimeFormatter.ofPattern("z dd-MM-yyyy ", Locale.US).withZone(PennRides.ZONE);
+  private static final DateTimeFormatter dtParser =
+      DateTimeFormatter.ofPattern("z dd-MM-yyyy h:mm:ssa", Locale.US);
+
+  // Later the same evening as the sample's reports, so no report crosses midnight
+  private static final ZonedDateTime NOW = ZonedDateTime.of(2017, 5, 20, 21, 0, 0, 0, PennRides.ZONE);
+
+  @Test
+  public void decodesSampleAsTreeParser() throws IOException {
+    byte[] body = load("sample_vehicles.txt");
+    assertSameAsTree(body);
+    assertEquals(3, decode(body).size());
+  }
+
+  @Test
+  public void decodesSyntheticFleetAsTreeParser() throws IOException {
+    assertSameAsTree(UpstreamStub.fleet(50));
+  }
+
+  @Test
+  public void fillsInSpeed() throws IOException {
+    List<VehicleStatus> vehicles = decode(load("sample_vehicles.txt"));
+    assertEquals(0, vehicles.get(0).getSpeed(), 0);
+    assertEquals(13, vehicles.get(1).getSpeed(), 0);
+    assertEquals(6, vehicles.get(2).getSpeed(), 0);
+  }
+
+  @Test
+  public void dropsVehiclesMissingRequiredFields() throws IOException {
+    String body = "[" + vehicle(1, "\"Name\":\"A\",")
+        + "," + vehicle(2, "")
+        + "," + vehicle(3, "\"Name\":\"C\",").replace("\"Updated\":\"8:44:06P\"", "\"Updated\":\"later\"")
+        + "]";
+    List<VehicleStatus> vehicles = decode(body.getBytes(StandardCharsets.UTF_8));
+    assertEquals(1, vehicles.size());
+    assertEquals(1, vehicles.get(0).getId());
+  }
+
+  @Test
+  public void dropsVehiclesWithNullFields() throws IOException {
+    // The tree-based parser kept this vehicle, named "null"
+    String body = "[" + vehicle(1, "\"Name\":null,") + "," + vehicle(2, "\"Name\":\"B\",") + "]";
+    List<VehicleStatus> vehicles = decode(body.getBytes(StandardCharsets.UTF_8));
+    assertEquals(1, vehicles.size());
+    assertEquals("B", vehicles.get(0).getName());
+  }
+
+  @Test
+  public void skipsAnythingButAnArray() throws IOException {
+    assertTrue(decode("{\"ID\":1}".getBytes(StandardCharsets.UTF_8)).isEmpty());
+    assertTrue(decode("[]".getBytes(StandardCharsets.UTF_8)).isEmpty());
+  }
+
+  private static String vehicle(int id, String name) {
+    return "{\"ID\":" + id + ",\"RouteId\":3900,\"PatternId\":3900," + name
+        + "\"Latitude\":39.95,\"Longitude\":-75.2,\"Coordinate\":{\"Latitude\":39.95},"
+        + "\"Heading\":\"NE\",\"Updated\":\"8:44:06P\"}";
+  }
+
+  private static void assertSameAsTree(byte[] body) throws IOException {
+    List<VehicleStatus> expected = decodeTree(body);
+    List<VehicleStatus> actual = decode(body);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      VehicleStatus want = expected.get(i);
+      VehicleStatus got = actual.get(i);
+      assertEquals(want.getId(), got.getId());
+      assertEquals(want.getRouteId(), got.getRouteId());
+      assertEquals(want.getPatternId(), got.getPatternId());
+      assertEquals(want.getName(), got.getName());
+      assertEquals(want.getLongitude(), got.getLongitude(), 0);
+      assertEquals(want.getLatitude(), got.getLatitude(), 0);
+      assertEquals(want.getHeading(), got.getHeading());
+      assertEquals(want.getUpdated(), got.getUpdated());
+    }
+  }
+
+  private static List<VehicleStatus> decode(byte[] body) throws IOException {
+    return VehicleStatusDecoder.decode(new ByteArrayInputStream(body), NOW);
+  }
+
+  /**
+   * Parsing of the vehicles response before the streaming decoder, less the HTTP call
+   */
+  private static List<VehicleStatus> decodeTree(byte[] body) throws IOException {
+    List<VehicleStatus> vehicles = new ArrayList<>();
+    JsonNode root = mapper.readTree(new String(body, StandardCharsets.UTF_8));
+    if (root.isArray() && root.size() > 0) {
+      for (JsonNode node : root) {
+        if (!node.path("ID").isMissingNode() &&
+            !node.path("RouteId").isMissingNode() &&
+            !node.path("PatternId").isMissingNode() &&
+            !node.path("Name").isMissingNode() &&
+            !node.path("Longitude").isMissingNode() &&
+            !node.path("Latitude").isMissingNode() &&
+            !node.path("Heading").isMissingNode() &&
+            !node.path("Updated").isMissingNode()) {
+          VehicleStatus status = new VehicleStatus();
+          status.setId(node.path("ID").asInt());
+          status.setRouteId(node.path("RouteId").asInt());
+          status.setPatternId(node.path("PatternId").asInt());
+          status.setName(node.path("Name").asText());
+          status.setLongitude(node.path("Longitude").asDouble());
+          status.setLatitude(node.path("Latitude").asDouble());
+          status.setHeading(PennRides.getHeading(node.path("Heading").asText()));
+          ZonedDateTime updatedTime = ZonedDateTime.parse(NOW.format(dtGenerator)
+              + node.path("Updated").asText() + "M", dtParser);
+          status.setUpdated(updatedTime.toEpochSecond());
+          vehicles.add(status);
+        }
+      }
+    }
+    return vehicles;
+  }
+
+  private static byte[] load(String name) throws IOException {
+    try (InputStream in = VehicleStatusDecoderTest.class.getResourceAsStream("/" + name)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.hungn.alexa.pbt.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Hits, expiry and eviction of the reverse-geocoding cache
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class GeocodeCacheTest {
+  // Near the center of a precision 8 cell
+  private static final double LATITUDE = 39.9529;
+  private static final double LONGITUDE = -75.19266;
+
+  @Test
+  public void hitsWithinTheSameCell() {
+    GeocodeCache cache = new GeocodeCache(8, 16, 1, TimeUnit.HOURS);
+    assertNull(cache.get(LONGITUDE, LATITUDE));
+    cache.put(LONGITUDE, LATITUDE, "3409 Walnut St");
+    assertEquals("3409 Walnut St", cache.get(LONGITUDE, LATITUDE));
+    // A few meters away, in the same 38m x 19m cell
+    assertEquals("3409 Walnut St", cache.get(LONGITUDE + 0.00005, LATITUDE - 0.00005));
+    // A block away
+    assertNull(cache.get(LONGITUDE - 0.002, LATITUDE));
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void expiresEntries() throws Exception {
+    GeocodeCache cache = new GeocodeCache(8, 16, 50, TimeUnit.MILLISECONDS);
+    cache.put(LONGITUDE, LATITUDE, "3409 Walnut St");
+    assertEquals("3409 Walnut St", cache.get(LONGITUDE, LATITUDE));
+    Thread.sleep(100);
+    assertNull(cache.get(LONGITUDE, LATITUDE));
+    assertEquals(1, cache.getExpirations());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void doesNotCacheMissingAddresses() {
+    GeocodeCache cache = new GeocodeCache(8, 16, 1, TimeUnit.HOURS);
+    cache.put(LONGITUDE, LATITUDE, null);
+    cache.put(LONGITUDE, LATITUDE, "");
+    assertEquals(0, cache.size());
+    assertNull(cache.get(LONGITUDE, LATITUDE));
+
+    // Nor do they replace a cached address
+    cache.put(LONGITUDE, LATITUDE, "3409 Walnut St");
+    cache.put(LONGITUDE, LATITUDE, null);
+    assertEquals("3409 Walnut St", cache.get(LONGITUDE, LATITUDE));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    GeocodeCache cache = new GeocodeCache(8, 2, 1, TimeUnit.HOURS);
+    cache.put(LONGITUDE, LATITUDE, "first");
+    cache.put(LONGITUDE - 0.002, LATITUDE, "second");
+    // Using the first cell makes the second the eldest
+    assertEquals("first", cache.get(LONGITUDE, LATITUDE));
+    cache.put(LONGITUDE - 0.004, LATITUDE, "third");
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.get(LONGITUDE - 0.002, LATITUDE));
+    assertEquals("first", cache.get(LONGITUDE, LATITUDE));
+    assertEquals("third", cache.get(LONGITUDE - 0.004, LATITUDE));
+  }
+}
@@ -0,0 +1,170 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.amazon.speech.speechlet.Session;
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Encoding of the vehicles kept in the Alexa session, and finding them by spoken name
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class SessionSnapshotTest {
+  private static final long FETCHED_AT = 1792271702;
+
+  private static VehicleStatus vehicle(int id, String name, double latitude, double longitude,
+                                       String heading, double speed, long updated) {
+    VehicleStatus status = new VehicleStatus();
+    status.setId(id);
+    status.setName(name);
+    status.setLatitude(latitude);
+    status.setLongitude(longitude);
+    status.setHeading(heading);
+    status.setSpeed(speed);
+    status.setUpdated(updated);
+    return status;
+  }
+
+  private static VehicleStatus e09() {
+    return vehicle(170, "E09", 39.9547725, -75.2018448, "West", 13, 1792271690);
+  }
+
+  @Test
+  public void encodesAsDocumented() {
+    SessionSnapshot snapshot = new SessionSnapshot(FETCHED_AT);
+    snapshot.add(PennRides.Route.SHUTTLE_EAST, e09(), "at 3601 Walnut St");
+    assertEquals("1|1792271702||3898,170,E09,39954773,-75201845,West,130,1792271690,0,"
+        + "at 3601 Walnut St", snapshot.encode());
+  }
+
+  @Test
+  public void roundTripsVehicles() {
+    SessionSnapshot snapshot = new SessionSnapshot(FETCHED_AT);
+    snapshot.add(PennRides.Route.SHUTTLE_EAST, e09(), "at 3601 Walnut St");
+    snapshot.add(PennRides.Route.SHUTTLE_WEST_B,
+        vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, 1792271600), null);
+    snapshot.update(1, vehicle(156, "E02", 39.9431, -75.2003, "North East", 6.5, 1792271720),
+        "near 40th St", FETCHED_AT + 25);
+
+    SessionSnapshot decoded = SessionSnapshot.decode(snapshot.encode());
+    assertEquals(2, decoded.size());
+    assertEquals(PennRides.Route.SHUTTLE_EAST, decoded.getRoute(0));
+    assertEquals(PennRides.Route.SHUTTLE_WEST_B, decoded.getRoute(1));
+
+    VehicleStatus status = decoded.getVehicle(0);
+    assertEquals(170, status.getId());
+    assertEquals("E09", status.getName());
+    assertEquals(39.9547725, status.getLatitude(), 1e-6);
+    assertEquals(-75.2018448, status.getLongitude(), 1e-6);
+    assertEquals("West", status.getHeading());
+    assertEquals(13, status.getSpeed(), 0);
+    assertEquals(1792271690, status.getUpdated());
+    assertEquals(PennRides.Route.SHUTTLE_EAST.getRoute(), status.getRouteId());
+    assertEquals("at 3601 Walnut St", decoded.getLocation(0));
+    assertEquals(FETCHED_AT, decoded.getFetchedAt(0));
+
+    status = decoded.getVehicle(1);
+    assertEquals(6.5, status.getSpeed(), 0);
+    assertEquals(1792271720, status.getUpdated());
+    assertEquals("near 40th St", decoded.getLocation(1));
+    assertEquals(FETCHED_AT + 25, decoded.getFetchedAt(1));
+    assertEquals(FETCHED_AT + 25, decoded.getFetchedAt(PennRides.Route.SHUTTLE_WEST_B));
+    assertEquals(-1, decoded.getFetchedAt(PennRides.Route.SHUTTLE_WEST_A));
+  }
+
+  @Test
+  public void roundTripsArrivalQuestion() {
+    SessionSnapshot snapshot = new SessionSnapshot(FETCHED_AT);
+    assertNull(SessionSnapshot.decode(snapshot.encode()).getNextRoute());
+
+    snapshot.setNext(PennRides.Route.SHUTTLE_WEST_A, 4155);
+    snapshot.addTold(170);
+    snapshot.addTold(156);
+    snapshot.add(PennRides.Route.SHUTTLE_WEST_A, e09(), null);
+
+    SessionSnapshot decoded = SessionSnapshot.decode(snapshot.encode());
+    assertEquals(PennRides.Route.SHUTTLE_WEST_A, decoded.getNextRoute());
+    assertEquals(4155, decoded.getNextStop());
+    assertTrue(decoded.isTold(170));
+    assertTrue(decoded.isTold(156));
+    assertFalse(decoded.isTold(160));
+    assertEquals(1, decoded.size());
+  }
+
+  @Test
+  public void escapesSeparators() {
+    SessionSnapshot snapshot = new SessionSnapshot(FETCHED_AT);
+    snapshot.add(PennRides.Route.SHUTTLE_EAST,
+        vehicle(1, "E|1,2:3%20", 39.95, -75.19, "", 0, 0), "at 34th St, Walnut St | 100%");
+    snapshot.add(PennRides.Route.SHUTTLE_EAST, vehicle(2, "%0", 39.95, -75.19, null, 0, 0), "");
+
+    String encoded = snapshot.encode();
+    assertEquals(5, encoded.split("\\|", -1).length);
+    SessionSnapshot decoded = SessionSnapshot.decode(encoded);
+    assertEquals("E|1,2:3%20", decoded.getVehicle(0).getName());
+    assertEquals("", decoded.getVehicle(0).getHeading());
+    assertEquals("at 34th St, Walnut St | 100%", decoded.getLocation(0));
+    assertEquals("%0", decoded.getVehicle(1).getName());
+    assertNull(decoded.getVehicle(1).getHeading());
+    assertEquals("", decoded.getLocation(1));
+  }
+
+  @Test
+  public void rejectsMalformedSnapshots() {
+    for (String encoded : Arrays.asList("", "2|1792271702|", "1|1792271702",
+        "1|1792271702||3898,170,E09", "1|1792271702||1,170,E09,0,0,,0,0,0,",
+        "1|1792271702|3898|")) {
+      try {
+        SessionSnapshot.decode(encoded);
+        fail("Expected " + encoded + " to be rejected");
+      } catch (IllegalArgumentException | IndexOutOfBoundsException expected) {
+        // NumberFormatException is an IllegalArgumentException
+      }
+    }
+  }
+
+  @Test
+  public void readsAndWritesSession() {
+    Session session = Session.builder().withSessionId("session").withIsNew(false).build();
+    assertNull(SessionSnapshot.read(session));
+    assertNull(SessionSnapshot.read(null));
+
+    SessionSnapshot snapshot = new SessionSnapshot(FETCHED_AT);
+    snapshot.add(PennRides.Route.SHUTTLE_EAST, e09(), "at 3601 Walnut St");
+    snapshot.write(session);
+    assertEquals(snapshot.encode(), session.getAttribute(SessionSnapshot.ATTRIBUTE));
+    assertEquals("E09", SessionSnapshot.read(session).getVehicle(0).getName());
+
+    // A snapshot of another version, as left by an older deployment, is ignored
+    session.setAttribute(SessionSnapshot.ATTRIBUTE, "0|1792271702|");
+    assertNull(SessionSnapshot.read(session));
+    session.setAttribute(SessionSnapshot.ATTRIBUTE, 42);
+    assertNull(SessionSnapshot.read(session));
+  }
+
+  @Test
+  public void findsVehiclesBySpokenName() {
+    SessionSnapshot snapshot = new SessionSnapshot(FETCHED_AT);
+    snapshot.add(PennRides.Route.SHUTTLE_EAST,
+        vehicle(156, "E02", 39.94, -75.2, "North", 0, 0), null);
+    snapshot.add(PennRides.Route.SHUTTLE_EAST, e09(), null);
+
+    for (String spoken : Arrays.asList("E09", "E 09", "e nine", "E. zero nine", "e oh nine", "E9")) {
+      assertEquals(spoken, 1, snapshot.find(spoken));
+    }
+    assertEquals(0, snapshot.find("e two"));
+    assertEquals(-1, snapshot.find("E 90"));
+    assertEquals(-1, snapshot.find(""));
+    assertEquals(-1, snapshot.find(null));
+    assertEquals("E02 and E09", snapshot.getNames());
+  }
+}
@@ -0,0 +1,109 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.api.VehicleStatusDecoder;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recalling location phrases of vehicles as decoded from PennRides
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehiclePlaceMemoryTest {
+  // Later the same evening as the sample's reports
+  private static final ZonedDateTime NOW = ZonedDateTime.of(2017, 5, 20, 21, 0, 0, 0, PennRides.ZONE);
+
+  /**
+   * @return first vehicle of the sample response, E02 heading NE
+   */
+  private static VehicleStatus decode() throws IOException {
+    return decode("", "");
+  }
+
+  /**
+   * @return first vehicle of the sample response, after replacing some of its JSON
+   */
+  private static VehicleStatus decode(String from, String to) throws IOException {
+    String body = new String(sample(), StandardCharsets.UTF_8).replace(from, to);
+    List<VehicleStatus> vehicles = VehicleStatusDecoder.decode(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), NOW);
+    return vehicles.get(0);
+  }
+
+  private static byte[] sample() throws IOException {
+    try (InputStream in = VehiclePlaceMemoryTest.class.getResourceAsStream("/sample_vehicles.txt")) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+  }
+
+  private static VehiclePlaceMemory memory() {
+    return new VehiclePlaceMemory(50, 90, 10, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void readsDecodedHeadings() throws IOException {
+    VehicleStatus status = decode();
+    assertEquals("North East", status.getHeading());
+    assertEquals(45, VehiclePlaceMemory.degrees(status.getHeading()), 0);
+    assertEquals(45, VehiclePlaceMemory.degrees("NE"), 0);
+    assertEquals(292.5, VehiclePlaceMemory.degrees("wnw"), 0);
+    assertTrue(Double.isNaN(VehiclePlaceMemory.degrees("Unknown")));
+    assertTrue(Double.isNaN(VehiclePlaceMemory.degrees(null)));
+  }
+
+  @Test
+  public void recallsVehicleThatHasNotMoved() throws IOException {
+    VehiclePlaceMemory memory = memory();
+    VehicleStatus status = decode();
+    assertNull(memory.recall(status));
+    memory.remember(status, "at 3401 Walnut St");
+    assertEquals("at 3401 Walnut St", memory.recall(decode()));
+    // A small turn keeps the phrase
+    assertEquals("at 3401 Walnut St", memory.recall(decode("\"NE\"", "\"E\"")));
+    assertEquals(1, memory.getMisses());
+    assertEquals(2, memory.getRecalls());
+  }
+
+  @Test
+  public void locatesTurnedVehicleAgain() throws IOException {
+    VehiclePlaceMemory memory = memory();
+    memory.remember(decode(), "at 3401 Walnut St");
+    assertNull(memory.recall(decode("\"NE\"", "\"SW\"")));
+    assertNull(memory.recall(decode("\"NE\"", "\"S\"")));
+  }
+
+  @Test
+  public void locatesMovedVehicleAgain() throws IOException {
+    VehiclePlaceMemory memory = memory();
+    memory.remember(decode(), "at 3401 Walnut St");
+    // About 110m north
+    assertNull(memory.recall(decode("\"Latitude\":39.9427246", "\"Latitude\":39.9437246")));
+  }
+
+  @Test
+  public void unknownHeadingIsNoTurn() throws IOException {
+    VehiclePlaceMemory memory = memory();
+    VehicleStatus status = decode();
+    status.setHeading("Unknown");
+    memory.remember(status, "at 3401 Walnut St");
+    assertEquals("at 3401 Walnut St", memory.recall(decode("\"NE\"", "\"SW\"")));
+  }
+}
@@ -0,0 +1,225 @@
+package com.hungn.alexa.pbt.cache;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Single-flight fetches and stale-while-revalidate of the vehicle snapshot cache
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehicleSnapshotCacheTest {
+  private static final PennRides.Route ROUTE = PennRides.Route.SHUTTLE_WEST_B;
+
+  private static List<VehicleStatus> vehicles(String... names) {
+    List<VehicleStatus> vehicles = new ArrayList<>();
+    for (String name : names) {
+      VehicleStatus status = new VehicleStatus();
+      status.setId(vehicles.size() + 1);
+      status.setName(name);
+      vehicles.add(status);
+    }
+    return vehicles;
+  }
+
+  private static long in(long ms) {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * Wait for concurrent callers to reach the cache, failing after a few seconds
+   */
+  private static void await(VehicleSnapshotCache cache, long coalesced) throws InterruptedException {
+    for (int i = 0; i < 500 && cache.getCoalesced() < coalesced; i++) Thread.sleep(10);
+    assertEquals(coalesced, cache.getCoalesced());
+  }
+
+  @Test
+  public void concurrentCallersShareOneFetch() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) -> {
+      loads.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return vehicles("E01", "E02");
+    }, 60, 0, TimeUnit.SECONDS);
+
+    ExecutorService callers = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<List<VehicleStatus>>> answers = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        answers.add(callers.submit(() -> cache.getVehicles(ROUTE, in(5000))));
+      }
+      await(cache, 7);
+      release.countDown();
+
+      List<VehicleStatus> first = answers.get(0).get(5, TimeUnit.SECONDS);
+      assertEquals(2, first.size());
+      for (Future<List<VehicleStatus>> answer : answers) {
+        assertSame(first, answer.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      callers.shutdownNow();
+    }
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getFetches());
+  }
+
+  @Test
+  public void asyncCallersShareOneFetch() {
+    CompletableFuture<List<VehicleStatus>> pending = new CompletableFuture<>();
+    AtomicInteger loads = new AtomicInteger();
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) -> {
+      throw new AssertionError("Blocking loader used");
+    }, (route, deadline) -> {
+      loads.incrementAndGet();
+      return pending;
+    }, 60, 0, TimeUnit.SECONDS);
+
+    List<CompletableFuture<List<VehicleStatus>>> answers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) answers.add(cache.getVehiclesAsync(ROUTE, in(5000)));
+    for (CompletableFuture<List<VehicleStatus>> answer : answers) assertFalse(answer.isDone());
+    assertEquals(2, cache.getCoalesced());
+
+    pending.complete(vehicles("E01"));
+    for (CompletableFuture<List<VehicleStatus>> answer : answers) {
+      assertEquals("E01", answer.join().get(0).getName());
+    }
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void blockingCallerJoinsAsyncFetch() throws Exception {
+    CompletableFuture<List<VehicleStatus>> pending = new CompletableFuture<>();
+    AtomicInteger loads = new AtomicInteger();
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) -> {
+      loads.incrementAndGet();
+      return vehicles("blocking");
+    }, (route, deadline) -> {
+      loads.incrementAndGet();
+      return pending;
+    }, 60, 0, TimeUnit.SECONDS);
+
+    CompletableFuture<List<VehicleStatus>> async = cache.getVehiclesAsync(ROUTE, in(5000));
+    ExecutorService caller = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<VehicleStatus>> blocking = caller.submit(() -> cache.getVehicles(ROUTE, in(5000)));
+      await(cache, 1);
+      pending.complete(vehicles("async"));
+      assertEquals("async", blocking.get(5, TimeUnit.SECONDS).get(0).getName());
+    } finally {
+      caller.shutdownNow();
+    }
+    assertEquals("async", async.join().get(0).getName());
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void joinedCallerGivesUpAtItsDeadline() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) -> {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return vehicles("late");
+    }, 60, 0, TimeUnit.SECONDS);
+
+    ExecutorService caller = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<VehicleStatus>> first = caller.submit(() -> cache.getVehicles(ROUTE, in(5000)));
+      for (int i = 0; i < 500 && cache.getFetches() == 0; i++) Thread.sleep(10);
+
+      long start = System.nanoTime();
+      assertNull(cache.getVehicles(ROUTE, in(100)));
+      long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("Waited " + waited + "ms", waited >= 90 && waited < 2000);
+
+      release.countDown();
+      assertEquals("late", first.get(5, TimeUnit.SECONDS).get(0).getName());
+    } finally {
+      caller.shutdownNow();
+    }
+  }
+
+  @Test
+  public void servesFreshSnapshotFromMemory() {
+    AtomicInteger loads = new AtomicInteger();
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) -> {
+      loads.incrementAndGet();
+      return vehicles("E01");
+    }, 60, 0, TimeUnit.SECONDS);
+
+    List<VehicleStatus> first = cache.getVehicles(ROUTE, in(1000));
+    assertSame(first, cache.getVehicles(ROUTE, in(1000)));
+    assertSame(first, cache.getVehiclesAsync(ROUTE, in(1000)).join());
+    assertEquals(1, loads.get());
+    assertEquals(2, cache.getHits());
+    try {
+      first.clear();
+      fail("Expected a read-only snapshot");
+    } catch (UnsupportedOperationException expected) {
+      // Shared by every caller
+    }
+  }
+
+  @Test
+  public void doesNotCacheFailedFetch() {
+    AtomicInteger loads = new AtomicInteger();
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) ->
+        loads.incrementAndGet() == 1 ? null : vehicles("E01"), 60, 0, TimeUnit.SECONDS);
+
+    assertNull(cache.getVehicles(ROUTE, in(1000)));
+    assertEquals(1, cache.getVehicles(ROUTE, in(1000)).size());
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void servesStaleSnapshotWhileOneRefreshRuns() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    CompletableFuture<List<VehicleStatus>> refreshed = new CompletableFuture<>();
+    VehicleSnapshotCache cache = new VehicleSnapshotCache((route, deadline) -> {
+      throw new AssertionError("Blocking loader used");
+    }, (route, deadline) -> loads.incrementAndGet() == 1
+        ? CompletableFuture.completedFuture(vehicles("old")) : refreshed,
+        50, 60000, TimeUnit.MILLISECONDS);
+
+    assertEquals("old", cache.getVehiclesAsync(ROUTE, in(1000)).join().get(0).getName());
+    Thread.sleep(100);
+    for (int i = 0; i < 3; i++) {
+      CompletableFuture<List<VehicleStatus>> answer = cache.getVehiclesAsync(ROUTE, in(1000));
+      assertTrue(answer.isDone());
+      assertEquals("old", answer.join().get(0).getName());
+    }
+    assertEquals(3, cache.getStaleHits());
+    assertEquals(2, loads.get());
+
+    refreshed.complete(Collections.unmodifiableList(vehicles("new")));
+    assertEquals("new", cache.getVehiclesAsync(ROUTE, in(1000)).join().get(0).getName());
+    assertEquals(2, loads.get());
+  }
+}
@@ -0,0 +1,125 @@
+package com.hungn.alexa.pbt.eta;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.fleet.TrajectoryStore;
+import com.hungn.alexa.pbt.geo.RouteGeometry;
+import com.hungn.alexa.pbt.geo.RouteGeometryStore;
+import com.hungn.alexa.pbt.types.Arrival;
+import com.hungn.alexa.pbt.types.Stop;
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Arrival predictions on a route that drives both ways along a street
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class EtaEngineTest {
+  private static final PennRides.Route ROUTE = PennRides.Route.SHUTTLE_WEST_A;
+  private static final long NOW = 1792271702;
+  private static final double LONGITUDE = -75.19;
+  // About 4m west of the northbound leg
+  private static final double SOUTHBOUND = LONGITUDE - 0.00005;
+  // Meters per 0.001 degree of latitude
+  private static final double MILLIDEGREE_M = 111.2;
+
+  /**
+   * North along a street for about 220m, then back south on its other side, with a stop halfway
+   * up on the side of the northbound leg
+   */
+  private static EtaEngine engine(TrajectoryStore trajectories) {
+    RouteGeometryStore geometries = new RouteGeometryStore(null, null);
+    geometries.put(ROUTE, new RouteGeometry.Builder()
+        .addPoint(39.950, LONGITUDE)
+        .addPoint(39.951, LONGITUDE)
+        .addPoint(39.952, LONGITUDE)
+        .addPoint(39.952, SOUTHBOUND)
+        .addPoint(39.951, SOUTHBOUND)
+        .addPoint(39.950, SOUTHBOUND)
+        .build());
+    // Parked vehicles are timed at 5 m/s
+    return new EtaEngine(geometries, trajectories, 5, 30);
+  }
+
+  private static Stop stop() {
+    Stop stop = new Stop();
+    stop.setId(1);
+    stop.setName("Halfway");
+    stop.setLatitude(39.951);
+    stop.setLongitude(LONGITUDE - 0.00001);
+    return stop;
+  }
+
+  private static VehicleStatus vehicle(int id, double latitude, double longitude, String heading,
+                                       long updated) {
+    VehicleStatus status = new VehicleStatus();
+    status.setId(id);
+    status.setName("E0" + id);
+    status.setLatitude(latitude);
+    status.setLongitude(longitude);
+    status.setHeading(heading);
+    status.setUpdated(updated);
+    return status;
+  }
+
+  @Test
+  public void timesNorthboundVehicleToStopAhead() {
+    VehicleStatus vehicle = vehicle(1, 39.9505, LONGITUDE, "North", NOW);
+    Arrival arrival = engine(null).next(ROUTE, stop(), Collections.singletonList(vehicle), NOW);
+    assertEquals(0.5 * MILLIDEGREE_M, arrival.getDistance(), 3);
+    assertEquals(Math.round(arrival.getDistance() / 5), arrival.getSeconds());
+  }
+
+  @Test
+  public void timesSouthboundVehicleToStopOnItsOwnLeg() {
+    // The stop is closer to the northbound leg; a vehicle coming down the other side reaches it
+    // in about 55m, not after driving around the whole route
+    VehicleStatus vehicle = vehicle(1, 39.9515, SOUTHBOUND, "South", NOW);
+    Arrival arrival = engine(null).next(ROUTE, stop(), Collections.singletonList(vehicle), NOW);
+    assertEquals(0.5 * MILLIDEGREE_M, arrival.getDistance(), 3);
+  }
+
+  @Test
+  public void timesVehicleThatPassedTheStopToItsNextPass() {
+    VehicleStatus vehicle = vehicle(1, 39.9515, LONGITUDE, "North", NOW);
+    Arrival arrival = engine(null).next(ROUTE, stop(), Collections.singletonList(vehicle), NOW);
+    // Up to the end of the street, across and back down to the stop
+    assertEquals(0.5 * MILLIDEGREE_M + 4 + MILLIDEGREE_M, arrival.getDistance(), 4);
+  }
+
+  @Test
+  public void placesVehicleByTrajectoryBearingOverHeading() {
+    TrajectoryStore trajectories = new TrajectoryStore(8, 600);
+    // Between the legs, and still reported as heading north although it drives south
+    VehicleStatus before = vehicle(1, 39.9518, LONGITUDE - 0.00003, "North", NOW - 10);
+    VehicleStatus now = vehicle(1, 39.9515, LONGITUDE - 0.00003, "North", NOW);
+    trajectories.record(Collections.singletonList(before), NOW - 10);
+    trajectories.record(Collections.singletonList(now), NOW);
+    VehicleStatus other = vehicle(2, 39.9515, LONGITUDE - 0.00003, "North", NOW);
+
+    List<Arrival> arrivals = engine(trajectories).upcoming(ROUTE, stop(), Arrays.asList(now, other),
+        NOW);
+    assertEquals(2, arrivals.size());
+    assertSame(now, arrivals.get(0).getVehicle());
+    assertEquals(0.5 * MILLIDEGREE_M, arrivals.get(0).getDistance(), 3);
+    // Without a trajectory, its heading puts the other vehicle on the northbound leg
+    assertSame(other, arrivals.get(1).getVehicle());
+    assertEquals(1.5 * MILLIDEGREE_M + 4, arrivals.get(1).getDistance(), 4);
+  }
+
+  @Test
+  public void skipsStopOffTheRoute() {
+    Stop stop = stop();
+    stop.setLongitude(LONGITUDE + 0.001);
+    VehicleStatus vehicle = vehicle(1, 39.9505, LONGITUDE, "North", NOW);
+    assertNull(engine(null).upcoming(ROUTE, stop, Collections.singletonList(vehicle), NOW));
+  }
+}
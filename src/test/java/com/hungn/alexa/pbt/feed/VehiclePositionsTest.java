@@ -0,0 +1,293 @@
+package com.hungn.alexa.pbt.feed;
+
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of the vehicle positions feed through its encoder, decoder and consumer side
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class VehiclePositionsTest {
+  private static final long TIMESTAMP = 1792271702;
+
+  private static VehicleStatus vehicle(int id, String name, double latitude, double longitude,
+                                       String heading, double speed, long updated) {
+    VehicleStatus status = new VehicleStatus();
+    status.setId(id);
+    status.setRouteId(3900);
+    status.setName(name);
+    status.setLatitude(latitude);
+    status.setLongitude(longitude);
+    status.setHeading(heading);
+    status.setSpeed(speed);
+    status.setUpdated(updated);
+    return status;
+  }
+
+  private static Map<Integer, VehicleStatus> fleet(VehicleStatus... vehicles) {
+    Map<Integer, VehicleStatus> fleet = new LinkedHashMap<>();
+    for (VehicleStatus status : vehicles) fleet.put(status.getId(), status);
+    return fleet;
+  }
+
+  private static void assertVehicle(VehicleStatus expected, VehicleStatus actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getRouteId(), actual.getRouteId());
+    assertEquals(expected.getName(), actual.getName());
+    // Coordinates and speed travel as floats
+    assertEquals(expected.getLatitude(), actual.getLatitude(), 1e-5);
+    assertEquals(expected.getLongitude(), actual.getLongitude(), 1e-5);
+    assertEquals(expected.getSpeed(), actual.getSpeed(), 1e-4);
+    assertEquals(expected.getHeading(), actual.getHeading());
+    assertEquals(expected.getUpdated(), actual.getUpdated());
+  }
+
+  @Test
+  public void roundTripsFullFeed() {
+    Map<Integer, VehicleStatus> fleet = fleet(
+        vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, TIMESTAMP - 10),
+        vehicle(170, "E09", 39.9547725, -75.2018448, "West", 13, TIMESTAMP - 60),
+        vehicle(160, "E08", 39.9514011, -75.2000806, "South", 6.5, TIMESTAMP));
+
+    VehiclePositions.Feed feed = VehiclePositions.decode(
+        VehiclePositions.encodeFull(fleet.values(), TIMESTAMP));
+    assertFalse(feed.isDifferential());
+    assertEquals(TIMESTAMP, feed.getTimestamp());
+    assertTrue(feed.getDeleted().isEmpty());
+    assertEquals(3, feed.getVehicles().size());
+    for (VehicleStatus status : feed.getVehicles()) assertVehicle(fleet.get(status.getId()), status);
+    assertEquals("1 minute 0 seconds ago", feed.getVehicles().get(1).getLastUpdated());
+
+    // A full feed replaces whatever the consumer had
+    Map<Integer, VehicleStatus> consumer = fleet(vehicle(1, "gone", 0, 0, "North", 0, 0));
+    feed.apply(consumer);
+    assertEquals(fleet.keySet(), consumer.keySet());
+  }
+
+  @Test
+  public void roundTripsDelta() {
+    VehicleStatus parked = vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, TIMESTAMP - 90);
+    VehicleStatus moving = vehicle(170, "E09", 39.9547725, -75.2018448, "West", 13, TIMESTAMP - 60);
+    VehicleStatus leaving = vehicle(160, "E08", 39.9514011, -75.2000806, "South", 6.5, TIMESTAMP - 60);
+    Map<Integer, VehicleStatus> previous = fleet(parked, moving, leaving);
+
+    VehicleStatus moved = vehicle(170, "E09", 39.9549, -75.2031, "West", 15, TIMESTAMP);
+    VehicleStatus joined = vehicle(171, "W01", 39.9521, -75.1930, "East", 9, TIMESTAMP);
+    // The parked vehicle is polled again, unchanged, as a new object
+    VehicleStatus same = vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, TIMESTAMP - 90);
+    Map<Integer, VehicleStatus> current = fleet(same, moved, joined);
+
+    VehiclePositions.Feed feed = VehiclePositions.decode(
+        VehiclePositions.encodeDelta(previous, current, TIMESTAMP));
+    assertTrue(feed.isDifferential());
+    assertEquals(2, feed.getVehicles().size());
+    assertVehicle(moved, feed.getVehicles().get(0));
+    assertVehicle(joined, feed.getVehicles().get(1));
+    assertEquals(Collections.singletonList(160), feed.getDeleted());
+
+    // Applied to the consumer's copy of the previous fleet, the delta gives the current fleet
+    Map<Integer, VehicleStatus> consumer = new HashMap<>();
+    VehiclePositions.decode(VehiclePositions.encodeFull(previous.values(), TIMESTAMP - 30))
+        .apply(consumer);
+    feed.apply(consumer);
+    assertEquals(current.keySet(), consumer.keySet());
+    for (VehicleStatus status : current.values()) {
+      assertVehicle(status, consumer.get(status.getId()));
+    }
+  }
+
+  @Test
+  public void encodesNoChangesAsEmptyDelta() {
+    Map<Integer, VehicleStatus> fleet = fleet(
+        vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, TIMESTAMP));
+    VehiclePositions.Feed feed = VehiclePositions.decode(
+        VehiclePositions.encodeDelta(fleet, new HashMap<>(fleet), TIMESTAMP));
+    assertTrue(feed.isDifferential());
+    assertTrue(feed.getVehicles().isEmpty());
+    assertTrue(feed.getDeleted().isEmpty());
+  }
+
+  @Test
+  public void deletesEveryVehicleGone() {
+    Map<Integer, VehicleStatus> previous = fleet(
+        vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, TIMESTAMP),
+        vehicle(170, "E09", 39.9547725, -75.2018448, "West", 13, TIMESTAMP));
+    VehiclePositions.Feed feed = VehiclePositions.decode(
+        VehiclePositions.encodeDelta(previous, Collections.emptyMap(), TIMESTAMP));
+    assertTrue(feed.getVehicles().isEmpty());
+    assertEquals(Arrays.asList(156, 170), feed.getDeleted());
+
+    Map<Integer, VehicleStatus> consumer = new HashMap<>(previous);
+    feed.apply(consumer);
+    assertTrue(consumer.isEmpty());
+  }
+
+  @Test
+  public void leavesUnknownHeadingsOut() {
+    Map<Integer, VehicleStatus> fleet = fleet(
+        vehicle(1, "E01", 39.95, -75.19, "Unknown", 0, TIMESTAMP),
+        vehicle(2, "E02", 39.95, -75.19, null, 0, TIMESTAMP),
+        vehicle(3, "E03", 39.95, -75.19, "North West", 0, TIMESTAMP));
+    VehiclePositions.Feed feed = VehiclePositions.decode(
+        VehiclePositions.encodeFull(fleet.values(), TIMESTAMP));
+    // No bearing is sent, and none is made up on the way back
+    assertEquals("", feed.getVehicles().get(0).getHeading());
+    assertEquals("", feed.getVehicles().get(1).getHeading());
+    assertEquals("North West", feed.getVehicles().get(2).getHeading());
+  }
+
+  @Test
+  public void snapsBearingsToNearestHeading() {
+    ProtoWriter out = new ProtoWriter(64);
+    int entity = out.beginMessage(2);
+    out.writeString(1, "7");
+    int vehicle = out.beginMessage(4);
+    int position = out.beginMessage(2);
+    out.writeFloat(1, 39.95f);
+    out.writeFloat(2, -75.19f);
+    out.writeFloat(3, 350f);
+    out.endMessage(position);
+    out.endMessage(vehicle);
+    out.endMessage(entity);
+
+    VehicleStatus status = VehiclePositions.decode(out.toByteArray()).getVehicles().get(0);
+    assertEquals(7, status.getId());
+    assertEquals("North", status.getHeading());
+  }
+
+  @Test
+  public void roundTripsNestedMessagesOver127Bytes() {
+    // A label this long makes the descriptor, vehicle and entity messages need 2-byte lengths
+    StringBuilder label = new StringBuilder();
+    while (label.length() < 300) label.append("Shuttle West B \u2192 ");
+    VehicleStatus status = vehicle(156, label.toString(), 39.9427246, -75.200824, "East", 4,
+        TIMESTAMP);
+    Map<Integer, VehicleStatus> fleet = fleet(status,
+        vehicle(170, "E09", 39.9547725, -75.2018448, "West", 13, TIMESTAMP));
+
+    VehiclePositions.Feed feed = VehiclePositions.decode(
+        VehiclePositions.encodeFull(fleet.values(), TIMESTAMP));
+    assertEquals(2, feed.getVehicles().size());
+    assertVehicle(status, feed.getVehicles().get(0));
+    assertVehicle(fleet.get(170), feed.getVehicles().get(1));
+  }
+
+  @Test
+  public void shiftsNestedMessageForLongerLength() {
+    char[] text = new char[20000];
+    Arrays.fill(text, 'x');
+    for (int length : new int[]{127, 128, 200, 16383, 16384, 20000}) {
+      ProtoWriter out = new ProtoWriter(16);
+      int message = out.beginMessage(1);
+      out.writeString(2, new String(text, 0, length));
+      out.endMessage(message);
+      out.writeVarint(3, 1);
+      byte[] data = out.toByteArray();
+
+      // Inner string: tag, length varint and the text; then the field after the message
+      int inner = 1 + varintSize(length) + length;
+      assertEquals(1 + varintSize(inner) + inner + 2, data.length);
+      assertEquals(0x0a, data[0]);
+      ProtoReader in = new ProtoReader(data);
+      assertEquals(1, ProtoReader.field(in.readTag()));
+      int previous = in.beginMessage();
+      assertEquals(2, ProtoReader.field(in.readTag()));
+      assertEquals(length, in.readString().length());
+      assertEquals(0, in.readTag());
+      in.endMessage(previous);
+      assertEquals(3, ProtoReader.field(in.readTag()));
+      assertEquals(1, in.readVarint());
+      assertEquals(0, in.readTag());
+    }
+  }
+
+  private static int varintSize(int value) {
+    return value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : 3;
+  }
+
+  @Test
+  public void skipsFieldsItDoesNotKnow() {
+    ProtoWriter out = new ProtoWriter(64);
+    int header = out.beginMessage(1);
+    out.writeString(1, "2.0");
+    out.writeVarint(2, 1);
+    out.writeVarint(3, TIMESTAMP);
+    out.writeVarint(1000, 5);
+    out.endMessage(header);
+
+    // A trip update entity, as a full GTFS-Realtime feed may have
+    int update = out.beginMessage(2);
+    out.writeString(1, "trip-1");
+    int tripUpdate = out.beginMessage(3);
+    out.writeString(1, "ignored");
+    out.endMessage(tripUpdate);
+    out.endMessage(update);
+
+    int entity = out.beginMessage(2);
+    out.writeString(1, "170");
+    int vehicle = out.beginMessage(4);
+    int trip = out.beginMessage(1);
+    out.writeString(1, "trip-1");
+    out.writeString(5, "3900");
+    out.endMessage(trip);
+    int position = out.beginMessage(2);
+    out.writeFloat(1, 39.95f);
+    out.writeFloat(2, -75.19f);
+    out.writeFloat(3, 270f);
+    out.writeFloat(5, (float) (13 * 0.44704));
+    out.endMessage(position);
+    out.writeVarint(4, 2);
+    out.writeVarint(5, TIMESTAMP - 30);
+    int descriptor = out.beginMessage(8);
+    out.writeString(1, "170");
+    out.writeString(2, "E09");
+    out.writeString(3, "PA 1234");
+    out.endMessage(descriptor);
+    out.endMessage(vehicle);
+    out.endMessage(entity);
+
+    out.writeFloat(3000, 1f);
+
+    VehiclePositions.Feed feed = VehiclePositions.decode(out.toByteArray());
+    assertTrue(feed.isDifferential());
+    assertEquals(TIMESTAMP, feed.getTimestamp());
+    assertEquals(1, feed.getVehicles().size());
+    assertVehicle(vehicle(170, "E09", 39.95, -75.19, "West", 13, TIMESTAMP - 30),
+        feed.getVehicles().get(0));
+  }
+
+  @Test
+  public void skipsFixed64Fields() {
+    // Header with timestamp 42 and field 9 as a fixed64, a wire type the writer never uses
+    byte[] data = {0x0a, 0x0b, 0x18, 0x2a, 0x49, 1, 2, 3, 4, 5, 6, 7, 8};
+    VehiclePositions.Feed feed = VehiclePositions.decode(data);
+    assertEquals(42, feed.getTimestamp());
+    assertTrue(feed.getVehicles().isEmpty());
+  }
+
+  @Test
+  public void rejectsTruncatedFeed() {
+    byte[] data = VehiclePositions.encodeFull(Collections.singletonList(
+        vehicle(156, "E02", 39.9427246, -75.200824, "North East", 0, TIMESTAMP)), TIMESTAMP);
+    for (int length : new int[]{data.length - 1, data.length / 2, 3}) {
+      try {
+        VehiclePositions.decode(Arrays.copyOf(data, length));
+        fail("Expected " + length + " of " + data.length + " bytes to be rejected");
+      } catch (IllegalArgumentException expected) {
+        // Truncated field or message
+      }
+    }
+  }
+}
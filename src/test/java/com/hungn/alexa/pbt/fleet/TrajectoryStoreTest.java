@@ -0,0 +1,55 @@
+package com.hungn.alexa.pbt.fleet;
+
+import com.hungn.alexa.pbt.types.VehicleStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Recording and expiry of the trajectories of a fleet
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class TrajectoryStoreTest {
+  private static final long NOW = 1792271702;
+
+  private static VehicleStatus vehicle(int id, double latitude, long updated) {
+    VehicleStatus status = new VehicleStatus();
+    status.setId(id);
+    status.setLatitude(latitude);
+    status.setLongitude(-75.19);
+    status.setUpdated(updated);
+    return status;
+  }
+
+  @Test
+  public void recordsEachVehicleOncePerReport() {
+    TrajectoryStore store = new TrajectoryStore(3, 300);
+    store.record(Arrays.asList(vehicle(1, 39.950, NOW), vehicle(2, 39.960, NOW)), NOW);
+    // Vehicle 2 has not reported again since the last poll
+    store.record(Arrays.asList(vehicle(1, 39.951, NOW + 10), vehicle(2, 39.960, NOW)), NOW + 10);
+    store.record(Arrays.asList(vehicle(1, 39.952, NOW + 20), vehicle(2, 39.960, NOW)), NOW + 20);
+    store.record(Collections.singletonList(vehicle(1, 39.953, NOW + 30)), NOW + 30);
+    assertEquals(2, store.size());
+    assertEquals(3, store.get(1).size());
+    assertEquals(NOW + 30, store.get(1).getLastTime());
+    assertEquals(0, store.get(1).getBearing(), 0.5);
+    assertEquals(1, store.get(2).size());
+  }
+
+  @Test
+  public void forgetsVehiclesThatStoppedReporting() {
+    TrajectoryStore store = new TrajectoryStore(3, 300);
+    store.record(Arrays.asList(vehicle(1, 39.950, NOW), vehicle(2, 39.960, NOW - 200)), NOW);
+    store.record(Collections.singletonList(vehicle(1, 39.951, NOW + 150)), NOW + 150);
+    assertEquals(1, store.size());
+    assertNull(store.get(2));
+    // A report already too old is not recorded at all
+    store.record(Collections.singletonList(vehicle(3, 39.970, NOW - 200)), NOW + 150);
+    assertNull(store.get(3));
+  }
+}
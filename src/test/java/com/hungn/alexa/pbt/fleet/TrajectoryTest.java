@@ -0,0 +1,103 @@
+package com.hungn.alexa.pbt.fleet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ring buffer, speed, bearing and stalled signal of a vehicle trajectory
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class TrajectoryTest {
+  private static final long T0 = 1792271702;
+  private static final double LATITUDE = 39.95;
+  private static final double LONGITUDE = -75.19;
+  // About 100m of latitude
+  private static final double STEP = 0.0009;
+
+  @Test
+  public void overwritesOldestReportsOnceFull() {
+    Trajectory trajectory = new Trajectory(3);
+    // Drives north, then turns east for the last three reports
+    trajectory.add(T0, LATITUDE, LONGITUDE);
+    trajectory.add(T0 + 10, LATITUDE + STEP, LONGITUDE);
+    trajectory.add(T0 + 20, LATITUDE + STEP, LONGITUDE + STEP);
+    trajectory.add(T0 + 30, LATITUDE + STEP, LONGITUDE + 2 * STEP);
+    trajectory.add(T0 + 40, LATITUDE + STEP, LONGITUDE + 3 * STEP);
+    assertEquals(3, trajectory.size());
+    assertEquals(T0 + 40, trajectory.getLastTime());
+    assertEquals(90, trajectory.getBearing(), 0.5);
+
+    // Parked since T0 + 40, but the buffer still holds the report 100m back
+    trajectory.add(T0 + 100, LATITUDE + STEP, LONGITUDE + 3 * STEP);
+    assertFalse(trajectory.isStalled(100));
+    // Now overwritten; the buffer spans 160s of standing still, no more
+    trajectory.add(T0 + 200, LATITUDE + STEP, LONGITUDE + 3 * STEP);
+    assertTrue(trajectory.isStalled(160));
+    assertFalse(trajectory.isStalled(170));
+  }
+
+  @Test
+  public void skipsReportsThatAreNotNewer() {
+    Trajectory trajectory = new Trajectory(4);
+    assertTrue(trajectory.add(T0, LATITUDE, LONGITUDE));
+    assertTrue(trajectory.add(T0 + 10, LATITUDE + STEP, LONGITUDE));
+    // PennRides repeats the last report until the vehicle reports again
+    assertFalse(trajectory.add(T0 + 10, LATITUDE + STEP, LONGITUDE));
+    assertFalse(trajectory.add(T0 + 5, LATITUDE, LONGITUDE));
+    assertEquals(2, trajectory.size());
+    assertEquals(T0 + 10, trajectory.getLastTime());
+    assertEquals(10, trajectory.getSpeed(), 0.1);
+  }
+
+  @Test
+  public void smoothesSpeedOverTime() {
+    Trajectory trajectory = new Trajectory(4);
+    trajectory.add(T0, LATITUDE, LONGITUDE);
+    assertTrue(Double.isNaN(trajectory.getSpeed()));
+    trajectory.add(T0 + 10, LATITUDE + STEP, LONGITUDE);
+    trajectory.add(T0 + 20, LATITUDE + 2 * STEP, LONGITUDE);
+    assertEquals(10, trajectory.getSpeed(), 0.1);
+
+    // Stopped for 10s: the average moves 1 - e^(-10/30) of the way to 0
+    trajectory.add(T0 + 30, LATITUDE + 2 * STEP, LONGITUDE);
+    assertEquals(10 * Math.exp(-10 / 30.0), trajectory.getSpeed(), 0.1);
+    // A long gap weighs almost entirely on the new measurement
+    trajectory.add(T0 + 330, LATITUDE + 2 * STEP, LONGITUDE);
+    assertEquals(0, trajectory.getSpeed(), 0.01);
+  }
+
+  @Test
+  public void needsDisplacementForBearing() {
+    Trajectory trajectory = new Trajectory(4);
+    trajectory.add(T0, LATITUDE, LONGITUDE);
+    assertTrue(Double.isNaN(trajectory.getBearing()));
+    // A few meters of GPS jitter
+    trajectory.add(T0 + 10, LATITUDE + 0.00003, LONGITUDE);
+    assertTrue(Double.isNaN(trajectory.getBearing()));
+    trajectory.add(T0 + 20, LATITUDE - STEP, LONGITUDE);
+    assertEquals(180, trajectory.getBearing(), 0.5);
+  }
+
+  @Test
+  public void stallsOnlyWithinRadiusForThePeriod() {
+    Trajectory trajectory = new Trajectory(8);
+    trajectory.add(T0, LATITUDE, LONGITUDE);
+    assertFalse(trajectory.isStalled(60));
+    // Creeping about 11m at a time stays within 25m of the latest position for two reports only
+    trajectory.add(T0 + 60, LATITUDE + 0.0001, LONGITUDE);
+    trajectory.add(T0 + 120, LATITUDE + 0.0002, LONGITUDE);
+    assertTrue(trajectory.isStalled(120));
+    trajectory.add(T0 + 180, LATITUDE + 0.0003, LONGITUDE);
+    assertFalse(trajectory.isStalled(180));
+    assertTrue(trajectory.isStalled(120));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsCapacityBelowTwo() {
+    new Trajectory(1);
+  }
+}
@@ -0,0 +1,85 @@
+package com.hungn.alexa.pbt.geo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Geohash cells against published geohashes, and cells against the coordinates they contain
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class GeoHashTest {
+  private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+  /**
+   * Bounds of a base32 geohash, decoded independently of the encoder
+   *
+   * @return {minLat, maxLat, minLon, maxLon}
+   */
+  private static double[] bounds(String geohash) {
+    double[] box = {-90, 90, -180, 180};
+    int bit = 0;
+    for (char c : geohash.toCharArray()) {
+      int value = BASE32.indexOf(c);
+      for (int i = 4; i >= 0; i--, bit++) {
+        // Even bits refine longitude
+        int axis = (bit & 1) == 0 ? 2 : 0;
+        double mid = (box[axis] + box[axis + 1]) / 2;
+        if ((value >> i & 1) == 1) box[axis] = mid;
+        else box[axis + 1] = mid;
+      }
+    }
+    return box;
+  }
+
+  @Test
+  public void encodesKnownGeohashes() {
+    assertEquals("u4pruydqqvj", GeoHash.toBase32(GeoHash.encode(57.64911, 10.40744, 11)));
+    assertEquals("ezs42", GeoHash.toBase32(GeoHash.encode(42.605, -5.603, 5)));
+    assertEquals("s00000000000", GeoHash.toBase32(GeoHash.encode(0, 0, 12)));
+    assertEquals("0", GeoHash.toBase32(GeoHash.encode(-90, -180, 1)));
+    assertEquals("z", GeoHash.toBase32(GeoHash.encode(89.9, 179.9, 1)));
+  }
+
+  @Test
+  public void roundTripsThroughCells() {
+    Random random = new Random(11);
+    for (int i = 0; i < 1000; i++) {
+      double latitude = random.nextDouble() * 180 - 90;
+      double longitude = random.nextDouble() * 360 - 180;
+      int precision = 1 + random.nextInt(GeoHash.MAX_PRECISION);
+      long cell = GeoHash.encode(latitude, longitude, precision);
+      String geohash = GeoHash.toBase32(cell);
+      assertEquals(precision, geohash.length());
+
+      // The cell contains the coordinate, and its center encodes to the same cell
+      double[] box = bounds(geohash);
+      assertTrue(geohash, box[0] <= latitude && latitude < box[1]);
+      assertTrue(geohash, box[2] <= longitude && longitude < box[3]);
+      assertEquals(cell, GeoHash.encode((box[0] + box[1]) / 2, (box[2] + box[3]) / 2, precision));
+
+      // Coarser cells are prefixes
+      if (precision > 1) {
+        assertEquals(geohash.substring(0, precision - 1),
+            GeoHash.toBase32(GeoHash.encode(latitude, longitude, precision - 1)));
+      }
+    }
+  }
+
+  @Test
+  public void keepsPrecisionsApart() {
+    // Same leading bits, different precision
+    assertNotEquals(GeoHash.encode(0, 0, 11), GeoHash.encode(0, 0, 12));
+    assertEquals("s0000000000", GeoHash.toBase32(GeoHash.encode(0, 0, 11)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPrecisionOutOfRange() {
+    GeoHash.encode(0, 0, GeoHash.MAX_PRECISION + 1);
+  }
+}
@@ -0,0 +1,123 @@
+package com.hungn.alexa.pbt.geo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Nearest-point searches of the 2-d tree, checked against sorting every point by distance
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class PointIndexTest {
+  private static final double LATITUDE = 39.95;
+  private static final double LONGITUDE = -75.19;
+
+  /**
+   * Points on a grid about 11m apart, so many lie at exactly the same distance from a grid point
+   */
+  private static double[][] grid(int side) {
+    double[] latitudes = new double[side * side];
+    double[] longitudes = new double[side * side];
+    for (int i = 0; i < side; i++) {
+      for (int j = 0; j < side; j++) {
+        latitudes[i * side + j] = LATITUDE + i * 0.0001;
+        longitudes[i * side + j] = LONGITUDE + j * 0.0001;
+      }
+    }
+    return new double[][]{latitudes, longitudes};
+  }
+
+  private static double[][] scattered(int n, long seed) {
+    Random random = new Random(seed);
+    double[] latitudes = new double[n];
+    double[] longitudes = new double[n];
+    for (int i = 0; i < n; i++) {
+      latitudes[i] = LATITUDE + random.nextDouble() * 0.01;
+      longitudes[i] = LONGITUDE + random.nextDouble() * 0.01;
+    }
+    return new double[][]{latitudes, longitudes};
+  }
+
+  /**
+   * Distances in the index's own projection, so both sides order points the same way
+   */
+  private static double[] distances(double[][] points, double latitude, double longitude) {
+    double meanLat = 0;
+    for (double point : points[0]) meanLat += point;
+    meanLat /= points[0].length;
+    double kx = GeoUtils.metersPerDegreeLongitude(meanLat);
+    double ky = GeoUtils.metersPerDegreeLatitude();
+    double[] distances = new double[points[0].length];
+    for (int i = 0; i < distances.length; i++) {
+      double dx = (points[1][i] - longitude) * kx;
+      double dy = (points[0][i] - latitude) * ky;
+      distances[i] = Math.sqrt(dx * dx + dy * dy);
+    }
+    return distances;
+  }
+
+  /**
+   * kNearest agrees with a sort of all points: the same distances in order, each point once.
+   * Tied points may come in either order, so points are compared by distance.
+   */
+  private static void assertKNearest(double[][] points, double latitude, double longitude, int k,
+                                     double maxDistance) {
+    double[] distances = distances(points, latitude, longitude);
+    double[] sorted = distances.clone();
+    Arrays.sort(sorted);
+    int within = 0;
+    while (within < sorted.length && sorted[within] <= maxDistance) within++;
+    double[] expected = Arrays.copyOf(sorted, Math.min(k, within));
+
+    int[] nearest = new PointIndex(points[0], points[1])
+        .kNearest(latitude, longitude, k, maxDistance);
+    double[] actual = new double[nearest.length];
+    for (int i = 0; i < nearest.length; i++) actual[i] = distances[nearest[i]];
+    assertArrayEquals(expected, actual, 1e-6);
+    assertEquals(nearest.length, Arrays.stream(nearest).distinct().count());
+  }
+
+  @Test
+  public void findsKNearestLikeASort() {
+    double[][] points = scattered(500, 42);
+    Random random = new Random(7);
+    for (int q = 0; q < 200; q++) {
+      double latitude = LATITUDE + random.nextDouble() * 0.012 - 0.001;
+      double longitude = LONGITUDE + random.nextDouble() * 0.012 - 0.001;
+      assertKNearest(points, latitude, longitude, 1 + random.nextInt(20), 10000);
+      assertKNearest(points, latitude, longitude, 10, 100);
+    }
+  }
+
+  @Test
+  public void returnsEveryPointWhenKExceedsThem() {
+    double[][] points = scattered(7, 1);
+    assertKNearest(points, LATITUDE, LONGITUDE, 50, 10000);
+    assertEquals(7, new PointIndex(points[0], points[1])
+        .kNearest(LATITUDE, LONGITUDE, 50, 10000).length);
+    assertEquals(0, new PointIndex(new double[0], new double[0])
+        .kNearest(LATITUDE, LONGITUDE, 3, 10000).length);
+    assertEquals(0, new PointIndex(points[0], points[1])
+        .kNearest(LATITUDE, LONGITUDE, 0, 10000).length);
+  }
+
+  @Test
+  public void breaksTiesAtEqualDistance() {
+    double[][] points = grid(9);
+    // The center of the grid has four neighbors at the same distance, then four diagonals...
+    double latitude = LATITUDE + 4 * 0.0001;
+    double longitude = LONGITUDE + 4 * 0.0001;
+    for (int k = 1; k <= 81; k++) assertKNearest(points, latitude, longitude, k, 10000);
+    // Cut off in the middle of a ring of equidistant points
+    assertKNearest(points, latitude, longitude, 20, 23);
+    // Halfway between grid lines: every point comes in ties
+    for (int k = 1; k <= 30; k++) {
+      assertKNearest(points, latitude + 0.00005, longitude + 0.00005, k, 10000);
+    }
+  }
+}
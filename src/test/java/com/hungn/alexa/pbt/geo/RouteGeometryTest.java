@@ -0,0 +1,107 @@
+package com.hungn.alexa.pbt.geo;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapping coordinates onto a route that drives both ways along a street
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class RouteGeometryTest {
+  private static final double LONGITUDE = -75.19;
+  // About 4m west of the northbound leg
+  private static final double SOUTHBOUND = LONGITUDE - 0.00005;
+
+  /**
+   * North along a street for about 220m, then back south on its other side
+   */
+  private static RouteGeometry outAndBack() {
+    return new RouteGeometry.Builder()
+        .addPoint(39.950, LONGITUDE)
+        .addPoint(39.951, LONGITUDE)
+        .addPoint(39.952, LONGITUDE)
+        .addPoint(39.952, SOUTHBOUND)
+        .addPoint(39.951, SOUTHBOUND)
+        .addPoint(39.950, SOUTHBOUND)
+        .build();
+  }
+
+  @Test
+  public void snapsToClosestLegWithoutHeading() {
+    RouteGeometry geometry = outAndBack();
+    assertTrue(geometry.isLoop());
+    // Closer to the northbound leg, halfway up
+    double along = geometry.project(39.951, LONGITUDE - 0.00001, 30);
+    assertEquals(geometry.getDistance(1), along, 1);
+  }
+
+  @Test
+  public void snapsToLegGoingTheVehiclesWay() {
+    RouteGeometry geometry = outAndBack();
+    // GPS puts a southbound vehicle nearer the northbound leg
+    double along = geometry.project(39.951, LONGITUDE - 0.00001, 30,
+        PennRides.getBearing("South"));
+    assertEquals(geometry.getDistance(4), along, 1);
+
+    along = geometry.project(39.951, LONGITUDE - 0.00004, 30, PennRides.getBearing("North"));
+    assertEquals(geometry.getDistance(1), along, 1);
+  }
+
+  @Test
+  public void allowsHeadingOffByAnEighth() {
+    RouteGeometry geometry = outAndBack();
+    double along = geometry.project(39.951, LONGITUDE - 0.00001, 30,
+        PennRides.getBearing("South West"));
+    assertEquals(geometry.getDistance(4), along, 1);
+  }
+
+  @Test
+  public void fallsBackToClosestLegAcrossTheHeading() {
+    RouteGeometry geometry = outAndBack();
+    // Only the short edges across the ends run east-west, and both are over 100m away
+    double along = geometry.project(39.951, LONGITUDE - 0.00001, 30, PennRides.getBearing("East"));
+    assertEquals(geometry.getDistance(1), along, 1);
+  }
+
+  @Test
+  public void ignoresUnknownHeading() {
+    RouteGeometry geometry = outAndBack();
+    assertTrue(Double.isNaN(PennRides.getBearing("")));
+    double along = geometry.project(39.951, LONGITUDE - 0.00001, 30, PennRides.getBearing(""));
+    assertEquals(geometry.getDistance(1), along, 1);
+  }
+
+  @Test
+  public void snapsPlaceToEveryPassOfTheRoute() {
+    RouteGeometry geometry = outAndBack();
+    // A stop on the street is within reach of both legs
+    double[] along = geometry.projectAll(39.951, LONGITUDE - 0.00001, 30);
+    assertEquals(2, along.length);
+    assertEquals(geometry.getDistance(1), along[0], 1);
+    assertEquals(geometry.getDistance(4), along[1], 1);
+
+    // About 17m from the northbound leg and 21m from the southbound one
+    assertEquals(1, geometry.projectAll(39.951, LONGITUDE + 0.0002, 19).length);
+    assertEquals(0, geometry.projectAll(39.951, LONGITUDE + 0.001, 30).length);
+  }
+
+  @Test
+  public void snapsPlaceOnceAcrossTheStartOfALoop() {
+    RouteGeometry geometry = outAndBack();
+    // Next to the first point: both the closing edge and the first edge are within reach
+    double[] along = geometry.projectAll(39.950, LONGITUDE - 0.00002, 30);
+    assertEquals(1, along.length);
+    assertTrue(along[0] < 5 || along[0] > geometry.getLength() - 5);
+  }
+
+  @Test
+  public void rejectsCoordinatesOffTheRoute() {
+    RouteGeometry geometry = outAndBack();
+    assertEquals(-1, geometry.project(39.951, LONGITUDE + 0.001, 30, 0), 0);
+    assertEquals(-1, new RouteGeometry.Builder().build().project(39.951, LONGITUDE, 30), 0);
+  }
+}
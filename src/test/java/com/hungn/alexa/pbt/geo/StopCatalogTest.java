@@ -0,0 +1,93 @@
+package com.hungn.alexa.pbt.geo;
+
+import com.hungn.alexa.pbt.api.PennRides;
+import com.hungn.alexa.pbt.types.Stop;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Nearest-stop and stop name lookups over the sample stops, without PennRides
+ *
+ * @author Hung Nguyen (hungng@seas.upenn.edu)
+ */
+public class StopCatalogTest {
+  private static final PennRides.Route ROUTE = PennRides.Route.SHUTTLE_WEST_A;
+  private static final double RADIUS = 150;
+
+  private List<Stop> stops;
+  private StopCatalog catalog;
+
+  @Before
+  public void setUp() throws Exception {
+    try (InputStream in = StopCatalogTest.class.getResourceAsStream("/sample_stops.txt")) {
+      stops = PennRides.parseStops(in);
+    }
+    catalog = new StopCatalog(null, RADIUS);
+    catalog.put(ROUTE, stops);
+  }
+
+  @Test
+  public void findsNearestStopLikeALinearScan() {
+    Random random = new Random(3);
+    for (int q = 0; q < 2000; q++) {
+      double latitude = 39.948 + random.nextDouble() * 0.008;
+      double longitude = -75.205 + random.nextDouble() * 0.016;
+
+      Stop closest = null;
+      double closestDistance = Double.MAX_VALUE;
+      for (Stop stop : stops) {
+        double distance = GeoUtils.distance(latitude, longitude, stop.getLatitude(),
+            stop.getLongitude());
+        if (distance < closestDistance) {
+          closest = stop;
+          closestDistance = distance;
+        }
+      }
+      // The index measures on a flat projection; skip points it may round across the radius
+      if (Math.abs(closestDistance - RADIUS) < 0.5) continue;
+
+      Stop nearest = catalog.nearest(ROUTE, latitude, longitude);
+      if (closestDistance > RADIUS) {
+        assertNull(nearest);
+      } else {
+        assertNotNull(nearest);
+        double distance = GeoUtils.distance(latitude, longitude, nearest.getLatitude(),
+            nearest.getLongitude());
+        assertEquals(closestDistance, distance, 0.05);
+      }
+    }
+  }
+
+  @Test
+  public void findsStopAtItsOwnPosition() {
+    for (Stop stop : stops) {
+      assertSame(stop, catalog.nearest(ROUTE, stop.getLatitude(), stop.getLongitude()));
+    }
+    assertNull(catalog.nearest(PennRides.Route.BUS_EAST, 39.952891, -75.19249));
+  }
+
+  @Test
+  public void findsStopsBySpokenName() {
+    assertEquals("Bookstore, 3601 Walnut St", catalog.find(ROUTE, "the bookstore").getName());
+    assertEquals("Food Court, 3409 Walnut St.", catalog.find(ROUTE, "Food Court").getName());
+    // Prefixes of three letters or more
+    assertEquals("Pottruck Center, 3701 Walnut St", catalog.find(ROUTE, "pott").getName());
+    assertEquals("DRL, 200 S 33rd St.", catalog.find(ROUTE, "DRL").getName());
+    // Several stops are on Spruce Street; the shortest name wins
+    assertEquals("Gates, 3420 Spruce St", catalog.find(ROUTE, "spruce").getName());
+    assertNull(catalog.find(ROUTE, "airport terminal"));
+    assertNull(catalog.find(ROUTE, " - "));
+    assertEquals("The Quad, 3700 Spruce St.",
+        catalog.find("quad", Arrays.asList(PennRides.Route.BUS_EAST, ROUTE)).getName());
+  }
+}